@@ -65,10 +65,18 @@ public class Constants
 	private static final String BLOCKCHAIN_SNAPSHOT_FILENAME_TEST = "blockchain-snapshot-testnet.jpg";
 	public static final String BLOCKCHAIN_SNAPSHOT_FILENAME = TEST ? BLOCKCHAIN_SNAPSHOT_FILENAME_TEST : BLOCKCHAIN_SNAPSHOT_FILENAME_PROD;
 
+	private static final String HEADER_SNAPSHOT_FILENAME_PROD = "headers";
+	private static final String HEADER_SNAPSHOT_FILENAME_TEST = "headers-testnet";
+	public static final String HEADER_SNAPSHOT_FILENAME = TEST ? HEADER_SNAPSHOT_FILENAME_TEST : HEADER_SNAPSHOT_FILENAME_PROD;
+
 	private static final String BLOCKCHAIN_FILENAME_PROD = "blockchain";
 	private static final String BLOCKCHAIN_FILENAME_TEST = "blockchain-testnet";
 	public static final String BLOCKCHAIN_FILENAME = TEST ? BLOCKCHAIN_FILENAME_TEST : BLOCKCHAIN_FILENAME_PROD;
 
+	private static final String PEERS_FILENAME_PROD = "peers";
+	private static final String PEERS_FILENAME_TEST = "peers-testnet";
+	public static final String PEERS_FILENAME = TEST ? PEERS_FILENAME_TEST : PEERS_FILENAME_PROD;
+
 	public static final String PEER_DISCOVERY_IRC_CHANNEL_PROD = "#goldcoin";
 	public static final String PEER_DISCOVERY_IRC_CHANNEL_TEST = "#goldcoinTEST3";
 
@@ -31,6 +31,10 @@ import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 import android.app.ActivityManager;
@@ -46,6 +50,7 @@ import android.widget.Toast;
 
 import com.google.goldcoin.core.Address;
 import com.google.goldcoin.core.ECKey;
+import com.google.goldcoin.core.KeyPool;
 import com.google.goldcoin.core.Wallet;
 import com.google.goldcoin.core.Wallet.AutosaveEventListener;
 import com.google.goldcoin.store.WalletProtobufSerializer;
@@ -70,6 +75,18 @@ public class WalletApplication extends Application
 	private Intent blockchainServiceResetBlockchainIntent;
 	private ActivityManager activityManager;
 
+	// Wallet event listeners run here rather than on the thread processing blocks, which would otherwise wait for them.
+	private final ExecutorService walletEventExecutor = Executors.newSingleThreadExecutor(new ThreadFactory()
+	{
+		public Thread newThread(final Runnable runnable)
+		{
+			final Thread thread = new Thread(runnable, "wallet events");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		}
+	});
+
 	private static final Charset UTF_8 = Charset.forName("UTF-8");
 	private static final String TAG = "Goldcoin"+WalletApplication.class.getSimpleName();
 
@@ -134,6 +151,15 @@ public class WalletApplication extends Application
 		return wallet;
 	}
 
+	/**
+	 * Executor to register wallet event listeners with, see {@link Wallet#addEventListener(com.google.goldcoin.core.WalletEventListener, Executor)}.
+	 * Listeners are run on a background thread one at a time, so they need to post to a handler to touch the UI.
+	 */
+	public Executor getWalletEventExecutor()
+	{
+		return walletEventExecutor;
+	}
+
 	private void migrateWalletToProtobuf()
 	{
 		final File oldWalletFile = getFileStreamPath(Constants.WALLET_FILENAME);
@@ -248,6 +274,10 @@ public class WalletApplication extends Application
 		for (final ECKey key : wallet.getKeys())
 			if (key.getPrivKeyBytes() == null)
 				throw new Error("found read-only key, but wallet is likely an encrypted wallet from the future");
+
+		// keep keys generated in the background, so new addresses appear without delay
+		if (wallet.getKeyPool() == null)
+			wallet.setKeyPool(new KeyPool(Constants.NETWORK_PARAMETERS));
 	}
 
 	private Wallet restoreWalletFromBackup()
@@ -304,8 +334,9 @@ public class WalletApplication extends Application
 
 	public void addNewKeyToWallet()
 	{
-		wallet.addKey(new ECKey());
+		wallet.freshKey();
 
+		// still synchronous, as the new key must be backed up before its address is shown
 		backupKeys();
 	}
 
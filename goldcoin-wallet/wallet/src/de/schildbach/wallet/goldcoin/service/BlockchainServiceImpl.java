@@ -83,6 +83,7 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
 	private File blockChainFile;
 	private BlockChain blockChain;
 	private PeerGroup peerGroup;
+	private AddressManager addressManager;
 
 	private final Handler handler = new Handler();
 	private final Handler delayHandler = new Handler();
@@ -382,6 +383,8 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
 
 				final boolean connectTrustedPeerOnly = hasTrustedPeer && prefs.getBoolean(Constants.PREFS_KEY_TRUSTED_PEER_ONLY, false);
 				peerGroup.setMaxConnections(connectTrustedPeerOnly ? 1 : maxConnectedPeers);
+				if (!connectTrustedPeerOnly)
+					peerGroup.setAddressManager(addressManager);
 
 				peerGroup.addPeerDiscovery(new PeerDiscovery()
 				{
@@ -577,6 +580,7 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
 		registerReceiver(connectivityReceiver, intentFilter);
 
 		blockChainFile = new File(getDir("blockstore", Context.MODE_WORLD_READABLE | Context.MODE_WORLD_WRITEABLE), Constants.BLOCKCHAIN_FILENAME);
+		addressManager = new AddressManager(new File(blockChainFile.getParentFile(), Constants.PEERS_FILENAME));
         final boolean blockChainFileExists = blockChainFile.exists();
 
 		if (!blockChainFileExists)
@@ -625,7 +629,10 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
 			throw new Error("blockchain cannot be created", x);
 		}
 
-		application.getWallet().addEventListener(walletEventListener);
+		if (!blockChainFileExists)
+			loadHeaderSnapshot();
+
+		application.getWallet().addEventListener(walletEventListener, application.getWalletEventExecutor());
 
 		registerReceiver(tickReceiver, new IntentFilter(Intent.ACTION_TIME_TICK));
 	}
@@ -663,6 +670,43 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
 		return START_NOT_STICKY;
 	}
 
+	private void loadHeaderSnapshot()
+	{
+		// Checking the proof of work takes a few seconds, so don't hold up the service. Headers that arrive from peers
+		// in the meantime are simply skipped by the loader. It stops at the wallet's earliest key time, so after a reset
+		// or restore the wallet still gets the blocks that may hold its transactions.
+		final BlockChain blockChain = this.blockChain;
+		new Thread("header snapshot loader")
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					final long t = System.currentTimeMillis();
+					final InputStream is = new BufferedInputStream(getAssets().open(Constants.HEADER_SNAPSHOT_FILENAME));
+					try
+					{
+						final int added = new HeaderSnapshotLoader(Constants.NETWORK_PARAMETERS, blockChain).load(is);
+						Log.i(TAG, "loaded " + added + " headers from snapshot, took " + (System.currentTimeMillis() - t) + " ms");
+					}
+					finally
+					{
+						is.close();
+					}
+				}
+				catch (final FileNotFoundException x)
+				{
+					Log.d(TAG, "no header snapshot");
+				}
+				catch (final Exception x)
+				{
+					Log.w(TAG, "failed loading header snapshot", x);
+				}
+			}
+		}.start();
+	}
+
 	private void copyBlockchainSnapshot(final File file)
 	{
 		try
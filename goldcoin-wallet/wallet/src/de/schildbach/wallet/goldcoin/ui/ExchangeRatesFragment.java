@@ -96,7 +96,7 @@ public final class ExchangeRatesFragment extends SherlockListFragment implements
 		super.onCreate(savedInstanceState);
 
 		final Wallet wallet = application.getWallet();
-		wallet.addEventListener(walletChangeListener);
+		wallet.addEventListener(walletChangeListener, application.getWalletEventExecutor());
 	}
 
 	@Override
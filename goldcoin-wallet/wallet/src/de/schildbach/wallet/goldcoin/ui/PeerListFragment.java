@@ -136,6 +136,11 @@ public final class PeerListFragment extends SherlockListFragment
 				rowPing.setText(pingTime < Long.MAX_VALUE ? getString(R.string.peer_list_row_ping_time, pingTime) : null);
 				rowPing.setTypeface(isDownloading ? Typeface.DEFAULT_BOLD : Typeface.DEFAULT);
 
+				final TextView rowThroughput = (TextView) row.findViewById(R.id.peer_list_row_throughput);
+				rowThroughput.setText(getString(R.string.peer_list_row_throughput, peer.getBytesPerSecond() / 1024,
+						peer.getDownloadScore()));
+				rowThroughput.setTypeface(isDownloading ? Typeface.DEFAULT_BOLD : Typeface.DEFAULT);
+
 				return row;
 			}
 
@@ -25,6 +25,7 @@ import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Executor;
 import java.util.concurrent.RejectedExecutionException;
 
 import android.app.Activity;
@@ -150,7 +151,7 @@ public class TransactionsListFragment extends SherlockListFragment implements Lo
 
 		loaderManager.initLoader(0, null, this);
 
-		wallet.addEventListener(transactionChangeListener);
+		wallet.addEventListener(transactionChangeListener, application.getWalletEventExecutor());
 
 		updateView();
 	}
@@ -275,7 +276,7 @@ public class TransactionsListFragment extends SherlockListFragment implements Lo
 
 	public Loader<List<Transaction>> onCreateLoader(final int id, final Bundle args)
 	{
-		return new TransactionsLoader(activity, wallet, direction);
+		return new TransactionsLoader(activity, wallet, direction, application.getWalletEventExecutor());
 	}
 
 	public void onLoadFinished(final Loader<List<Transaction>> loader, final List<Transaction> transactions)
@@ -301,14 +302,15 @@ public class TransactionsListFragment extends SherlockListFragment implements Lo
 	{
 		private final Wallet wallet;
 		private final Direction direction;
+		private final Executor walletEventExecutor;
 
-		private TransactionsLoader(final Context context, final Wallet wallet, final Direction direction)
+		private TransactionsLoader(final Context context, final Wallet wallet, final Direction direction, final Executor walletEventExecutor)
 		{
 			super(context);
 
 			this.wallet = wallet;
 			this.direction = direction;
-
+			this.walletEventExecutor = walletEventExecutor;
 		}
 
 		@Override
@@ -316,7 +318,7 @@ public class TransactionsListFragment extends SherlockListFragment implements Lo
 		{
 			super.onStartLoading();
 
-			wallet.addEventListener(transactionAddRemoveListener);
+			wallet.addEventListener(transactionAddRemoveListener, walletEventExecutor);
 			transactionAddRemoveListener.onReorganize(null); // trigger at least one reload
 
 			forceLoad();
@@ -18,6 +18,7 @@
 package de.schildbach.wallet.goldcoin.ui;
 
 import java.math.BigInteger;
+import java.util.concurrent.Executor;
 
 import android.app.Activity;
 import android.content.Context;
@@ -180,12 +181,14 @@ public final class WalletBalanceFragment extends Fragment
 	private static class BalanceLoader extends AsyncTaskLoader<BigInteger>
 	{
 		private final Wallet wallet;
+		private final Executor walletEventExecutor;
 
-		private BalanceLoader(final Context context, final Wallet wallet)
+		private BalanceLoader(final Context context, final Wallet wallet, final Executor walletEventExecutor)
 		{
 			super(context);
 
 			this.wallet = wallet;
+			this.walletEventExecutor = walletEventExecutor;
 		}
 
 		@Override
@@ -193,7 +196,7 @@ public final class WalletBalanceFragment extends Fragment
 		{
 			super.onStartLoading();
 
-			wallet.addEventListener(walletChangeListener);
+			wallet.addEventListener(walletChangeListener, walletEventExecutor);
 
 			forceLoad();
 		}
@@ -229,7 +232,7 @@ public final class WalletBalanceFragment extends Fragment
 	{
 		public Loader<BigInteger> onCreateLoader(final int id, final Bundle args)
 		{
-			return new BalanceLoader(activity, wallet);
+			return new BalanceLoader(activity, wallet, application.getWalletEventExecutor());
 		}
 
 		public void onLoadFinished(final Loader<BigInteger> loader, final BigInteger balance)
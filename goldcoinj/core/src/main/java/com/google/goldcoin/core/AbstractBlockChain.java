@@ -20,12 +20,14 @@ import com.google.common.base.Preconditions;
 import com.google.goldcoin.store.BlockStore;
 import com.google.goldcoin.store.BlockStoreException;
 import com.google.goldcoin.utils.Locks;
+import com.google.goldcoin.utils.ParallelTasks;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.math.BigInteger;
 import java.lang.*;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -103,6 +105,15 @@ public abstract class AbstractBlockChain {
     protected final NetworkParameters params;
     private final CopyOnWriteArrayList<BlockChainListener> listeners;
 
+    // Blocks with fewer transactions than this per thread are scanned for relevant ones on the calling thread, as
+    // handing them to other threads would take about as long as the scan.
+    private static final int MIN_RELEVANCE_SCAN_CHUNK = 256;
+
+    // The transactions last scanned for ones that may be relevant to wallet listeners, and the result, so a block is
+    // only scanned once although both containsRelevantTransactions() and sendTransactionsToListener() need to know.
+    // Only used with the lock held.
+    private RelevanceScan relevanceScan;
+
     // Holds a block header and, optionally, a list of tx hashes or block's transactions
     protected static class OrphanBlock {
         Block block;
@@ -158,6 +169,16 @@ public abstract class AbstractBlockChain {
         listeners.remove(listener);
     }
 
+    // Returns the wallets among the listeners.
+    List<Wallet> getWallets() {
+        List<Wallet> wallets = new ArrayList<Wallet>();
+        for (BlockChainListener listener : listeners) {
+            if (listener instanceof Wallet)
+                wallets.add((Wallet) listener);
+        }
+        return wallets;
+    }
+
     /**
      * Returns the {@link BlockStore} the chain was constructed with. You can use this to iterate over the chain.
      */
@@ -266,6 +287,100 @@ public abstract class AbstractBlockChain {
         }
     }
 
+    /**
+     * Adds a run of block headers, each building on the one before, as {@link AbstractBlockChain#addHeaders(List, boolean)}
+     * does with listeners told about the new best block once for the whole run.
+     */
+    public int addHeaders(List<Block> headers) throws VerificationException, PrunedException {
+        return addHeaders(headers, false);
+    }
+
+    /**
+     * <p>Adds a run of block headers, each building on the one before, to the chain. The part of the run that extends
+     * the current chain head is verified and stored under a single acquisition of the chain lock and the chain head is
+     * only moved once, to the end of it. Unless notifyEachBlock is set, listeners that implement
+     * {@link BatchedBlockChainListener} then get a single {@link BatchedBlockChainListener#notifyNewBestBlocks(List)}
+     * call rather than one {@link BlockChainListener#notifyNewBestBlock(StoredBlock)} call per header. Headers that don't extend the chain
+     * head, for instance because they are on a fork, are passed to {@link AbstractBlockChain#add(Block)} one by
+     * one.</p>
+     *
+     * <p>If a header fails verification the headers before it stay in the chain and the exception is thrown.</p>
+     *
+     * @return how many headers from the start of the list are now part of the chain. If that is fewer than all of
+     * them, the next one did not connect to any block we know about and was dropped along with the rest.
+     */
+    public int addHeaders(List<Block> headers, boolean notifyEachBlock) throws VerificationException, PrunedException {
+        if (shouldVerifyTransactions())
+            throw new VerificationException("Got block headers while running in full-block mode");
+        int done;
+        lock.lock();
+        try {
+            done = extendChainHead(headers, notifyEachBlock);
+        } catch (BlockStoreException e) {
+            // TODO: Figure out a better way to propagate this exception to the user.
+            throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
+        }
+        try {
+            for (Block header : headers.subList(done, headers.size())) {
+                // Headers can't be kept as orphans, so stop at the first one that doesn't connect.
+                if (blockStore.get(header.getPrevBlockHash()) == null || !add(header))
+                    break;
+                done++;
+            }
+        } catch (BlockStoreException e) {
+            // TODO: Figure out a better way to propagate this exception to the user.
+            throw new RuntimeException(e);
+        }
+        return done;
+    }
+
+    // Connects the headers at the start of the list that extend the chain head one after the other, returning how many
+    // it connected.
+    private int extendChainHead(List<Block> headers, boolean notifyEachBlock)
+            throws BlockStoreException, VerificationException, PrunedException {
+        checkState(lock.isLocked());
+        StoredBlock cursor = getChainHead();
+        List<StoredBlock> added = new ArrayList<StoredBlock>(headers.size());
+        VerificationException failure = null;
+        for (Block header : headers) {
+            if (!header.getPrevBlockHash().equals(cursor.getHeader().getHash()))
+                break;
+            int height = cursor.getHeight() + 1;
+            try {
+                header.verifyHeader();
+                if (!params.passesCheckpoint(height, header.getHash()))
+                    throw new VerificationException("Block failed checkpoint lockin at " + height);
+                checkDifficultyTransitions(cursor, header);
+            } catch (VerificationException e) {
+                failure = new VerificationException("Could not verify block " + header.getHashAsString() + "\n" +
+                        header.toString(), e);
+                break;
+            }
+            cursor = addToBlockStore(cursor, header);
+            added.add(cursor);
+        }
+        // Whatever got stored before a failure becomes part of the chain.
+        if (!added.isEmpty()) {
+            setChainHead(cursor);
+            statsBlocksAdded += added.size();
+            log.debug("Chain is now {} blocks high", cursor.getHeight());
+            for (BlockChainListener listener : listeners) {
+                if (!notifyEachBlock && listener instanceof BatchedBlockChainListener) {
+                    ((BatchedBlockChainListener) listener).notifyNewBestBlocks(Collections.unmodifiableList(added));
+                } else {
+                    for (StoredBlock block : added)
+                        listener.notifyNewBestBlock(block);
+                }
+            }
+            tryConnectingOrphans();
+        }
+        if (failure != null)
+            throw failure;
+        return added.size();
+    }
+
     /**
      * Whether or not we are maintaining a set of unspent outputs and are verifying all transactions.
      * Also indicates that all calls to add() should provide a block containing transactions
@@ -374,6 +489,8 @@ public abstract class AbstractBlockChain {
             statsBlocksAdded++;
             return true;
         } finally {
+            // Don't hold on to the transactions of the block.
+            relevanceScan = null;
             lock.unlock();
         }
     }
@@ -433,7 +550,7 @@ public abstract class AbstractBlockChain {
             //
             // Note that we send the transactions to the wallet FIRST, even if we're about to re-organize this block
             // to become the new best chain head. This simplifies handling of the re-org in the Wallet class.
-            StoredBlock newBlock = storedPrev.build(block);
+            StoredBlock newBlock = storedPrev.build(block, blockStore);
             boolean haveNewBestChain = newBlock.moreWorkThan(head);
             if (haveNewBestChain) {
                 log.info("Block is causing a re-organize");
@@ -500,9 +617,9 @@ public abstract class AbstractBlockChain {
                                                          BlockStore store) throws BlockStoreException {
         long[] timestamps = new long[11];
         int unused = 9;
-        timestamps[10] = storedBlock.getHeader().getTimeSeconds();
+        timestamps[10] = storedBlock.getTimeSeconds();
         while (unused >= 0 && (storedBlock = storedBlock.getPrev(store)) != null)
-            timestamps[unused--] = storedBlock.getHeader().getTimeSeconds();
+            timestamps[unused--] = storedBlock.getTimeSeconds();
 
         Arrays.sort(timestamps, unused + 1, 11);
         return timestamps[unused + (11 - unused) / 2];
@@ -557,7 +674,7 @@ public abstract class AbstractBlockChain {
             // Walk in ascending chronological order.
             for (Iterator<StoredBlock> it = newBlocks.descendingIterator(); it.hasNext(); ) {
                 cursor = it.next();
-                if (expensiveChecks && cursor.getHeader().getTimeSeconds() <= getMedianTimestampOfRecentBlocks(cursor.getPrev(blockStore), blockStore))
+                if (expensiveChecks && cursor.getTimeSeconds() <= getMedianTimestampOfRecentBlocks(cursor.getPrev(blockStore), blockStore))
                     throw new VerificationException("Block's timestamp is too early during reorg");
                 TransactionOutputChanges txOutChanges;
                 if (cursor != newChainHead || block == null)
@@ -616,14 +733,37 @@ public abstract class AbstractBlockChain {
         //         \--> E -> F -> G
         //
         // findSplit will return block B. oldChainHead = D and newChainHead = G.
+        //
+        // First bring the taller chain down to the height of the other one, which skip pointers make cheap.
+        if (currentChainCursor.getHeight() > newChainCursor.getHeight()) {
+            currentChainCursor = currentChainCursor.getAncestor(store, newChainCursor.getHeight());
+            checkNotNull(currentChainCursor, "Attempt to follow an orphan chain");
+        } else if (newChainCursor.getHeight() > currentChainCursor.getHeight()) {
+            newChainCursor = newChainCursor.getAncestor(store, currentChainCursor.getHeight());
+            checkNotNull(newChainCursor, "Attempt to follow an orphan chain");
+        }
+        // Then walk both back together. Blocks at the same height skip to the same height, so if their skip pointers
+        // differ the chains have already diverged there and everything in between can be jumped over.
         while (!currentChainCursor.equals(newChainCursor)) {
-            if (currentChainCursor.getHeight() > newChainCursor.getHeight()) {
-                currentChainCursor = currentChainCursor.getPrev(store);
-                checkNotNull(currentChainCursor, "Attempt to follow an orphan chain");
-            } else {
-                newChainCursor = newChainCursor.getPrev(store);
-                checkNotNull(newChainCursor, "Attempt to follow an orphan chain");
+            Sha256Hash currentSkip = currentChainCursor.getSkipHash();
+            Sha256Hash newSkip = newChainCursor.getSkipHash();
+            StoredBlock currentNext = null, newNext = null;
+            if (currentSkip != null && newSkip != null && !currentSkip.equals(newSkip)) {
+                currentNext = store.get(currentSkip);
+                newNext = store.get(newSkip);
+                // As in getAncestor, a skip pointer left stale by a crash may point at the wrong height.
+                int skipHeight = StoredBlock.getSkipHeight(currentChainCursor.getHeight());
+                if (currentNext != null && currentNext.getHeight() != skipHeight)
+                    currentNext = null;
+                if (newNext != null && newNext.getHeight() != skipHeight)
+                    newNext = null;
             }
+            if (currentNext == null || newNext == null) {
+                currentNext = currentChainCursor.getPrev(store);
+                newNext = newChainCursor.getPrev(store);
+            }
+            currentChainCursor = checkNotNull(currentNext, "Attempt to follow an orphan chain");
+            newChainCursor = checkNotNull(newNext, "Attempt to follow an orphan chain");
         }
         return currentChainCursor;
     }
@@ -640,13 +780,21 @@ public abstract class AbstractBlockChain {
         SIDE_CHAIN
     }
 
-    private static void sendTransactionsToListener(StoredBlock block, NewBlockType blockType,
-                                                   BlockChainListener listener,
-                                                   List<Transaction> transactions,
-                                                   boolean clone) throws VerificationException {
-        for (Transaction tx : transactions) {
+    private void sendTransactionsToListener(StoredBlock block, NewBlockType blockType,
+                                            BlockChainListener listener,
+                                            List<Transaction> transactions,
+                                            boolean clone) throws VerificationException {
+        // Only transactions the scan found may be relevant are checked with the listener, and those spending outputs of
+        // transactions it received from this block, which the scan couldn't know about.
+        BitSet candidates = getRelevanceCandidates(listener, transactions);
+        Set<Sha256Hash> received = new HashSet<Sha256Hash>();
+        for (int i = 0; i < transactions.size(); i++) {
+            Transaction tx = transactions.get(i);
+            if (candidates != null && !candidates.get(i) && !spendsAny(tx, received))
+                continue;
             try {
                 if (listener.isTransactionRelevant(tx)) {
+                    received.add(tx.getHash());
                     if (clone)
                         tx = new Transaction(tx.params, tx.litecoinSerialize());
                     listener.receiveFromBlock(tx, block, blockType);
@@ -780,7 +928,7 @@ public abstract class AbstractBlockChain {
 
             if(GoldcoinDefinition.usingMedianDifficultyProtocol(height))
             {
-                thisBlockTime = cursor.getHeader().getTimeSeconds();
+                thisBlockTime = cursor.getTimeSeconds();
                 last60BlockTimes[i] = thisBlockTime;
                 if(i > 0)
                 {
@@ -788,7 +936,7 @@ public abstract class AbstractBlockChain {
                 }
                 lastBlockTime = thisBlockTime;
             }
-            cursor = blockStore.get(cursor.getHeader().getPrevBlockHash());
+            cursor = blockStore.get(cursor.getPrevBlockHash());
         }
         long elapsed = System.currentTimeMillis() - now;
         if (elapsed > 50)
@@ -824,8 +972,8 @@ public abstract class AbstractBlockChain {
                     //throw new VerificationException(
                     //        "Difficulty transition point but we did not find a way back to the genesis block.");
                 }
-                last120BlockTimes[i] = cursor.getHeader().getTimeSeconds();
-                cursor = blockStore.get(cursor.getHeader().getPrevBlockHash());
+                last120BlockTimes[i] = cursor.getTimeSeconds();
+                cursor = blockStore.get(cursor.getPrevBlockHash());
             }
 
 
@@ -965,23 +1113,24 @@ public abstract class AbstractBlockChain {
             throw new VerificationException("Network provided difficulty bits do not match what was calculated: " +
                     receivedDifficulty.toString(16) + " vs " + newDifficulty.toString(16));
     }
-    void verifyDifficulty(BigInteger newDifficulty, Block nextBlock) throws VerificationException
+    void verifyDifficulty(UInt256 newDifficulty, Block nextBlock) throws VerificationException
     {
-        if (newDifficulty.compareTo(params.proofOfWorkLimit) > 0) {
-            log.info("Difficulty hit proof of work limit: {}", newDifficulty.toString(16));
-            newDifficulty = params.proofOfWorkLimit;
+        if (newDifficulty.compareTo(params.getProofOfWorkLimitAsUInt256()) > 0) {
+            log.info("Difficulty hit proof of work limit: {}", newDifficulty);
+            newDifficulty = params.getProofOfWorkLimitAsUInt256();
         }
 
         int accuracyBytes = (int) (nextBlock.getDifficultyTarget() >>> 24) - 3;
-        BigInteger receivedDifficulty = nextBlock.getDifficultyTargetAsInteger();
+        UInt256 receivedDifficulty = nextBlock.getDifficultyTargetAsUInt256();
 
         // The calculated difficulty is to a higher precision than received, so reduce here.
-        BigInteger mask = BigInteger.valueOf(0xFFFFFFL).shiftLeft(accuracyBytes * 8);
+        UInt256 mask = UInt256.valueOf(0xFFFFFFL);
+        mask = accuracyBytes >= 0 ? mask.shiftLeft(accuracyBytes * 8) : mask.shiftRight(-accuracyBytes * 8);
         newDifficulty = newDifficulty.and(mask);
 
         if (newDifficulty.compareTo(receivedDifficulty) != 0)
             throw new VerificationException("Network provided difficulty bits do not match what was calculated: received" +
-                    receivedDifficulty.toString(16) + " vs calculated " + newDifficulty.toString(16));
+                    receivedDifficulty + " vs calculated " + newDifficulty);
     }
     //TODO::This will not work
     private void checkTestnetDifficulty(StoredBlock storedPrev, Block prev, Block next) throws VerificationException, BlockStoreException {
@@ -998,13 +1147,13 @@ public abstract class AbstractBlockChain {
             StoredBlock cursor = storedPrev;
             while (!cursor.getHeader().equals(params.genesisBlock) &&
                     cursor.getHeight() % params.interval != 0 &&
-                    cursor.getHeader().getDifficultyTargetAsInteger().equals(params.proofOfWorkLimit))
+                    Utils.decodeCompactBits(cursor.getDifficultyTarget()).equals(params.proofOfWorkLimit))
                 cursor = cursor.getPrev(blockStore);
             BigInteger cursorDifficulty = cursor.getHeader().getDifficultyTargetAsInteger();
             BigInteger newDifficulty = next.getDifficultyTargetAsInteger();
             if (!cursorDifficulty.equals(newDifficulty))
                 throw new VerificationException("Testnet block transition that is not allowed: " +
-                        Long.toHexString(cursor.getHeader().getDifficultyTarget()) + " vs " +
+                        Long.toHexString(cursor.getDifficultyTarget()) + " vs " +
                         Long.toHexString(next.getDifficultyTarget()));
         }
     }
@@ -1029,14 +1178,14 @@ public abstract class AbstractBlockChain {
         Block prev = pindexLast.getHeader();
 
         //Todo:: Clean this mess up.. -akumaburn
-        BigInteger bnProofOfWorkLimit = params.proofOfWorkLimit;
-        BigInteger bnNew;
+        UInt256 bnProofOfWorkLimit = params.getProofOfWorkLimitAsUInt256();
+        UInt256 bnNew;
 
 
 
         // Genesis block
         if (pindexLast == null) {
-            verifyDifficulty(params.proofOfWorkLimit, pblock);
+            verifyDifficulty(bnProofOfWorkLimit, pblock);
             return;
         }
 
@@ -1068,7 +1217,7 @@ public abstract class AbstractBlockChain {
                 {
                     // If the new block's timestamp is more than 2* 10 minutes
                     // then allow mining of a min-difficulty block.
-                    if (pblock.getTimeSeconds() > pindexLast.getHeader().getTimeSeconds() + nTargetSpacing2*2) {
+                    if (pblock.getTimeSeconds() > pindexLast.getTimeSeconds() + nTargetSpacing2*2) {
                         verifyDifficulty(bnProofOfWorkLimit, pblock);
                         return;
                     }
@@ -1077,18 +1226,18 @@ public abstract class AbstractBlockChain {
                         // Return the last non-special-min-difficulty-rules-block
                         StoredBlock cursor = pindexLast;
 
-                        while((cursor = cursor.getPrev(blockStore))!= null && cursor.getHeight() % nInterval != 0 && !cursor.getHeader().getDifficultyTargetAsInteger().equals(bnProofOfWorkLimit))
+                        while((cursor = cursor.getPrev(blockStore))!= null && cursor.getHeight() % nInterval != 0 && !UInt256.decodeCompactBits(cursor.getDifficultyTarget()).equals(bnProofOfWorkLimit))
                         {
                             cursor = cursor.getPrev(blockStore);
                             if(cursor == null)
                                 return;
                         }
-                        verifyDifficulty(pindexLast.getHeader().getDifficultyTargetAsInteger(), pblock);
+                        verifyDifficulty(pindexLast.getHeader().getDifficultyTargetAsUInt256(), pblock);
                         return;
                     }
                 }
 
-                verifyDifficulty(pindexLast.getHeader().getDifficultyTargetAsInteger(), pblock);
+                verifyDifficulty(pindexLast.getHeader().getDifficultyTargetAsUInt256(), pblock);
                 return;
             }
 
@@ -1109,7 +1258,7 @@ public abstract class AbstractBlockChain {
             //assert(pindexFirst);
 
             // Limit adjustment step
-            long nActualTimespan = pindexLast.getHeader().getTimeSeconds() - pindexFirst.getHeader().getTimeSeconds();
+            long nActualTimespan = pindexLast.getTimeSeconds() - pindexFirst.getTimeSeconds();
             log.info("  nActualTimespan = %d  before bounds\n", nActualTimespan);
             long nActualTimespanMax = fNewDifficultyProtocol? ((nTargetTimespan2Current*99)/70) : (nTargetTimespan2Current*4);
             long nActualTimespanMin = fNewDifficultyProtocol? ((nTargetTimespan2Current*70)/99) : (nTargetTimespan2Current/4);
@@ -1118,11 +1267,11 @@ public abstract class AbstractBlockChain {
             if (nActualTimespan > nActualTimespanMax)
                 nActualTimespan = nActualTimespanMax;
             // Retarget
-            bnNew = pindexLast.getHeader().getDifficultyTargetAsInteger();
+            bnNew = pindexLast.getHeader().getDifficultyTargetAsUInt256();
             //bnNew *= nActualTimespan;
-            bnNew = bnNew.multiply(BigInteger.valueOf(nActualTimespan));
+            bnNew = bnNew.multiply(nActualTimespan);
             //bnNew /= nTargetTimespan2Current;
-            bnNew = bnNew.divide(BigInteger.valueOf(nTargetTimespan2Current));
+            bnNew = bnNew.divide(nTargetTimespan2Current);
 
 
             //if (bnNew.compareTo(bnProofOfWorkLimit) < 0)
@@ -1149,7 +1298,7 @@ public abstract class AbstractBlockChain {
                 {
                     // If the new block's timestamp is more than 2* 10 minutes
                     // then allow mining of a min-difficulty block.
-                    if (pblock.getTimeSeconds() > pindexLast.getHeader().getTimeSeconds() + nTargetSpacing*2) {
+                    if (pblock.getTimeSeconds() > pindexLast.getTimeSeconds() + nTargetSpacing*2) {
                         verifyDifficulty(bnProofOfWorkLimit, pblock);
                         return;
                     }
@@ -1158,18 +1307,18 @@ public abstract class AbstractBlockChain {
                         // Return the last non-special-min-difficulty-rules-block
                         StoredBlock cursor = pindexLast;
 
-                        while((cursor = cursor.getPrev(blockStore))!= null && cursor.getHeight() % nInterval != 0 && !cursor.getHeader().getDifficultyTargetAsInteger().equals(bnProofOfWorkLimit))
+                        while((cursor = cursor.getPrev(blockStore))!= null && cursor.getHeight() % nInterval != 0 && !UInt256.decodeCompactBits(cursor.getDifficultyTarget()).equals(bnProofOfWorkLimit))
                         {
                             cursor = cursor.getPrev(blockStore);
                             if(cursor == null)
                                 return;
                         }
-                        verifyDifficulty(pindexLast.getHeader().getDifficultyTargetAsInteger(), pblock);
+                        verifyDifficulty(pindexLast.getHeader().getDifficultyTargetAsUInt256(), pblock);
                         return;
                     }
                 }
 
-                verifyDifficulty(pindexLast.getHeader().getDifficultyTargetAsInteger(), pblock);
+                verifyDifficulty(pindexLast.getHeader().getDifficultyTargetAsUInt256(), pblock);
                 return;
             }
 
@@ -1199,7 +1348,7 @@ public abstract class AbstractBlockChain {
             //That gives us a list of 59 time differences
             //Then we take the median of those times and multiply it by 60 to get our actualtimespan
             while(last60BlockTimes.size() < 60) {
-                last60BlockTimes.add(tblock2.getHeader().getTimeSeconds());
+                last60BlockTimes.add(tblock2.getTimeSeconds());
                 //if(tblock2->pprev)//should always be so
                 //    tblock2 = tblock2->pprev;
                 tblock2 = tblock2.getPrev(blockStore);
@@ -1243,7 +1392,7 @@ public abstract class AbstractBlockChain {
                 //That gives us a list of 119 time differences
                 //Then we take the average of those times and multiply it by 60 to get our actualtimespan
                 while(last120BlockTimes.size() < 120) {
-                    last120BlockTimes.add(tblock2.getHeader().getTimeSeconds());
+                    last120BlockTimes.add(tblock2.getTimeSeconds());
                     tblock2 = tblock2.getPrev(blockStore);
                     if(tblock2 == null)
                         return;
@@ -1411,9 +1560,9 @@ public abstract class AbstractBlockChain {
                 //Note: 0 is the current block, we want 60 past current
                 while(counter <= 240) {
                     if(counter == 60) {
-                        nbits60ago = tblock22.getHeader().getDifficultyTarget();
+                        nbits60ago = tblock22.getDifficultyTarget();
                     } else if(counter == 240) {
-                        nbits240ago = tblock22.getHeader().getDifficultyTarget();
+                        nbits240ago = tblock22.getDifficultyTarget();
                     }
                     tblock22 = tblock22.getPrev(blockStore);
 
@@ -1421,20 +1570,20 @@ public abstract class AbstractBlockChain {
                 }
 
                 //Now we get the old targets
-                BigInteger bn60ago;
-                BigInteger bn240ago;
-                BigInteger bnLast;
+                UInt256 bn60ago;
+                UInt256 bn240ago;
+                UInt256 bnLast;
 
-                bn60ago = Utils.decodeCompactBits(nbits60ago);
-                bn240ago = Utils.decodeCompactBits(nbits240ago);
-                bnLast = pindexLast.getHeader().getDifficultyTargetAsInteger();
+                bn60ago = UInt256.decodeCompactBits(nbits60ago);
+                bn240ago = UInt256.decodeCompactBits(nbits240ago);
+                bnLast = pindexLast.getHeader().getDifficultyTargetAsUInt256();
 
                 //Set the new target
-                bnNew = pindexLast.getHeader().getDifficultyTargetAsInteger();
+                bnNew = pindexLast.getHeader().getDifficultyTargetAsUInt256();
                 //bnNew *= nActualTimespan;
-                bnNew = bnNew.multiply(BigInteger.valueOf(nActualTimespan));
+                bnNew = bnNew.multiply(nActualTimespan);
                 //bnNew /= nTargetTimespanCurrent;
-                bnNew = bnNew.divide(BigInteger.valueOf(nTargetTimespanCurrent));
+                bnNew = bnNew.divide(nTargetTimespanCurrent);
 
 
                 //Now we have the difficulty at those blocks..
@@ -1443,26 +1592,26 @@ public abstract class AbstractBlockChain {
                 // than the previous block difficulty).. when there was no halfing
                 // necessary.. 10/8 == 1.0/0.8
                 //bnLast *= 10;
-                bnLast = bnLast.multiply(BigInteger.valueOf(10));
+                bnLast = bnLast.multiply(10);
                 //bnLast /= 8;
-                bnLast = bnLast.divide(BigInteger.valueOf(8));
+                bnLast = bnLast.divide(8);
 
                 if(!didHalfAdjust && bnNew.compareTo(bnLast) > 0) {
                     bnNew = bnLast;
                 }
 
                 //bnLast *= 8;
-                bnLast = bnLast.multiply(BigInteger.valueOf(8));
+                bnLast = bnLast.multiply(8);
                 //bnLast /= 10;
-                bnLast = bnLast.divide(BigInteger.valueOf(10));
+                bnLast = bnLast.divide(10);
 
                 // Set ceilings on difficulty increases per block
 
                 //1.0/1.02 == 100/102
                 //bn60ago *= 100;
-                bn60ago = bn60ago.multiply(BigInteger.valueOf(100));
+                bn60ago = bn60ago.multiply(100);
                 //bn60ago /= 102;
-                bn60ago = bn60ago.divide(BigInteger.valueOf(102));
+                bn60ago = bn60ago.divide(102);
 
                 if(bnNew.compareTo(bn60ago) < 0) {
                     bnNew = bn60ago;
@@ -1470,15 +1619,15 @@ public abstract class AbstractBlockChain {
 
 //                bn60ago *= 102;
   //              bn60ago /= 100;
-                bn60ago = bn60ago.multiply(BigInteger.valueOf(102));
-                bn60ago = bn60ago.divide(BigInteger.valueOf(100));
+                bn60ago = bn60ago.multiply(102);
+                bn60ago = bn60ago.divide(100);
 
                 //1.0/(1.02*4) ==  100 / 408
 
                 //bn240ago *= 100;
                 //bn240ago /= 408;
-                bn240ago = bn240ago.multiply(BigInteger.valueOf(100));
-                bn240ago = bn240ago.divide(BigInteger.valueOf(408));
+                bn240ago = bn240ago.multiply(100);
+                bn240ago = bn240ago.divide(408);
 
                 if(bnNew.compareTo(bn240ago) < 0) {
                     bnNew = bn240ago;
@@ -1486,17 +1635,17 @@ public abstract class AbstractBlockChain {
 
                 //bn240ago *= 408;
                 //bn240ago /= 100;
-                bn240ago = bn240ago.multiply(BigInteger.valueOf(408));
-                bn240ago = bn240ago.divide(BigInteger.valueOf(100));
+                bn240ago = bn240ago.multiply(408);
+                bn240ago = bn240ago.divide(100);
 
 
             } else {
                 // Retarget
-                bnNew = pindexLast.getHeader().getDifficultyTargetAsInteger();
+                bnNew = pindexLast.getHeader().getDifficultyTargetAsUInt256();
                 //bnNew *= nActualTimespan;
                 //bnNew /= nTargetTimespanCurrent;
-                bnNew = bnNew.multiply(BigInteger.valueOf(nActualTimespan));
-                bnNew = bnNew.divide(BigInteger.valueOf(nTargetTimespanCurrent));
+                bnNew = bnNew.multiply(nActualTimespan);
+                bnNew = bnNew.divide(nTargetTimespanCurrent);
             }
 
             //Sets a ceiling on highest target value (lowest possible difficulty)
@@ -1522,7 +1671,7 @@ public abstract class AbstractBlockChain {
                 {
                     // If the new block's timestamp is more than 2* 10 minutes
                     // then allow mining of a min-difficulty block.
-                    if (pblock.getTimeSeconds() > pindexLast.getHeader().getTimeSeconds() + nTargetSpacing*2) {
+                    if (pblock.getTimeSeconds() > pindexLast.getTimeSeconds() + nTargetSpacing*2) {
                         verifyDifficulty(bnProofOfWorkLimit, pblock);
                         return;
                     }
@@ -1532,18 +1681,18 @@ public abstract class AbstractBlockChain {
                         // Return the last non-special-min-difficulty-rules-block
                         StoredBlock cursor = pindexLast;
 
-                        while((cursor = cursor.getPrev(blockStore))!= null && cursor.getHeight() % nInterval != 0 && !cursor.getHeader().getDifficultyTargetAsInteger().equals(bnProofOfWorkLimit))
+                        while((cursor = cursor.getPrev(blockStore))!= null && cursor.getHeight() % nInterval != 0 && !UInt256.decodeCompactBits(cursor.getDifficultyTarget()).equals(bnProofOfWorkLimit))
                         {
                             cursor = cursor.getPrev(blockStore);
                             if(cursor == null)
                                 return;
                         }
-                        verifyDifficulty(pindexLast.getHeader().getDifficultyTargetAsInteger(), pblock);
+                        verifyDifficulty(pindexLast.getHeader().getDifficultyTargetAsUInt256(), pblock);
                         return;
                     }
                 }
 
-                verifyDifficulty(pindexLast.getHeader().getDifficultyTargetAsInteger(), pblock);
+                verifyDifficulty(pindexLast.getHeader().getDifficultyTargetAsUInt256(), pblock);
                 return;
             }
 
@@ -1561,7 +1710,7 @@ public abstract class AbstractBlockChain {
             //assert(pindexFirst);
 
             // Limit adjustment step
-            long nActualTimespan = pindexLast.getHeader().getTimeSeconds() - pindexFirst.getHeader().getTimeSeconds();
+            long nActualTimespan = pindexLast.getTimeSeconds() - pindexFirst.getTimeSeconds();
             //printf("  nActualTimespan = %"PRI64d"  before bounds\n", nActualTimespan);
             long nActualTimespanMax = fNewDifficultyProtocol? ((nTargetTimespanCurrent*99)/70) : (nTargetTimespanCurrent*4);
             long nActualTimespanMin = fNewDifficultyProtocol? ((nTargetTimespanCurrent*70)/99) : (nTargetTimespanCurrent/4);
@@ -1570,11 +1719,11 @@ public abstract class AbstractBlockChain {
             if (nActualTimespan > nActualTimespanMax)
                 nActualTimespan = nActualTimespanMax;
             // Retarget
-            bnNew = pindexLast.getHeader().getDifficultyTargetAsInteger();
+            bnNew = pindexLast.getHeader().getDifficultyTargetAsUInt256();
             //bnNew *= nActualTimespan;
             //bnNew /= nTargetTimespanCurrent;
-            bnNew = bnNew.multiply(BigInteger.valueOf(nActualTimespan));
-            bnNew = bnNew.divide(BigInteger.valueOf(nTargetTimespanCurrent));
+            bnNew = bnNew.multiply(nActualTimespan);
+            bnNew = bnNew.divide(nTargetTimespanCurrent);
 
             //if (bnNew > bnProofOfWorkLimit)
               //  bnNew = bnProofOfWorkLimit;
@@ -1594,10 +1743,23 @@ public abstract class AbstractBlockChain {
      * Returns true if any connected wallet considers any transaction in the block to be relevant.
      */
     private boolean containsRelevantTransactions(Block block) {
-        // Does not need to be locked.
-        for (Transaction tx : block.transactions) {
+        checkState(lock.isLocked());
+        // Rule out most transactions for all wallets in one scan, and only ask the wallets about the rest.
+        Map<BlockChainListener, RelevanceSnapshot> snapshots = new HashMap<BlockChainListener, RelevanceSnapshot>();
+        for (BlockChainListener listener : listeners) {
+            if (listener instanceof Wallet)
+                snapshots.put(listener, ((Wallet) listener).getRelevanceSnapshot());
+        }
+        RelevanceScan scan = new RelevanceScan(block.transactions);
+        scan.scan(snapshots);
+        relevanceScan = scan;
+        for (int i = 0; i < block.transactions.size(); i++) {
+            Transaction tx = block.transactions.get(i);
             try {
                 for (BlockChainListener listener : listeners) {
+                    BitSet candidates = scan.candidates.get(listener);
+                    if (candidates != null && !candidates.get(i))
+                        continue;
                     if (listener.isTransactionRelevant(tx)) return true;
                 }
             } catch (ScriptException e) {
@@ -1609,6 +1771,89 @@ public abstract class AbstractBlockChain {
         return false;
     }
 
+    // Returns which of the transactions may be relevant to the listener, scanning them against its current snapshot if
+    // they weren't yet, or null if any of them may be.
+    private BitSet getRelevanceCandidates(BlockChainListener listener, List<Transaction> transactions) {
+        checkState(lock.isLocked());
+        if (!(listener instanceof Wallet))
+            return null;
+        RelevanceSnapshot snapshot = ((Wallet) listener).getRelevanceSnapshot();
+        if (relevanceScan == null || relevanceScan.transactions != transactions)
+            relevanceScan = new RelevanceScan(transactions);
+        if (relevanceScan.snapshots.get(listener) != snapshot)
+            relevanceScan.scan(Collections.singletonMap(listener, snapshot));
+        return relevanceScan.candidates.get(listener);
+    }
+
+    private static boolean spendsAny(Transaction tx, Set<Sha256Hash> hashes) {
+        if (hashes.isEmpty())
+            return false;
+        for (TransactionInput input : tx.getInputs()) {
+            if (hashes.contains(input.getOutpoint().getHash()))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Which of a list of transactions may be relevant to each wallet listener, according to the snapshot of the wallet
+     * they were scanned against. The transactions are split into chunks scanned by {@link ParallelTasks}, without
+     * holding any lock, and the results merged in order.
+     */
+    private static class RelevanceScan {
+        final List<Transaction> transactions;
+        final Map<BlockChainListener, RelevanceSnapshot> snapshots = new HashMap<BlockChainListener, RelevanceSnapshot>();
+        final Map<BlockChainListener, BitSet> candidates = new HashMap<BlockChainListener, BitSet>();
+
+        RelevanceScan(List<Transaction> transactions) {
+            this.transactions = transactions;
+        }
+
+        void scan(Map<BlockChainListener, RelevanceSnapshot> toScan) {
+            if (toScan.isEmpty())
+                return;
+            final List<BlockChainListener> scanned = new ArrayList<BlockChainListener>(toScan.keySet());
+            final List<RelevanceSnapshot> scannedSnapshots = new ArrayList<RelevanceSnapshot>(scanned.size());
+            for (BlockChainListener listener : scanned)
+                scannedSnapshots.add(toScan.get(listener));
+            int size = transactions.size();
+            int numChunks = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(),
+                    size / MIN_RELEVANCE_SCAN_CHUNK));
+            int chunkSize = (size + numChunks - 1) / numChunks;
+            List<Callable<BitSet[]>> tasks = new ArrayList<Callable<BitSet[]>>(numChunks);
+            for (int start = 0; start < size; start += chunkSize) {
+                final int from = start;
+                final int to = Math.min(start + chunkSize, size);
+                // Each transaction is only looked at by one task, as looking at it may parse it.
+                tasks.add(new Callable<BitSet[]>() {
+                    public BitSet[] call() {
+                        BitSet[] result = new BitSet[scannedSnapshots.size()];
+                        for (int i = 0; i < result.length; i++) {
+                            RelevanceSnapshot snapshot = scannedSnapshots.get(i);
+                            result[i] = new BitSet(to);
+                            for (int j = from; j < to; j++) {
+                                if (snapshot.mightBeRelevant(transactions.get(j)))
+                                    result[i].set(j);
+                            }
+                        }
+                        return result;
+                    }
+                });
+            }
+            BitSet[] merged = new BitSet[scanned.size()];
+            for (int i = 0; i < merged.length; i++)
+                merged[i] = new BitSet(size);
+            for (BitSet[] chunk : ParallelTasks.runAll(tasks)) {
+                for (int i = 0; i < merged.length; i++)
+                    merged[i].or(chunk[i]);
+            }
+            for (int i = 0; i < merged.length; i++) {
+                snapshots.put(scanned.get(i), scannedSnapshots.get(i));
+                candidates.put(scanned.get(i), merged[i]);
+            }
+        }
+    }
+
     /**
      * Returns the block at the head of the current best chain. This is the block which represents the greatest
      * amount of cumulative work done.
@@ -1664,7 +1909,7 @@ public abstract class AbstractBlockChain {
     public Date estimateBlockTime(int height) {
         synchronized (chainHeadLock) {
             long offset = height - chainHead.getHeight();
-            long headTime = chainHead.getHeader().getTimeSeconds();
+            long headTime = chainHead.getTimeSeconds();
             long estimated = (headTime * 1000) + (1000L * 60L * 10L * offset);
             return new Date(estimated);
         }
@@ -21,10 +21,18 @@ import java.util.List;
 /**
  * Default no-op implementation of {@link BlockChainListener}.
  */
-public class AbstractBlockChainListener implements BlockChainListener {
+public class AbstractBlockChainListener implements BatchedBlockChainListener {
     public void notifyNewBestBlock(StoredBlock block) throws VerificationException {
     }
 
+    /**
+     * Calls {@link AbstractBlockChainListener#notifyNewBestBlock(StoredBlock)} for each block in turn.
+     */
+    public void notifyNewBestBlocks(List<StoredBlock> blocks) throws VerificationException {
+        for (StoredBlock block : blocks)
+            notifyNewBestBlock(block);
+    }
+
     public void reorganize(StoredBlock splitPoint, List<StoredBlock> oldBlocks, List<StoredBlock> newBlocks) throws VerificationException {
     }
 
@@ -0,0 +1,296 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.goldcoin.core;
+
+import com.google.goldcoin.utils.Locks;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Remembers the addresses of peers on the network, when they were last heard of and how connecting to them went,
+ * so that a {@link PeerGroup} can pick good peers to connect to immediately rather than going through peer discovery
+ * on every start. Addresses are learned from peer discovery and from the addr messages peers send us.</p>
+ *
+ * <p>If a file is given, the known addresses are loaded from it on construction and written back by
+ * {@link AddressManager#save()}. This class is thread safe.</p>
+ */
+public class AddressManager {
+    private static final Logger log = LoggerFactory.getLogger(AddressManager.class);
+
+    private static final int FILE_MAGIC = 0x61646472;  // "addr"
+    private static final int FILE_VERSION = 1;
+
+    /** At most this many addresses are remembered. The least promising are dropped first. */
+    public static final int MAX_ADDRESSES = 2500;
+    // After a failed connection attempt an address isn't tried again for this long, doubling with every further
+    // failure up to MAX_RETRY_DELAY_SECS.
+    private static final long BASE_RETRY_DELAY_SECS = 60;
+    private static final long MAX_RETRY_DELAY_SECS = 24 * 60 * 60;
+
+    private static class Entry {
+        final InetSocketAddress address;
+        // All times are in seconds since the epoch, or zero if it never happened.
+        long lastSeen, lastSuccess, lastAttempt;
+        // Connection failures since the last success.
+        int failures;
+
+        Entry(InetSocketAddress address) {
+            this.address = address;
+        }
+    }
+
+    private final ReentrantLock lock = Locks.lock("addressmanager");
+    @Nullable private final File file;
+    private final Map<InetSocketAddress, Entry> entries = new HashMap<InetSocketAddress, Entry>();
+
+    /**
+     * Creates an address manager that only remembers addresses in memory.
+     */
+    public AddressManager() {
+        this.file = null;
+    }
+
+    /**
+     * Creates an address manager that loads the addresses it knows from the given file, if it exists. A file that
+     * can't be read is logged and ignored, as the addresses can always be discovered again.
+     */
+    public AddressManager(File file) {
+        this.file = checkNotNull(file);
+        if (file.exists()) {
+            try {
+                load(file);
+            } catch (IOException e) {
+                log.warn("Could not read peer addresses from {}: {}", file, e.toString());
+                entries.clear();
+            }
+        }
+    }
+
+    private Entry getOrCreate(InetSocketAddress address) {
+        Entry entry = entries.get(address);
+        if (entry == null) {
+            entry = new Entry(address);
+            entries.put(address, entry);
+        }
+        return entry;
+    }
+
+    private static long nowSecs() {
+        return Utils.now().getTime() / 1000;
+    }
+
+    /**
+     * Records that the given address was heard of at the given time, in seconds since the epoch. Times in the future
+     * are taken to mean now.
+     */
+    public void addSeen(InetSocketAddress address, long timeSecs) {
+        lock.lock();
+        try {
+            Entry entry = getOrCreate(address);
+            entry.lastSeen = Math.max(entry.lastSeen, Math.min(timeSecs, nowSecs()));
+            if (entries.size() > MAX_ADDRESSES + MAX_ADDRESSES / 10)
+                trim();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records the addresses in an addr message received from a peer. Addresses without a time are taken to have been
+     * seen now.
+     */
+    public void addSeen(AddressMessage message) {
+        long now = nowSecs();
+        for (PeerAddress address : message.getAddresses()) {
+            long time = address.getTime();
+            addSeen(address.toSocketAddress(), time > 0 ? time : now);
+        }
+    }
+
+    /** Records that we are about to try connecting to the given address. */
+    public void markAttempt(InetSocketAddress address) {
+        lock.lock();
+        try {
+            getOrCreate(address).lastAttempt = nowSecs();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records that a connection to the given address was established and the version handshake completed. */
+    public void markSuccess(InetSocketAddress address) {
+        lock.lock();
+        try {
+            Entry entry = getOrCreate(address);
+            entry.lastSuccess = entry.lastSeen = nowSecs();
+            entry.failures = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records that connecting to the given address failed. */
+    public void markFailure(InetSocketAddress address) {
+        lock.lock();
+        try {
+            getOrCreate(address).failures++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many addresses are known. */
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Most promising first: addresses we connected to before, most recent first, then the rest by when they were last
+    // heard of, with fewer failures breaking ties.
+    private static final Comparator<Entry> BEST_FIRST = new Comparator<Entry>() {
+        public int compare(Entry a, Entry b) {
+            if (a.lastSuccess != b.lastSuccess)
+                return a.lastSuccess > b.lastSuccess ? -1 : 1;
+            if (a.lastSeen != b.lastSeen)
+                return a.lastSeen > b.lastSeen ? -1 : 1;
+            return a.failures - b.failures;
+        }
+    };
+
+    private static boolean isBackingOff(Entry entry, long now) {
+        if (entry.failures == 0)
+            return false;
+        long delay = BASE_RETRY_DELAY_SECS << Math.min(entry.failures - 1, 20);
+        return now - entry.lastAttempt < Math.min(delay, MAX_RETRY_DELAY_SECS);
+    }
+
+    /**
+     * Returns up to max addresses worth trying to connect to, the most promising first. Addresses in exclude, which
+     * would typically be the ones we are already connected to, and ones that recently failed are left out.
+     */
+    public List<InetSocketAddress> getCandidates(int max, Collection<InetSocketAddress> exclude) {
+        List<Entry> candidates = new ArrayList<Entry>();
+        lock.lock();
+        try {
+            long now = nowSecs();
+            for (Entry entry : entries.values()) {
+                if (!isBackingOff(entry, now) && !exclude.contains(entry.address))
+                    candidates.add(entry);
+            }
+            Collections.sort(candidates, BEST_FIRST);
+        } finally {
+            lock.unlock();
+        }
+        List<InetSocketAddress> result = new ArrayList<InetSocketAddress>(Math.min(max, candidates.size()));
+        for (int i = 0; i < candidates.size() && i < max; i++)
+            result.add(candidates.get(i).address);
+        return result;
+    }
+
+    // Drops the least promising addresses until at most MAX_ADDRESSES are left.
+    private void trim() {
+        if (entries.size() <= MAX_ADDRESSES)
+            return;
+        List<Entry> sorted = new ArrayList<Entry>(entries.values());
+        Collections.sort(sorted, BEST_FIRST);
+        for (Entry entry : sorted.subList(MAX_ADDRESSES, sorted.size()))
+            entries.remove(entry.address);
+    }
+
+    /**
+     * Writes the known addresses to the file given on construction. Does nothing if there isn't one.
+     */
+    public void save() throws IOException {
+        if (file == null)
+            return;
+        File temp = File.createTempFile("addresses", null, file.getAbsoluteFile().getParentFile());
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            lock.lock();
+            try {
+                trim();
+                out.writeInt(FILE_MAGIC);
+                out.writeInt(FILE_VERSION);
+                out.writeInt(entries.size());
+                for (Entry entry : entries.values()) {
+                    byte[] addr = entry.address.getAddress().getAddress();
+                    out.writeByte(addr.length);
+                    out.write(addr);
+                    out.writeShort(entry.address.getPort());
+                    out.writeLong(entry.lastSeen);
+                    out.writeLong(entry.lastSuccess);
+                    out.writeLong(entry.lastAttempt);
+                    out.writeInt(entry.failures);
+                }
+            } finally {
+                lock.unlock();
+            }
+            out.close();
+            out = null;
+            if (Utils.isWindows()) {
+                // Work around an issue on Windows whereby you can't rename over existing files.
+                File canonical = file.getCanonicalFile();
+                canonical.delete();
+                if (!temp.renameTo(canonical))
+                    throw new IOException("Failed to rename " + temp + " to " + canonical);
+            } else if (!temp.renameTo(file)) {
+                throw new IOException("Failed to rename " + temp + " to " + file);
+            }
+        } finally {
+            if (out != null) {
+                out.close();
+                temp.delete();
+            }
+        }
+    }
+
+    private void load(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION)
+                throw new IOException("Unknown file format");
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                byte[] addr = new byte[in.readUnsignedByte()];
+                in.readFully(addr);
+                int port = in.readUnsignedShort();
+                Entry entry = new Entry(new InetSocketAddress(InetAddress.getByAddress(addr), port));
+                entry.lastSeen = in.readLong();
+                entry.lastSuccess = in.readLong();
+                entry.lastAttempt = in.readLong();
+                entry.failures = in.readInt();
+                entries.put(entry.address, entry);
+            }
+        } finally {
+            in.close();
+        }
+        log.info("Loaded {} peer addresses from {}", entries.size(), file);
+    }
+}
@@ -0,0 +1,230 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.goldcoin.core;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Sends many payments from a {@link Wallet} in as few transactions as possible. Payments are queued with
+ * {@link #pay(Address, java.math.BigInteger)} and every so often all queued payments are paid together: as many as fit
+ * go into one transaction, which gets one coin selection, one signing pass and one broadcast, rather than each payment
+ * taking the wallet lock, selecting coins and being signed separately. This keeps busy wallets from splitting their
+ * coins into many small pending outputs, and saves fees.</p>
+ *
+ * <p>Each payment gets a future which completes with the transaction that paid it once that has been broadcast. If a
+ * batch can't be completed, for instance because there isn't enough money for all of it, it is split in two and each
+ * half tried again, so in the end only the payments that really can't be made fail, with an
+ * {@link InsufficientMoneyException}.</p>
+ *
+ * <p>Batches are sent on a background thread. This class is thread safe.</p>
+ */
+public class BatchPaymentSender {
+    private static final Logger log = LoggerFactory.getLogger(BatchPaymentSender.class);
+
+    /** How often queued payments are sent by default, in milliseconds. */
+    public static final long DEFAULT_INTERVAL_MSEC = 10000;
+
+    /**
+     * The most bytes of outputs put in one transaction, leaving the rest of {@link Transaction#MAX_STANDARD_TX_SIZE}
+     * for inputs. A batch that still turns out too big is split like any other that can't be completed.
+     */
+    public static final int MAX_OUTPUT_BYTES = Transaction.MAX_STANDARD_TX_SIZE / 2;
+
+    private static class Payment {
+        final TransactionOutput output;
+        final SettableFuture<Transaction> future = SettableFuture.create();
+
+        Payment(TransactionOutput output) {
+            this.output = output;
+        }
+    }
+
+    private final Wallet wallet;
+    private final PeerGroup peerGroup;
+    private final LinkedBlockingQueue<Payment> queue = new LinkedBlockingQueue<Payment>();
+    private final ScheduledExecutorService executor;
+
+    private volatile KeyParameter aesKey;
+    private volatile BigInteger feePerKb = Wallet.SendRequest.DEFAULT_FEE_PER_KB;
+
+    /**
+     * Creates a sender that pays from the given wallet, broadcasts with the given peer group and sends queued payments
+     * every {@link #DEFAULT_INTERVAL_MSEC} milliseconds.
+     */
+    public BatchPaymentSender(Wallet wallet, PeerGroup peerGroup) {
+        this(wallet, peerGroup, DEFAULT_INTERVAL_MSEC);
+    }
+
+    public BatchPaymentSender(Wallet wallet, PeerGroup peerGroup, long intervalMillis) {
+        checkArgument(intervalMillis > 0, "Interval must be positive");
+        this.wallet = checkNotNull(wallet);
+        this.peerGroup = checkNotNull(peerGroup);
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Batch payment sender");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    sendQueued();
+                } catch (Throwable t) {
+                    // Don't let one bad batch stop all the ones after it.
+                    log.error("Failed to send batched payments", t);
+                }
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queues a payment of the given value to the given address, to be sent with the next batch.
+     *
+     * @return a future that completes with the transaction paying it once that has been broadcast.
+     */
+    public ListenableFuture<Transaction> pay(Address to, BigInteger value) {
+        checkState(!executor.isShutdown(), "Sender has been stopped");
+        checkArgument(value.signum() > 0, "Payments must be positive");
+        Payment payment = new Payment(new TransactionOutput(to.getParameters(), null, value, to));
+        queue.add(payment);
+        return payment.future;
+    }
+
+    /** Returns how many payments are waiting for the next batch. */
+    public int getQueuedPaymentCount() {
+        return queue.size();
+    }
+
+    /** Sets the AES key used to decrypt the wallet's keys for signing, if it is encrypted. */
+    public void setAesKey(KeyParameter aesKey) {
+        this.aesKey = aesKey;
+    }
+
+    /** Sets the fee per kilobyte batches pay, see {@link Wallet.SendRequest#feePerKb}. */
+    public void setFeePerKb(BigInteger feePerKb) {
+        this.feePerKb = checkNotNull(feePerKb);
+    }
+
+    /**
+     * Sends everything queued now rather than waiting for the next interval, and waits until the transactions have
+     * been committed to the wallet and handed to the peer group. Their broadcasts may still be in progress.
+     */
+    public void flush() throws InterruptedException {
+        try {
+            executor.submit(new Runnable() {
+                public void run() {
+                    sendQueued();
+                }
+            }).get();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Sends anything still queued and stops the background thread. Payments can't be queued afterwards.
+     */
+    public void stop() throws InterruptedException {
+        flush();
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    // Only ever runs on the executor thread, so batches go out in the order their payments were queued.
+    private void sendQueued() {
+        List<Payment> payments = new ArrayList<Payment>();
+        queue.drainTo(payments);
+        if (payments.isEmpty())
+            return;
+        log.info("Sending {} batched payments", payments.size());
+        List<Payment> batch = new ArrayList<Payment>();
+        int outputBytes = 0;
+        for (Payment payment : payments) {
+            int size = TransactionSizeEstimator.getOutputSize(payment.output);
+            if (!batch.isEmpty() && outputBytes + size > MAX_OUTPUT_BYTES) {
+                send(batch);
+                batch = new ArrayList<Payment>();
+                outputBytes = 0;
+            }
+            batch.add(payment);
+            outputBytes += size;
+        }
+        send(batch);
+    }
+
+    private void send(List<Payment> batch) {
+        Transaction tx = new Transaction(wallet.getParams());
+        for (Payment payment : batch)
+            tx.addOutput(new TransactionOutput(wallet.getParams(), tx, payment.output.getValue(),
+                    payment.output.getScriptBytes()));
+        Wallet.SendRequest request = Wallet.SendRequest.forTx(tx);
+        request.aesKey = aesKey;
+        request.feePerKb = feePerKb;
+        // This commits the transaction to the wallet, so the next batch won't try to spend the same coins.
+        Transaction sent;
+        try {
+            sent = wallet.sendCoinsOffline(request);
+        } catch (RuntimeException e) {
+            // Like a wrong AES key. Splitting the batch won't help with that.
+            log.error("Could not send batch of " + batch.size() + " payments", e);
+            for (Payment payment : batch)
+                payment.future.setException(e);
+            return;
+        }
+        if (sent == null) {
+            if (batch.size() == 1) {
+                log.warn("Could not make payment of {}", Utils.litecoinValueToFriendlyString(batch.get(0).output.getValue()));
+                batch.get(0).future.setException(new InsufficientMoneyException());
+                return;
+            }
+            // Not enough money, or too big once the inputs were added. Try each half on its own.
+            int half = batch.size() / 2;
+            send(batch.subList(0, half));
+            send(batch.subList(half, batch.size()));
+            return;
+        }
+        log.info("Batched {} payments into {}", batch.size(), sent.getHashAsString());
+        final List<Payment> paid = new ArrayList<Payment>(batch);
+        Futures.addCallback(peerGroup.broadcastTransaction(sent), new FutureCallback<Transaction>() {
+            public void onSuccess(Transaction result) {
+                for (Payment payment : paid)
+                    payment.future.set(result);
+            }
+
+            public void onFailure(Throwable t) {
+                for (Payment payment : paid)
+                    payment.future.setException(t);
+            }
+        });
+    }
+}
@@ -0,0 +1,32 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.goldcoin.core;
+
+import java.util.List;
+
+/**
+ * A {@link BlockChainListener} that can be told about several new best blocks at once. The {@link BlockChain} calls
+ * {@link BlockChainListener#notifyNewBestBlock(StoredBlock)} for each block on listeners that don't implement it.
+ */
+public interface BatchedBlockChainListener extends BlockChainListener {
+    /**
+     * Called by the {@link BlockChain} instead of {@link BlockChainListener#notifyNewBestBlock(StoredBlock)} when
+     * {@link AbstractBlockChain#addHeaders(List)} extends the best chain by several headers at once. The blocks are in
+     * chain order and the last one is the new chain head.
+     */
+    void notifyNewBestBlocks(List<StoredBlock> blocks) throws VerificationException;
+}
@@ -531,12 +531,6 @@ public class Block extends Message {
     }
 
 
-    /**
-     * The number that is one greater than the largest representable SHA-256
-     * hash.
-     */
-    static private BigInteger LARGEST_HASH = BigInteger.ONE.shiftLeft(256);
-
     /**
      * Returns the work represented by this block.<p>
      * <p/>
@@ -546,8 +540,18 @@ public class Block extends Message {
      * lower, the amount of work goes up.
      */
     public BigInteger getWork() throws VerificationException {
-        BigInteger target = getDifficultyTargetAsInteger();
-        return LARGEST_HASH.divide(target.add(BigInteger.ONE));
+        return getWorkAsUInt256().toBigInteger();
+    }
+
+    /**
+     * Returns the work represented by this block, like {@link Block#getWork()} but without the cost of a
+     * {@link BigInteger}.
+     */
+    public UInt256 getWorkAsUInt256() throws VerificationException {
+        UInt256 target = getDifficultyTargetAsUInt256();
+        // The work is 2^256 / (target + 1). 2^256 doesn't fit in 256 bits, but as it is ~target + target + 1 the
+        // result is the same as ~target / (target + 1) + 1.
+        return target.not().divide(target.add(UInt256.ONE)).add(UInt256.ONE);
     }
 
     /**
@@ -614,10 +618,22 @@ public class Block extends Message {
      * is thrown.
      */
     public BigInteger getDifficultyTargetAsInteger() throws VerificationException {
+        return getDifficultyTargetAsUInt256().toBigInteger();
+    }
+
+    /**
+     * Returns the difficulty target like {@link Block#getDifficultyTargetAsInteger()} does, as a {@link UInt256}.
+     */
+    public UInt256 getDifficultyTargetAsUInt256() throws VerificationException {
         maybeParseHeader();
-        BigInteger target = Utils.decodeCompactBits(difficultyTarget);
-        if (target.compareTo(BigInteger.ZERO) <= 0 || target.compareTo(params.proofOfWorkLimit) > 0)
-            throw new VerificationException("Difficulty target is bad: " + target.toString() + " or " + difficultyTarget);
+        UInt256 target;
+        try {
+            target = UInt256.decodeCompactBits(difficultyTarget);
+        } catch (ArithmeticException e) {
+            throw new VerificationException("Difficulty target is bad: " + difficultyTarget + ", " + e.getMessage());
+        }
+        if (target.isZero() || target.compareTo(params.getProofOfWorkLimitAsUInt256()) > 0)
+            throw new VerificationException("Difficulty target is bad: " + target.toBigInteger() + " or " + difficultyTarget);
         return target;
     }
 
@@ -633,14 +649,14 @@ public class Block extends Message {
         //
         // To prevent this attack from being possible, elsewhere we check that the difficultyTarget
         // field is of the right value. This requires us to have the preceeding blocks.
-        BigInteger target = getDifficultyTargetAsInteger();
+        UInt256 target = getDifficultyTargetAsUInt256();
 
-        BigInteger h = getScryptHash().toBigInteger();
+        UInt256 h = UInt256.fromBytes(getScryptHash().getBytes(), 0);
         if (h.compareTo(target) > 0) {
             // Proof of work check failed!
             if (throwException)
                 throw new VerificationException("Hash is higher than target: " + getScryptHashAsString() + " vs "
-                        + target.toString(16));
+                        + target);
             else
                 return false;
         }
@@ -946,6 +962,17 @@ public class Block extends Message {
         return Collections.unmodifiableList(transactions);
     }
 
+    /**
+     * Returns true if this block carries no transactions, as is the case for the headers in a "headers" message or
+     * blocks returned by {@link #cloneAsHeader()}.
+     */
+    boolean isHeaderOnly() {
+        if (transactions == null && (transactionsParsed || bytes == null))
+            return true;
+        maybeParseTransactions();
+        return transactions == null || transactions.isEmpty();
+    }
+
     // ///////////////////////////////////////////////////////////////////////////////////////////////
     // Unit testing related methods.
 
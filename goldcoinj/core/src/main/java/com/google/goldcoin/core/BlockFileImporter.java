@@ -0,0 +1,300 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.goldcoin.core;
+
+import com.google.goldcoin.store.BlockStore;
+import com.google.goldcoin.store.BlockStoreException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Imports blocks from files stored in the reference client's format, where each block is preceded by the network's
+ * packet magic and the block's length. Importing blocks this way can be a lot faster than downloading them from the
+ * network, if you have the files available.</p>
+ *
+ * <p>Each file is memory mapped and scanned for block records. The blocks are parsed and hashed on a pool of worker
+ * threads, then handed to the {@link AbstractBlockChain} on the calling thread in chain order: a block whose parent
+ * hasn't been connected yet is held back until it has. Blocks the chain's store already has are skipped, so an import
+ * can be interrupted and resumed from the current chain head simply by running it again.</p>
+ *
+ * <p>Progress is reported through {@link BlockFileImporter#progress(double, int, double)}, which logs it and can be
+ * overridden.</p>
+ */
+public class BlockFileImporter {
+    private static final Logger log = LoggerFactory.getLogger(BlockFileImporter.class);
+
+    // Blocks waiting for their parent are dropped beyond this many, so a file full of blocks that will never connect
+    // (for instance blocks below the checkpoint an SPV store started from) can't use up all the memory.
+    private static final int MAX_WAITING_BLOCKS = 5000;
+    // How many blocks per worker thread may be parsed ahead of the block being connected.
+    private static final int PARSE_AHEAD_PER_THREAD = 64;
+    private static final long PROGRESS_INTERVAL_MSEC = 1000;
+
+    private final NetworkParameters params;
+    private final AbstractBlockChain chain;
+    private final List<File> files;
+    private final int numThreads;
+
+    // Parsed blocks waiting for the block with the given hash to be connected.
+    private final Map<Sha256Hash, List<Block>> waitingForParent = new HashMap<Sha256Hash, List<Block>>();
+    private int numWaiting;
+    private int blocksImported, blocksSkipped, blocksDropped;
+    private long startTime, lastProgressTime;
+
+    /**
+     * Creates an importer that feeds the blocks in the given files, read in the given order, into the chain. Blocks
+     * are parsed on as many threads as there are processors.
+     */
+    public BlockFileImporter(NetworkParameters params, AbstractBlockChain chain, List<File> files) {
+        this(params, chain, files, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates an importer that feeds the blocks in the given files, read in the given order, into the chain, parsing
+     * them on the given number of threads.
+     */
+    public BlockFileImporter(NetworkParameters params, AbstractBlockChain chain, List<File> files, int numThreads) {
+        checkArgument(numThreads > 0);
+        this.params = checkNotNull(params);
+        this.chain = checkNotNull(chain);
+        this.files = new ArrayList<File>(files);
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * Returns the block files in the given data directory of the reference client, in the order they were written:
+     * blk0001.dat, blk0002.dat and so on, or blocks/blk00000.dat and onwards for newer clients.
+     */
+    public static List<File> getReferenceClientBlockFiles(File dataDir) {
+        List<File> files = new ArrayList<File>();
+        for (int i = 1; new File(dataDir, String.format("blk%04d.dat", i)).exists(); i++)
+            files.add(new File(dataDir, String.format("blk%04d.dat", i)));
+        File blocksDir = new File(dataDir, "blocks");
+        for (int i = 0; new File(blocksDir, String.format("blk%05d.dat", i)).exists(); i++)
+            files.add(new File(blocksDir, String.format("blk%05d.dat", i)));
+        return files;
+    }
+
+    /**
+     * Imports all the blocks in the files. Blocks that don't connect to the chain by the time all files are read are
+     * left out.
+     *
+     * @return the number of blocks that were added to the chain.
+     */
+    public int importBlocks() throws IOException, BlockStoreException, VerificationException, PrunedException {
+        long totalBytes = 0;
+        for (File file : files)
+            totalBytes += file.length();
+        startTime = lastProgressTime = Utils.now().getTime();
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            long bytesDone = 0;
+            for (File file : files) {
+                importFile(file, executor, bytesDone, totalBytes);
+                bytesDone += file.length();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        if (numWaiting > 0)
+            log.warn("{} blocks did not connect to the chain", numWaiting);
+        if (blocksDropped > 0)
+            log.warn("{} blocks were dropped whilst waiting for their parent", blocksDropped);
+        waitingForParent.clear();
+        numWaiting = 0;
+        log.info("Imported {} blocks, skipped {} already in the chain, chain height is now {}",
+                new Object[]{blocksImported, blocksSkipped, chain.getBestChainHeight()});
+        return blocksImported;
+    }
+
+    private void importFile(File file, ExecutorService executor, long bytesBefore, long totalBytes)
+            throws IOException, BlockStoreException, VerificationException, PrunedException {
+        log.info("Importing blocks from {}", file);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        MappedByteBuffer buffer;
+        try {
+            if (randomAccessFile.length() > Integer.MAX_VALUE)
+                throw new IOException("Block file too large to map: " + file);
+            buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+        } finally {
+            // The mapping stays valid after the file is closed.
+            randomAccessFile.close();
+        }
+
+        // Parse tasks are queued up in file order and their results consumed in the same order.
+        LinkedList<Future<Block>> parsing = new LinkedList<Future<Block>>();
+        int cursor = 0;
+        while (true) {
+            while (parsing.size() < numThreads * PARSE_AHEAD_PER_THREAD) {
+                int start = findNextRecord(buffer, cursor);
+                if (start < 0) {
+                    cursor = buffer.limit();
+                    break;
+                }
+                int size = (int) Utils.readUint32(readBytes(buffer, start + 4, 4), 0);
+                cursor = start + 8 + size;
+                parsing.add(executor.submit(new ParseTask(buffer, start + 8, size)));
+            }
+            if (parsing.isEmpty())
+                break;
+            Block block = getParsed(parsing.removeFirst());
+            if (block != null)
+                connect(block);
+            maybeReportProgress(bytesBefore + cursor, totalBytes);
+        }
+    }
+
+    // Returns the offset of the next record at or after the given offset that looks sane, or -1 if there is none.
+    // Files written by the reference client may be followed by zeros where space was allocated but not yet used.
+    private int findNextRecord(ByteBuffer buffer, int offset) {
+        final long magic = params.packetMagic;
+        final int limit = buffer.limit();
+        for (int i = offset; i + 8 <= limit; i++) {
+            if ((buffer.get(i) & 0xFF) != ((magic >>> 24) & 0xFF) ||
+                    (buffer.get(i + 1) & 0xFF) != ((magic >>> 16) & 0xFF) ||
+                    (buffer.get(i + 2) & 0xFF) != ((magic >>> 8) & 0xFF) ||
+                    (buffer.get(i + 3) & 0xFF) != (magic & 0xFF))
+                continue;
+            long size = Utils.readUint32(readBytes(buffer, i + 4, 4), 0);
+            if (size > 0 && size <= Block.MAX_BLOCK_SIZE && i + 8 + size <= limit)
+                return i;
+        }
+        return -1;
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer, int offset, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.get(bytes);
+        return bytes;
+    }
+
+    private class ParseTask implements Callable<Block> {
+        private final ByteBuffer buffer;
+        private final int offset, size;
+
+        ParseTask(ByteBuffer buffer, int offset, int size) {
+            this.buffer = buffer;
+            this.offset = offset;
+            this.size = size;
+        }
+
+        public Block call() throws ProtocolException {
+            Block block = new Block(params, readBytes(buffer, offset, size));
+            // Do the hashing here so the chain finds the results cached.
+            block.getHash();
+            block.getScryptHash();
+            return block;
+        }
+    }
+
+    // Returns the parsed block, or null if the record couldn't be parsed.
+    private Block getParsed(Future<Block> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ProtocolException) {
+                log.warn("Skipping block that could not be parsed: {}", e.getCause().toString());
+                return null;
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private void connect(Block block) throws BlockStoreException, VerificationException, PrunedException {
+        BlockStore store = chain.getBlockStore();
+        if (store.get(block.getHash()) != null) {
+            blocksSkipped++;
+            return;
+        }
+        if (store.get(block.getPrevBlockHash()) == null) {
+            waitForParent(block);
+            return;
+        }
+        // Connecting a block may let blocks that were waiting for it connect too.
+        LinkedList<Block> connectable = new LinkedList<Block>();
+        connectable.add(block);
+        while (!connectable.isEmpty()) {
+            Block next = connectable.removeFirst();
+            if (chain.add(next))
+                blocksImported++;
+            List<Block> children = waitingForParent.remove(next.getHash());
+            if (children != null) {
+                numWaiting -= children.size();
+                connectable.addAll(children);
+            }
+        }
+    }
+
+    private void waitForParent(Block block) {
+        if (numWaiting >= MAX_WAITING_BLOCKS) {
+            blocksDropped++;
+            return;
+        }
+        List<Block> siblings = waitingForParent.get(block.getPrevBlockHash());
+        if (siblings == null) {
+            siblings = new LinkedList<Block>();
+            waitingForParent.put(block.getPrevBlockHash(), siblings);
+        }
+        siblings.add(block);
+        numWaiting++;
+    }
+
+    private void maybeReportProgress(long bytesDone, long totalBytes) {
+        long now = Utils.now().getTime();
+        if (now - lastProgressTime < PROGRESS_INTERVAL_MSEC)
+            return;
+        lastProgressTime = now;
+        double pct = totalBytes == 0 ? 100 : 100.0 * bytesDone / totalBytes;
+        progress(pct, blocksImported, getBlocksPerSecond());
+    }
+
+    /**
+     * Returns the average number of blocks added to the chain per second since the import started.
+     */
+    public double getBlocksPerSecond() {
+        long elapsed = Utils.now().getTime() - startTime;
+        return elapsed <= 0 ? 0 : blocksImported * 1000.0 / elapsed;
+    }
+
+    /**
+     * Called about once a second whilst blocks are being imported.
+     *
+     * @param pct the percentage of the files read so far
+     * @param blocksImported the number of blocks added to the chain so far
+     * @param blocksPerSecond the average number of blocks added per second
+     */
+    protected void progress(double pct, int blocksImported, double blocksPerSecond) {
+        log.info(String.format("Block import %d%% done, %d blocks imported at %.1f blocks/sec, chain height %d",
+                (int) pct, blocksImported, blocksPerSecond, chain.getBestChainHeight()));
+    }
+}
@@ -21,7 +21,12 @@ import com.google.common.base.Preconditions;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
 
 /**
  * <p>A Bloom filter is a probabilistic data structure which can be sent to another client so that it can avoid
@@ -52,6 +57,10 @@ public class BloomFilter extends Message {
     private long nTweak;
     private byte nFlags;
 
+    // Scratch space used by applyAndUpdate to build outpoints and tx hashes in wire order without allocating.
+    private transient byte[] scratch;
+    private transient int[] mixedScratch;
+
     // Same value as the reference client
     // A filter of 20,000 items and a false positive rate of 0.1% or one of 10,000 items and 0.0001% is just under 36,000 bytes
     private static final long MAX_FILTER_SIZE = 36000;
@@ -160,55 +169,71 @@ public class BloomFilter extends Message {
         // Do nothing, lazy parsing isn't useful for bloom filters.
     }
 
-    private int ROTL32(int x, int r) {
+    private static int ROTL32(int x, int r) {
         return (x << r) | (x >>> (32 - r));
     }
 
-    private int hash(int hashNum, byte[] object) {
-        // The following is MurmurHash3 (x86_32), see http://code.google.com/p/smhasher/source/browse/trunk/MurmurHash3.cpp
-        int h1 = (int) (hashNum * 0xFBA4C795L + nTweak);
+    // The hash functions are MurmurHash3 (x86_32), see http://code.google.com/p/smhasher/source/browse/trunk/MurmurHash3.cpp
+    // with seeds derived from the hash function number and nTweak. MurmurHash3 mixes each 4 byte block of the input
+    // with constants before folding it into the seeded running hash, so that first step is the same for every one of
+    // the up to MAX_HASH_FUNCS hash functions. We do it once per object here: the mixed blocks go into the returned
+    // array (which is mixed itself if it is large enough), followed by the mixed tail if the length isn't a multiple
+    // of four.
+    private static int[] premix(byte[] object, int offset, int length, int[] mixed) {
         final int c1 = 0xcc9e2d51;
         final int c2 = 0x1b873593;
 
-        int numBlocks = (object.length / 4) * 4;
-        // body
-        for (int i = 0; i < numBlocks; i += 4) {
-            int k1 = (object[i] & 0xFF) |
-                    ((object[i + 1] & 0xFF) << 8) |
-                    ((object[i + 2] & 0xFF) << 16) |
-                    ((object[i + 3] & 0xFF) << 24);
-
+        int numBlocks = length >>> 2;
+        if (mixed == null || mixed.length < numBlocks + 1)
+            mixed = new int[numBlocks + 1];
+        // body, read as little endian ints
+        ByteBuffer buf = ByteBuffer.wrap(object, offset, length).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < numBlocks; i++) {
+            int k1 = buf.getInt(offset + (i << 2));
             k1 *= c1;
             k1 = ROTL32(k1, 15);
             k1 *= c2;
-
-            h1 ^= k1;
-            h1 = ROTL32(h1, 13);
-            h1 = h1 * 5 + 0xe6546b64;
+            mixed[i] = k1;
         }
 
+        int tail = offset + (numBlocks << 2);
         int k1 = 0;
-        switch (object.length & 3) {
+        switch (length & 3) {
             case 3:
-                k1 ^= (object[numBlocks + 2] & 0xff) << 16;
+                k1 ^= (object[tail + 2] & 0xff) << 16;
                 // Fall through.
             case 2:
-                k1 ^= (object[numBlocks + 1] & 0xff) << 8;
+                k1 ^= (object[tail + 1] & 0xff) << 8;
                 // Fall through.
             case 1:
-                k1 ^= (object[numBlocks] & 0xff);
+                k1 ^= (object[tail] & 0xff);
                 k1 *= c1;
                 k1 = ROTL32(k1, 15);
                 k1 *= c2;
-                h1 ^= k1;
                 // Fall through.
             default:
-                // Do nothing.
                 break;
         }
+        mixed[numBlocks] = k1;
+        return mixed;
+    }
+
+    // Finishes hash function hashNum over an object of the given length premixed by premix, returning a bit index.
+    private int hash(int hashNum, int[] mixed, int length) {
+        int h1 = (int) (hashNum * 0xFBA4C795L + nTweak);
+
+        int numBlocks = length >>> 2;
+        // body
+        for (int i = 0; i < numBlocks; i++) {
+            h1 ^= mixed[i];
+            h1 = ROTL32(h1, 13);
+            h1 = h1 * 5 + 0xe6546b64;
+        }
+        // tail, which is zero when there is none
+        h1 ^= mixed[numBlocks];
 
         // finalization
-        h1 ^= object.length;
+        h1 ^= length;
         h1 ^= h1 >>> 16;
         h1 *= 0x85ebca6b;
         h1 ^= h1 >>> 13;
@@ -223,8 +248,36 @@ public class BloomFilter extends Message {
      * (either because it was inserted, or because we have a false-positive)
      */
     public boolean contains(byte[] object) {
+        return contains(object, 0, object.length, null);
+    }
+
+    /**
+     * Checks each of the given objects against the filter, as {@link #contains(byte[])} would, and returns the results
+     * in the same order. This is cheaper than calling contains for each of them.
+     */
+    public boolean[] contains(List<byte[]> objects) {
+        boolean[] results = new boolean[objects.size()];
+        int[] mixed = null;
+        for (int i = 0; i < results.length; i++) {
+            byte[] object = objects.get(i);
+            mixed = premix(object, 0, object.length, mixed);
+            results[i] = containsPremixed(mixed, object.length);
+        }
+        return results;
+    }
+
+    private boolean contains(byte[] object, int offset, int length, int[] mixed) {
+        return containsPremixed(premix(object, offset, length, mixed), length);
+    }
+
+    private boolean containsPremixed(int[] mixed, int length) {
+        final byte[] data = this.data;
+        // A peer may send us an empty filter, which matches nothing, like in the reference client.
+        if (data.length == 0)
+            return false;
         for (int i = 0; i < hashFuncs; i++) {
-            if (!Utils.checkBitLE(data, hash(i, object)))
+            int bit = hash(i, mixed, length);
+            if ((data[bit >>> 3] & (1 << (7 & bit))) == 0)
                 return false;
         }
         return true;
@@ -234,8 +287,141 @@ public class BloomFilter extends Message {
      * Insert the given arbitrary data into the filter
      */
     public void insert(byte[] object) {
-        for (int i = 0; i < hashFuncs; i++)
-            Utils.setBitLE(data, hash(i, object));
+        insert(object, 0, object.length, null);
+    }
+
+    /**
+     * Inserts all of the given objects into the filter. This is cheaper than calling {@link #insert(byte[])} for each
+     * of them.
+     */
+    public void insertAll(Collection<byte[]> objects) {
+        int[] mixed = null;
+        for (byte[] object : objects) {
+            mixed = premix(object, 0, object.length, mixed);
+            insertPremixed(mixed, object.length);
+        }
+    }
+
+    private void insert(byte[] object, int offset, int length, int[] mixed) {
+        insertPremixed(premix(object, offset, length, mixed), length);
+    }
+
+    private void insertPremixed(int[] mixed, int length) {
+        final byte[] data = this.data;
+        if (data.length == 0)
+            return;
+        for (int i = 0; i < hashFuncs; i++) {
+            int bit = hash(i, mixed, length);
+            data[bit >>> 3] |= 1 << (7 & bit);
+        }
+    }
+
+    /**
+     * Returns the update behaviour requested by whoever built this filter. Undefined flag values are treated as
+     * {@link BloomUpdate#UPDATE_NONE}, like the reference client does.
+     */
+    public BloomUpdate getUpdateFlag() {
+        switch (nFlags & 3) {
+            case 1:
+                return BloomUpdate.UPDATE_ALL;
+            case 2:
+                return BloomUpdate.UPDATE_P2PUBKEY_ONLY;
+            default:
+                return BloomUpdate.UPDATE_NONE;
+        }
+    }
+
+    /**
+     * <p>Returns true if the given transaction matches this filter, in the same way a remote node would decide
+     * whether to relay it to us. A transaction matches if its hash, the data pushed by any of its output scripts,
+     * any of the outpoints it spends or the data pushed by any of its input scripts is in the filter.</p>
+     *
+     * <p>When an output matches, its outpoint is inserted into the filter as requested by {@link #getUpdateFlag()},
+     * so transactions which later spend it match too. This means the filter changes as it is applied, so a filter
+     * received from a peer should only be used to serve that one peer. This method is not thread safe.</p>
+     */
+    public boolean applyAndUpdate(Transaction tx) {
+        byte[] scratch = getScratch();
+        int[] mixed = mixedScratch;
+        // The reference client matches against the hash in wire (little endian) order.
+        Utils.reverseBytesInto(tx.getHash().getBytes(), scratch);
+        boolean found = contains(scratch, 0, 32, mixed);
+        BloomUpdate flag = getUpdateFlag();
+        List<TransactionOutput> outputs = tx.getOutputs();
+        for (int i = 0; i < outputs.size(); i++) {
+            Script script;
+            try {
+                script = outputs.get(i).getScriptPubKey();
+            } catch (ScriptException e) {
+                continue;  // Unparseable output scripts cannot push anything that matches.
+            }
+            for (int j = 0; j < script.getChunkCount(); j++) {
+                byte[] data = script.getPushedData(j);
+                if (data == null || data.length == 0 || !contains(data, 0, data.length, mixed))
+                    continue;
+                found = true;
+                if (flag == BloomUpdate.UPDATE_ALL ||
+                        (flag == BloomUpdate.UPDATE_P2PUBKEY_ONLY && (script.isSentToRawPubKey() || script.isSentToMultiSig()))) {
+                    // The hash is still in the first 32 bytes of scratch.
+                    Utils.uint32ToByteArrayLE(i, scratch, 32);
+                    insert(scratch, 0, TransactionOutPoint.MESSAGE_LENGTH, mixed);
+                }
+                break;
+            }
+        }
+        if (found)
+            return true;
+        for (TransactionInput input : tx.getInputs()) {
+            TransactionOutPoint outpoint = input.getOutpoint();
+            Utils.reverseBytesInto(outpoint.getHash().getBytes(), scratch);
+            Utils.uint32ToByteArrayLE(outpoint.getIndex(), scratch, 32);
+            if (contains(scratch, 0, TransactionOutPoint.MESSAGE_LENGTH, mixed))
+                return true;
+            Script script;
+            try {
+                script = input.getScriptSig();
+            } catch (ScriptException e) {
+                continue;  // Coinbase inputs and other garbage are not expected to parse.
+            }
+            for (int j = 0; j < script.getChunkCount(); j++) {
+                byte[] data = script.getPushedData(j);
+                if (data != null && data.length > 0 && contains(data, 0, data.length, mixed))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Applies this filter to every transaction of the given block using {@link #applyAndUpdate(Transaction)} and
+     * returns a {@link FilteredBlock} proving the inclusion of those that matched, with the matching transactions
+     * available from {@link FilteredBlock#getAssociatedTransactions()}. This is what we send in response to a
+     * getdata for a {@link InventoryItem.Type#FilteredBlock}. The block must contain its transactions.
+     */
+    public FilteredBlock applyAndUpdate(Block block) {
+        List<Transaction> txns = block.getTransactions();
+        List<Sha256Hash> txHashes = new ArrayList<Sha256Hash>(txns.size());
+        List<Transaction> matched = new ArrayList<Transaction>();
+        byte[] bits = new byte[(txns.size() + 7) / 8];
+        for (int i = 0; i < txns.size(); i++) {
+            Transaction tx = txns.get(i);
+            txHashes.add(tx.getHash());
+            if (applyAndUpdate(tx)) {
+                Utils.setBitLE(bits, i);
+                matched.add(tx);
+            }
+        }
+        PartialMerkleTree pmt = PartialMerkleTree.buildFromLeaves(block.params, bits, txHashes);
+        return new FilteredBlock(block.params, block.cloneAsHeader(), pmt, matched);
+    }
+
+    private byte[] getScratch() {
+        if (scratch == null) {
+            scratch = new byte[TransactionOutPoint.MESSAGE_LENGTH];
+            // Big enough for the largest push a valid script can contain (520 bytes).
+            mixedScratch = new int[520 / 4 + 1];
+        }
+        return scratch;
     }
 
     /**
@@ -0,0 +1,325 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.goldcoin.core;
+
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.math.BigInteger;
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A {@link Wallet.CoinSelector} for wallets holding a great many outputs. Rather than spending the oldest coins
+ * first like {@link Wallet.DefaultCoinSelector}, it searches for a set of outputs that adds up to the target exactly,
+ * or to within {@link #getChangeTolerance()} of it, so that no change output is needed. The search is a depth first
+ * branch and bound over the outputs from largest to smallest, cut off after a number of tries or a time budget.
+ * If it finds nothing, the smallest single output that covers the target is used, and failing that the largest
+ * outputs are taken until one more covers what's left. Either way transactions use as few inputs as is practical.</p>
+ *
+ * <p>The outputs are kept in an index sorted by value, which is brought up to date from the candidates given to each
+ * selection by adding and removing only what changed, so large wallets aren't sorted from scratch on every send.
+ * Whether an output may be spent is checked at selection time as it depends on its transaction's confidence, see
+ * {@link #shouldSelect(Transaction)}.</p>
+ *
+ * <p>Statistics about the searches are available from the getters, which is useful for tuning the budget. This class
+ * is thread safe, but as the index mirrors one wallet's outputs an instance should not be shared between wallets.</p>
+ */
+public class BranchAndBoundCoinSelector implements Wallet.CoinSelector {
+    private static final Logger log = LoggerFactory.getLogger(BranchAndBoundCoinSelector.class);
+
+    /** How many branches the search may visit by default. */
+    public static final int DEFAULT_MAX_TRIES = 100000;
+    /** How long the search may run by default, in milliseconds. */
+    public static final long DEFAULT_TIME_BUDGET_MSEC = 50;
+
+    private static final class Entry {
+        final TransactionOutput output;
+        final long value;
+        final long sequence;
+        long generation;
+
+        Entry(TransactionOutput output, long sequence) {
+            this.output = output;
+            this.value = output.getValue().longValue();
+            this.sequence = sequence;
+        }
+    }
+
+    // Largest first, ties broken by when the output was indexed so that the order is total.
+    private static final Comparator<Entry> LARGEST_FIRST = new Comparator<Entry>() {
+        public int compare(Entry a, Entry b) {
+            if (a.value != b.value)
+                return a.value > b.value ? -1 : 1;
+            return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+        }
+    };
+
+    private final long changeTolerance;
+    private final int maxTries;
+    private final long timeBudgetNanos;
+
+    private final TreeSet<Entry> byValue = new TreeSet<Entry>(LARGEST_FIRST);
+    // TransactionOutput doesn't override equals/hashCode, so this is keyed by identity, which is what we want.
+    private final HashMap<TransactionOutput, Entry> entries = new HashMap<TransactionOutput, Entry>();
+    private long generation, nextSequence;
+
+    private long selections, exactMatches, fallbacks, searchesCutOff, totalTries;
+    private long lastSearchTries, lastSearchNanos;
+
+    /**
+     * Creates a selector that accepts up to {@link Transaction#MIN_NONDUST_OUTPUT} more than the target without
+     * change, as change that small would be dropped as dust anyway, and searches with the default budget.
+     */
+    public BranchAndBoundCoinSelector() {
+        this(Transaction.MIN_NONDUST_OUTPUT, DEFAULT_MAX_TRIES, DEFAULT_TIME_BUDGET_MSEC);
+    }
+
+    /**
+     * @param changeTolerance how far over the target a selection may go and still count as needing no change.
+     * @param maxTries how many branches the search may visit before falling back.
+     * @param timeBudgetMillis how long the search may run before falling back.
+     */
+    public BranchAndBoundCoinSelector(BigInteger changeTolerance, int maxTries, long timeBudgetMillis) {
+        checkArgument(changeTolerance.signum() >= 0, "Negative change tolerance");
+        checkArgument(maxTries > 0 && timeBudgetMillis > 0, "Search budget must be positive");
+        this.changeTolerance = changeTolerance.longValue();
+        this.maxTries = maxTries;
+        this.timeBudgetNanos = timeBudgetMillis * 1000000;
+    }
+
+    public synchronized Wallet.CoinSelection select(BigInteger biTarget, LinkedList<TransactionOutput> candidates) {
+        updateIndex(candidates);
+        // The spendable outputs, largest first.
+        ArrayList<Entry> usable = new ArrayList<Entry>(byValue.size());
+        long available = 0;
+        for (Entry entry : byValue) {
+            if (!shouldSelect(entry.output.parentTransaction))
+                continue;
+            usable.add(entry);
+            available += entry.value;
+        }
+        long target = biTarget.longValue();
+        selections++;
+        if (available < target) {
+            // Not enough money: return everything, as the other selectors do, so the caller can tell how much there is.
+            return toSelection(usable);
+        }
+        List<Entry> selected = search(usable, target);
+        if (selected != null) {
+            exactMatches++;
+        } else {
+            fallbacks++;
+            selected = fallback(usable, target);
+        }
+        return toSelection(selected);
+    }
+
+    /**
+     * Sub-classes can override this to customize whether transactions are usable. By default the same rule as
+     * {@link Wallet.DefaultCoinSelector#isSelectable(Transaction)} applies.
+     */
+    protected boolean shouldSelect(Transaction tx) {
+        return Wallet.DefaultCoinSelector.isSelectable(tx);
+    }
+
+    // Adds candidates we haven't seen and drops outputs that are no longer candidates, leaving the rest in place.
+    private void updateIndex(LinkedList<TransactionOutput> candidates) {
+        generation++;
+        for (TransactionOutput output : candidates) {
+            Entry entry = entries.get(output);
+            if (entry == null) {
+                entry = new Entry(output, nextSequence++);
+                entries.put(output, entry);
+                byValue.add(entry);
+            }
+            entry.generation = generation;
+        }
+        if (entries.size() == candidates.size())
+            return;
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (entry.generation != generation) {
+                it.remove();
+                byValue.remove(entry);
+            }
+        }
+    }
+
+    // Looks for the selection between target and target + changeTolerance that wastes least, or returns null.
+    private List<Entry> search(ArrayList<Entry> usable, long target) {
+        long upper = target + changeTolerance;
+        // Outputs bigger than the upper bound can never be part of a match.
+        int first = 0;
+        while (first < usable.size() && usable.get(first).value > upper)
+            first++;
+        int n = usable.size() - first;
+        long[] values = new long[n];
+        for (int i = 0; i < n; i++)
+            values[i] = usable.get(first + i).value;
+        // remaining[i] is the sum of values[i..n-1], to prune branches that can't reach the target any more.
+        long[] remaining = new long[n + 1];
+        for (int i = n - 1; i >= 0; i--)
+            remaining[i] = remaining[i + 1] + values[i];
+
+        long startTime = System.nanoTime();
+        int[] included = new int[n];
+        int numIncluded = 0;
+        int[] best = null;
+        long bestWaste = Long.MAX_VALUE;
+        int depth = 0;
+        long sum = 0;
+        int tries = 0;
+        boolean exhausted = false;
+        while (tries < maxTries) {
+            tries++;
+            boolean backtrack = false;
+            if (sum + remaining[depth] < target || sum > upper) {
+                backtrack = true;
+            } else if (sum >= target) {
+                // Adding anything more would only waste more.
+                if (sum - target < bestWaste) {
+                    bestWaste = sum - target;
+                    best = Arrays.copyOf(included, numIncluded);
+                    if (bestWaste == 0)
+                        break;
+                }
+                backtrack = true;
+            }
+            if (backtrack) {
+                if (numIncluded == 0) {
+                    exhausted = true;
+                    break;
+                }
+                // Swap the most recently included output for the ones after it. Outputs of the same value would
+                // only repeat the branch we just left, so skip them.
+                int last = included[--numIncluded];
+                sum -= values[last];
+                depth = last + 1;
+                while (depth < n && values[depth] == values[last])
+                    depth++;
+            } else {
+                included[numIncluded++] = depth;
+                sum += values[depth];
+                depth++;
+            }
+            if ((tries & 1023) == 0 && System.nanoTime() - startTime > timeBudgetNanos)
+                break;
+        }
+        lastSearchTries = tries;
+        lastSearchNanos = System.nanoTime() - startTime;
+        totalTries += tries;
+        if (!exhausted && bestWaste != 0) {
+            searchesCutOff++;
+            log.debug("Coin selection search cut off after {} tries", tries);
+        }
+        if (best == null)
+            return null;
+        List<Entry> selected = new ArrayList<Entry>(best.length);
+        for (int index : best)
+            selected.add(usable.get(first + index));
+        return selected;
+    }
+
+    // Uses the smallest single output covering the target if there is one, otherwise takes the largest outputs until
+    // a single one covers what's left. The caller has checked there is enough money in total.
+    private List<Entry> fallback(ArrayList<Entry> usable, long target) {
+        List<Entry> selected = new ArrayList<Entry>();
+        long needed = target;
+        int next = 0;
+        while (needed > 0) {
+            // The smallest output from next onwards that covers what's needed, found by binary search as usable is
+            // sorted largest first.
+            int lo = next, hi = usable.size() - 1, covering = -1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (usable.get(mid).value >= needed) {
+                    covering = mid;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            if (covering >= 0) {
+                selected.add(usable.get(covering));
+                break;
+            }
+            Entry largest = usable.get(next++);
+            selected.add(largest);
+            needed -= largest.value;
+        }
+        return selected;
+    }
+
+    private static Wallet.CoinSelection toSelection(List<Entry> selected) {
+        LinkedList<TransactionOutput> gathered = Lists.newLinkedList();
+        long total = 0;
+        for (Entry entry : selected) {
+            gathered.add(entry.output);
+            total += entry.value;
+        }
+        return new Wallet.CoinSelection(BigInteger.valueOf(total), gathered);
+    }
+
+    public BigInteger getChangeTolerance() {
+        return BigInteger.valueOf(changeTolerance);
+    }
+
+    /** Returns how many times {@link #select(BigInteger, LinkedList)} has been called. */
+    public synchronized long getSelectionCount() {
+        return selections;
+    }
+
+    /** Returns how many selections the search found a match needing no change for. */
+    public synchronized long getExactMatchCount() {
+        return exactMatches;
+    }
+
+    /** Returns how many selections fell back to picking outputs by size because the search found no match. */
+    public synchronized long getFallbackCount() {
+        return fallbacks;
+    }
+
+    /** Returns how many searches ran out of tries or time before finishing or finding a perfect match. */
+    public synchronized long getSearchesCutOffCount() {
+        return searchesCutOff;
+    }
+
+    /** Returns the total number of branches visited by all searches. */
+    public synchronized long getTotalSearchTries() {
+        return totalTries;
+    }
+
+    /** Returns the number of branches visited by the most recent search. */
+    public synchronized long getLastSearchTries() {
+        return lastSearchTries;
+    }
+
+    /** Returns how long the most recent search took, in microseconds. */
+    public synchronized long getLastSearchMicros() {
+        return lastSearchNanos / 1000;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("BranchAndBoundCoinSelector: %d outputs indexed, %d selections, %d exact matches, " +
+                "%d fallbacks, %d searches cut off, %d tries in total", entries.size(), selections, exactMatches,
+                fallbacks, searchesCutOff, totalTries);
+    }
+}
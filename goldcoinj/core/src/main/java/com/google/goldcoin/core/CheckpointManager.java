@@ -23,13 +23,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
-import java.security.DigestInputStream;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
-import java.util.Map;
-import java.util.TreeMap;
+import java.util.Comparator;
 
 import static com.google.common.base.Preconditions.*;
 
@@ -50,52 +50,145 @@ import static com.google.common.base.Preconditions.*;
 public class CheckpointManager {
     private static final Logger log = LoggerFactory.getLogger(CheckpointManager.class);
 
-    // Map of block header time to data.
-    protected final TreeMap<Long, StoredBlock> checkpoints = new TreeMap<Long, StoredBlock>();
+    private static final String MAGIC = "CHECKPOINTS 1";
+    private static final int SIGNATURE_SIZE = 65;
+    private static final int RECORD_SIZE = StoredBlock.COMPACT_SERIALIZED_SIZE;
+    // Where the header time is in a record: after the chain work, the height and the first 68 bytes of the header.
+    private static final int RECORD_TIME_OFFSET = StoredBlock.CHAIN_WORK_BYTES + 4 + 68;
+
+    // The checkpoint count followed by the packed checkpoints, which is also what the data hash covers. Records are
+    // only decoded when they are asked for, lookups by time binary search the header times in place.
+    private final ByteBuffer data;
+    private final int numCheckpoints;
+    // Record numbers in order of header time, or null if the records are already in that order, as they are in files
+    // written by BuildCheckpoints.
+    private final int[] timeOrder;
 
     protected final NetworkParameters params;
-    protected final Sha256Hash dataHash;
+    private volatile Sha256Hash dataHash;
 
+    /**
+     * Reads checkpoints from the given stream, which is closed afterwards. The data is read in one go but checkpoints
+     * are only decoded when they are asked for.
+     */
     public CheckpointManager(NetworkParameters params, InputStream inputStream) throws IOException {
         this.params = checkNotNull(params);
-        DataInputStream dis = null;
+        DataInputStream dis = new DataInputStream(checkNotNull(inputStream));
         try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            DigestInputStream digestInputStream = new DigestInputStream(checkNotNull(inputStream), digest);
-            dis = new DataInputStream(digestInputStream);
-            digestInputStream.on(false);
-            String magic = "CHECKPOINTS 1";
-            byte[] header = new byte[magic.length()];
-            dis.readFully(header);
-            if (!Arrays.equals(header, magic.getBytes("US-ASCII")))
-                throw new IOException("Header bytes did not match expected version");
-            int numSignatures = dis.readInt();
-            for (int i = 0; i < numSignatures; i++) {
-                byte[] sig = new byte[65];
-                dis.readFully(sig);
-                // TODO: Do something with the signature here.
-            }
-            digestInputStream.on(true);
-            int numCheckpoints = dis.readInt();
-            checkState(numCheckpoints > 0);
-            final int size = StoredBlock.COMPACT_SERIALIZED_SIZE;
-            ByteBuffer buffer = ByteBuffer.allocate(size);
-            for (int i = 0; i < numCheckpoints; i++) {
-                if (dis.read(buffer.array(), 0, size) < size)
-                    throw new IOException("Incomplete read whilst loading checkpoints.");
-                StoredBlock block = StoredBlock.deserializeCompact(params, buffer);
-                buffer.position(0);
-                checkpoints.put(block.getHeader().getTimeSeconds(), block);
+            readHeader(dis);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] chunk = new byte[8192];
+            int read;
+            while ((read = dis.read(chunk)) > 0)
+                bytes.write(chunk, 0, read);
+            this.data = ByteBuffer.wrap(bytes.toByteArray());
+        } finally {
+            dis.close();
+        }
+        this.numCheckpoints = readNumCheckpoints(data);
+        this.timeOrder = sortByTime();
+        log.info("Read {} checkpoints", numCheckpoints);
+    }
+
+    /**
+     * Reads checkpoints from the given file by memory mapping it, so that only the parts that are needed to find a
+     * checkpoint are actually read from disk.
+     */
+    public CheckpointManager(NetworkParameters params, File file) throws IOException {
+        this.params = checkNotNull(params);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(checkNotNull(file), "r");
+        try {
+            ByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                    randomAccessFile.length());
+            byte[] header = new byte[MAGIC.length()];
+            buffer.get(header);
+            checkMagic(header);
+            int numSignatures = buffer.getInt();
+            buffer.position(buffer.position() + numSignatures * SIGNATURE_SIZE);
+            this.data = buffer.slice();
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Incomplete read whilst loading checkpoints.");
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Incomplete read whilst loading checkpoints.");
+        } finally {
+            // The mapping stays valid after the file is closed.
+            randomAccessFile.close();
+        }
+        this.numCheckpoints = readNumCheckpoints(data);
+        this.timeOrder = sortByTime();
+        log.info("Mapped {} checkpoints from {}", numCheckpoints, file);
+    }
+
+    private static void readHeader(DataInputStream dis) throws IOException {
+        byte[] header = new byte[MAGIC.length()];
+        dis.readFully(header);
+        checkMagic(header);
+        int numSignatures = dis.readInt();
+        for (int i = 0; i < numSignatures; i++) {
+            byte[] sig = new byte[SIGNATURE_SIZE];
+            dis.readFully(sig);
+            // TODO: Do something with the signature here.
+        }
+    }
+
+    private static void checkMagic(byte[] header) throws IOException {
+        if (!Arrays.equals(header, MAGIC.getBytes("US-ASCII")))
+            throw new IOException("Header bytes did not match expected version");
+    }
+
+    private static int readNumCheckpoints(ByteBuffer data) throws IOException {
+        if (data.limit() < 4)
+            throw new IOException("Incomplete read whilst loading checkpoints.");
+        int numCheckpoints = data.getInt(0);
+        checkState(numCheckpoints > 0);
+        if (data.limit() < 4 + (long) numCheckpoints * RECORD_SIZE)
+            throw new IOException("Incomplete read whilst loading checkpoints.");
+        return numCheckpoints;
+    }
+
+    private long getTime(int record) {
+        int offset = 4 + record * RECORD_SIZE + RECORD_TIME_OFFSET;
+        // Header fields are little endian.
+        return (data.get(offset) & 0xFFL) |
+                ((data.get(offset + 1) & 0xFFL) << 8) |
+                ((data.get(offset + 2) & 0xFFL) << 16) |
+                ((data.get(offset + 3) & 0xFFL) << 24);
+    }
+
+    private int[] sortByTime() {
+        boolean sorted = true;
+        for (int i = 1; i < numCheckpoints && sorted; i++)
+            sorted = getTime(i) >= getTime(i - 1);
+        if (sorted)
+            return null;
+        log.warn("Checkpoints are not in time order, sorting them");
+        Integer[] order = new Integer[numCheckpoints];
+        for (int i = 0; i < numCheckpoints; i++)
+            order[i] = i;
+        // The sort is stable, so of several checkpoints with the same time the last one in the data stays last.
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                long timeA = getTime(a), timeB = getTime(b);
+                return timeA < timeB ? -1 : (timeA > timeB ? 1 : 0);
             }
-            dataHash = new Sha256Hash(digest.digest());
-            log.info("Read {} checkpoints, hash is {}", checkpoints.size(), dataHash);
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);  // Cannot happen.
+        });
+        int[] result = new int[numCheckpoints];
+        for (int i = 0; i < numCheckpoints; i++)
+            result[i] = order[i];
+        return result;
+    }
+
+    private int getRecordInTimeOrder(int i) {
+        return timeOrder == null ? i : timeOrder[i];
+    }
+
+    private StoredBlock decode(int record) {
+        ByteBuffer buffer = data.duplicate();
+        buffer.position(4 + record * RECORD_SIZE);
+        try {
+            return StoredBlock.deserializeCompact(params, buffer);
         } catch (ProtocolException e) {
-            throw new IOException(e);
-        } finally {
-            if (dis != null) dis.close();
-            inputStream.close();
+            throw new RuntimeException(e);  // Cannot happen, records are fixed size.
         }
     }
 
@@ -105,9 +198,19 @@ public class CheckpointManager {
      */
     public StoredBlock getCheckpointBefore(long time) {
         checkArgument(time > params.genesisBlock.getTimeSeconds());
-        // This is thread safe because the map never changes after creation.
-        Map.Entry<Long, StoredBlock> entry = checkpoints.floorEntry(time);
-        if (entry == null) {
+        // This is thread safe because the data never changes after creation. Find the last checkpoint with a time
+        // no later than the given one.
+        int low = 0, high = numCheckpoints - 1, found = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (getTime(getRecordInTimeOrder(middle)) <= time) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        if (found < 0) {
             try {
                 Block genesis = params.genesisBlock.cloneAsHeader();
                 return new StoredBlock(genesis, genesis.getWork(), 0);
@@ -115,21 +218,35 @@ public class CheckpointManager {
                 throw new RuntimeException(e);  // Cannot happen.
             }
         }
-        return entry.getValue();
+        return decode(getRecordInTimeOrder(found));
     }
 
     /**
      * Returns the number of checkpoints that were loaded.
      */
     public int numCheckpoints() {
-        return checkpoints.size();
+        return numCheckpoints;
     }
 
     /**
-     * Returns a hash of the concatenated checkpoint data.
+     * Returns a hash of the concatenated checkpoint data. It is calculated the first time it is asked for.
      */
     public Sha256Hash getDataHash() {
-        return dataHash;
+        Sha256Hash hash = dataHash;
+        if (hash == null) {
+            try {
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                ByteBuffer buffer = data.duplicate();
+                buffer.position(0);
+                buffer.limit(4 + numCheckpoints * RECORD_SIZE);
+                digest.update(buffer);
+                hash = new Sha256Hash(digest.digest());
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);  // Cannot happen.
+            }
+            dataHash = hash;
+        }
+        return hash;
     }
 
     /**
@@ -369,9 +369,23 @@ public class ECKey implements Serializable {
      * @throws KeyCrypterException if this ECKey doesn't have a private part.
      */
     public ECDSASignature sign(Sha256Hash input, KeyParameter aesKey) throws KeyCrypterException {
-        // The private key bytes to use for signing.
-        BigInteger privateKeyForSigning;
+        byte[] privateKeyForSigning = getPrivateKeyBytesForSigning(aesKey);
+        try {
+            return signWithPrivateKey(input, privateKeyForSigning);
+        } finally {
+            Arrays.fill(privateKeyForSigning, (byte) 0);
+        }
+    }
 
+    /**
+     * Returns the private key to sign with, decrypting it with the given AES key if this key is encrypted. The array
+     * is a fresh copy which the caller should clear once done with it, so that several signatures can be made with
+     * one decryption.
+     *
+     * @param aesKey The AES key to use for decryption of the private key. If null then no decryption is required.
+     * @throws KeyCrypterException if this ECKey doesn't have a private part.
+     */
+    byte[] getPrivateKeyBytesForSigning(KeyParameter aesKey) throws KeyCrypterException {
         if (isEncrypted()) {
             // The private key needs decrypting before use.
             if (aesKey == null) {
@@ -382,18 +396,23 @@ public class ECKey implements Serializable {
                 throw new KeyCrypterException("There is no KeyCrypter to decrypt the private key for signing.");
             }
 
-            privateKeyForSigning = new BigInteger(1, keyCrypter.decrypt(encryptedPrivateKey, aesKey));
+            return keyCrypter.decrypt(encryptedPrivateKey, aesKey);
         } else {
             // No decryption of private key required.
             if (priv == null) {
                 throw new KeyCrypterException("This ECKey does not have the private key necessary for signing.");
-            } else {
-                privateKeyForSigning = priv;
             }
+            return priv.toByteArray();
         }
+    }
 
+    /**
+     * Signs the given hash with the given private key bytes, as returned by
+     * {@link #getPrivateKeyBytesForSigning(org.spongycastle.crypto.params.KeyParameter)}.
+     */
+    static ECDSASignature signWithPrivateKey(Sha256Hash input, byte[] privateKeyForSigning) {
         ECDSASigner signer = new ECDSASigner();
-        ECPrivateKeyParameters privKey = new ECPrivateKeyParameters(privateKeyForSigning, ecParams);
+        ECPrivateKeyParameters privKey = new ECPrivateKeyParameters(new BigInteger(1, privateKeyForSigning), ecParams);
         signer.init(true, privKey);
         BigInteger[] sigs = signer.generateSignature(input.getBytes());
         return new ECDSASignature(sigs[0], sigs[1]);
@@ -644,6 +663,20 @@ public class ECKey implements Serializable {
         return new ECKey((byte[]) null, q.getEncoded());
     }
 
+    /**
+     * Returns the uncompressed form of the given compressed public key.
+     *
+     * @throws IllegalArgumentException if the bytes are not a compressed point on the curve.
+     */
+    static byte[] decompressPublicKey(byte[] compressed) {
+        if (compressed.length != 33 || (compressed[0] != 2 && compressed[0] != 3))
+            throw new IllegalArgumentException("Not a compressed public key");
+        byte[] x = new byte[32];
+        System.arraycopy(compressed, 1, x, 0, 32);
+        ECPoint point = decompressKey(new BigInteger(1, x), compressed[0] == 3);
+        return new ECPoint.Fp(ecParams.getCurve(), point.getX(), point.getY(), false).getEncoded();
+    }
+
     /**
      * Decompress a compressed public key (x co-ord and low-bit of y-coord).
      */
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.goldcoin.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * The "filteradd" message inserts a single element into the {@link BloomFilter} previously loaded on a connection
+ * with "filterload", so a new key can be watched for without sending the whole filter again.
+ */
+public class FilterAddMessage extends Message {
+    private static final long serialVersionUID = -4537390853224370346L;
+
+    // Same value as the reference client, elements are at most one script push long.
+    public static final int MAX_DATA_SIZE = 520;
+
+    private byte[] data;
+
+    public FilterAddMessage(NetworkParameters params, byte[] payloadBytes) throws ProtocolException {
+        super(params, payloadBytes, 0);
+    }
+
+    public FilterAddMessage(byte[] data) {
+        checkArgument(data.length <= MAX_DATA_SIZE, "Bloom filter element too large");
+        this.data = data;
+    }
+
+    @Override
+    void parse() throws ProtocolException {
+        data = readByteArray();
+        if (data.length > MAX_DATA_SIZE)
+            throw new ProtocolException("Bloom filter element out of size range.");
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void parseLite() throws ProtocolException {
+    }
+
+    @Override
+    void litecoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(new VarInt(data.length).encode());
+        stream.write(data);
+    }
+
+    /**
+     * Returns the element to insert into the filter.
+     */
+    public byte[] getData() {
+        return data;
+    }
+}
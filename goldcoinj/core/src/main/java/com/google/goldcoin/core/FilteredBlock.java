@@ -43,8 +43,31 @@ public class FilteredBlock extends Message {
         super(params, payloadBytes, 0);
     }
 
+    /**
+     * Constructs a FilteredBlock from a block header and a {@link PartialMerkleTree} built from that block's
+     * transactions, for instance by {@link PartialMerkleTree#buildFromLeaves(NetworkParameters, byte[], java.util.List)}.
+     */
+    public FilteredBlock(NetworkParameters params, Block header, PartialMerkleTree pmt) {
+        super(params);
+        this.header = header;
+        this.merkleTree = pmt;
+        this.length = Block.HEADER_SIZE + pmt.getMessageSize();
+    }
+
+    // Used by BloomFilter.applyAndUpdate(Block), which already knows which transactions matched so there is no need to
+    // walk the tree we just built to find out again.
+    FilteredBlock(NetworkParameters params, Block header, PartialMerkleTree pmt, List<Transaction> matched) {
+        this(params, header, pmt);
+        cachedTransactionHashes = new HashSet<Sha256Hash>();
+        for (Transaction tx : matched) {
+            cachedTransactionHashes.add(tx.getHash());
+            associatedTransactions.add(tx);
+        }
+    }
+
     public void litecoinSerializeToStream(OutputStream stream) throws IOException {
-        throw new RuntimeException("Not implemented");
+        header.writeHeader(stream);
+        merkleTree.litecoinSerializeToStream(stream);
     }
 
     @Override
@@ -0,0 +1,323 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.goldcoin.core;
+
+import com.google.goldcoin.store.BlockStore;
+import com.google.goldcoin.store.BlockStoreException;
+import com.google.goldcoin.store.FullPrunedBlockStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Loads a header snapshot into a block chain, so that a fresh install can catch up with the chain without
+ * downloading every header from the network. A snapshot is a start block, stored like a checkpoint with its chain work
+ * and height, followed by a run of headers that each build on the one before:</p>
+ *
+ * <pre>
+ *   "HEADERS 1"
+ *   96 bytes   start block in the format of {@link StoredBlock#serializeCompact(ByteBuffer)}
+ *   4 bytes    number of headers, big endian
+ *   80 bytes   for each header
+ * </pre>
+ *
+ * <p>Headers are parsed and their proof of work checked in batches on a pool of worker threads, which is where nearly
+ * all of the time goes as the proof of work is scrypt based. They are then added to the chain in order on the calling
+ * thread a batch at a time with {@link AbstractBlockChain#addHeaders(List)}, so the chain still checks the difficulty
+ * transitions and every header that connects is stored and sent to the listeners like any other. Headers the chain's
+ * store already has are skipped.</p>
+ *
+ * <p>If the chain is still at the genesis block the start block becomes the chain head, like a checkpoint would,
+ * unless the chain uses a {@link FullPrunedBlockStore}. Otherwise headers are only added once one connects to a block
+ * that is already in the store. Loading stops at the first header from the fast catchup time on, see
+ * {@link HeaderSnapshotLoader#setFastCatchupTimeSecs(long)}, which by default is the earliest key creation time of the
+ * chain's wallets. So a wallet still gets the full blocks that might hold its transactions, even if it was just
+ * restored and its chain started again from a checkpoint. Progress is reported through
+ * {@link HeaderSnapshotLoader#progress(double, int, int)}, which logs it and can be overridden.</p>
+ */
+public class HeaderSnapshotLoader {
+    private static final Logger log = LoggerFactory.getLogger(HeaderSnapshotLoader.class);
+
+    private static final String MAGIC = "HEADERS 1";
+    // Headers checked per task on the worker threads.
+    private static final int BATCH_SIZE = 256;
+    // How many batches per worker thread may be checked ahead of the headers being added.
+    private static final int BATCHES_AHEAD_PER_THREAD = 4;
+    private static final long PROGRESS_INTERVAL_MSEC = 1000;
+
+    private final NetworkParameters params;
+    private final AbstractBlockChain chain;
+    private final int numThreads;
+    // Zero until set, meaning the earliest key time of the chain's wallets.
+    private long fastCatchupTimeSecs;
+
+    /**
+     * Creates a loader for the given chain that checks proof of work on as many threads as there are processors.
+     */
+    public HeaderSnapshotLoader(NetworkParameters params, AbstractBlockChain chain) {
+        this(params, chain, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a loader for the given chain that checks proof of work on the given number of threads.
+     */
+    public HeaderSnapshotLoader(NetworkParameters params, AbstractBlockChain chain, int numThreads) {
+        checkArgument(numThreads > 0);
+        this.params = checkNotNull(params);
+        this.chain = checkNotNull(chain);
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * Sets the time from which on headers are not added from the snapshot, like
+     * {@link PeerGroup#setFastCatchupTimeSecs(long)} does for headers from the network. Loading stops at the first
+     * header of a block mined at or after this time, and the start block isn't used if it is that recent. If not set,
+     * the earliest key creation time of the wallets added to the chain is used, or no limit if there are none.
+     */
+    public void setFastCatchupTimeSecs(long secondsSinceEpoch) {
+        checkArgument(secondsSinceEpoch > 0);
+        this.fastCatchupTimeSecs = secondsSinceEpoch;
+    }
+
+    private long getFastCatchupTimeSecs() {
+        if (fastCatchupTimeSecs > 0)
+            return fastCatchupTimeSecs;
+        long earliest = Long.MAX_VALUE;
+        for (Wallet wallet : chain.getWallets())
+            earliest = Math.min(earliest, wallet.getEarliestKeyCreationTime());
+        return earliest;
+    }
+
+    /**
+     * Writes a snapshot of the given headers, which must follow on from the start block and each other.
+     */
+    public static void write(OutputStream stream, StoredBlock start, List<Block> headers) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        out.write(MAGIC.getBytes("US-ASCII"));
+        ByteBuffer buffer = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
+        start.serializeCompact(buffer);
+        out.write(buffer.array());
+        out.writeInt(headers.size());
+        Sha256Hash prev = start.getHeader().getHash();
+        for (Block header : headers) {
+            checkArgument(header.getPrevBlockHash().equals(prev), "Headers do not form a chain");
+            out.write(header.cloneAsHeader().litecoinSerialize(), 0, Block.HEADER_SIZE);
+            prev = header.getHash();
+        }
+        out.flush();
+    }
+
+    /**
+     * Loads the snapshot in the given file.
+     *
+     * @return the number of headers added to the chain.
+     */
+    public int load(File file) throws IOException, BlockStoreException, VerificationException {
+        InputStream stream = new BufferedInputStream(new FileInputStream(file));
+        try {
+            return load(stream);
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Loads the snapshot read from the given stream, which is left open.
+     *
+     * @return the number of headers added to the chain.
+     * @throws VerificationException if the snapshot contains a header that is invalid or doesn't follow on from the
+     * one before. Headers before it that connected stay in the chain.
+     */
+    public int load(InputStream stream) throws IOException, BlockStoreException, VerificationException {
+        DataInputStream in = new DataInputStream(stream);
+        byte[] magic = new byte[MAGIC.length()];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC.getBytes("US-ASCII")))
+            throw new IOException("Header bytes did not match expected version");
+        byte[] startBytes = new byte[StoredBlock.COMPACT_SERIALIZED_SIZE];
+        in.readFully(startBytes);
+        StoredBlock start;
+        try {
+            start = StoredBlock.deserializeCompact(params, ByteBuffer.wrap(startBytes));
+        } catch (ProtocolException e) {
+            throw new IOException(e);
+        }
+        int numHeaders = in.readInt();
+        if (numHeaders < 0)
+            throw new IOException("Negative number of headers in snapshot");
+        final long catchupTimeSecs = getFastCatchupTimeSecs();
+        if (start.getHeader().getTimeSeconds() >= catchupTimeSecs) {
+            log.info("Header snapshot starts after the fast catchup time, not loading it");
+            return 0;
+        }
+        maybeStartFrom(start);
+
+        long startTime = Utils.now().getTime(), lastProgressTime = startTime;
+        int added = 0, read = 0;
+        boolean caughtUp = false;
+        Sha256Hash prevHash = start.getHeader().getHash();
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            LinkedList<Future<CheckedBatch>> checking = new LinkedList<Future<CheckedBatch>>();
+            while (!caughtUp) {
+                while (read < numHeaders && checking.size() < numThreads * BATCHES_AHEAD_PER_THREAD) {
+                    int count = Math.min(BATCH_SIZE, numHeaders - read);
+                    byte[] batch = new byte[count * Block.HEADER_SIZE];
+                    in.readFully(batch);
+                    checking.add(executor.submit(new CheckTask(batch, count)));
+                    read += count;
+                }
+                if (checking.isEmpty())
+                    break;
+                CheckedBatch checked = getChecked(checking.removeFirst());
+                VerificationException failure = checked.failure;
+                List<Block> toAdd = new ArrayList<Block>(checked.headers.size());
+                for (Block header : checked.headers) {
+                    if (!header.getPrevBlockHash().equals(prevHash)) {
+                        failure = new VerificationException("Header " + header.getHashAsString() +
+                                " in snapshot does not follow on from " + prevHash);
+                        break;
+                    }
+                    if (header.getTimeSeconds() >= catchupTimeSecs) {
+                        // The wallets need the full blocks from here on, which come from the network.
+                        caughtUp = true;
+                        failure = null;
+                        break;
+                    }
+                    prevHash = header.getHash();
+                    if (chain.getBlockStore().get(header.getHash()) == null)
+                        toAdd.add(header);
+                }
+                // The headers before a bad one still go into the chain.
+                added += addToChain(toAdd);
+                if (failure != null)
+                    throw failure;
+                long now = Utils.now().getTime();
+                if (now - lastProgressTime >= PROGRESS_INTERVAL_MSEC) {
+                    lastProgressTime = now;
+                    progress(100.0 * read / Math.max(1, numHeaders), added, chain.getBestChainHeight());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        log.info("Added {} of {} headers from snapshot in {} msec, chain height is now {}",
+                new Object[]{added, numHeaders, Utils.now().getTime() - startTime, chain.getBestChainHeight()});
+        return added;
+    }
+
+    private void maybeStartFrom(StoredBlock start) throws BlockStoreException {
+        BlockStore store = chain.getBlockStore();
+        // A full store needs every block from the genesis block on, just as with checkpoints.
+        if (store instanceof FullPrunedBlockStore || start.getHeight() == 0)
+            return;
+        chain.lock.lock();
+        try {
+            if (chain.getBestChainHeight() != 0 || store.get(start.getHeader().getHash()) != null)
+                return;
+            log.info("Starting chain from snapshot block at height {}", start.getHeight());
+            store.put(start);
+            chain.setChainHead(start);
+        } finally {
+            chain.lock.unlock();
+        }
+    }
+
+    // Returns how many of the headers were added. None are if the first doesn't connect to a block in the store yet.
+    private int addToChain(List<Block> headers) throws VerificationException {
+        if (headers.isEmpty())
+            return 0;
+        try {
+            return chain.addHeaders(headers);
+        } catch (PrunedException e) {
+            // Cannot happen, headers have no transactions to verify.
+            throw new RuntimeException(e);
+        }
+    }
+
+    // The headers of a batch that passed the checks, and why the one after them didn't if any failed.
+    private static class CheckedBatch {
+        final List<Block> headers;
+        final VerificationException failure;
+
+        CheckedBatch(List<Block> headers, VerificationException failure) {
+            this.headers = headers;
+            this.failure = failure;
+        }
+    }
+
+    private class CheckTask implements Callable<CheckedBatch> {
+        private final byte[] batch;
+        private final int count;
+
+        CheckTask(byte[] batch, int count) {
+            this.batch = batch;
+            this.count = count;
+        }
+
+        public CheckedBatch call() throws ProtocolException {
+            List<Block> headers = new ArrayList<Block>(count);
+            for (int i = 0; i < count; i++) {
+                byte[] bytes = new byte[Block.HEADER_SIZE + 1];    // Extra byte for the 00 transactions length.
+                System.arraycopy(batch, i * Block.HEADER_SIZE, bytes, 0, Block.HEADER_SIZE);
+                Block header = new Block(params, bytes);
+                try {
+                    // Checks the proof of work, leaving the hashes cached for when the chain checks it again.
+                    header.verifyHeader();
+                } catch (VerificationException e) {
+                    return new CheckedBatch(headers, e);
+                }
+                headers.add(header);
+            }
+            return new CheckedBatch(headers, null);
+        }
+    }
+
+    private CheckedBatch getChecked(Future<CheckedBatch> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ProtocolException)
+                throw new IOException(e.getCause());
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Called about once a second whilst a snapshot is being loaded.
+     *
+     * @param pct the percentage of the snapshot read so far
+     * @param headersAdded the number of headers added to the chain so far
+     * @param chainHeight the height of the chain
+     */
+    protected void progress(double pct, int headersAdded, int chainHeight) {
+        log.info(String.format("Header snapshot %d%% loaded, %d headers added, chain height %d", (int) pct,
+                headersAdded, chainHeight));
+    }
+}
@@ -0,0 +1,294 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.goldcoin.core;
+
+import com.google.goldcoin.utils.Locks;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A pool of keys generated ahead of time, so that handing out a fresh address doesn't have to wait for a random
+ * private key to be picked, the public key computed from it and that hashed into an address. Those steps are what make
+ * {@link ECKey#ECKey()} slow, which matters to merchants giving every invoice its own address.</p>
+ *
+ * <p>A background thread keeps the pool topped up to its target size, and a key is removed from it in constant time by
+ * {@link Wallet#freshKey()} or {@link Wallet#freshAddress()}, which add it to the wallet. If the pool runs dry a key is
+ * generated on the spot. Keys in the pool are not part of the wallet and nobody has been told about them, so payments
+ * to them aren't looked for, and losing them loses nothing.</p>
+ *
+ * <p>The pool is saved along with the wallet it is attached to by {@link Wallet#setKeyPool(KeyPool)}, as long as the
+ * wallet isn't encrypted: the pooled private keys are not encrypted, so a wallet drops its pool when it is encrypted
+ * and does not use one while it is. A pool should only be attached to one wallet. This class is thread safe.</p>
+ */
+public class KeyPool {
+    private static final Logger log = LoggerFactory.getLogger(KeyPool.class);
+
+    /** How many keys a pool holds by default. */
+    public static final int DEFAULT_TARGET_SIZE = 100;
+
+    /** A pooled key with its address, both of which were worked out when the key was generated. */
+    static class PooledKey {
+        final ECKey key;
+        final Address address;
+
+        PooledKey(NetworkParameters params, ECKey key) {
+            this.key = key;
+            this.address = new Address(params, key.getPubKeyHash());
+        }
+    }
+
+    private final NetworkParameters params;
+    private final ReentrantLock lock = Locks.lock("keypool");
+    private final ArrayDeque<PooledKey> keys = new ArrayDeque<PooledKey>();
+    private int targetSize;
+    // Set while a refill is queued or running, so that taking many keys in a row queues only one.
+    private SettableFuture<Integer> refillFuture;
+    // Bumped by clear(), so that a refill already running doesn't go on adding keys after it.
+    private int generation;
+    private ExecutorService executor;
+
+    /** Creates an empty pool holding {@link #DEFAULT_TARGET_SIZE} keys once filled. */
+    public KeyPool(NetworkParameters params) {
+        this(params, DEFAULT_TARGET_SIZE);
+    }
+
+    public KeyPool(NetworkParameters params, int targetSize) {
+        checkArgument(targetSize >= 0, "Negative target size");
+        this.params = checkNotNull(params);
+        this.targetSize = targetSize;
+    }
+
+    /** Returns how many keys the background thread keeps in the pool. */
+    public int getTargetSize() {
+        lock.lock();
+        try {
+            return targetSize;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets how many keys the background thread keeps in the pool. Lowering it doesn't discard keys already generated,
+     * they are used up first.
+     */
+    public void setTargetSize(int targetSize) {
+        checkArgument(targetSize >= 0, "Negative target size");
+        lock.lock();
+        try {
+            this.targetSize = targetSize;
+        } finally {
+            lock.unlock();
+        }
+        refill();
+    }
+
+    /** Returns how many keys are in the pool right now. */
+    public int size() {
+        lock.lock();
+        try {
+            return keys.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Tops the pool up to its target size on the background thread, if it isn't full already.
+     *
+     * @return a future that completes with the size of the pool once the refill is done.
+     */
+    public ListenableFuture<Integer> refill() {
+        lock.lock();
+        try {
+            if (refillFuture != null)
+                return refillFuture;
+            if (keys.size() >= targetSize) {
+                SettableFuture<Integer> done = SettableFuture.create();
+                done.set(keys.size());
+                return done;
+            }
+            final SettableFuture<Integer> future = SettableFuture.create();
+            final int fillGeneration = generation;
+            refillFuture = future;
+            getExecutor().execute(new Runnable() {
+                public void run() {
+                    fill(future, fillGeneration);
+                }
+            });
+            return future;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void fill(SettableFuture<Integer> future, int fillGeneration) {
+        int generated = 0;
+        int size;
+        try {
+            while (true) {
+                lock.lock();
+                try {
+                    if (generation != fillGeneration) {
+                        // The pool was cleared, and clear() already let another refill start.
+                        size = keys.size();
+                        break;
+                    }
+                    if (keys.size() >= targetSize) {
+                        refillFuture = null;
+                        size = keys.size();
+                        break;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                // The slow part happens without holding the lock, so keys can still be taken meanwhile.
+                PooledKey key = new PooledKey(params, new ECKey());
+                generated++;
+                lock.lock();
+                try {
+                    if (generation != fillGeneration) {
+                        // Cleared while the key was being generated, so its private key must not be kept.
+                        key.key.clearPrivateKey();
+                        size = keys.size();
+                        break;
+                    }
+                    keys.add(key);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } catch (RuntimeException e) {
+            lock.lock();
+            try {
+                if (generation == fillGeneration)
+                    refillFuture = null;
+            } finally {
+                lock.unlock();
+            }
+            log.error("Failed to refill key pool", e);
+            future.setException(e);
+            return;
+        }
+        log.debug("Generated {} keys for the key pool, which now holds {}", generated, size);
+        future.set(size);
+    }
+
+    private ExecutorService getExecutor() {
+        // Called with the lock held.
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Key pool refill");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);  // Avoid competing with the UI.
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Removes the oldest key from the pool and queues a refill, or generates a key on the calling thread if the pool
+     * is empty.
+     */
+    PooledKey take() {
+        PooledKey key;
+        lock.lock();
+        try {
+            key = keys.poll();
+        } finally {
+            lock.unlock();
+        }
+        refill();
+        if (key == null) {
+            log.info("Key pool is empty, generating a key on demand");
+            key = new PooledKey(params, new ECKey());
+        }
+        return key;
+    }
+
+    /** Returns the keys in the pool, oldest first, without removing them. */
+    public List<ECKey> getKeys() {
+        lock.lock();
+        try {
+            List<ECKey> result = new ArrayList<ECKey>(keys.size());
+            for (PooledKey key : keys)
+                result.add(key.key);
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Adds already generated keys to the pool, for instance ones read back from a saved wallet. */
+    public void addKeys(Collection<ECKey> newKeys) {
+        List<PooledKey> pooled = new ArrayList<PooledKey>(newKeys.size());
+        for (ECKey key : newKeys) {
+            checkArgument(key.getPrivKeyBytes() != null && !key.isEncrypted(), "Pooled keys must have private keys");
+            pooled.add(new PooledKey(params, key));
+        }
+        lock.lock();
+        try {
+            keys.addAll(pooled);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Discards all keys in the pool, clearing their private keys from memory. A refill that is running stops without
+     * adding any more keys.
+     */
+    public void clear() {
+        lock.lock();
+        try {
+            for (PooledKey key : keys)
+                key.key.clearPrivateKey();
+            keys.clear();
+            generation++;
+            refillFuture = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return "Key pool of " + keys.size() + " keys, target size " + targetSize;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
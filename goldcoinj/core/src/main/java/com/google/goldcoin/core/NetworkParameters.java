@@ -81,6 +81,8 @@ public class NetworkParameters implements Serializable {
      * What the easiest allowable proof of work should be.
      */
     public /*final*/ BigInteger proofOfWorkLimit;
+    // proofOfWorkLimit converted to a UInt256, along with the value it was converted from in case the field changes.
+    private transient volatile Object[] proofOfWorkLimitAsUInt256;
     /**
      * Default TCP port on which to connect to nodes.
      */
@@ -410,6 +412,18 @@ public class NetworkParameters implements Serializable {
         return ut;
     }
 
+    /**
+     * Returns {@link NetworkParameters#proofOfWorkLimit} as a {@link UInt256}, for comparing with block targets.
+     */
+    public UInt256 getProofOfWorkLimitAsUInt256() {
+        Object[] converted = proofOfWorkLimitAsUInt256;
+        if (converted == null || converted[0] != proofOfWorkLimit) {
+            converted = new Object[]{proofOfWorkLimit, UInt256.fromBigInteger(proofOfWorkLimit)};
+            proofOfWorkLimitAsUInt256 = converted;
+        }
+        return (UInt256) converted[1];
+    }
+
     /**
      * A Java package style string acting as unique ID for these parameters
      */
@@ -64,8 +64,48 @@ public class PartialMerkleTree extends Message {
         super(params, payloadBytes, offset);
     }
 
+    /**
+     * Constructs a new PMT with the given bit set (little endian) and the raw list of hashes including internal hashes,
+     * taking ownership of the list.
+     */
+    public PartialMerkleTree(NetworkParameters params, byte[] bits, List<Sha256Hash> hashes, int origTxCount) {
+        super(params);
+        this.matchedChildBits = bits;
+        this.hashes = hashes;
+        this.transactionCount = origTxCount;
+        this.length = 4 + VarInt.sizeOf(hashes.size()) + hashes.size() * 32 + VarInt.sizeOf(bits.length) + bits.length;
+    }
+
+    /**
+     * Calculates a PMT given the list of leaf hashes and which leaves need to be included. The relevant interior hashes
+     * are calculated and a new PMT returned. This is the inverse of {@link #getTxnHashAndMerkleRoot(java.util.Set)} and
+     * is used to build the {@link FilteredBlock}s we serve to peers that loaded a {@link BloomFilter}.
+     *
+     * @param includeBits for each leaf, a bit (little endian) saying whether it is a matched transaction.
+     * @param allLeafHashes the hashes of every transaction in the block, in block order.
+     */
+    public static PartialMerkleTree buildFromLeaves(NetworkParameters params, byte[] includeBits, List<Sha256Hash> allLeafHashes) {
+        // Calculate height of the tree.
+        int height = 0;
+        while (getTreeWidth(allLeafHashes.size(), height) > 1)
+            height++;
+        // The traversal stores at most 2*N-1 bits and N hashes.
+        byte[] bits = new byte[(allLeafHashes.size() * 2 + 7) / 8];
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+        ValuesUsed used = new ValuesUsed();
+        traverseAndBuild(height, 0, allLeafHashes, includeBits, bits, used, hashes);
+        byte[] trimmedBits = new byte[(used.bitsUsed + 7) / 8];
+        System.arraycopy(bits, 0, trimmedBits, 0, trimmedBits.length);
+        return new PartialMerkleTree(params, trimmedBits, hashes, allLeafHashes.size());
+    }
+
     public void litecoinSerializeToStream(OutputStream stream) throws IOException {
-        throw new RuntimeException("Not implemented");
+        Utils.uint32ToByteStreamLE(transactionCount, stream);
+        stream.write(new VarInt(hashes.size()).encode());
+        for (Sha256Hash hash : hashes)
+            stream.write(Utils.reverseBytes(hash.getBytes()));
+        stream.write(new VarInt(matchedChildBits.length).encode());
+        stream.write(matchedChildBits);
     }
 
     @Override
@@ -90,9 +130,61 @@ public class PartialMerkleTree extends Message {
 
     // helper function to efficiently calculate the number of nodes at given height in the merkle tree
     private int getTreeWidth(int height) {
+        return getTreeWidth(transactionCount, height);
+    }
+
+    private static int getTreeWidth(int transactionCount, int height) {
         return (transactionCount + (1 << height) - 1) >> height;
     }
 
+    // recursive function that traverses tree nodes, storing the data as bits and hashes. The inverse of
+    // recursiveExtractHashes.
+    private static void traverseAndBuild(int height, int pos, List<Sha256Hash> allLeafHashes, byte[] includeBits,
+                                         byte[] matchedChildBits, ValuesUsed used, List<Sha256Hash> hashes) {
+        // determine whether this node is the parent of at least one matched txid
+        boolean parentOfMatch = false;
+        for (int p = pos << height; p < (pos + 1) << height && p < allLeafHashes.size(); p++) {
+            if (Utils.checkBitLE(includeBits, p)) {
+                parentOfMatch = true;
+                break;
+            }
+        }
+        // store as flag bit
+        if (parentOfMatch)
+            Utils.setBitLE(matchedChildBits, used.bitsUsed);
+        used.bitsUsed++;
+        if (height == 0 || !parentOfMatch) {
+            // if at height 0, or nothing interesting below, store hash and stop
+            hashes.add(calcHash(height, pos, allLeafHashes));
+        } else {
+            // otherwise, don't store any hash, but descend into the subtrees
+            traverseAndBuild(height - 1, pos * 2, allLeafHashes, includeBits, matchedChildBits, used, hashes);
+            if (pos * 2 + 1 < getTreeWidth(allLeafHashes.size(), height - 1))
+                traverseAndBuild(height - 1, pos * 2 + 1, allLeafHashes, includeBits, matchedChildBits, used, hashes);
+        }
+    }
+
+    // calculates the hash of the node at the given height and position from the leaves below it
+    private static Sha256Hash calcHash(int height, int pos, List<Sha256Hash> hashes) {
+        if (height == 0) {
+            // hash at height 0 is just the regular tx hash itself
+            return hashes.get(pos);
+        }
+        byte[] left = calcHash(height - 1, pos * 2, hashes).getBytes(), right;
+        // calculate right hash if not beyond the end of the array - copy left hash otherwise
+        if (pos * 2 + 1 < getTreeWidth(hashes.size(), height - 1))
+            right = calcHash(height - 1, pos * 2 + 1, hashes).getBytes();
+        else
+            right = left;
+        return combineLeftRight(left, right);
+    }
+
+    private static Sha256Hash combineLeftRight(byte[] left, byte[] right) {
+        return new Sha256Hash(Utils.reverseBytes(Utils.doubleDigestTwoBuffers(
+                Utils.reverseBytes(left), 0, 32,
+                Utils.reverseBytes(right), 0, 32)));
+    }
+
     private static class ValuesUsed {
         public int bitsUsed = 0, hashesUsed = 0;
     }
@@ -122,9 +214,7 @@ public class PartialMerkleTree extends Message {
             else
                 right = left;
             // and combine them before returning
-            return new Sha256Hash(Utils.reverseBytes(Utils.doubleDigestTwoBuffers(
-                    Utils.reverseBytes(left), 0, 32,
-                    Utils.reverseBytes(right), 0, 32)));
+            return combineLeftRight(left, right);
         }
     }
 
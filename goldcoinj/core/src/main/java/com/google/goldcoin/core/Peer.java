@@ -96,6 +96,9 @@ public class Peer {
     private boolean useFilteredBlocks = false;
     // The current Bloom filter set on the connection, used to tell the remote peer what transactions to send us.
     private volatile BloomFilter vBloomFilter;
+    // The Bloom filter the remote peer loaded on this connection with a filterload message, if any. It is used to serve
+    // it filtered blocks and is updated as blocks are matched against it, so it is never shared with other peers.
+    private volatile BloomFilter vPeerBloomFilter;
     // The last filtered block we received, we're waiting to fill it out with transactions.
     private FilteredBlock currentFilteredBlock = null;
     // How many filtered blocks have been received during the lifetime of this connection. Used to decide when to
@@ -134,6 +137,10 @@ public class Peer {
     private long[] lastPingTimes = null;
     private final CopyOnWriteArrayList<PendingPing> pendingPings;
     private static final int PING_MOVING_AVERAGE_WINDOW = 20;
+    // How fast the remote peer is delivering blocks, transactions and headers, used to score it as a download peer.
+    private final ThroughputTracker throughput = new ThroughputTracker();
+    /** The ping time assumed by {@link Peer#getDownloadScore()} for peers that didn't answer a ping yet. */
+    public static final long UNKNOWN_PING_SCORE_MSEC = 10000;
 
     private volatile Channel vChannel;
     private volatile VersionMessage vPeerVersionMessage;
@@ -274,6 +281,9 @@ public class Peer {
                 currentFilteredBlock = null;
             }
 
+            if (m instanceof Block || m instanceof FilteredBlock || m instanceof Transaction || m instanceof HeadersMessage)
+                throughput.record(receivedSize(m), m instanceof Block || m instanceof FilteredBlock);
+
             if (m instanceof NotFoundMessage) {
                 // This is sent to us when we did a getdata on some transactions that aren't in the peers memory pool.
                 // Because NotFoundMessage is a subclass of InventoryMessage, the test for it must come before the next.
@@ -319,6 +329,15 @@ public class Peer {
                     sendMessage(new Pong(((Ping) m).getNonce()));
             } else if (m instanceof Pong) {
                 processPong((Pong) m);
+            } else if (m instanceof BloomFilter) {
+                // The remote peer is a lightweight client that wants us to filter what we send it.
+                log.info("{}: Received Bloom filter: {}", vAddress, m);
+                vPeerBloomFilter = (BloomFilter) m;
+            } else if (m instanceof FilterAddMessage) {
+                BloomFilter filter = vPeerBloomFilter;
+                if (filter == null)
+                    throw new ProtocolException("got filteradd without a loaded filter");
+                filter.insert(((FilterAddMessage) m).getData());
             } else {
                 log.warn("Received unhandled message: {}", m);
             }
@@ -408,32 +427,42 @@ public class Peer {
 
         try {
             checkState(!downloadBlockBodies, toString());
-            for (int i = 0; i < m.getBlockHeaders().size(); i++) {
-                Block header = m.getBlockHeaders().get(i);
-                if (header.getTimeSeconds() < fastCatchupTimeSecs) {
-                    if (!vDownloadData) {
-                        // Not download peer anymore, some other peer probably became better.
-                        log.info("Lost download peer status, throwing away downloaded headers.");
-                        return;
-                    }
-                    if (GoldcoinDefinition.Defense(this, header) && blockChain.add(header)) {
-                        // The block was successfully linked into the chain. Notify the user of our progress.
-                        invokeOnBlocksDownloaded(header);
-                    } else {
-                        // This block is unconnected - we don't know how to get from it back to the genesis block yet.
-                        // That must mean that the peer is buggy or malicious because we specifically requested for
-                        // headers that are part of the best chain.
-                        throw new ProtocolException("Got unconnected header from peer: " + header.getHashAsString());
-                    }
-                } else {
-                    log.info("Passed the fast catchup time, discarding {} headers and requesting full blocks",
-                            m.getBlockHeaders().size() - i);
-                    this.downloadBlockBodies = true;
-                    // Prevent this request being seen as a duplicate.
-                    this.lastGetBlocksBegin = Sha256Hash.ZERO_HASH;
-                    blockChainDownload(Sha256Hash.ZERO_HASH);
+            // Headers from before the fast catchup time are added to the chain in one go.
+            List<Block> headers = m.getBlockHeaders();
+            int catchupEnd = 0;
+            while (catchupEnd < headers.size() && headers.get(catchupEnd).getTimeSeconds() < fastCatchupTimeSecs) {
+                if (!GoldcoinDefinition.Defense(this, headers.get(catchupEnd)))
+                    throw new ProtocolException("Got unconnected header from peer: " +
+                            headers.get(catchupEnd).getHashAsString());
+                catchupEnd++;
+            }
+            if (catchupEnd > 0) {
+                if (!vDownloadData) {
+                    // Not download peer anymore, some other peer probably became better.
+                    log.info("Lost download peer status, throwing away downloaded headers.");
                     return;
                 }
+                List<Block> catchupHeaders = headers.subList(0, catchupEnd);
+                int added = blockChain.addHeaders(catchupHeaders);
+                // Notify the user of our progress for each block that was linked into the chain.
+                for (Block header : catchupHeaders.subList(0, added))
+                    invokeOnBlocksDownloaded(header);
+                if (added < catchupEnd) {
+                    // This block is unconnected - we don't know how to get from it back to the genesis block yet.
+                    // That must mean that the peer is buggy or malicious because we specifically requested for
+                    // headers that are part of the best chain.
+                    throw new ProtocolException("Got unconnected header from peer: " +
+                            catchupHeaders.get(added).getHashAsString());
+                }
+            }
+            if (catchupEnd < headers.size()) {
+                log.info("Passed the fast catchup time, discarding {} headers and requesting full blocks",
+                        headers.size() - catchupEnd);
+                this.downloadBlockBodies = true;
+                // Prevent this request being seen as a duplicate.
+                this.lastGetBlocksBegin = Sha256Hash.ZERO_HASH;
+                blockChainDownload(Sha256Hash.ZERO_HASH);
+                return;
             }
             // We added all headers in the message to the chain. Request some more if we got up to the limit, otherwise
             // we are at the end of the chain.
@@ -1252,6 +1281,49 @@ public class Peer {
         }
     }
 
+    /**
+     * Returns how many bytes of blocks, transactions and headers per second the remote peer has been sending us
+     * recently. Only the download peer sends much of those, so for other peers this is usually close to zero.
+     */
+    public double getBytesPerSecond() {
+        return throughput.getBytesPerSecond();
+    }
+
+    /**
+     * Returns how many blocks or filtered blocks per second the remote peer has been sending us recently.
+     */
+    public double getBlocksPerSecond() {
+        return throughput.getBlocksPerSecond();
+    }
+
+    /**
+     * Returns how many milliseconds ago the remote peer last sent us a block, transaction or headers message, or how
+     * long ago the connection was made if it never did.
+     */
+    public long getMillisSinceLastUsefulMessage() {
+        return throughput.getMillisSinceLastUsefulMessage();
+    }
+
+    /**
+     * <p>Returns a score of how good a download peer this peer is, higher being better. It is the recent throughput in
+     * kilobytes per second plus one, divided by the average ping time in units of 100 milliseconds plus one. Peers
+     * that aren't sending anything are therefore ranked by ping time, and a peer we are downloading from is ranked by
+     * how well that is going.</p>
+     *
+     * <p>Peers we never heard a pong from are scored as if their ping time was {@link Peer#UNKNOWN_PING_SCORE_MSEC}.</p>
+     */
+    public double getDownloadScore() {
+        long pingTime = getPingTime();
+        if (pingTime == Long.MAX_VALUE)
+            pingTime = UNKNOWN_PING_SCORE_MSEC;
+        return (1 + getBytesPerSecond() / 1024) / (1 + pingTime / 100.0);
+    }
+
+    // Messages read off the wire know their size. Ones constructed locally, as unit tests do, may not and count as empty.
+    private static int receivedSize(Message m) {
+        return m.length == Message.UNKNOWN_LENGTH ? 0 : m.length;
+    }
+
     private void processPong(Pong m) {
         // Iterates over a snapshot of the list, so we can run unlocked here.
         for (PendingPing ping : pendingPings) {
@@ -1375,6 +1447,21 @@ public class Peer {
             });
     }
 
+    /**
+     * <p>Inserts the given elements into the Bloom filter the remote peer is using for us, by sending one "filteradd"
+     * message per element. This is much cheaper than sending the whole filter again, but the caller must already have
+     * inserted the elements into the filter passed to {@link Peer#setBloomFilter(BloomFilter)} so it stays in sync
+     * with what the remote peer has. Does nothing if no filter was set or the peer doesn't support Bloom filtering.</p>
+     */
+    public void addToBloomFilter(Collection<byte[]> elements) throws IOException {
+        final VersionMessage ver = vPeerVersionMessage;
+        if (ver == null || !ver.isBloomFilteringSupported() || vBloomFilter == null)
+            return;
+        log.info("{}: Adding {} elements to Bloom filter", this, elements.size());
+        for (byte[] element : elements)
+            sendMessage(new FilterAddMessage(element));
+    }
+
     /**
      * Returns the last {@link BloomFilter} set by {@link Peer#setBloomFilter(BloomFilter)}. Bloom filters tell
      * the remote node what transactions to send us, in a compact manner.
@@ -1382,4 +1469,12 @@ public class Peer {
     public BloomFilter getBloomFilter() {
         return vBloomFilter;
     }
+
+    /**
+     * Returns the {@link BloomFilter} the remote peer loaded on this connection, or null if it never sent one. This is
+     * the filter used to answer its getdata requests for filtered blocks.
+     */
+    public BloomFilter getPeerBloomFilter() {
+        return vPeerBloomFilter;
+    }
 }
@@ -84,10 +84,16 @@ public class PeerGroup extends AbstractIdleService {
 
     // The peer that has been selected for the purposes of downloading announced data.
     private Peer downloadPeer;
+    // When downloadPeer was last changed, according to Utils.now().
+    private long downloadPeerSetTime;
     // Callback for events related to chain download
     private PeerEventListener downloadListener;
     // Callbacks for events related to peer connection/disconnection
     private final CopyOnWriteArrayList<PeerEventListener> peerEventListeners;
+    // Remembers peers that were good to connect to, consulted before the peer discovery sources. Can be null.
+    private volatile AddressManager addressManager;
+    // Below this many known addresses we ask newly connected peers for more with getaddr.
+    private static final int ADDRESS_MANAGER_GETADDR_THRESHOLD = 1000;
     // Peer discovery sources, will be polled occasionally if there aren't enough inactives.
     private CopyOnWriteArraySet<PeerDiscovery> peerDiscoverers;
     // The version message to use for new connections.
@@ -118,18 +124,58 @@ public class PeerGroup extends AbstractIdleService {
     private AbstractPeerEventListener getDataListener = new AbstractPeerEventListener() {
         @Override
         public List<Message> getData(Peer peer, GetDataMessage m) {
-            return handleGetData(m);
+            return handleGetData(peer, m);
+        }
+
+        @Override
+        public void onBlocksDownloaded(Peer peer, Block block, int blocksLeft) {
+            if (!block.isHeaderOnly())
+                recentBlocks.put(block.getHash(), block);
+        }
+
+        @Override
+        public Message onPreMessageReceived(Peer peer, Message m) {
+            final AddressManager manager = addressManager;
+            if (manager != null && m instanceof AddressMessage)
+                manager.addSeen((AddressMessage) m);
+            return m;
         }
     };
 
+    /**
+     * How many of the most recently downloaded full blocks are kept so they can be served to peers, either whole or
+     * filtered through the {@link BloomFilter} the peer loaded.
+     */
+    public static final int RECENT_BLOCKS_TO_SERVE = 144;
+    // Recently downloaded full blocks, in download order, so the oldest are evicted first.
+    private final Map<Sha256Hash, Block> recentBlocks = Collections.synchronizedMap(
+            new LinkedHashMap<Sha256Hash, Block>(RECENT_BLOCKS_TO_SERVE, 0.75f, false) {
+                private static final long serialVersionUID = 2783127411452135587L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Block> eldest) {
+                    return size() > RECENT_BLOCKS_TO_SERVE;
+                }
+            });
+
     private ClientBootstrap bootstrap;
+    /** How often the download peer is checked for stalls and poor throughput, see maybeSwitchDownloadPeer. */
+    public static final long DOWNLOAD_PEER_CHECK_INTERVAL_MSEC = 5000;
+    /** A download peer that sent no blocks, transactions or headers for this long is replaced. */
+    public static final long DOWNLOAD_STALL_TIMEOUT_MSEC = 30000;
+    /** The default for {@link PeerGroup#setMinDownloadBytesPerSecond(double)}. */
+    public static final double DEFAULT_MIN_DOWNLOAD_BYTES_PER_SEC = 1024;
+    /** The default for {@link PeerGroup#setMinDownloadBlocksPerSecond(double)}. */
+    public static final double DEFAULT_MIN_DOWNLOAD_BLOCKS_PER_SEC = 1;
+    private double minDownloadBytesPerSec = DEFAULT_MIN_DOWNLOAD_BYTES_PER_SEC;
+    private double minDownloadBlocksPerSec = DEFAULT_MIN_DOWNLOAD_BLOCKS_PER_SEC;
     private int minBroadcastConnections = 0;
     private AbstractWalletEventListener walletEventListener = new AbstractWalletEventListener() {
         @Override
         public void onKeyAdded(ECKey key) {
             lock.lock();
             try {
-                recalculateFastCatchupAndFilter();
+                addKeyToFilter(key);
             } finally {
                 lock.unlock();
             }
@@ -140,13 +186,19 @@ public class PeerGroup extends AbstractIdleService {
         public void onPeerConnected(Peer peer) {
             pendingPeers.remove(peer);
             peers.add(peer);
+            final AddressManager manager = addressManager;
+            if (manager != null && peer.getAddress() != null)
+                manager.markSuccess(peer.getAddress().toSocketAddress());
             handleNewPeer(peer);
         }
 
         public void onPeerDisconnected(Peer peer) {
             // The channel will be automatically removed from channels.
             pendingPeers.remove(peer);
-            peers.remove(peer);
+            boolean wasConnected = peers.remove(peer);
+            final AddressManager manager = addressManager;
+            if (manager != null && !wasConnected && peer.getAddress() != null)
+                manager.markFailure(peer.getAddress().toSocketAddress());
             handlePeerDeath(peer);
         }
     }
@@ -167,6 +219,22 @@ public class PeerGroup extends AbstractIdleService {
     // We use a constant tweak to avoid giving up privacy when we regenerate our filter with new keys
     private final long bloomFilterTweak = (long) (Math.random() * Long.MAX_VALUE);
     private int lastBloomFilterElementCount;
+    // How many elements were actually inserted into bloomFilter, which is sized for lastBloomFilterElementCount.
+    private int bloomFilterElements;
+    /**
+     * New keys are inserted into the current filter and sent to peers with filteradd messages. The filter is only
+     * rebuilt from scratch once its estimated false positive rate exceeds the configured rate by this factor.
+     */
+    public static final double BLOOM_FILTER_REBUILD_FP_FACTOR = 2.0;
+    /**
+     * The minimum time between two rebuilds of the filter triggered by new keys. A rebuild needed sooner than that is
+     * deferred, and new keys keep being added in place meanwhile.
+     */
+    public static final long MIN_BLOOM_FILTER_REBUILD_INTERVAL_MSEC = 10000;
+    private long lastBloomFilterRebuildTime;
+    private boolean bloomFilterRebuildPending;
+    // Counters for getBloomFilterRebuildCount and getBloomFilterIncrementalUpdateCount.
+    private int bloomFilterRebuilds, bloomFilterIncrementalUpdates;
 
     /**
      * Creates a PeerGroup with the given parameters. No chain is provided so this node will report its chain height
@@ -321,33 +389,57 @@ public class PeerGroup extends AbstractIdleService {
         }
     }
 
-    private List<Message> handleGetData(GetDataMessage m) {
-        // Scans the wallets and memory pool for transactions in the getdata message and returns them.
+    private List<Message> handleGetData(Peer peer, GetDataMessage m) {
+        // Scans the recent blocks, wallets and memory pool for the items in the getdata message and returns them.
         // Runs on peer threads.
+        LinkedList<Message> results = new LinkedList<Message>();
+        LinkedList<InventoryItem> items = new LinkedList<InventoryItem>(m.getItems());
+        // Blocks are served first and outside the lock, as filtering a full block against the peers filter is the
+        // most expensive thing we do here and only touches state owned by that peer.
+        Iterator<InventoryItem> it = items.iterator();
+        while (it.hasNext()) {
+            InventoryItem item = it.next();
+            if (item.type != InventoryItem.Type.Block && item.type != InventoryItem.Type.FilteredBlock)
+                continue;
+            it.remove();
+            Block block = recentBlocks.get(item.hash);
+            if (block == null)
+                continue;
+            if (item.type == InventoryItem.Type.Block) {
+                results.add(block);
+                continue;
+            }
+            // As in the reference client, filtered blocks are only served to peers which loaded a filter. The
+            // matched transactions follow the merkleblock so the peer can fill it out.
+            BloomFilter filter = peer.getPeerBloomFilter();
+            if (filter == null)
+                continue;
+            FilteredBlock filteredBlock = filter.applyAndUpdate(block);
+            results.add(filteredBlock);
+            results.addAll(filteredBlock.getAssociatedTransactions());
+        }
         lock.lock();
         try {
-            LinkedList<Message> transactions = new LinkedList<Message>();
-            LinkedList<InventoryItem> items = new LinkedList<InventoryItem>(m.getItems());
-            Iterator<InventoryItem> it = items.iterator();
+            it = items.iterator();
             while (it.hasNext()) {
                 InventoryItem item = it.next();
                 // Check the mempool first.
                 Transaction tx = memoryPool.get(item.hash);
                 if (tx != null) {
-                    transactions.add(tx);
+                    results.add(tx);
                     it.remove();
                 } else {
                     // Check the wallets.
                     for (Wallet w : wallets) {
                         tx = w.getTransaction(item.hash);
                         if (tx == null) continue;
-                        transactions.add(tx);
+                        results.add(tx);
                         it.remove();
                         break;
                     }
                 }
             }
-            return transactions;
+            return results;
         } finally {
             lock.unlock();
         }
@@ -524,9 +616,52 @@ public class PeerGroup extends AbstractIdleService {
         synchronized (inactives) {
             inactives.addAll(addressSet);
         }
+        final AddressManager manager = addressManager;
+        if (manager != null) {
+            long now = Utils.now().getTime() / 1000;
+            for (PeerAddress address : addressSet)
+                manager.addSeen(address.toSocketAddress(), now);
+        }
         log.info("Peer discovery took {}msec", System.currentTimeMillis() - start);
     }
 
+    // Queues up the most promising addresses known to the address manager that we aren't connected or connecting to
+    // yet. Returns false if there were none.
+    private boolean addCandidatesFromAddressManager() {
+        final AddressManager manager = addressManager;
+        if (manager == null)
+            return false;
+        Set<InetSocketAddress> exclude = new HashSet<InetSocketAddress>();
+        for (Peer peer : getConnectedPeers())
+            if (peer.getAddress() != null) exclude.add(peer.getAddress().toSocketAddress());
+        for (Peer peer : getPendingPeers())
+            if (peer.getAddress() != null) exclude.add(peer.getAddress().toSocketAddress());
+        List<InetSocketAddress> candidates = manager.getCandidates(Math.max(getMaxConnections(), 1), exclude);
+        // Addresses are taken from the end of inactives, so the best goes last.
+        for (int i = candidates.size() - 1; i >= 0; i--)
+            inactives.add(new PeerAddress(candidates.get(i)));
+        return !candidates.isEmpty();
+    }
+
+    /**
+     * <p>Sets the {@link AddressManager} used to remember peers between runs. When we need a new connection, the
+     * addresses it knows to be good are tried before the peer discovery sources, so an app that saved it last time
+     * can connect right away on startup. Addresses from peer discovery and from addr messages are added to it, and
+     * newly connected peers are asked for more addresses while it knows fewer than a thousand.</p>
+     *
+     * <p>The address manager is saved when the PeerGroup shuts down. The default is none.</p>
+     */
+    public void setAddressManager(AddressManager addressManager) {
+        this.addressManager = addressManager;
+    }
+
+    /**
+     * Returns the {@link AddressManager} set by {@link PeerGroup#setAddressManager(AddressManager)}, or null.
+     */
+    public AddressManager getAddressManager() {
+        return addressManager;
+    }
+
     /**
      * Picks a peer from discovery and connects to it. If connection fails, picks another and tries again.
      */
@@ -536,7 +671,7 @@ public class PeerGroup extends AbstractIdleService {
 
         final PeerAddress addr;
         synchronized (inactives) {
-            if (inactives.size() == 0) {
+            if (inactives.size() == 0 && !addCandidatesFromAddressManager()) {
                 discoverPeers();
             }
             if (inactives.size() == 0) {
@@ -545,6 +680,9 @@ public class PeerGroup extends AbstractIdleService {
             }
             addr = inactives.remove(inactives.size() - 1);
         }
+        final AddressManager manager = addressManager;
+        if (manager != null)
+            manager.markAttempt(addr.toSocketAddress());
         // Don't do connectTo whilst holding the PeerGroup lock because this can trigger some amazingly deep stacks
         // and potentially circular deadlock in the case of immediate failure (eg, attempt to access IPv6 node from
         // a non-v6 capable machine). It doesn't relay control immediately to the netty boss thread as you may expect.
@@ -559,6 +697,16 @@ public class PeerGroup extends AbstractIdleService {
     protected void startUp() throws Exception {
         // This is run in a background thread by the AbstractIdleService implementation.
         pingTimer = new Timer("Peer pinging thread", true);
+        pingTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    maybeSwitchDownloadPeer();
+                } catch (Exception e) {
+                    log.warn("Exception whilst checking download peer: {}", e.toString());
+                }
+            }
+        }, DOWNLOAD_PEER_CHECK_INTERVAL_MSEC, DOWNLOAD_PEER_CHECK_INTERVAL_MSEC);
         // Bring up the requested number of connections. If a connect attempt fails,
         // new peers will be tried until there is a success, so just calling connectToAnyPeer for the wanted number
         // of peers is sufficient.
@@ -584,6 +732,14 @@ public class PeerGroup extends AbstractIdleService {
             peerDiscovery.shutdown();
         }
         pingTimer.cancel();
+        final AddressManager manager = addressManager;
+        if (manager != null) {
+            try {
+                manager.save();
+            } catch (IOException e) {
+                log.warn("Failed to save peer addresses: {}", e.toString());
+            }
+        }
     }
 
     /**
@@ -635,6 +791,7 @@ public class PeerGroup extends AbstractIdleService {
         // Fully verifying mode doesn't use this optimization (it can't as it needs to see all transactions).
         if (chain != null && chain.shouldVerifyTransactions())
             return;
+        bloomFilterRebuildPending = false;
         long earliestKeyTime = Long.MAX_VALUE;
         int elements = 0;
         for (Wallet w : wallets) {
@@ -652,6 +809,11 @@ public class PeerGroup extends AbstractIdleService {
             for (Wallet w : wallets)
                 filter.merge(w.getBloomFilter(lastBloomFilterElementCount, bloomFilterFPRate, bloomFilterTweak));
             bloomFilter = filter;
+            bloomFilterElements = elements;
+            bloomFilterRebuilds++;
+            lastBloomFilterRebuildTime = Utils.now().getTime();
+            log.info("Rebuilt Bloom filter with {} elements, {} rebuilds and {} incremental updates so far",
+                    new Object[]{elements, bloomFilterRebuilds, bloomFilterIncrementalUpdates});
             for (Peer peer : peers)
                 try {
                     peer.setBloomFilter(filter);
@@ -663,6 +825,106 @@ public class PeerGroup extends AbstractIdleService {
         setFastCatchupTimeSecs(earliestKeyTime);
     }
 
+    // Inserts a newly added key into the current filter and tells peers about it with filteradd messages, which spares
+    // us a walk over every key and transaction of every wallet and a filterload to every peer. The filter is rebuilt
+    // once it has become too full to give the requested false positive rate, but no more often than
+    // MIN_BLOOM_FILTER_REBUILD_INTERVAL_MSEC.
+    private void addKeyToFilter(ECKey key) {
+        checkState(lock.isLocked());
+        if (bloomFilter == null) {
+            recalculateFastCatchupAndFilter();
+            return;
+        }
+        List<byte[]> elements = Wallet.getBloomFilterElements(Collections.singletonList(key));
+        bloomFilter.insertAll(elements);
+        bloomFilterElements += elements.size();
+        if (bloomFilter.getFalsePositiveRate(bloomFilterElements) > bloomFilterFPRate * BLOOM_FILTER_REBUILD_FP_FACTOR) {
+            long sinceLastRebuild = Utils.now().getTime() - lastBloomFilterRebuildTime;
+            if (sinceLastRebuild >= MIN_BLOOM_FILTER_REBUILD_INTERVAL_MSEC) {
+                recalculateFastCatchupAndFilter();
+                return;
+            }
+            scheduleBloomFilterRebuild(MIN_BLOOM_FILTER_REBUILD_INTERVAL_MSEC - sinceLastRebuild);
+        }
+        bloomFilterIncrementalUpdates++;
+        for (Peer peer : peers)
+            try {
+                peer.addToBloomFilter(elements);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        if (key.getCreationTimeSeconds() < fastCatchupTimeSecs)
+            setFastCatchupTimeSecs(key.getCreationTimeSeconds());
+    }
+
+    private void scheduleBloomFilterRebuild(long delayMsec) {
+        checkState(lock.isLocked());
+        if (bloomFilterRebuildPending)
+            return;
+        final Timer timer = pingTimer;
+        if (timer == null || !isRunning()) {
+            // Not connected to anybody, so rebuilding now doesn't cost any bandwidth.
+            recalculateFastCatchupAndFilter();
+            return;
+        }
+        bloomFilterRebuildPending = true;
+        log.info("Bloom filter is over its false positive rate, rebuilding in {}msec", delayMsec);
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                lock.lock();
+                try {
+                    // Something else may have rebuilt the filter in the meantime.
+                    if (bloomFilterRebuildPending)
+                        recalculateFastCatchupAndFilter();
+                } catch (Exception e) {
+                    log.warn("Exception whilst rebuilding Bloom filter: {}", e.toString());
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }, delayMsec);
+    }
+
+    /**
+     * Returns how many times the Bloom filter given to peers was rebuilt from the contents of all wallets.
+     */
+    public int getBloomFilterRebuildCount() {
+        lock.lock();
+        try {
+            return bloomFilterRebuilds;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns how many new keys were added to the Bloom filter in place and sent to peers as filteradd messages,
+     * rather than by rebuilding the filter.
+     */
+    public int getBloomFilterIncrementalUpdateCount() {
+        lock.lock();
+        try {
+            return bloomFilterIncrementalUpdates;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the estimated false positive rate of the Bloom filter currently given to peers, which grows above the
+     * rate set with {@link PeerGroup#setBloomFilterFalsePositiveRate(double)} as keys are added to it in place. Returns
+     * zero if there is no filter.
+     */
+    public double getBloomFilterFalsePositiveRateEstimate() {
+        lock.lock();
+        try {
+            return bloomFilter == null ? 0 : bloomFilter.getFalsePositiveRate(bloomFilterElements);
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Sets the false positive rate of bloom filters given to peers.
      * Be careful regenerating the bloom filter too often, as it decreases anonymity because remote nodes can
@@ -813,6 +1075,10 @@ public class PeerGroup extends AbstractIdleService {
             }
             // Make sure the peer knows how to upload transactions that are requested from us.
             peer.addEventListener(getDataListener);
+            // Ask for the addresses of more peers if we don't know many yet.
+            final AddressManager manager = addressManager;
+            if (manager != null && manager.size() < ADDRESS_MANAGER_GETADDR_THRESHOLD)
+                peer.sendMessage(new GetAddrMessage(params));
             // Now tell the peers about any transactions we have which didn't appear in the chain yet. These are not
             // necessarily spends we created. They may also be transactions broadcast across the network that we saw,
             // which are relevant to us, and which we therefore wish to help propagate (ie they send us coins).
@@ -923,6 +1189,7 @@ public class PeerGroup extends AbstractIdleService {
                 downloadPeer.setDownloadData(false);
             }
             downloadPeer = peer;
+            downloadPeerSetTime = Utils.now().getTime();
             if (downloadPeer != null) {
                 log.info("Setting download peer: {}", downloadPeer);
                 downloadPeer.setDownloadData(true);
@@ -1308,9 +1575,9 @@ public class PeerGroup extends AbstractIdleService {
         return freqHeights[s - 1];
     }
 
-    private static class PeerAndPing {
+    private static class PeerAndScore {
         Peer peer;
-        long pingTime;
+        double score;
     }
 
     /**
@@ -1320,7 +1587,7 @@ public class PeerGroup extends AbstractIdleService {
         // Characteristics to select for in order of importance:
         //  - Chain height is reasonable (majority of nodes)
         //  - High enough protocol version for the features we want (but we'll settle for less)
-        //  - Ping time.
+        //  - Download score, which is the ping time for peers we aren't downloading from.
         List<Peer> peers;
         synchronized (origPeers) {
             peers = new ArrayList<Peer>(origPeers);
@@ -1343,30 +1610,98 @@ public class PeerGroup extends AbstractIdleService {
             highestVersion = Math.max(peer.getPeerVersionMessage().clientVersion, highestVersion);
             preferredVersion = Math.min(highestVersion, PREFERRED_VERSION);
         }
-        List<PeerAndPing> candidates2 = new ArrayList<PeerAndPing>();
+        List<PeerAndScore> candidates2 = new ArrayList<PeerAndScore>();
         for (Peer peer : candidates) {
             if (peer.getPeerVersionMessage().clientVersion >= preferredVersion) {
-                PeerAndPing pap = new PeerAndPing();
-                pap.peer = peer;
-                pap.pingTime = peer.getPingTime();
-                candidates2.add(pap);
+                PeerAndScore pas = new PeerAndScore();
+                pas.peer = peer;
+                pas.score = peer.getDownloadScore();
+                candidates2.add(pas);
             }
         }
-        // Sort by ping time.
-        Collections.sort(candidates2, new Comparator<PeerAndPing>() {
-            public int compare(PeerAndPing peerAndPing, PeerAndPing peerAndPing2) {
-                if (peerAndPing.pingTime < peerAndPing2.pingTime)
-                    return -1;
-                else if (peerAndPing.pingTime == peerAndPing2.pingTime)
-                    return 0;
-                else
-                    return 1;
-
+        if (candidates2.isEmpty())
+            return null;
+        // Sort by score, best first.
+        Collections.sort(candidates2, new Comparator<PeerAndScore>() {
+            public int compare(PeerAndScore peerAndScore, PeerAndScore peerAndScore2) {
+                return Double.compare(peerAndScore2.score, peerAndScore.score);
             }
         });
         return candidates2.get(0).peer;
     }
 
+    /**
+     * Moves the chain download to another peer if the current download peer has sent nothing useful for
+     * {@link PeerGroup#DOWNLOAD_STALL_TIMEOUT_MSEC}, or has been sending both fewer bytes and fewer blocks per second
+     * than {@link PeerGroup#setMinDownloadBytesPerSecond(double)} and
+     * {@link PeerGroup#setMinDownloadBlocksPerSecond(double)} allow since it was selected at least that long ago. Nothing
+     * downloaded so far is lost, as the new peer is asked for blocks starting from our chain head. Called periodically
+     * once the PeerGroup is running.
+     */
+    protected void maybeSwitchDownloadPeer() {
+        lock.lock();
+        try {
+            final Peer peer = downloadPeer;
+            if (peer == null || chain == null || downloadListener == null)
+                return;
+            if (peer.getPeerBlockHeightDifference() <= 0)
+                return;  // Caught up, so there's nothing to download.
+            long sinceSelected = Utils.now().getTime() - downloadPeerSetTime;
+            long sinceUseful = Math.min(peer.getMillisSinceLastUsefulMessage(), sinceSelected);
+            boolean stalled = sinceUseful > DOWNLOAD_STALL_TIMEOUT_MSEC;
+            // Filtered blocks are often only a few hundred bytes, so a peer sending many of them is doing fine even if
+            // the byte rate is low, and a peer sending a few big blocks is doing fine at a low block rate.
+            boolean slow = sinceSelected > DOWNLOAD_STALL_TIMEOUT_MSEC &&
+                    peer.getBytesPerSecond() < minDownloadBytesPerSec &&
+                    peer.getBlocksPerSecond() < minDownloadBlocksPerSec;
+            if (!stalled && !slow)
+                return;
+            List<Peer> others = getConnectedPeers();
+            others.remove(peer);
+            Peer newDownloadPeer = selectDownloadPeer(others);
+            if (newDownloadPeer == null) {
+                log.info("Download peer {} is {}, but there is no other peer to switch to", peer, stalled ? "stalled" : "slow");
+                return;
+            }
+            log.info("Download peer {} is {} ({} bytes/sec, {} blocks/sec, nothing useful for {}msec), switching to {}",
+                    new Object[]{peer, stalled ? "stalled" : "slow", (long) peer.getBytesPerSecond(),
+                            String.format("%.2f", peer.getBlocksPerSecond()), sinceUseful, newDownloadPeer});
+            peer.removeEventListener(downloadListener);
+            startBlockChainDownloadFromPeer(newDownloadPeer);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the throughput below which the download peer is replaced by another one, once it had
+     * {@link PeerGroup#DOWNLOAD_STALL_TIMEOUT_MSEC} to get going, if it is also below the rate set with
+     * {@link PeerGroup#setMinDownloadBlocksPerSecond(double)}. Defaults to
+     * {@link PeerGroup#DEFAULT_MIN_DOWNLOAD_BYTES_PER_SEC}. Zero means only peers that stall completely are replaced.
+     */
+    public void setMinDownloadBytesPerSecond(double bytesPerSec) {
+        lock.lock();
+        try {
+            this.minDownloadBytesPerSec = bytesPerSec;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the rate of blocks or filtered blocks per second below which the download peer is replaced by another one,
+     * if it is also below the throughput set with {@link PeerGroup#setMinDownloadBytesPerSecond(double)}. Defaults to
+     * {@link PeerGroup#DEFAULT_MIN_DOWNLOAD_BLOCKS_PER_SEC}. Zero means only peers that stall completely are replaced.
+     */
+    public void setMinDownloadBlocksPerSecond(double blocksPerSec) {
+        lock.lock();
+        try {
+            this.minDownloadBlocksPerSec = blocksPerSec;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     private static class PeerGroupThreadFactory implements ThreadFactory {
         static final AtomicInteger poolNumber = new AtomicInteger(1);
         final ThreadGroup group;
@@ -0,0 +1,195 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.goldcoin.core;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * <p>What makes a transaction relevant to a {@link Wallet} at one point in time: the public keys and public key hashes
+ * of its keys, the hashes of the transactions whose outputs it could be spending from, and the outputs its pending
+ * transactions spend. Taken with {@link Wallet#getRelevanceSnapshot()}.</p>
+ *
+ * <p>{@link #mightBeRelevant(Transaction)} returns true for every transaction that
+ * {@link Wallet#isTransactionRelevant(Transaction)} would have at that point, and for a few more, like transactions
+ * spending outputs of wallet transactions that don't belong to the wallet. So the block chain can use it to rule out
+ * almost all transactions of a block without locking the wallet, and only check the rest with the wallet. As it is
+ * never modified it can be used from many threads at once.</p>
+ */
+class RelevanceSnapshot {
+    private final Part<ByteBuffer> pubKeyHashes;
+    private final Part<ByteBuffer> pubKeys;
+    private final Part<Sha256Hash> transactionHashes;
+    private final Part<TransactionOutPoint> pendingSpends;
+
+    private RelevanceSnapshot(Part<ByteBuffer> pubKeyHashes, Part<ByteBuffer> pubKeys,
+                              Part<Sha256Hash> transactionHashes, Part<TransactionOutPoint> pendingSpends) {
+        this.pubKeyHashes = pubKeyHashes;
+        this.pubKeys = pubKeys;
+        this.transactionHashes = transactionHashes;
+        this.pendingSpends = pendingSpends;
+    }
+
+    /**
+     * Returns false if the transaction is certainly not relevant to the wallet, and true if it may be. Transactions
+     * given to the same snapshot from several threads must be different objects, as they may be parsed here.
+     */
+    boolean mightBeRelevant(Transaction tx) {
+        // Does it send coins to one of our keys? Looked at the same way as TransactionOutput.isMine().
+        for (TransactionOutput output : tx.getOutputs()) {
+            try {
+                Script script = output.getScriptPubKey();
+                if (script.isSentToRawPubKey()) {
+                    if (pubKeys.contains(ByteBuffer.wrap(script.getPubKey())))
+                        return true;
+                } else if (pubKeyHashes.contains(ByteBuffer.wrap(script.getPubKeyHash()))) {
+                    return true;
+                }
+            } catch (ScriptException e) {
+                // Not a kind of output the wallet understands, so not one of ours.
+            }
+        }
+        // Does it spend from one of our transactions, or double spend one of our pending transactions?
+        for (TransactionInput input : tx.getInputs()) {
+            if (input.isCoinBase())
+                continue;
+            TransactionOutPoint outpoint = input.getOutpoint();
+            if (transactionHashes.contains(outpoint.getHash()) || pendingSpends.contains(outpoint))
+                return true;
+        }
+        return false;
+    }
+
+    // One of the sets of a snapshot: a large one shared with other snapshots, and the few additions since it was made.
+    private static class Part<T> {
+        final Set<T> base, recent;
+
+        Part(Set<T> base, Set<T> recent) {
+            this.base = base;
+            this.recent = recent;
+        }
+
+        boolean contains(T item) {
+            return base.contains(item) || recent.contains(item);
+        }
+    }
+
+    /**
+     * <p>Kept up to date by the wallet as it gains keys, transactions and pending spends, so that taking a snapshot
+     * only copies what was added since the last one rather than the whole wallet. The bulk of each set is shared with
+     * earlier snapshots and never modified, the additions are folded into a new copy of it once they make up a good
+     * part of it.</p>
+     *
+     * <p>Keys, transactions and pending spends that leave the wallet are only counted. A snapshot that still has them
+     * says a transaction may be relevant when it isn't, which is allowed, and once there are many of them
+     * {@link Index#needsRebuild()} tells the wallet to start again with {@link Index#rebuild}. Not thread safe, the
+     * wallet only uses it with its lock held.</p>
+     */
+    static class Index {
+        private final IndexPart<ByteBuffer> pubKeyHashes = new IndexPart<ByteBuffer>();
+        private final IndexPart<ByteBuffer> pubKeys = new IndexPart<ByteBuffer>();
+        private final IndexPart<Sha256Hash> transactionHashes = new IndexPart<Sha256Hash>();
+        private final IndexPart<TransactionOutPoint> pendingSpends = new IndexPart<TransactionOutPoint>();
+        // The snapshot taken since the last addition, if any.
+        private RelevanceSnapshot snapshot;
+
+        void addKey(ECKey key) {
+            if (pubKeyHashes.add(ByteBuffer.wrap(key.getPubKeyHash())) | pubKeys.add(ByteBuffer.wrap(key.getPubKey())))
+                snapshot = null;
+        }
+
+        void addTransaction(Sha256Hash hash) {
+            if (transactionHashes.add(hash))
+                snapshot = null;
+        }
+
+        void addPendingSpend(TransactionOutPoint outpoint) {
+            if (pendingSpends.add(outpoint))
+                snapshot = null;
+        }
+
+        /** Drops all the keys, for when they are to be added again after the keychain changed. */
+        void clearKeys() {
+            pubKeyHashes.reset(Collections.<ByteBuffer>emptySet());
+            pubKeys.reset(Collections.<ByteBuffer>emptySet());
+            snapshot = null;
+        }
+
+        void transactionRemoved() {
+            transactionHashes.removed++;
+        }
+
+        void pendingSpendRemoved() {
+            pendingSpends.removed++;
+        }
+
+        /** Whether so much has left the wallet that the sets should be built again from what is in it. */
+        boolean needsRebuild() {
+            return transactionHashes.needsRebuild() || pendingSpends.needsRebuild();
+        }
+
+        void rebuild(Collection<Sha256Hash> transactionHashes, Collection<TransactionOutPoint> pendingSpends) {
+            this.transactionHashes.reset(transactionHashes);
+            this.pendingSpends.reset(pendingSpends);
+            snapshot = null;
+        }
+
+        RelevanceSnapshot snapshot() {
+            if (snapshot == null)
+                snapshot = new RelevanceSnapshot(pubKeyHashes.take(), pubKeys.take(), transactionHashes.take(),
+                        pendingSpends.take());
+            return snapshot;
+        }
+    }
+
+    private static class IndexPart<T> {
+        // Shared with snapshots, so replaced rather than modified.
+        private Set<T> base = Collections.emptySet();
+        private HashSet<T> recent = new HashSet<T>();
+        // How many of the items in base or recent have since left the wallet.
+        int removed;
+
+        boolean add(T item) {
+            return !base.contains(item) && recent.add(item);
+        }
+
+        void reset(Collection<T> items) {
+            base = new HashSet<T>(items);
+            recent = new HashSet<T>();
+            removed = 0;
+        }
+
+        boolean needsRebuild() {
+            return removed > 64 && removed > (base.size() + recent.size()) / 2;
+        }
+
+        Part<T> take() {
+            // Copying the additions costs as much as a few more of them, so once they are a good part of the whole
+            // they are folded in.
+            if (recent.size() > 64 && recent.size() > base.size() / 8) {
+                HashSet<T> merged = new HashSet<T>(base);
+                merged.addAll(recent);
+                base = merged;
+                recent = new HashSet<T>();
+            }
+            return new Part<T>(base, recent.isEmpty() ? Collections.<T>emptySet() : new HashSet<T>(recent));
+        }
+    }
+}
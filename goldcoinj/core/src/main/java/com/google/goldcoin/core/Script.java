@@ -223,6 +223,17 @@ public class Script {
         parse(programBytes, offset, length);
     }
 
+    /** Returns how many opcodes and data pushes the program consists of. */
+    int getChunkCount() {
+        return chunks.size();
+    }
+
+    /** Returns the data pushed by the given chunk of the program, or null if that chunk is an opcode. */
+    byte[] getPushedData(int chunk) {
+        ScriptChunk c = chunks.get(chunk);
+        return c.isOpCode ? null : c.data;
+    }
+
     /**
      * Returns the program opcodes as a string, for example "[1234] DUP HAHS160"
      */
@@ -572,6 +583,31 @@ public class Script {
                 chunks.get(4).equalsOpCode(OP_CHECKSIG);
     }
 
+    /**
+     * Returns true if this script is of the form OP_m <pubkey> ... <pubkey> OP_n CHECKMULTISIG, ie, a bare
+     * multi-signature output. Such outputs are treated like pay-to-pubkey outputs by Bloom filters that are set to
+     * update on {@link BloomFilter.BloomUpdate#UPDATE_P2PUBKEY_ONLY}.
+     */
+    public boolean isSentToMultiSig() {
+        if (chunks.size() < 4) return false;
+        ScriptChunk first = chunks.get(0);
+        ScriptChunk keyCount = chunks.get(chunks.size() - 2);
+        if (!isSmallNumberOpCode(first) || !isSmallNumberOpCode(keyCount))
+            return false;
+        for (int i = 1; i < chunks.size() - 2; i++) {
+            if (chunks.get(i).isOpCode)
+                return false;
+        }
+        return chunks.get(chunks.size() - 1).equalsOpCode(OP_CHECKMULTISIG);
+    }
+
+    private static boolean isSmallNumberOpCode(ScriptChunk chunk) {
+        if (!chunk.isOpCode || chunk.data.length != 1)
+            return false;
+        int opcode = 0xFF & chunk.data[0];
+        return opcode >= OP_1 && opcode <= OP_16;
+    }
+
     /**
      * If a program matches the standard template DUP HASH160 <pubkey hash> EQUALVERIFY CHECKSIG
      * then this function retrieves the third element, otherwise it throws a ScriptException.<p>
@@ -22,7 +22,9 @@ import com.google.goldcoin.store.BlockStoreException;
 import java.io.*;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
 
 /**
@@ -32,40 +34,135 @@ import static com.google.common.base.Preconditions.checkState;
  * block in the chain back to the genesis block, which involves lots of seeking/loading etc. So we just keep a
  * running total: it's a disk space vs cpu/io tradeoff.<p>
  * <p/>
- * StoredBlocks are put inside a {@link BlockStore} which saves them to memory or disk.
+ * StoredBlocks are put inside a {@link BlockStore} which saves them to memory or disk.<p>
+ * <p/>
+ * StoredBlocks read back with {@link StoredBlock#deserializeCompact(NetworkParameters, ByteBuffer)} keep the packed
+ * bytes and only build the header {@link Block} and the chain work when they are asked for. Walks over the chain that
+ * just need the time, difficulty target or previous block hash can use the accessors of the same name on this class,
+ * which read them straight out of the packed bytes.<p>
+ * <p/>
+ * Blocks built with {@link StoredBlock#build(Block, BlockStore)} also remember the hash of one far away ancestor, the
+ * skip pointer, so {@link StoredBlock#getAncestor(BlockStore, int)} can find the block at any lower height in a
+ * logarithmic number of store lookups instead of stepping back one block at a time.
  */
 public class StoredBlock implements Serializable {
     private static final long serialVersionUID = -6097565241243701771L;
 
-    // A BigInteger representing the total amount of work done so far on this chain. As of May 2011 it takes 8
+    // The total amount of work done so far on this chain. As of May 2011 it takes 8
     // bytes to represent this field, so 12 bytes should be plenty for now.
     public static final int CHAIN_WORK_BYTES = 12;
     public static final byte[] EMPTY_BYTES = new byte[CHAIN_WORK_BYTES];
     public static final int COMPACT_SERIALIZED_SIZE = Block.HEADER_SIZE + CHAIN_WORK_BYTES + 4;  // for height
+    // Where the header starts in the packed form.
+    private static final int HEADER_OFFSET = CHAIN_WORK_BYTES + 4;
+    // How many blocks build(Block, BlockStore) is prepared to step back one at a time while looking for the skip
+    // ancestor. This keeps blocks on top of a chain that was stored without skip pointers cheap to add: they are
+    // simply left without one.
+    private static final int MAX_SKIP_SEARCH_STEPS = 100;
 
-    private Block header;
-    private BigInteger chainWork;
+    // The chain work is serialized as a BigInteger, as it was before it was kept as a UInt256, so that blocks
+    // serialized by older versions can still be read back. See writeObject and readObject.
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("header", Block.class),
+            new ObjectStreamField("chainWork", BigInteger.class),
+            new ObjectStreamField("height", int.class),
+            new ObjectStreamField("skipHash", Sha256Hash.class)
+    };
+
+    // Built lazily from compact if this block was deserialized, see getHeader() and getChainWork().
+    private volatile Block header;
+    private volatile UInt256 chainWork;
     private int height;
+    // The packed form read by deserializeCompact, or null if this block was constructed from objects.
+    private transient byte[] compact;
+    private transient NetworkParameters params;
+    // Hash of the ancestor at getSkipHeight(height), or null if it isn't known.
+    private volatile Sha256Hash skipHash;
 
     public StoredBlock(Block header, BigInteger chainWork, int height) {
+        this(header, chainWork == null ? null : UInt256.fromBigInteger(chainWork), height);
+    }
+
+    private StoredBlock(Block header, UInt256 chainWork, int height) {
         this.header = header;
         this.chainWork = chainWork;
         this.height = height;
     }
 
+    private StoredBlock(NetworkParameters params, byte[] compact) {
+        this.params = params;
+        this.compact = compact;
+        this.height = (int) Utils.readUint32BE(compact, CHAIN_WORK_BYTES);
+    }
+
     /**
      * The block header this object wraps. The referenced block object must not have any transactions in it.
      */
     public Block getHeader() {
+        Block header = this.header;
+        if (header == null) {
+            byte[] bytes = new byte[Block.HEADER_SIZE + 1];    // Extra byte for the 00 transactions length.
+            System.arraycopy(compact, HEADER_OFFSET, bytes, 0, Block.HEADER_SIZE);
+            try {
+                header = new Block(params, bytes);
+            } catch (ProtocolException e) {
+                throw new RuntimeException(e);  // Cannot happen, headers are fixed size.
+            }
+            this.header = header;
+        }
         return header;
     }
 
+    /**
+     * The time of the block header, equivalent to <tt>getHeader().getTimeSeconds()</tt>.
+     */
+    public long getTimeSeconds() {
+        if (header != null || compact == null)
+            return header.getTimeSeconds();
+        return Utils.readUint32(compact, HEADER_OFFSET + 68);
+    }
+
+    /**
+     * The difficulty target of the block header in compact form, equivalent to
+     * <tt>getHeader().getDifficultyTarget()</tt>.
+     */
+    public long getDifficultyTarget() {
+        if (header != null || compact == null)
+            return header.getDifficultyTarget();
+        return Utils.readUint32(compact, HEADER_OFFSET + 72);
+    }
+
+    /**
+     * The hash of the previous block, equivalent to <tt>getHeader().getPrevBlockHash()</tt>.
+     */
+    public Sha256Hash getPrevBlockHash() {
+        if (header != null || compact == null)
+            return header.getPrevBlockHash();
+        // Hashes are stored byte reversed in the header.
+        byte[] hash = new byte[32];
+        for (int i = 0; i < 32; i++)
+            hash[i] = compact[HEADER_OFFSET + 4 + 31 - i];
+        return new Sha256Hash(hash);
+    }
+
     /**
      * The total sum of work done in this block, and all the blocks below it in the chain. Work is a measure of how
      * many tries are needed to solve a block. If the target is set to cover 10% of the total hash value space,
      * then the work represented by a block is 10.
      */
     public BigInteger getChainWork() {
+        return getChainWorkAsUInt256().toBigInteger();
+    }
+
+    /**
+     * The chain work as returned by {@link StoredBlock#getChainWork()}, as a {@link UInt256}.
+     */
+    public UInt256 getChainWorkAsUInt256() {
+        UInt256 chainWork = this.chainWork;
+        if (chainWork == null) {
+            chainWork = UInt256.fromBytes(compact, 0, CHAIN_WORK_BYTES);
+            this.chainWork = chainWork;
+        }
         return chainWork;
     }
 
@@ -80,20 +177,20 @@ public class StoredBlock implements Serializable {
      * Returns true if this objects chainWork is higher than the others.
      */
     public boolean moreWorkThan(StoredBlock other) {
-        return chainWork.compareTo(other.chainWork) > 0;
+        return getChainWorkAsUInt256().compareTo(other.getChainWorkAsUInt256()) > 0;
     }
 
     @Override
     public boolean equals(Object other) {
         if (!(other instanceof StoredBlock)) return false;
         StoredBlock o = (StoredBlock) other;
-        return o.header.equals(header) && o.chainWork.equals(chainWork) && o.height == height;
+        return o.getHeader().equals(getHeader()) && o.getChainWorkAsUInt256().equals(getChainWorkAsUInt256()) && o.height == height;
     }
 
     @Override
     public int hashCode() {
         // A better hashCode is possible, but this works for now.
-        return header.hashCode() ^ chainWork.hashCode() ^ height;
+        return getHeader().hashCode() ^ getChainWorkAsUInt256().hashCode() ^ height;
     }
 
 
@@ -103,11 +200,101 @@ public class StoredBlock implements Serializable {
     public StoredBlock build(Block block) throws VerificationException {
         // Stored blocks track total work done in this chain, because the canonical chain is the one that represents
         // the largest amount of work done not the tallest.
-        BigInteger chainWork = this.chainWork.add(block.getWork());
+        UInt256 chainWork = getChainWorkAsUInt256().add(block.getWorkAsUInt256());
         int height = this.height + 1;
         return new StoredBlock(block, chainWork, height);
     }
 
+    /**
+     * Creates a new StoredBlock like {@link StoredBlock#build(Block)} does, and also sets its skip pointer by looking up
+     * the right ancestor in the given store, which must contain this block's ancestors.
+     */
+    public StoredBlock build(Block block, BlockStore store) throws VerificationException, BlockStoreException {
+        StoredBlock result = build(block);
+        StoredBlock skip = findAncestor(store, getSkipHeight(result.height), MAX_SKIP_SEARCH_STEPS);
+        if (skip != null)
+            result.skipHash = skip.getHeader().getHash();
+        return result;
+    }
+
+    /**
+     * Returns the hash of the ancestor at {@link StoredBlock#getSkipHeight(int)} this block jumps back to, or null if it
+     * doesn't have a skip pointer.
+     */
+    public Sha256Hash getSkipHash() {
+        return skipHash;
+    }
+
+    /**
+     * Sets the skip pointer. Used by block stores that persist it alongside the packed form.
+     */
+    public void setSkipHash(Sha256Hash skipHash) {
+        this.skipHash = skipHash;
+    }
+
+    /**
+     * Returns the height of the ancestor that a block at the given height keeps a skip pointer to. The heights are
+     * chosen, as in the reference client, so that any ancestor can be reached from any block in a logarithmic number
+     * of jumps.
+     */
+    public static int getSkipHeight(int height) {
+        if (height < 2)
+            return 0;
+        // Clearing the lowest set bits spreads the jump lengths over all the powers of two.
+        if ((height & 1) == 0)
+            return invertLowestOne(height);
+        return invertLowestOne(invertLowestOne(height - 1)) + 1;
+    }
+
+    private static int invertLowestOne(int n) {
+        return n & (n - 1);
+    }
+
+    /**
+     * Returns the ancestor of this block at the given height, or this block itself if that is its own height. Skip
+     * pointers are followed where the blocks have them, so this takes a logarithmic number of store lookups on a chain
+     * built with {@link StoredBlock#build(Block, BlockStore)}.
+     *
+     * @return the ancestor or null if it, or a block between it and this one, is not in the store.
+     */
+    public StoredBlock getAncestor(BlockStore store, int height) throws BlockStoreException {
+        checkArgument(height >= 0 && height <= this.height, "Height %s is not an ancestor of %s", height, this.height);
+        return findAncestor(store, height, Integer.MAX_VALUE);
+    }
+
+    // Walks back to the given height, giving up and returning null after maxSteps steps to the previous block.
+    private StoredBlock findAncestor(BlockStore store, int height, int maxSteps) throws BlockStoreException {
+        StoredBlock cursor = this;
+        int steps = 0;
+        while (cursor.height > height) {
+            StoredBlock next = null;
+            Sha256Hash skip = cursor.skipHash;
+            if (skip != null && shouldSkip(cursor.height, height)) {
+                next = store.get(skip);
+                // A store that crashed while writing a block may pair it with the skip pointer of an older one.
+                if (next != null && next.height != getSkipHeight(cursor.height))
+                    next = null;
+            }
+            if (next == null) {
+                if (++steps > maxSteps)
+                    return null;
+                next = cursor.getPrev(store);
+                if (next == null)
+                    return null;
+            }
+            cursor = next;
+        }
+        return cursor;
+    }
+
+    // Follow the skip pointer unless it would overshoot, or the previous block's one gets us closer to the target.
+    private static boolean shouldSkip(int fromHeight, int targetHeight) {
+        int skipHeight = getSkipHeight(fromHeight);
+        int prevSkipHeight = getSkipHeight(fromHeight - 1);
+        return skipHeight == targetHeight ||
+                (skipHeight > targetHeight && !(prevSkipHeight < skipHeight - 2 && prevSkipHeight >= targetHeight));
+    }
+
     /**
      * Given a block store, looks up the previous block in this chain. Convenience method for doing
      * <tt>store.get(this.getHeader().getPrevBlockHash())</tt>.
@@ -115,20 +302,21 @@ public class StoredBlock implements Serializable {
      * @return the previous block in the chain or null if it was not found in the store.
      */
     public StoredBlock getPrev(BlockStore store) throws BlockStoreException {
-        return store.get(getHeader().getPrevBlockHash());
+        return store.get(getPrevBlockHash());
     }
 
     /**
      * Serializes the stored block to a custom packed format. Used by {@link CheckpointManager}.
      */
     public void serializeCompact(ByteBuffer buffer) {
-        byte[] chainWorkBytes = getChainWork().toByteArray();
-        checkState(chainWorkBytes.length <= CHAIN_WORK_BYTES, "Ran out of space to store chain work!");
-        if (chainWorkBytes.length < CHAIN_WORK_BYTES) {
-            // Pad to the right size.
-            buffer.put(EMPTY_BYTES, 0, CHAIN_WORK_BYTES - chainWorkBytes.length);
+        if (compact != null) {
+            buffer.put(compact);
+            return;
         }
-        buffer.put(chainWorkBytes);
+        UInt256 chainWork = getChainWorkAsUInt256();
+        // The top bit is left clear, as it was when this was written as a signed BigInteger.
+        checkState(chainWork.bitLength() < CHAIN_WORK_BYTES * 8, "Ran out of space to store chain work!");
+        chainWork.putBytes(buffer, CHAIN_WORK_BYTES);
         buffer.putInt(getHeight());
         // Using unsafeLitecoinSerialize here can give us direct access to the same bytes we read off the wire,
         // avoiding serialization round-trips.
@@ -140,13 +328,29 @@ public class StoredBlock implements Serializable {
      * De-serializes the stored block from a custom packed format. Used by {@link CheckpointManager}.
      */
     public static StoredBlock deserializeCompact(NetworkParameters params, ByteBuffer buffer) throws ProtocolException {
-        byte[] chainWorkBytes = new byte[StoredBlock.CHAIN_WORK_BYTES];
-        buffer.get(chainWorkBytes);
-        BigInteger chainWork = new BigInteger(1, chainWorkBytes);
-        int height = buffer.getInt();  // +4 bytes
-        byte[] header = new byte[Block.HEADER_SIZE + 1];    // Extra byte for the 00 transactions length.
-        buffer.get(header, 0, Block.HEADER_SIZE);
-        return new StoredBlock(new Block(params, header), chainWork, height);
+        // A single copy out of the buffer: the header and chain work are only built if they are needed.
+        byte[] compact = new byte[COMPACT_SERIALIZED_SIZE];
+        buffer.get(compact);
+        return new StoredBlock(params, compact);
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        // The lazily built fields are filled in here, as the packed form isn't serialized.
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("header", getHeader());
+        fields.put("chainWork", getChainWork());
+        fields.put("height", height);
+        fields.put("skipHash", skipHash);
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        header = (Block) fields.get("header", null);
+        BigInteger work = (BigInteger) fields.get("chainWork", null);
+        chainWork = work == null ? null : UInt256.fromBigInteger(work);
+        height = fields.get("height", 0);
+        skipHash = (Sha256Hash) fields.get("skipHash", null);
     }
 
     @Override
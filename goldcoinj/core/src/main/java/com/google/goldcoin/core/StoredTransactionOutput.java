@@ -16,8 +16,12 @@
 
 package com.google.goldcoin.core;
 
+import javax.annotation.Nullable;
 import java.io.*;
 import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * A StoredTransactionOutput message contains the information necessary to check a spending transaction.
@@ -165,6 +169,192 @@ public class StoredTransactionOutput implements Serializable {
                 ((StoredTransactionOutput) o).getHash().equals(this.getHash());
     }
 
+    // Script templates of the compact form. Other scripts are written as their length plus NUM_SCRIPT_TEMPLATES,
+    // followed by the script itself.
+    private static final int SCRIPT_PAY_TO_ADDRESS = 0;
+    private static final int SCRIPT_PAY_TO_SCRIPT_HASH = 1;
+    // 2 and 3 are a compressed public key with that prefix, 4 and 5 an uncompressed one stored compressed.
+    private static final int SCRIPT_PAY_TO_PUBKEY = 2;
+    private static final int NUM_SCRIPT_TEMPLATES = 6;
+
+    /**
+     * <p>Writes this output in the compact form used for undo data by {@link StoredUndoableBlock#serializeCompact()}
+     * and by key-value block stores:</p>
+     *
+     * <pre>
+     *   varint    index * 2, plus 1 if the transaction hash follows
+     *   32 bytes  the transaction hash, unless it is the same as previousHash
+     *   varint    for coinbases the height * 2 + 1, otherwise 0
+     *   varint    the value, compressed as by the reference client
+     *   varint    the script template, followed by its data
+     * </pre>
+     *
+     * @param previousHash the transaction hash of the output written before this one, if any
+     */
+    public void serializeCompact(OutputStream stream, @Nullable Sha256Hash previousHash) throws IOException {
+        boolean writeHash = !hash.equals(previousHash);
+        stream.write(new VarInt(index * 2 + (writeHash ? 1 : 0)).encode());
+        if (writeHash)
+            stream.write(hash.getBytes());
+        stream.write(new VarInt(height == NONCOINBASE_HEIGHT ? 0 : height * 2L + 1).encode());
+        stream.write(new VarInt(compressAmount(value.longValue())).encode());
+        writeCompactScript(stream, scriptBytes);
+    }
+
+    /**
+     * Reads an output written by {@link StoredTransactionOutput#serializeCompact(OutputStream, Sha256Hash)}.
+     */
+    public static StoredTransactionOutput deserializeCompact(ByteBuffer buffer, @Nullable Sha256Hash previousHash)
+            throws ProtocolException {
+        try {
+            long code = readVarInt(buffer);
+            Sha256Hash hash = previousHash;
+            if ((code & 1) != 0) {
+                byte[] hashBytes = new byte[32];
+                buffer.get(hashBytes);
+                hash = new Sha256Hash(hashBytes);
+            } else if (hash == null) {
+                throw new ProtocolException("Compact output without a transaction hash");
+            }
+            long heightCode = readVarInt(buffer);
+            BigInteger value = BigInteger.valueOf(decompressAmount(readVarInt(buffer)));
+            byte[] script = readCompactScript(buffer);
+            return new StoredTransactionOutput(hash, code >>> 1, value, (int) (heightCode >>> 1), heightCode != 0, script);
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException(e);
+        }
+    }
+
+    static long readVarInt(ByteBuffer buffer) {
+        if (!buffer.hasRemaining())
+            throw new BufferUnderflowException();
+        int first = buffer.get(buffer.position()) & 0xFF;
+        int size = first < 253 ? 1 : first == 253 ? 3 : first == 254 ? 5 : 9;
+        if (buffer.remaining() < size)
+            throw new BufferUnderflowException();
+        byte[] bytes = new byte[size];
+        buffer.get(bytes);
+        return new VarInt(bytes, 0).value;
+    }
+
+    // Stores the value's trailing decimal zeros in the low digit, so round amounts take only a byte or two.
+    static long compressAmount(long n) {
+        if (n == 0)
+            return 0;
+        int e = 0;
+        while (n % 10 == 0 && e < 9) {
+            n /= 10;
+            e++;
+        }
+        if (e < 9) {
+            long d = n % 10;
+            n /= 10;
+            return 1 + (n * 9 + d - 1) * 10 + e;
+        } else {
+            return 1 + (n - 1) * 10 + 9;
+        }
+    }
+
+    static long decompressAmount(long x) {
+        if (x == 0)
+            return 0;
+        x--;
+        int e = (int) (x % 10);
+        x /= 10;
+        long n;
+        if (e < 9) {
+            long d = (x % 9) + 1;
+            x /= 9;
+            n = x * 10 + d;
+        } else {
+            n = x + 1;
+        }
+        while (e-- > 0)
+            n *= 10;
+        return n;
+    }
+
+    private static void writeCompactScript(OutputStream stream, byte[] script) throws IOException {
+        if (script.length == 25 && script[0] == (byte) Script.OP_DUP && script[1] == (byte) Script.OP_HASH160 &&
+                script[2] == 20 && script[23] == (byte) Script.OP_EQUALVERIFY &&
+                script[24] == (byte) Script.OP_CHECKSIG) {
+            stream.write(SCRIPT_PAY_TO_ADDRESS);
+            stream.write(script, 3, 20);
+        } else if (script.length == 23 && script[0] == (byte) Script.OP_HASH160 && script[1] == 20 &&
+                script[22] == (byte) Script.OP_EQUAL) {
+            stream.write(SCRIPT_PAY_TO_SCRIPT_HASH);
+            stream.write(script, 2, 20);
+        } else if (script.length == 35 && script[0] == 33 && (script[1] == 2 || script[1] == 3) &&
+                script[34] == (byte) Script.OP_CHECKSIG) {
+            stream.write(script[1]);
+            stream.write(script, 2, 32);
+        } else if (script.length == 67 && script[0] == 65 && script[1] == 4 &&
+                script[66] == (byte) Script.OP_CHECKSIG && isCompressible(script)) {
+            stream.write(SCRIPT_PAY_TO_PUBKEY + 2 + (script[65] & 1));
+            stream.write(script, 2, 32);
+        } else {
+            stream.write(new VarInt(script.length + NUM_SCRIPT_TEMPLATES).encode());
+            stream.write(script);
+        }
+    }
+
+    // Whether the uncompressed public key in a pay to pubkey script comes back the same from its compressed form. It
+    // won't if the key isn't a point on the curve.
+    private static boolean isCompressible(byte[] script) {
+        byte[] compressed = new byte[33];
+        compressed[0] = (byte) (2 + (script[65] & 1));
+        System.arraycopy(script, 2, compressed, 1, 32);
+        try {
+            return Arrays.equals(ECKey.decompressPublicKey(compressed), Arrays.copyOfRange(script, 1, 66));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static byte[] readCompactScript(ByteBuffer buffer) throws ProtocolException {
+        long template = readVarInt(buffer);
+        if (template == SCRIPT_PAY_TO_ADDRESS) {
+            byte[] script = new byte[25];
+            script[0] = (byte) Script.OP_DUP;
+            script[1] = (byte) Script.OP_HASH160;
+            script[2] = 20;
+            buffer.get(script, 3, 20);
+            script[23] = (byte) Script.OP_EQUALVERIFY;
+            script[24] = (byte) Script.OP_CHECKSIG;
+            return script;
+        } else if (template == SCRIPT_PAY_TO_SCRIPT_HASH) {
+            byte[] script = new byte[23];
+            script[0] = (byte) Script.OP_HASH160;
+            script[1] = 20;
+            buffer.get(script, 2, 20);
+            script[22] = (byte) Script.OP_EQUAL;
+            return script;
+        } else if (template < NUM_SCRIPT_TEMPLATES) {
+            byte[] key = new byte[33];
+            key[0] = (byte) (template < SCRIPT_PAY_TO_PUBKEY + 2 ? template : template - 2);
+            buffer.get(key, 1, 32);
+            if (template >= SCRIPT_PAY_TO_PUBKEY + 2) {
+                try {
+                    key = ECKey.decompressPublicKey(key);
+                } catch (IllegalArgumentException e) {
+                    throw new ProtocolException(e);
+                }
+            }
+            byte[] script = new byte[key.length + 2];
+            script[0] = (byte) key.length;
+            System.arraycopy(key, 0, script, 1, key.length);
+            script[script.length - 1] = (byte) Script.OP_CHECKSIG;
+            return script;
+        } else {
+            long length = template - NUM_SCRIPT_TEMPLATES;
+            if (length > buffer.remaining())
+                throw new ProtocolException("Compact script longer than the data left");
+            byte[] script = new byte[(int) length];
+            buffer.get(script);
+            return script;
+        }
+    }
+
     public void serializeToStream(OutputStream bos) throws IOException {
         Utils.uint64ToByteStreamLE(value, bos);
 
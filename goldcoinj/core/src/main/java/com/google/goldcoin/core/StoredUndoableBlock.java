@@ -17,7 +17,12 @@
 
 package com.google.goldcoin.core;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
 import java.util.List;
 
 /**
@@ -26,6 +31,10 @@ import java.util.List;
  * transactions (if the inputs for the block have not been tested to work)
  * or the set of transaction outputs created/destroyed when the block is
  * connected.
+ * <p/>
+ * Block stores keep undo data in the compact form written by {@link StoredUndoableBlock#serializeCompact()}. A block
+ * read back with {@link StoredUndoableBlock#deserializeCompact(NetworkParameters, Sha256Hash, byte[])} only decodes
+ * its contents when they are first asked for, which for most blocks is never.
  */
 public class StoredUndoableBlock implements Serializable {
     private static final long serialVersionUID = 5127353027086786117L;
@@ -36,6 +45,14 @@ public class StoredUndoableBlock implements Serializable {
     private TransactionOutputChanges txOutChanges;
     private List<Transaction> transactions;
 
+    // Set instead of the above for a block read from the compact form, until the contents are decoded.
+    private NetworkParameters params;
+    private byte[] compactBytes;
+
+    private static final int COMPACT_VERSION = 1;
+    private static final int COMPACT_TX_OUT_CHANGES = 0;
+    private static final int COMPACT_TRANSACTIONS = 1;
+
     public StoredUndoableBlock(Sha256Hash hash, TransactionOutputChanges txOutChanges) {
         this.blockHash = hash;
         this.transactions = null;
@@ -53,6 +70,7 @@ public class StoredUndoableBlock implements Serializable {
      * Only one of this and getTransactions() will return a non-null value.
      */
     public TransactionOutputChanges getTxOutChanges() {
+        maybeDecode();
         return txOutChanges;
     }
 
@@ -61,6 +79,7 @@ public class StoredUndoableBlock implements Serializable {
      * Only one of this and getTxOutChanges() will return a non-null value.
      */
     public List<Transaction> getTransactions() {
+        maybeDecode();
         return transactions;
     }
 
@@ -71,6 +90,105 @@ public class StoredUndoableBlock implements Serializable {
         return blockHash;
     }
 
+    /**
+     * <p>Returns the undo data in a compact, versioned form:</p>
+     *
+     * <pre>
+     *   1 byte   format version, currently 1
+     *   1 byte   0 if the transaction output changes follow, 1 if the transactions do
+     *   for output changes: a varint count and the outputs created, then the same for the outputs spent, each written
+     *            by {@link StoredTransactionOutput#serializeCompact(java.io.OutputStream, Sha256Hash)}
+     *   for transactions: a varint count and the transactions as they appear in blocks
+     * </pre>
+     */
+    public synchronized byte[] serializeCompact() {
+        if (compactBytes != null)
+            return compactBytes;
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try {
+            bos.write(COMPACT_VERSION);
+            if (txOutChanges != null) {
+                bos.write(COMPACT_TX_OUT_CHANGES);
+                writeCompactOutputs(bos, txOutChanges.txOutsCreated);
+                writeCompactOutputs(bos, txOutChanges.txOutsSpent);
+            } else {
+                bos.write(COMPACT_TRANSACTIONS);
+                bos.write(new VarInt(transactions.size()).encode());
+                for (Transaction tx : transactions)
+                    tx.litecoinSerialize(bos);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+        return bos.toByteArray();
+    }
+
+    private static void writeCompactOutputs(ByteArrayOutputStream bos, List<StoredTransactionOutput> outputs)
+            throws IOException {
+        bos.write(new VarInt(outputs.size()).encode());
+        Sha256Hash previousHash = null;
+        for (StoredTransactionOutput output : outputs) {
+            output.serializeCompact(bos, previousHash);
+            previousHash = output.getHash();
+        }
+    }
+
+    /**
+     * Returns a block for the given undo data in the form written by {@link StoredUndoableBlock#serializeCompact()}.
+     * Only the version is checked here, the rest is decoded when it is first asked for.
+     */
+    public static StoredUndoableBlock deserializeCompact(NetworkParameters params, Sha256Hash hash, byte[] bytes)
+            throws ProtocolException {
+        if (bytes.length < 2 || bytes[0] != COMPACT_VERSION)
+            throw new ProtocolException("Unknown undo data version");
+        if (bytes[1] != COMPACT_TX_OUT_CHANGES && bytes[1] != COMPACT_TRANSACTIONS)
+            throw new ProtocolException("Unknown undo data type " + bytes[1]);
+        StoredUndoableBlock block = new StoredUndoableBlock(hash, (List<Transaction>) null);
+        block.params = params;
+        block.compactBytes = bytes;
+        return block;
+    }
+
+    private synchronized void maybeDecode() {
+        if (compactBytes == null || txOutChanges != null || transactions != null)
+            return;
+        ByteBuffer buffer = ByteBuffer.wrap(compactBytes);
+        buffer.position(2);
+        try {
+            if (compactBytes[1] == COMPACT_TX_OUT_CHANGES) {
+                List<StoredTransactionOutput> created = readCompactOutputs(buffer);
+                List<StoredTransactionOutput> spent = readCompactOutputs(buffer);
+                txOutChanges = new TransactionOutputChanges(created, spent);
+            } else {
+                long numTransactions = StoredTransactionOutput.readVarInt(buffer);
+                List<Transaction> result = new LinkedList<Transaction>();
+                int offset = buffer.position();
+                for (long i = 0; i < numTransactions; i++) {
+                    Transaction tx = new Transaction(params, compactBytes, offset);
+                    offset += tx.getMessageSize();
+                    result.add(tx);
+                }
+                transactions = result;
+            }
+        } catch (ProtocolException e) {
+            throw new RuntimeException("Corrupt undo data for block " + blockHash, e);
+        } catch (BufferUnderflowException e) {
+            throw new RuntimeException("Corrupt undo data for block " + blockHash, e);
+        }
+    }
+
+    private static List<StoredTransactionOutput> readCompactOutputs(ByteBuffer buffer) throws ProtocolException {
+        long count = StoredTransactionOutput.readVarInt(buffer);
+        List<StoredTransactionOutput> outputs = new LinkedList<StoredTransactionOutput>();
+        Sha256Hash previousHash = null;
+        for (long i = 0; i < count; i++) {
+            StoredTransactionOutput output = StoredTransactionOutput.deserializeCompact(buffer, previousHash);
+            outputs.add(output);
+            previousHash = output.getHash();
+        }
+        return outputs;
+    }
+
     public int hashCode() {
         return blockHash.hashCode();
     }
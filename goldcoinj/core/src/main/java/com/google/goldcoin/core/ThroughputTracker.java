@@ -0,0 +1,77 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.goldcoin.core;
+
+/**
+ * <p>Keeps track of how fast a {@link Peer} is delivering data we asked for. Rates are exponentially decaying averages
+ * over roughly the last {@link ThroughputTracker#TIME_CONSTANT_MSEC} milliseconds, so a peer that stops sending
+ * anything sees its rates fall towards zero rather than staying at whatever they were when it stalled.</p>
+ *
+ * <p>Time is taken from {@link Utils#now()} so it can be mocked out in unit tests. This class is thread safe.</p>
+ */
+class ThroughputTracker {
+    static final long TIME_CONSTANT_MSEC = 10000;
+
+    private final long createdTime;
+    private long lastUsefulMessageTime;
+    private long lastDecayTime;
+    private double decayedBytes, decayedBlocks;
+
+    ThroughputTracker() {
+        createdTime = Utils.now().getTime();
+        lastDecayTime = createdTime;
+    }
+
+    /**
+     * Records a useful message of the given size, which was a block or filtered block if isBlock is true.
+     */
+    synchronized void record(int bytes, boolean isBlock) {
+        long now = Utils.now().getTime();
+        decay(now);
+        decayedBytes += bytes;
+        if (isBlock)
+            decayedBlocks++;
+        lastUsefulMessageTime = now;
+    }
+
+    private void decay(long now) {
+        if (now <= lastDecayTime)
+            return;
+        double factor = Math.exp(-(now - lastDecayTime) / (double) TIME_CONSTANT_MSEC);
+        decayedBytes *= factor;
+        decayedBlocks *= factor;
+        lastDecayTime = now;
+    }
+
+    synchronized double getBytesPerSecond() {
+        decay(Utils.now().getTime());
+        return decayedBytes * 1000 / TIME_CONSTANT_MSEC;
+    }
+
+    synchronized double getBlocksPerSecond() {
+        decay(Utils.now().getTime());
+        return decayedBlocks * 1000 / TIME_CONSTANT_MSEC;
+    }
+
+    /**
+     * Returns how long ago the last useful message arrived, or how long ago tracking started if none did yet.
+     */
+    synchronized long getMillisSinceLastUsefulMessage() {
+        long last = lastUsefulMessageTime == 0 ? createdTime : lastUsefulMessageTime;
+        return Math.max(0, Utils.now().getTime() - last);
+    }
+}
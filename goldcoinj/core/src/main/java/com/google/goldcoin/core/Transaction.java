@@ -17,6 +17,7 @@
 package com.google.goldcoin.core;
 
 import com.google.goldcoin.core.TransactionConfidence.ConfidenceType;
+import com.google.goldcoin.utils.ParallelTasks;
 import com.google.common.base.Preconditions;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -27,6 +28,7 @@ import java.math.BigInteger;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.Callable;
 
 import static com.google.goldcoin.core.Utils.*;
 
@@ -330,6 +332,8 @@ public class Transaction extends ChildMessage implements Serializable {
                 connected = input.getConnectedOutput(wallet.spent);
             if (connected == null)
                 connected = input.getConnectedOutput(wallet.pending);
+            if (connected == null)
+                connected = wallet.getArchivedConnectedOutput(input);
             if (connected == null)
                 continue;
             // The connected output may be the change to the sender of a previous input sent to this wallet. In this
@@ -773,6 +777,9 @@ public class Transaction extends ChildMessage implements Serializable {
 
         byte[][] signatures = new byte[inputs.size()][];
         ECKey[] signingKeys = new ECKey[inputs.size()];
+        Sha256Hash[] hashes = new Sha256Hash[inputs.size()];
+        // The anyoneCanPay feature isn't used at the moment.
+        final boolean anyoneCanPay = false;
         for (int i = 0; i < inputs.size(); i++) {
             TransactionInput input = inputs.get(i);
             if (input.getScriptBytes().length != 0)
@@ -784,23 +791,40 @@ public class Transaction extends ChildMessage implements Serializable {
                     input.getOutpoint().getHash());
             // Keep the key around for the script creation step below.
             signingKeys[i] = key;
-            // The anyoneCanPay feature isn't used at the moment.
-            boolean anyoneCanPay = false;
+            // Hashing temporarily clears the input scripts, so it is done here one input at a time rather than
+            // alongside the signing below.
             byte[] connectedPubKeyScript = input.getOutpoint().getConnectedPubKeyScript();
-            Sha256Hash hash = hashTransactionForSignature(i, connectedPubKeyScript, hashType, anyoneCanPay);
+            hashes[i] = hashTransactionForSignature(i, connectedPubKeyScript, hashType, anyoneCanPay);
+        }
 
-            // Now sign for the output so we can redeem it. We use the keypair to sign the hash,
-            // and then put the resulting signature in the script along with the public key (below).
-            try {
-                // Usually 71-73 bytes.
-                ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(73);
-                bos.write(key.sign(hash, aesKey).encodeToDER());
-                bos.write((hashType.ordinal() + 1) | (anyoneCanPay ? 0x80 : 0));
-                signatures[i] = bos.toByteArray();
-                bos.close();
-            } catch (IOException e) {
-                throw new RuntimeException(e);  // Cannot happen.
+        // Decrypt each distinct key once, however many inputs it signs for, then sign for all the outputs in parallel
+        // as the EC maths is slow. The decrypted keys are cleared as soon as the signatures are made.
+        Map<ECKey, byte[]> privateKeys = new HashMap<ECKey, byte[]>();
+        try {
+            for (ECKey key : signingKeys) {
+                if (!privateKeys.containsKey(key))
+                    privateKeys.put(key, key.getPrivateKeyBytesForSigning(aesKey));
+            }
+            List<Callable<byte[]>> tasks = new ArrayList<Callable<byte[]>>(inputs.size());
+            for (int i = 0; i < inputs.size(); i++) {
+                final Sha256Hash hash = hashes[i];
+                final byte[] privateKey = privateKeys.get(signingKeys[i]);
+                final int sigHashFlags = (hashType.ordinal() + 1) | (anyoneCanPay ? 0x80 : 0);
+                tasks.add(new Callable<byte[]>() {
+                    public byte[] call() throws IOException {
+                        // Usually 71-73 bytes.
+                        ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(73);
+                        bos.write(ECKey.signWithPrivateKey(hash, privateKey).encodeToDER());
+                        bos.write(sigHashFlags);
+                        bos.close();
+                        return bos.toByteArray();
+                    }
+                });
             }
+            ParallelTasks.runAll(tasks).toArray(signatures);
+        } finally {
+            for (byte[] privateKey : privateKeys.values())
+                Arrays.fill(privateKey, (byte) 0);
         }
 
         // Now we have calculated each signature, go through and create the scripts. Reminder: the script consists:
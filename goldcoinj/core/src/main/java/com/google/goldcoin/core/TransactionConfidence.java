@@ -20,6 +20,7 @@ import com.google.common.base.Preconditions;
 
 import java.io.Serializable;
 import java.math.BigInteger;
+import java.util.List;
 import java.util.ListIterator;
 import java.util.concurrent.CopyOnWriteArrayList;
 
@@ -352,6 +353,41 @@ public class TransactionConfidence implements Serializable {
             runListeners();
     }
 
+    /**
+     * Like {@link TransactionConfidence#notifyWorkDone(Block)} for several new blocks at once, with listeners run only
+     * once.
+     */
+    public void notifyWorkDone(List<Block> blocks) throws VerificationException {
+        boolean notify = false;
+        synchronized (this) {
+            if (getConfidenceType() == ConfidenceType.BUILDING && !blocks.isEmpty()) {
+                for (Block block : blocks)
+                    this.workDone = this.workDone.add(block.getWork());
+                this.depth += blocks.size();
+                notify = true;
+            }
+        }
+        if (notify)
+            runListeners();
+    }
+
+    /**
+     * Called by the wallet when a re-org replaced the blocks burying the transaction with others, changing its depth
+     * and the work done on it by the given amounts. Listeners are run once, and not at all if nothing changed.
+     */
+    void notifyReorganized(int depthChange, BigInteger workChange) {
+        boolean notify = false;
+        synchronized (this) {
+            if (getConfidenceType() == ConfidenceType.BUILDING && (depthChange != 0 || workChange.signum() != 0)) {
+                this.depth += depthChange;
+                this.workDone = this.workDone.add(workChange);
+                notify = true;
+            }
+        }
+        if (notify)
+            runListeners();
+    }
+
     /**
      * Depth in the chain is an approximation of how much time has elapsed since the transaction has been confirmed. On
      * average there is supposed to be a new block every 10 minutes, but the actual rate may vary. The reference
@@ -0,0 +1,75 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.goldcoin.core;
+
+/**
+ * <p>Works out how big a transaction will be as inputs are added to it, without serializing it again each time.
+ * The transaction is serialized once when the estimator is created, and from then on sizes are computed from the
+ * fixed layout of inputs and outputs.</p>
+ *
+ * <p>Inputs are assumed to be added unsigned, ie with empty scripts. The bytes the signatures will add later can be
+ * estimated with {@link #scriptSigSize(Script, int)}.</p>
+ */
+public class TransactionSizeEstimator {
+    /** The size of an input with an empty script: the outpoint, a zero length and the sequence number. */
+    public static final int UNSIGNED_INPUT_SIZE = TransactionOutPoint.MESSAGE_LENGTH + 1 + 4;
+
+    /** The most bytes a signature of a pay-to-pubkey output takes, including its push. */
+    public static final int PUBKEY_SCRIPT_SIG_SIZE = 74;
+
+    /** The most bytes a pay-to-address spend takes, apart from the public key itself. */
+    public static final int ADDRESS_SCRIPT_SIG_SIZE_WITHOUT_KEY = 75;
+
+    private final int size;
+    private final int numInputs;
+
+    public TransactionSizeEstimator(Transaction tx) {
+        size = tx.litecoinSerialize().length;
+        numInputs = tx.getInputs().size();
+    }
+
+    /**
+     * Returns the size the transaction will have once the given number of unsigned inputs are added to it.
+     */
+    public int getSizeWithUnsignedInputs(int extraInputs) {
+        return size + extraInputs * UNSIGNED_INPUT_SIZE
+                + VarInt.sizeOf(numInputs + extraInputs) - VarInt.sizeOf(numInputs);
+    }
+
+    /**
+     * Returns the serialized size of the given output, the same as {@code output.litecoinSerialize().length}.
+     */
+    public static int getOutputSize(TransactionOutput output) {
+        int scriptLength = output.getScriptBytes().length;
+        return 8 + VarInt.sizeOf(scriptLength) + scriptLength;
+    }
+
+    /**
+     * Returns an upper bound on the bytes signing an input spending an output with the given script will add.
+     *
+     * @param pubKeyLength the length of the public key that will sign a pay-to-address output, ignored otherwise.
+     * @throws ScriptException if the script is not one of the standard pay-to-address or pay-to-pubkey forms.
+     */
+    public static int scriptSigSize(Script scriptPubKey, int pubKeyLength) throws ScriptException {
+        if (scriptPubKey.isSentToAddress())
+            return pubKeyLength + ADDRESS_SCRIPT_SIG_SIZE_WITHOUT_KEY;
+        else if (scriptPubKey.isSentToRawPubKey())
+            return PUBKEY_SCRIPT_SIG_SIZE;
+        else
+            throw new ScriptException("Unknown output type: " + scriptPubKey);
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.goldcoin.core;
+
+import java.math.BigInteger;
+import java.util.Date;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>What a wallet's transaction history shows about a transaction: its hash, when it was last updated, how much it
+ * changed the balance of the wallet by and the height of the block it appeared in. The wallet keeps only this for
+ * transactions it has moved to its {@link com.google.goldcoin.store.TransactionArchive}, see
+ * {@link Wallet#getHistory(int, int)}.</p>
+ */
+public class TransactionSummary {
+    private final Sha256Hash hash;
+    private final long updateTime;
+    private final BigInteger value;
+    private final int height;
+
+    /**
+     * @param updateTime when the transaction was last updated, in milliseconds since the epoch.
+     * @param value the value received by the wallet minus the value sent from it, in nanocoins.
+     * @param height the height of the block the transaction appeared in, or -1 if it isn't in the best chain.
+     */
+    public TransactionSummary(Sha256Hash hash, long updateTime, BigInteger value, int height) {
+        this.hash = checkNotNull(hash);
+        this.updateTime = updateTime;
+        this.value = checkNotNull(value);
+        this.height = height;
+    }
+
+    /** Summarizes the given transaction as the given wallet sees it. */
+    public static TransactionSummary of(Transaction tx, Wallet wallet) throws ScriptException {
+        TransactionConfidence confidence = tx.getConfidence();
+        int height = confidence.getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING ?
+                confidence.getAppearedAtChainHeight() : -1;
+        return new TransactionSummary(tx.getHash(), tx.getUpdateTime().getTime(), tx.getValue(wallet), height);
+    }
+
+    public Sha256Hash getHash() {
+        return hash;
+    }
+
+    public Date getUpdateTime() {
+        return new Date(updateTime);
+    }
+
+    /** Returns the value received by the wallet minus the value sent from it, which is negative for spends. */
+    public BigInteger getValue() {
+        return value;
+    }
+
+    /** Returns the height of the block the transaction appeared in, or -1 if it isn't in the best chain. */
+    public int getHeight() {
+        return height;
+    }
+
+    long getUpdateTimeMillis() {
+        return updateTime;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof TransactionSummary)) return false;
+        TransactionSummary other = (TransactionSummary) o;
+        return hash.equals(other.hash) && updateTime == other.updateTime && value.equals(other.value) &&
+                height == other.height;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s at height %d, updated %s: %s", hash, height, getUpdateTime(),
+                Utils.litecoinValueToFriendlyString(value));
+    }
+}
@@ -0,0 +1,511 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.goldcoin.core;
+
+import java.io.Serializable;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>An immutable unsigned 256 bit integer, held in four longs. Difficulty targets, proof of work and chain work all
+ * fit in 256 bits, and doing the arithmetic on them with this class rather than {@link BigInteger} means adding a
+ * block to the chain doesn't allocate a handful of arrays and objects for every comparison and sum.</p>
+ *
+ * <p>Only the operations the block chain needs are provided. Unlike {@link BigInteger} the results can't grow without
+ * bound: anything that would not fit in 256 bits throws an {@link ArithmeticException}.</p>
+ */
+public final class UInt256 implements Comparable<UInt256>, Serializable {
+    private static final long serialVersionUID = 3745093456247326311L;
+
+    public static final UInt256 ZERO = new UInt256(0, 0, 0, 0);
+    public static final UInt256 ONE = new UInt256(0, 0, 0, 1);
+    public static final UInt256 MAX_VALUE = new UInt256(-1, -1, -1, -1);
+
+    private static final long INT_MASK = 0xFFFFFFFFL;
+
+    // w3 is the most significant word, w0 the least.
+    private final long w3, w2, w1, w0;
+
+    private UInt256(long w3, long w2, long w1, long w0) {
+        this.w3 = w3;
+        this.w2 = w2;
+        this.w1 = w1;
+        this.w0 = w0;
+    }
+
+    /**
+     * Returns the given value, which must not be negative.
+     */
+    public static UInt256 valueOf(long value) {
+        checkArgument(value >= 0, "Negative value");
+        return value == 0 ? ZERO : new UInt256(0, 0, 0, value);
+    }
+
+    /**
+     * Reads an unsigned big endian value from the 32 bytes at the given offset, the way
+     * {@link Sha256Hash#toBigInteger()} does.
+     */
+    public static UInt256 fromBytes(byte[] bytes, int offset) {
+        return fromBytes(bytes, offset, 32);
+    }
+
+    /**
+     * Reads an unsigned big endian value from the given number of bytes, at most 32, at the given offset.
+     */
+    public static UInt256 fromBytes(byte[] bytes, int offset, int length) {
+        checkArgument(length >= 0 && length <= 32, "Too many bytes");
+        long w3 = 0, w2 = 0, w1 = 0, w0 = 0;
+        for (int i = 0; i < length; i++) {
+            long b = bytes[offset + length - 1 - i] & 0xFF;
+            int shift = 8 * (i & 7);
+            switch (i >>> 3) {
+                case 0: w0 |= b << shift; break;
+                case 1: w1 |= b << shift; break;
+                case 2: w2 |= b << shift; break;
+                default: w3 |= b << shift; break;
+            }
+        }
+        return new UInt256(w3, w2, w1, w0);
+    }
+
+    /**
+     * Converts the given value, which must not be negative or need more than 256 bits.
+     */
+    public static UInt256 fromBigInteger(BigInteger value) {
+        if (value.signum() < 0 || value.bitLength() > 256)
+            throw new ArithmeticException("Value does not fit in an unsigned 256 bit integer: " + value);
+        return fromBytes(Utils.bigIntegerToBytes(value, 32), 0);
+    }
+
+    /**
+     * Decodes the compact form of a difficulty target used in block headers, like {@link Utils#decodeCompactBits(long)}
+     * does. The compact form is a one byte length followed by a three byte mantissa whose top bit is a sign bit.
+     *
+     * @throws ArithmeticException if the value is negative or too large to fit in 256 bits.
+     */
+    public static UInt256 decodeCompactBits(long compact) {
+        int size = (int) (compact >> 24) & 0xFF;
+        long mantissa = compact & 0x7FFFFFL;
+        if (size <= 3) {
+            mantissa >>>= 8 * (3 - size);
+            size = 3;
+        }
+        if (mantissa == 0)
+            return ZERO;
+        if ((compact & 0x800000L) != 0)
+            throw new ArithmeticException("Negative compact value: " + Long.toHexString(compact));
+        int shift = 8 * (size - 3);
+        if (shift + 64 - Long.numberOfLeadingZeros(mantissa) > 256)
+            throw new ArithmeticException("Compact value too large: " + Long.toHexString(compact));
+        // The mantissa is at most 23 bits, so it lands in one word or straddles two.
+        long low = mantissa << (shift & 63);
+        long high = (shift & 63) == 0 ? 0 : mantissa >>> (64 - (shift & 63));
+        switch (shift >>> 6) {
+            case 0: return new UInt256(0, 0, high, low);
+            case 1: return new UInt256(0, high, low, 0);
+            case 2: return new UInt256(high, low, 0, 0);
+            default: return new UInt256(low, 0, 0, 0);
+        }
+    }
+
+    /**
+     * Returns the compact form of this value, rounding it down to the precision of the three byte mantissa.
+     */
+    public long encodeCompactBits() {
+        int size = (bitLength() + 7) / 8;
+        long mantissa;
+        if (size <= 3)
+            mantissa = w0 << (8 * (3 - size));
+        else
+            mantissa = shiftRight(8 * (size - 3)).w0;
+        // The top bit of the mantissa is the sign, so if it would be set make the value one byte longer instead.
+        if ((mantissa & 0x800000L) != 0) {
+            mantissa >>>= 8;
+            size++;
+        }
+        return mantissa | ((long) size << 24);
+    }
+
+    /**
+     * Returns this value as a {@link BigInteger}.
+     */
+    public BigInteger toBigInteger() {
+        return new BigInteger(1, toBytes());
+    }
+
+    /**
+     * Returns this value as 32 big endian bytes.
+     */
+    public byte[] toBytes() {
+        byte[] bytes = new byte[32];
+        writeLong(bytes, 0, w3);
+        writeLong(bytes, 8, w2);
+        writeLong(bytes, 16, w1);
+        writeLong(bytes, 24, w0);
+        return bytes;
+    }
+
+    private static void writeLong(byte[] bytes, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            bytes[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    /**
+     * Writes the lowest given number of bytes of this value to the buffer, big endian.
+     *
+     * @throws IllegalArgumentException if the value doesn't fit in that many bytes.
+     */
+    public void putBytes(ByteBuffer buffer, int numBytes) {
+        checkArgument(numBytes >= 0 && numBytes <= 32 && bitLength() <= numBytes * 8, "Value does not fit");
+        for (int i = numBytes - 1; i >= 0; i--) {
+            long word = i < 8 ? w0 : i < 16 ? w1 : i < 24 ? w2 : w3;
+            buffer.put((byte) (word >>> (8 * (i & 7))));
+        }
+    }
+
+    /**
+     * Returns the number of bits needed to hold this value, zero for zero.
+     */
+    public int bitLength() {
+        return bitLength(w3, w2, w1, w0);
+    }
+
+    private static int bitLength(long a3, long a2, long a1, long a0) {
+        if (a3 != 0) return 256 - Long.numberOfLeadingZeros(a3);
+        if (a2 != 0) return 192 - Long.numberOfLeadingZeros(a2);
+        if (a1 != 0) return 128 - Long.numberOfLeadingZeros(a1);
+        return 64 - Long.numberOfLeadingZeros(a0);
+    }
+
+    // The 64 bits of the value starting at the given bit position, which must not be negative.
+    private static long bitsAt(long a3, long a2, long a1, long a0, int position) {
+        int bits = position & 63;
+        long low = word(a3, a2, a1, a0, position >>> 6), high = word(a3, a2, a1, a0, (position >>> 6) + 1);
+        return bits == 0 ? low : (low >>> bits) | (high << (64 - bits));
+    }
+
+    private static long word(long a3, long a2, long a1, long a0, int index) {
+        switch (index) {
+            case 0: return a0;
+            case 1: return a1;
+            case 2: return a2;
+            case 3: return a3;
+            default: return 0;
+        }
+    }
+
+    public boolean isZero() {
+        return (w3 | w2 | w1 | w0) == 0;
+    }
+
+    /**
+     * Returns whether the value fits in a signed long.
+     */
+    public boolean fitsInLong() {
+        return (w3 | w2 | w1) == 0 && w0 >= 0;
+    }
+
+    /**
+     * Returns the lowest 64 bits of this value.
+     */
+    public long longValue() {
+        return w0;
+    }
+
+    public UInt256 add(UInt256 other) {
+        long r0 = w0 + other.w0;
+        long carry = carry(r0, w0, 0);
+        long r1 = w1 + other.w1 + carry;
+        carry = carry(r1, w1, carry);
+        long r2 = w2 + other.w2 + carry;
+        carry = carry(r2, w2, carry);
+        long r3 = w3 + other.w3 + carry;
+        if (carry(r3, w3, carry) != 0)
+            throw new ArithmeticException("Unsigned 256 bit overflow");
+        return new UInt256(r3, r2, r1, r0);
+    }
+
+    // Whether a + b + carryIn overflowed, given their sum wrapped to 64 bits.
+    private static long carry(long sum, long a, long carryIn) {
+        boolean overflow = Utils.isLessThanUnsigned(sum, a) || (carryIn != 0 && sum == a);
+        return overflow ? 1 : 0;
+    }
+
+    public UInt256 subtract(UInt256 other) {
+        if (compareTo(other) < 0)
+            throw new ArithmeticException("Unsigned 256 bit underflow");
+        long r0 = w0 - other.w0;
+        long borrow = borrow(w0, other.w0, 0);
+        long r1 = w1 - other.w1 - borrow;
+        borrow = borrow(w1, other.w1, borrow);
+        long r2 = w2 - other.w2 - borrow;
+        borrow = borrow(w2, other.w2, borrow);
+        long r3 = w3 - other.w3 - borrow;
+        return new UInt256(r3, r2, r1, r0);
+    }
+
+    // Whether a - b - borrowIn needed to borrow.
+    private static long borrow(long a, long b, long borrowIn) {
+        boolean underflow = Utils.isLessThanUnsigned(a, b) || (borrowIn != 0 && a == b);
+        return underflow ? 1 : 0;
+    }
+
+    /**
+     * Returns this value multiplied by the given one, which must be between zero and {@link Integer#MAX_VALUE}.
+     */
+    public UInt256 multiply(long multiplier) {
+        checkArgument(multiplier >= 0 && multiplier <= Integer.MAX_VALUE, "Multiplier out of range");
+        long r0 = w0 * multiplier;
+        long carry = multiplyHigh(w0, multiplier, 0);
+        long r1 = w1 * multiplier + carry;
+        carry = multiplyHigh(w1, multiplier, carry);
+        long r2 = w2 * multiplier + carry;
+        carry = multiplyHigh(w2, multiplier, carry);
+        long r3 = w3 * multiplier + carry;
+        if (multiplyHigh(w3, multiplier, carry) != 0)
+            throw new ArithmeticException("Unsigned 256 bit overflow");
+        return new UInt256(r3, r2, r1, r0);
+    }
+
+    // The top 64 bits of word * multiplier + carry, done 32 bits at a time so that no partial product overflows.
+    private static long multiplyHigh(long word, long multiplier, long carry) {
+        long low = (word & INT_MASK) * multiplier + carry;
+        return ((word >>> 32) * multiplier + (low >>> 32)) >>> 32;
+    }
+
+    /**
+     * Returns this value divided by the given one, rounded down. The divisor must be between one and
+     * {@link Integer#MAX_VALUE}.
+     */
+    public UInt256 divide(long divisor) {
+        checkArgument(divisor > 0 && divisor <= Integer.MAX_VALUE, "Divisor out of range");
+        // The remainder carried from one word to the next is what is left of the word once the quotient times the
+        // divisor is taken off. It is below the divisor, so that subtraction can't wrap around.
+        long q3 = divideWord(w3, 0, divisor);
+        long q2 = divideWord(w2, w3 - q3 * divisor, divisor);
+        long q1 = divideWord(w1, w2 - q2 * divisor, divisor);
+        long q0 = divideWord(w0, w1 - q1 * divisor, divisor);
+        return new UInt256(q3, q2, q1, q0);
+    }
+
+    // Divides remainder * 2^64 + word by the divisor, 32 bits at a time so that each step fits in a long, and returns
+    // the low 64 bits of the quotient. The remainder must be below the divisor.
+    private static long divideWord(long word, long remainder, long divisor) {
+        long high = (remainder << 32) | (word >>> 32);
+        long highQuotient = high / divisor;
+        long low = ((high - highQuotient * divisor) << 32) | (word & INT_MASK);
+        return (highQuotient << 32) | (low / divisor);
+    }
+
+    /**
+     * Returns this value divided by the given one, rounded down.
+     *
+     * @throws ArithmeticException if the divisor is zero.
+     */
+    public UInt256 divide(UInt256 divisor) {
+        if (divisor.isZero())
+            throw new ArithmeticException("Division by zero");
+        if (divisor.fitsInLong() && divisor.w0 <= Integer.MAX_VALUE)
+            return divide(divisor.w0);
+        if (compareTo(divisor) < 0)
+            return ZERO;
+        // Long division about 30 bits at a time, on local copies so that nothing is allocated. Each quotient digit is
+        // estimated from the top bits of the remainder over the top 32 bits of the divisor, rounded up so that the
+        // estimate is never too large. Once no more digits can be estimated the remainder is below twice the divisor,
+        // so at most one more subtraction finishes it off.
+        final long d3 = divisor.w3, d2 = divisor.w2, d1 = divisor.w1, d0 = divisor.w0;
+        final int divisorBits = divisor.bitLength();
+        final long divisorTop = bitsAt(d3, d2, d1, d0, divisorBits - 32) + 1;
+        long r3 = w3, r2 = w2, r1 = w1, r0 = w0;
+        long q3 = 0, q2 = 0, q1 = 0, q0 = 0;
+        while (true) {
+            int remainderBits = bitLength(r3, r2, r1, r0);
+            int shift = remainderBits - divisorBits - 30;
+            long digit;
+            if (shift >= 0) {
+                digit = bitsAt(r3, r2, r1, r0, remainderBits - 62) / divisorTop;
+            } else {
+                shift = 0;
+                digit = bitsAt(r3, r2, r1, r0, divisorBits - 32) / divisorTop;
+                if (digit == 0)
+                    break;
+            }
+            // Take divisor * digit << shift off the remainder. The digit is below 2^31, see multiply(long).
+            long p0 = d0 * digit;
+            long carry = multiplyHigh(d0, digit, 0);
+            long p1 = d1 * digit + carry;
+            carry = multiplyHigh(d1, digit, carry);
+            long p2 = d2 * digit + carry;
+            carry = multiplyHigh(d2, digit, carry);
+            long p3 = d3 * digit + carry;
+            int bits = shift & 63;
+            if (bits != 0) {
+                p3 = (p3 << bits) | (p2 >>> (64 - bits));
+                p2 = (p2 << bits) | (p1 >>> (64 - bits));
+                p1 = (p1 << bits) | (p0 >>> (64 - bits));
+                p0 <<= bits;
+            }
+            for (int words = shift >>> 6; words > 0; words--) {
+                p3 = p2;
+                p2 = p1;
+                p1 = p0;
+                p0 = 0;
+            }
+            long borrow = borrow(r0, p0, 0);
+            r0 -= p0;
+            long nextBorrow = borrow(r1, p1, borrow);
+            r1 = r1 - p1 - borrow;
+            borrow = nextBorrow;
+            nextBorrow = borrow(r2, p2, borrow);
+            r2 = r2 - p2 - borrow;
+            r3 = r3 - p3 - nextBorrow;
+            // And add digit << shift to the quotient.
+            int words = shift >>> 6;
+            long low = digit << bits, high = bits == 0 ? 0 : digit >>> (64 - bits);
+            long t0 = words == 0 ? low : 0;
+            long t1 = words == 0 ? high : words == 1 ? low : 0;
+            long t2 = words == 1 ? high : words == 2 ? low : 0;
+            long t3 = words == 2 ? high : words == 3 ? low : 0;
+            long sum0 = q0 + t0;
+            carry = carry(sum0, q0, 0);
+            long sum1 = q1 + t1 + carry;
+            carry = carry(sum1, q1, carry);
+            long sum2 = q2 + t2 + carry;
+            carry = carry(sum2, q2, carry);
+            q3 = q3 + t3 + carry;
+            q2 = sum2;
+            q1 = sum1;
+            q0 = sum0;
+        }
+        if (compare(r3, r2, r1, r0, d3, d2, d1, d0) >= 0) {
+            long sum0 = q0 + 1;
+            long carry = carry(sum0, q0, 0);
+            long sum1 = q1 + carry;
+            carry = carry(sum1, q1, carry);
+            long sum2 = q2 + carry;
+            carry = carry(sum2, q2, carry);
+            q3 += carry;
+            q2 = sum2;
+            q1 = sum1;
+            q0 = sum0;
+        }
+        return new UInt256(q3, q2, q1, q0);
+    }
+
+    /**
+     * Returns the bitwise complement of this value, that is {@link UInt256#MAX_VALUE} minus it.
+     */
+    public UInt256 not() {
+        return new UInt256(~w3, ~w2, ~w1, ~w0);
+    }
+
+    public UInt256 and(UInt256 other) {
+        return new UInt256(w3 & other.w3, w2 & other.w2, w1 & other.w1, w0 & other.w0);
+    }
+
+    /**
+     * Returns this value shifted left by the given number of bits, dropping the bits shifted out of the top.
+     */
+    public UInt256 shiftLeft(int n) {
+        checkArgument(n >= 0, "Negative shift");
+        if (n >= 256)
+            return ZERO;
+        long a3 = w3, a2 = w2, a1 = w1, a0 = w0;
+        for (; n >= 64; n -= 64) {
+            a3 = a2;
+            a2 = a1;
+            a1 = a0;
+            a0 = 0;
+        }
+        if (n == 0)
+            return new UInt256(a3, a2, a1, a0);
+        return new UInt256((a3 << n) | (a2 >>> (64 - n)), (a2 << n) | (a1 >>> (64 - n)),
+                (a1 << n) | (a0 >>> (64 - n)), a0 << n);
+    }
+
+    /**
+     * Returns this value shifted right by the given number of bits.
+     */
+    public UInt256 shiftRight(int n) {
+        checkArgument(n >= 0, "Negative shift");
+        if (n >= 256)
+            return ZERO;
+        long a3 = w3, a2 = w2, a1 = w1, a0 = w0;
+        for (; n >= 64; n -= 64) {
+            a0 = a1;
+            a1 = a2;
+            a2 = a3;
+            a3 = 0;
+        }
+        if (n == 0)
+            return new UInt256(a3, a2, a1, a0);
+        return new UInt256(a3 >>> n, (a2 >>> n) | (a3 << (64 - n)), (a1 >>> n) | (a2 << (64 - n)),
+                (a0 >>> n) | (a1 << (64 - n)));
+    }
+
+    public int compareTo(UInt256 other) {
+        return compare(w3, w2, w1, w0, other.w3, other.w2, other.w1, other.w0);
+    }
+
+    private static int compare(long a3, long a2, long a1, long a0, long b3, long b2, long b1, long b0) {
+        if (a3 != b3) return Utils.isLessThanUnsigned(a3, b3) ? -1 : 1;
+        if (a2 != b2) return Utils.isLessThanUnsigned(a2, b2) ? -1 : 1;
+        if (a1 != b1) return Utils.isLessThanUnsigned(a1, b1) ? -1 : 1;
+        if (a0 != b0) return Utils.isLessThanUnsigned(a0, b0) ? -1 : 1;
+        return 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof UInt256)) return false;
+        UInt256 other = (UInt256) o;
+        return w3 == other.w3 && w2 == other.w2 && w1 == other.w1 && w0 == other.w0;
+    }
+
+    @Override
+    public int hashCode() {
+        long h = w3 ^ w2 ^ w1 ^ w0;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Returns the value in hex without leading zeros, like <tt>toBigInteger().toString(16)</tt>.
+     */
+    @Override
+    public String toString() {
+        if (isZero())
+            return "0";
+        StringBuilder s = new StringBuilder(64);
+        boolean started = false;
+        for (long word : new long[]{w3, w2, w1, w0}) {
+            if (started) {
+                String hex = Long.toHexString(word);
+                for (int i = hex.length(); i < 16; i++)
+                    s.append('0');
+                s.append(hex);
+            } else if (word != 0) {
+                s.append(Long.toHexString(word));
+                started = true;
+            }
+        }
+        return s.toString();
+    }
+}
@@ -244,6 +244,15 @@ public class Utils {
         return buf;
     }
 
+    /**
+     * Writes the given byte array in reverse order to the start of out, which must be at least as long. This is the
+     * allocation free version of {@link #reverseBytes(byte[])}.
+     */
+    public static void reverseBytesInto(byte[] bytes, byte[] out) {
+        for (int i = 0; i < bytes.length; i++)
+            out[i] = bytes[bytes.length - 1 - i];
+    }
+
     /**
      * Returns a copy of the given byte array with the bytes of each double-word (4 bytes) reversed.
      *
@@ -24,8 +24,10 @@ import com.google.goldcoin.core.TransactionConfidence.ConfidenceType;
 import com.google.goldcoin.core.WalletTransaction.Pool;
 import com.google.goldcoin.crypto.KeyCrypter;
 import com.google.goldcoin.crypto.KeyCrypterException;
+import com.google.goldcoin.store.TransactionArchive;
 import com.google.goldcoin.store.WalletProtobufSerializer;
 import com.google.goldcoin.utils.Locks;
+import com.google.goldcoin.utils.ParallelTasks;
 import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Iterables;
@@ -38,10 +40,13 @@ import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.DelayQueue;
 import java.util.concurrent.Delayed;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -79,7 +84,7 @@ import static com.google.common.base.Preconditions.*;
  * {@link Wallet#autosaveToFile(java.io.File, long, java.util.concurrent.TimeUnit, com.google.goldcoin.core.Wallet.AutosaveEventListener)}
  * for more information about this.</p>
  */
-public class Wallet implements Serializable, BlockChainListener {
+public class Wallet implements Serializable, BatchedBlockChainListener {
     private static final Logger log = LoggerFactory.getLogger(Wallet.class);
     private static final long serialVersionUID = 2L;
 
@@ -208,6 +213,35 @@ public class Wallet implements Serializable, BlockChainListener {
     // Whether or not to ignore nLockTime > 0 transactions that are received to the mempool.
     private boolean acceptTimeLockedTransactions;
 
+    // Secondary indexes over the pools and the keychain. They hold nothing that isn't derivable from those, so aren't
+    // serialized and are rebuilt by createTransientState().
+    //
+    // The inputs of pending transactions by the outpoint they spend, so spends and double spends of an output can be
+    // found without looking through every pending transaction. Kept exactly in step with the pending pool, see
+    // addToPending() and removeFromPending().
+    private transient HashMap<TransactionOutPoint, List<TransactionInput>> pendingSpends;
+    // Every transaction in the wallet by the addresses its outputs pay to and its inputs spend from. Transactions
+    // leaving the wallet are dropped lazily, so lookups check they are still present.
+    private transient HashMap<Address, Set<Transaction>> transactionsByAddress;
+    // Every transaction in the wallet, most recently updated first, and the entry each one is filed under. The update
+    // time is captured when a transaction is indexed and re-indexed when the wallet changes it, see indexUpdateTime().
+    private transient TreeSet<TimeIndexEntry> transactionsByTime;
+    private transient HashMap<Sha256Hash, TimeIndexEntry> timeIndexEntries;
+    // Every transaction in the wallet by the blocks it appeared in, so a re-org only has to look at the transactions in
+    // the blocks it disconnects and connects. Transactions are dropped when they leave the wallet through
+    // unindexTransaction(), and lookups check they are still present.
+    private transient HashMap<Sha256Hash, Set<Transaction>> transactionsByBlock;
+    // The keychain by public key hash and by public key. As the keychain is public and may be replaced or modified
+    // directly, these are rebuilt whenever it isn't the list they were built from, or that list has changed since,
+    // see Keychain.
+    private transient HashMap<ByteBuffer, ECKey> keysByPubKeyHash;
+    private transient HashMap<ByteBuffer, ECKey> keysByPubKey;
+    private transient ArrayList<ECKey> indexedKeychain;
+    private transient int indexedKeychainVersion;
+    // What the block chain checks transactions against before asking the wallet, see getRelevanceSnapshot(). Added to
+    // whenever the wallet gains a key, a transaction or a pending spend.
+    private transient RelevanceSnapshot.Index relevanceIndex;
+
     /**
      * Represents the results of a {@link CoinSelector#select(java.math.BigInteger, java.util.LinkedList)}  operation
      */
@@ -233,9 +267,14 @@ public class Wallet implements Serializable, BlockChainListener {
 
     public static class DefaultCoinSelector implements CoinSelector {
         public CoinSelection select(BigInteger biTarget, LinkedList<TransactionOutput> candidates) {
-            long target = biTarget.longValue();
-            long total = 0;
-            LinkedList<TransactionOutput> selected = Lists.newLinkedList();
+            return selectFromSorted(biTarget, sortOutputs(candidates));
+        }
+
+        /**
+         * Returns the given outputs in the order {@link #select(java.math.BigInteger, java.util.LinkedList)} considers
+         * them, oldest first.
+         */
+        public static ArrayList<TransactionOutput> sortOutputs(Collection<TransactionOutput> candidates) {
             // Sort the inputs by age so we use oldest first.
             // TODO: Consider changing the wallets internal format to track just outputs and keep them ordered.
             ArrayList<TransactionOutput> sortedOutputs = new ArrayList<TransactionOutput>(candidates);
@@ -257,6 +296,17 @@ public class Wallet implements Serializable, BlockChainListener {
                     return aHash.compareTo(bHash);
                 }
             });
+            return sortedOutputs;
+        }
+
+        /**
+         * Selects from outputs already put in order by {@link #sortOutputs(java.util.Collection)}. Selecting several
+         * times from the same candidates, as fee calculation does, then only has to sort them once.
+         */
+        public CoinSelection selectFromSorted(BigInteger biTarget, List<TransactionOutput> sortedOutputs) {
+            long target = biTarget.longValue();
+            long total = 0;
+            LinkedList<TransactionOutput> selected = Lists.newLinkedList();
             // Now iterate over the sorted outputs until we have got as close to the target as possible or a little
             // bit over (excessive value will be change).
             for (TransactionOutput output : sortedOutputs) {
@@ -300,6 +350,22 @@ public class Wallet implements Serializable, BlockChainListener {
 
     private transient CoinSelector coinSelector = new DefaultCoinSelector();
 
+    // Keys generated ahead of time for freshKey() and freshAddress(), or null to generate them on demand.
+    private transient KeyPool keyPool;
+
+    /** How many blocks deep fully spent transactions must be buried to be archived, by default. */
+    public static final int DEFAULT_ARCHIVE_DEPTH = 2016;
+    /** How many blocks apart the wallet archives transactions by itself, once it has an archive. */
+    public static final int ARCHIVE_INTERVAL = 144;
+
+    // Where fully spent, deeply buried transactions are moved to by archiveTransactions(), or null to keep them all in
+    // memory. Only a summary of each archived transaction is kept, by hash and most recent first. The summaries are
+    // saved with the wallet, whereas the archive is set up by the application each time the wallet is loaded.
+    private transient TransactionArchive archive;
+    private transient int archiveDepth;
+    private transient HashMap<Sha256Hash, TransactionSummary> archivedSummaries;
+    private transient TreeSet<TransactionSummary> archivedByTime;
+
     // The keyCrypter for the wallet. This specifies the algorithm used for encrypting and decrypting the private keys.
     private KeyCrypter keyCrypter;
     // The wallet version. This is an int that can be used to track breaking changes in the wallet format.
@@ -323,7 +389,7 @@ public class Wallet implements Serializable, BlockChainListener {
     public Wallet(NetworkParameters params, KeyCrypter keyCrypter) {
         this.keyCrypter = keyCrypter;
         this.params = checkNotNull(params);
-        keychain = new ArrayList<ECKey>();
+        keychain = new Keychain();
         unspent = new HashMap<Sha256Hash, Transaction>();
         spent = new HashMap<Sha256Hash, Transaction>();
         inactive = new HashMap<Sha256Hash, Transaction>();
@@ -339,6 +405,9 @@ public class Wallet implements Serializable, BlockChainListener {
             @Override
             public void onConfidenceChanged(Transaction tx) {
                 lock.lock();
+                // Whatever changed the confidence may have changed the update time too.
+                if (getTransaction(tx.getHash()) == tx)
+                    indexUpdateTime(tx);
                 // The invokers unlock us immediately so if an exception is thrown, the lock will be already open.
                 invokeOnTransactionConfidenceChanged(tx);
                 // Many onWalletChanged events will not occur because they are suppressed, eg, because:
@@ -355,6 +424,9 @@ public class Wallet implements Serializable, BlockChainListener {
             }
         };
         acceptTimeLockedTransactions = false;
+        archivedSummaries = new HashMap<Sha256Hash, TransactionSummary>();
+        archivedByTime = new TreeSet<TransactionSummary>(SUMMARIES_MOST_RECENT_FIRST);
+        rebuildIndexes();
     }
 
     public NetworkParameters getNetworkParameters() {
@@ -773,6 +845,26 @@ public class Wallet implements Serializable, BlockChainListener {
                 }
             }
 
+            // The index of outpoints spent by pending transactions must hold exactly the inputs of those transactions.
+            int pendingInputs = 0;
+            for (Transaction tx : pending.values())
+                pendingInputs += tx.getInputs().size();
+            int indexedInputs = 0;
+            for (List<TransactionInput> spends : pendingSpends.values()) {
+                for (TransactionInput input : spends) {
+                    indexedInputs++;
+                    if (pending.get(input.getParentTransaction().getHash()) != input.getParentTransaction()) {
+                        log.error("Input of tx {} is indexed but the tx is not pending",
+                                input.getParentTransaction().getHashAsString());
+                        success = false;
+                    }
+                }
+            }
+            if (pendingInputs != indexedInputs) {
+                log.error("Pending transactions have {} inputs but {} are indexed", pendingInputs, indexedInputs);
+                success = false;
+            }
+
             if (!success) log.error(toString());
             return success;
         } finally {
@@ -814,6 +906,7 @@ public class Wallet implements Serializable, BlockChainListener {
 
     private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
         in.defaultReadObject();
+        keychain = new Keychain(keychain);
         createTransientState();
     }
 
@@ -943,7 +1036,7 @@ public class Wallet implements Serializable, BlockChainListener {
             // Ignore it if we already know about this transaction. Receiving a pending transaction never moves it
             // between pools.
             EnumSet<Pool> containingPools = getContainingPools(tx);
-            if (!containingPools.equals(EnumSet.noneOf(Pool.class))) {
+            if (!containingPools.equals(EnumSet.noneOf(Pool.class)) || archivedSummaries.containsKey(tx.getHash())) {
                 log.debug("Received tx we already saw in a block or created ourselves: " + tx.getHashAsString());
                 return false;
             }
@@ -986,36 +1079,56 @@ public class Wallet implements Serializable, BlockChainListener {
         }
     }
 
+    /**
+     * Returns a snapshot of what makes transactions relevant to this wallet, which can be checked against without
+     * locking it, see {@link RelevanceSnapshot}. The same snapshot is returned until the wallet gains a key, a
+     * transaction or a pending spend. Taking a new one only costs time proportional to what was added since.
+     */
+    RelevanceSnapshot getRelevanceSnapshot() {
+        lock.lock();
+        try {
+            // Picks up keys added to the keychain directly.
+            updateKeyIndexes();
+            if (relevanceIndex.needsRebuild()) {
+                // The transactions getValueSentFromMe() looks for the outputs spent by a transaction in. Those in the
+                // other pools too, as they were added when they entered the wallet and may move without being again.
+                Set<Sha256Hash> hashes = new HashSet<Sha256Hash>(unspent.keySet());
+                hashes.addAll(spent.keySet());
+                hashes.addAll(pending.keySet());
+                hashes.addAll(inactive.keySet());
+                hashes.addAll(dead.keySet());
+                hashes.addAll(archivedSummaries.keySet());
+                relevanceIndex.rebuild(hashes, pendingSpends.keySet());
+            }
+            return relevanceIndex.snapshot();
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Checks if "tx" is spending any inputs of pending transactions. Not a general check, but it can work even if
      * the double spent inputs are not ours. Returns the pending tx that was double spent or null if none found.
      */
     private boolean checkForDoubleSpendAgainstPending(Transaction tx, boolean takeAction) {
         checkState(lock.isLocked());
-        // Compile a set of outpoints that are spent by tx.
-        HashSet<TransactionOutPoint> outpoints = new HashSet<TransactionOutPoint>();
+        // Look up each outpoint spent by tx in the index of outpoints spent by pending transactions. This relies on
+        // the fact that TransactionOutPoint equality is defined at the protocol not object level - outpoints from two
+        // different inputs that point to the same output compare the same.
         for (TransactionInput input : tx.getInputs()) {
-            outpoints.add(input.getOutpoint());
-        }
-        // Now for each pending transaction, see if it shares any outpoints with this tx.
-        for (Transaction p : pending.values()) {
-            for (TransactionInput input : p.getInputs()) {
-                // This relies on the fact that TransactionOutPoint equality is defined at the protocol not object
-                // level - outpoints from two different inputs that point to the same output compare the same.
-                TransactionOutPoint outpoint = input.getOutpoint();
-                if (outpoints.contains(outpoint)) {
-                    // It does, it's a double spend against the pending pool, which makes it relevant.
-                    if (takeAction) {
-                        // Look for the actual input object in tx that is double spending.
-                        TransactionInput overridingInput = null;
-                        for (TransactionInput txInput : tx.getInputs()) {
-                            if (txInput.getOutpoint().equals(outpoint)) overridingInput = txInput;
-                        }
-                        killTx(tx, checkNotNull(overridingInput), p);
-                    }
-                    return true;
+            List<TransactionInput> spends = getPendingSpends(input.getOutpoint());
+            if (spends.isEmpty())
+                continue;
+            // It does, it's a double spend against the pending pool, which makes it relevant.
+            if (takeAction) {
+                // Use the last input in tx that spends the outpoint, as looking through all of them used to.
+                TransactionInput overridingInput = input;
+                for (TransactionInput txInput : tx.getInputs()) {
+                    if (txInput.getOutpoint().equals(input.getOutpoint())) overridingInput = txInput;
                 }
+                killTx(tx, overridingInput, spends.get(0).getParentTransaction());
             }
+            return true;
         }
         return false;
     }
@@ -1051,7 +1164,8 @@ public class Wallet implements Serializable, BlockChainListener {
     private void receive(Transaction tx, StoredBlock block, BlockChain.NewBlockType blockType, boolean reorg) throws VerificationException {
         // Runs in a peer thread.
         checkState(lock.isLocked());
-        BigInteger prevBalance = getBalance();
+        // During a re-org the balance isn't reported, so isn't worked out either.
+        BigInteger prevBalance = reorg ? null : getBalance();
 
         Sha256Hash txHash = tx.getHash();
 
@@ -1072,7 +1186,7 @@ public class Wallet implements Serializable, BlockChainListener {
         // If this transaction is already in the wallet we may need to move it into a different pool. At the very
         // least we need to ensure we're manipulating the canonical object rather than a duplicate.
         Transaction wtx;
-        if ((wtx = pending.remove(txHash)) != null) {
+        if ((wtx = removeFromPending(txHash)) != null) {
             // Make sure "tx" is always the canonical object we want to manipulate, send to event handlers, etc.
             tx = wtx;
 
@@ -1104,7 +1218,7 @@ public class Wallet implements Serializable, BlockChainListener {
                 if (alreadyPresent)
                     log.info("Saw a transaction be incorporated into multiple independent side chains");
                 // Put it back into the pending pool, because 'pending' means 'waiting to be included in best chain'.
-                pending.put(tx.getHash(), tx);
+                addToPending(tx);
             }
         } else {
             // This TX wasn't in the memory pool. It could be sending us coins and also spending our own coins if keys
@@ -1135,6 +1249,11 @@ public class Wallet implements Serializable, BlockChainListener {
             // Mark the tx as appearing in this block so we can find it later after a re-org. This also tells the tx
             // confidence object about the block and sets its work done/depth appropriately.
             tx.setBlockAppearance(block, bestChain);
+            // That can change the update time, which the time index needs to know about, and the block index needs
+            // to know about the block.
+            if (timeIndexEntries.containsKey(txHash))
+                indexUpdateTime(tx);
+            indexBlockAppearance(block.getHeader().getHash(), tx);
             if (bestChain) {
                 // Don't notify this tx of work done in notifyNewBestBlock which will be called immediately after
                 // this method has been called by BlockChain for all relevant transactions. Otherwise we'd double
@@ -1143,8 +1262,9 @@ public class Wallet implements Serializable, BlockChainListener {
             }
         }
         // Implements revision d64f55589694
-        BigInteger newBalance = getBalance();
-        log.info("Balance is now: " + litecoinValueToFriendlyString(getBalance()));
+        BigInteger newBalance = reorg ? null : getBalance();
+        if (!reorg)
+            log.info("Balance is now: " + litecoinValueToFriendlyString(newBalance));
 
         // Inform anyone interested that we have received or sent coins but only if:
         //  - This is not due to a re-org.
@@ -1173,7 +1293,9 @@ public class Wallet implements Serializable, BlockChainListener {
         // Wallet change notification will be sent shortly after the block is finished processing, in notifyNewBestBlock
         onWalletChangedSuppressions--;
 
-        checkState(isConsistent());
+        // A re-org checks the wallet once it has replayed all the blocks.
+        if (!reorg)
+            checkState(isConsistent());
         queueAutoSave();
     }
 
@@ -1212,6 +1334,44 @@ public class Wallet implements Serializable, BlockChainListener {
             }
             queueAutoSave();
             onWalletChangedSuppressions--;
+            maybeArchiveTransactions(block.getHeight(), block.getHeight());
+            invokeOnWalletChanged();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * <p>Called by the {@link BlockChain} when it extends the best chain by several headers at once. Does the same as
+     * calling {@link Wallet#notifyNewBestBlock(StoredBlock)} for each block, but transaction confidences are updated in
+     * one go and the wallet is saved and its listeners told about the change only once.</p>
+     */
+    public void notifyNewBestBlocks(List<StoredBlock> blocks) throws VerificationException {
+        if (blocks.isEmpty())
+            return;
+        StoredBlock last = blocks.get(blocks.size() - 1);
+        Sha256Hash newBlockHash = last.getHeader().getHash();
+        if (newBlockHash.equals(getLastBlockSeenHash()))
+            return;
+        List<Block> headers = new ArrayList<Block>(blocks.size());
+        for (StoredBlock block : blocks)
+            headers.add(block.getHeader());
+        lock.lock();
+        try {
+            setLastBlockSeenHash(newBlockHash);
+            setLastBlockSeenHeight(last.getHeight());
+            onWalletChangedSuppressions++;
+            Set<Transaction> transactions = getTransactions(true, false);
+            for (Transaction tx : transactions) {
+                // As in notifyNewBestBlock, a tx received in the first block already counted it.
+                if (ignoreNextNewBlock.remove(tx.getHash()))
+                    tx.getConfidence().notifyWorkDone(headers.subList(1, headers.size()));
+                else
+                    tx.getConfidence().notifyWorkDone(headers);
+            }
+            queueAutoSave();
+            onWalletChangedSuppressions--;
+            maybeArchiveTransactions(blocks.get(0).getHeight(), last.getHeight());
             invokeOnWalletChanged();
         } finally {
             lock.unlock();
@@ -1329,20 +1489,22 @@ public class Wallet implements Serializable, BlockChainListener {
         // didn't see arrive on the best chain yet. For instance, because of a chain replay or because of our keys were
         // used by another wallet somewhere else.
         if (fromChain) {
-            for (Transaction pendingTx : pending.values()) {
-                for (TransactionInput input : pendingTx.getInputs()) {
+            // The pending inputs spending each output are found in the index rather than by trying every pending input.
+            for (int i = 0; i < tx.getOutputs().size(); i++) {
+                for (TransactionInput input : getPendingSpends(new TransactionOutPoint(params, i, tx))) {
                     TransactionInput.ConnectionResult result = input.connect(tx, TransactionInput.ConnectMode.ABORT_ON_CONFLICT);
                     // This TX is supposed to have just appeared on the best chain, so its outputs should not be marked
                     // as spent yet. If they are, it means something is happening out of order.
                     checkState(result != TransactionInput.ConnectionResult.ALREADY_SPENT);
                     if (result == TransactionInput.ConnectionResult.SUCCESS) {
+                        Transaction pendingTx = input.getParentTransaction();
                         log.info("Connected pending tx input {}:{}",
                                 pendingTx.getHashAsString(), pendingTx.getInputs().indexOf(input));
                     }
                 }
-                // If the transactions outputs are now all spent, it will be moved into the spent pool by the
-                // processTxFromBestChain method.
             }
+            // If the transactions outputs are now all spent, it will be moved into the spent pool by the
+            // processTxFromBestChain method.
         }
     }
 
@@ -1354,7 +1516,7 @@ public class Wallet implements Serializable, BlockChainListener {
         log.warn("Saw double spend of {} from chain override pending tx {}",
                 overriddenOutPoint, killedTx.getHashAsString());
         log.warn("  <-pending ->dead   killed by {}", overridingTx.getHashAsString());
-        pending.remove(killedTx.getHash());
+        removeFromPending(killedTx.getHash());
         addWalletTransaction(Pool.DEAD, killedTx);
         log.info("Disconnecting inputs of the newly dead tx");
         for (TransactionInput deadInput : killedTx.getInputs()) {
@@ -1407,18 +1569,38 @@ public class Wallet implements Serializable, BlockChainListener {
 
     /**
      * Adds an event listener object. Methods on this object are called when something interesting happens,
-     * like receiving money.
+     * like receiving money. They are called on the thread that changed the wallet, which has to wait for them.
      */
     public void addEventListener(WalletEventListener listener) {
         eventListeners.add(listener);
     }
 
+    /**
+     * Adds an event listener whose methods are called by the given executor rather than the thread that changed the
+     * wallet, which then doesn't have to wait for them. Events are queued for the listener and delivered in order,
+     * and while it is behind, wallet changed events are merged into one, see {@link WalletEventQueue}.
+     *
+     * @return the queue the events go through, which tells how far behind the listener is.
+     */
+    public WalletEventQueue addEventListener(WalletEventListener listener, Executor executor) {
+        WalletEventQueue queue = new WalletEventQueue(listener, executor);
+        eventListeners.add(queue);
+        return queue;
+    }
+
     /**
      * Removes the given event listener object. Returns true if the listener was removed,
-     * false if that listener was never added.
+     * false if that listener was never added. Events already queued for a listener added with an executor are still
+     * delivered.
      */
     public boolean removeEventListener(WalletEventListener listener) {
-        return eventListeners.remove(listener);
+        if (eventListeners.remove(listener))
+            return true;
+        for (WalletEventListener registered : eventListeners) {
+            if (registered instanceof WalletEventQueue && ((WalletEventQueue) registered).getListener() == listener)
+                return eventListeners.remove(registered);
+        }
+        return false;
     }
 
     /**
@@ -1558,7 +1740,7 @@ public class Wallet implements Serializable, BlockChainListener {
                 Preconditions.checkState(spent.put(tx.getHash(), tx) == null);
                 break;
             case PENDING:
-                Preconditions.checkState(pending.put(tx.getHash(), tx) == null);
+                Preconditions.checkState(addToPending(tx));
                 break;
             case DEAD:
                 Preconditions.checkState(dead.put(tx.getHash(), tx) == null);
@@ -1567,17 +1749,311 @@ public class Wallet implements Serializable, BlockChainListener {
                 Preconditions.checkState(inactive.put(tx.getHash(), tx) == null);
                 break;
             case PENDING_INACTIVE:
-                Preconditions.checkState(pending.put(tx.getHash(), tx) == null);
+                Preconditions.checkState(addToPending(tx));
                 Preconditions.checkState(inactive.put(tx.getHash(), tx) == null);
                 break;
             default:
                 throw new RuntimeException("Unknown wallet transaction type " + pool);
         }
+        indexTransaction(tx);
         // This is safe even if the listener has been added before, as TransactionConfidence ignores duplicate
         // registration requests. That makes the code in the wallet simpler.
         tx.getConfidence().addEventListener(txConfidenceListener);
     }
 
+    //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    //
+    //  SECONDARY INDEXES
+    //
+    //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    private static class TimeIndexEntry {
+        final Transaction tx;
+        final long time;
+
+        TimeIndexEntry(Transaction tx) {
+            this.tx = tx;
+            this.time = tx.getUpdateTime().getTime();
+        }
+    }
+
+    // Most recent first, then by hash so that the order is total.
+    private static final Comparator<TimeIndexEntry> MOST_RECENT_FIRST = new Comparator<TimeIndexEntry>() {
+        public int compare(TimeIndexEntry a, TimeIndexEntry b) {
+            if (a.time != b.time)
+                return a.time > b.time ? -1 : 1;
+            return compareHashes(a.tx.getHash().getBytes(), b.tx.getHash().getBytes());
+        }
+    };
+
+    // The same order for the summaries of archived transactions.
+    private static final Comparator<TransactionSummary> SUMMARIES_MOST_RECENT_FIRST =
+            new Comparator<TransactionSummary>() {
+        public int compare(TransactionSummary a, TransactionSummary b) {
+            if (a.getUpdateTimeMillis() != b.getUpdateTimeMillis())
+                return a.getUpdateTimeMillis() > b.getUpdateTimeMillis() ? -1 : 1;
+            return compareHashes(a.getHash().getBytes(), b.getHash().getBytes());
+        }
+    };
+
+    private static int compareHashes(byte[] a, byte[] b) {
+        for (int i = 0; i < a.length; i++) {
+            int diff = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (diff != 0)
+                return diff;
+        }
+        return 0;
+    }
+
+    private void rebuildIndexes() {
+        relevanceIndex = new RelevanceSnapshot.Index();
+        for (Sha256Hash hash : archivedSummaries.keySet())
+            relevanceIndex.addTransaction(hash);
+        pendingSpends = new HashMap<TransactionOutPoint, List<TransactionInput>>();
+        for (Transaction tx : pending.values())
+            indexPendingInputs(tx);
+        transactionsByAddress = new HashMap<Address, Set<Transaction>>();
+        transactionsByTime = new TreeSet<TimeIndexEntry>(MOST_RECENT_FIRST);
+        timeIndexEntries = new HashMap<Sha256Hash, TimeIndexEntry>();
+        transactionsByBlock = new HashMap<Sha256Hash, Set<Transaction>>();
+        for (Transaction tx : getTransactions(true, true))
+            indexTransaction(tx);
+        indexedKeychain = null;
+        updateKeyIndexes();
+    }
+
+    /** Puts the transaction into the pending pool and indexes its inputs. Returns false if it was already there. */
+    private boolean addToPending(Transaction tx) {
+        Transaction previous = pending.put(tx.getHash(), tx);
+        if (previous == tx)
+            return false;
+        if (previous != null)
+            unindexPendingInputs(previous);
+        indexPendingInputs(tx);
+        return previous == null;
+    }
+
+    /** Removes the transaction from the pending pool and drops its inputs from the index. */
+    private Transaction removeFromPending(Sha256Hash hash) {
+        Transaction tx = pending.remove(hash);
+        if (tx != null)
+            unindexPendingInputs(tx);
+        return tx;
+    }
+
+    private void indexPendingInputs(Transaction tx) {
+        for (TransactionInput input : tx.getInputs()) {
+            relevanceIndex.addPendingSpend(input.getOutpoint());
+            List<TransactionInput> spends = pendingSpends.get(input.getOutpoint());
+            if (spends == null) {
+                // Almost always one input spends an output, unless pending transactions double spend each other.
+                spends = new ArrayList<TransactionInput>(1);
+                pendingSpends.put(input.getOutpoint(), spends);
+            }
+            spends.add(input);
+        }
+    }
+
+    private void unindexPendingInputs(Transaction tx) {
+        for (TransactionInput input : tx.getInputs()) {
+            relevanceIndex.pendingSpendRemoved();
+            List<TransactionInput> spends = pendingSpends.get(input.getOutpoint());
+            if (spends == null)
+                continue;
+            for (Iterator<TransactionInput> it = spends.iterator(); it.hasNext(); ) {
+                if (it.next() == input)
+                    it.remove();
+            }
+            if (spends.isEmpty())
+                pendingSpends.remove(input.getOutpoint());
+        }
+    }
+
+    /** Returns the inputs of pending transactions that spend the given outpoint. */
+    private List<TransactionInput> getPendingSpends(TransactionOutPoint outpoint) {
+        List<TransactionInput> spends = pendingSpends.get(outpoint);
+        return spends == null ? Collections.<TransactionInput>emptyList() : spends;
+    }
+
+    // Adds a transaction that has just entered the wallet to the address, time and block indexes.
+    private void indexTransaction(Transaction tx) {
+        relevanceIndex.addTransaction(tx.getHash());
+        indexUpdateTime(tx);
+        Collection<Sha256Hash> appearsIn = tx.getAppearsInHashes();
+        if (appearsIn != null) {
+            for (Sha256Hash blockHash : appearsIn)
+                indexBlockAppearance(blockHash, tx);
+        }
+        for (TransactionOutput output : tx.getOutputs()) {
+            try {
+                Script script = output.getScriptPubKey();
+                if (script.isSentToAddress())
+                    indexAddress(script.getToAddress(), tx);
+                else if (script.isSentToRawPubKey())
+                    indexAddress(new Address(params, Utils.sha256hash160(script.getPubKey())), tx);
+            } catch (ScriptException e) {
+                // Not a kind of output we understand, so it isn't indexed.
+            }
+        }
+        for (TransactionInput input : tx.getInputs()) {
+            if (input.isCoinBase())
+                continue;
+            try {
+                indexAddress(input.getFromAddress(), tx);
+            } catch (ScriptException e) {
+                // Not a kind of input we understand, so it isn't indexed.
+            }
+        }
+    }
+
+    private void indexAddress(Address address, Transaction tx) {
+        Set<Transaction> txns = transactionsByAddress.get(address);
+        if (txns == null) {
+            txns = new HashSet<Transaction>();
+            transactionsByAddress.put(address, txns);
+        }
+        txns.add(tx);
+    }
+
+    private void indexBlockAppearance(Sha256Hash blockHash, Transaction tx) {
+        Set<Transaction> txns = transactionsByBlock.get(blockHash);
+        if (txns == null) {
+            // Most blocks hold only one transaction of ours.
+            txns = new HashSet<Transaction>(2);
+            transactionsByBlock.put(blockHash, txns);
+        }
+        txns.add(tx);
+    }
+
+    // Files the transaction under its current update time, moving it if that has changed since it was last indexed.
+    private void indexUpdateTime(Transaction tx) {
+        TimeIndexEntry entry = timeIndexEntries.get(tx.getHash());
+        if (entry != null) {
+            if (entry.tx == tx && entry.time == tx.getUpdateTime().getTime())
+                return;
+            transactionsByTime.remove(entry);
+        }
+        entry = new TimeIndexEntry(tx);
+        timeIndexEntries.put(tx.getHash(), entry);
+        transactionsByTime.add(entry);
+    }
+
+    // Drops a transaction that has left the wallet from the time and block indexes. The address index is cleaned up
+    // lazily.
+    private void unindexTransaction(Transaction tx) {
+        relevanceIndex.transactionRemoved();
+        TimeIndexEntry entry = timeIndexEntries.remove(tx.getHash());
+        if (entry != null)
+            transactionsByTime.remove(entry);
+        Collection<Sha256Hash> appearsIn = tx.getAppearsInHashes();
+        if (appearsIn == null)
+            return;
+        for (Sha256Hash blockHash : appearsIn) {
+            Set<Transaction> txns = transactionsByBlock.get(blockHash);
+            if (txns != null && txns.remove(tx) && txns.isEmpty())
+                transactionsByBlock.remove(blockHash);
+        }
+    }
+
+    // Brings the key indexes up to date with the keychain, rebuilding them if it was replaced or modified directly. A
+    // list put in its place that isn't a Keychain can't tell us when it changes, so the indexes are always rebuilt.
+    private void updateKeyIndexes() {
+        if (indexedKeychain == keychain && keychain instanceof Keychain &&
+                indexedKeychainVersion == ((Keychain) keychain).getVersion())
+            return;
+        keysByPubKeyHash = new HashMap<ByteBuffer, ECKey>();
+        keysByPubKey = new HashMap<ByteBuffer, ECKey>();
+        relevanceIndex.clearKeys();
+        for (ECKey key : keychain)
+            indexKey(key);
+        indexedKeychain = keychain;
+        if (keychain instanceof Keychain)
+            indexedKeychainVersion = ((Keychain) keychain).getVersion();
+    }
+
+    private void indexKey(ECKey key) {
+        relevanceIndex.addKey(key);
+        // When there are duplicates the first one in the keychain wins, as it did when it was searched in order.
+        ByteBuffer hash = ByteBuffer.wrap(key.getPubKeyHash());
+        if (!keysByPubKeyHash.containsKey(hash))
+            keysByPubKeyHash.put(hash, key);
+        ByteBuffer pubKey = ByteBuffer.wrap(key.getPubKey());
+        if (!keysByPubKey.containsKey(pubKey))
+            keysByPubKey.put(pubKey, key);
+    }
+
+    // Adds a key to the keychain and the key indexes.
+    private void addToKeychain(ECKey key) {
+        updateKeyIndexes();
+        keychain.add(key);
+        indexKey(key);
+        if (keychain instanceof Keychain)
+            indexedKeychainVersion = ((Keychain) keychain).getVersion();
+    }
+
+    /**
+     * The list the keychain is kept in. It counts the changes made to it, however they are made, so that the key
+     * indexes can tell when they are out of date. It is serialized as a plain {@link ArrayList}.
+     */
+    private static class Keychain extends ArrayList<ECKey> {
+        private static final long serialVersionUID = 1L;
+        // ArrayList counts structural changes in modCount, but not replacing an element.
+        private int replacements;
+
+        Keychain() {
+        }
+
+        Keychain(Collection<? extends ECKey> keys) {
+            super(keys);
+        }
+
+        // Changes every time the list does.
+        int getVersion() {
+            return modCount + replacements;
+        }
+
+        @Override
+        public ECKey set(int index, ECKey key) {
+            replacements++;
+            return super.set(index, key);
+        }
+
+        @Override
+        public List<ECKey> subList(int fromIndex, int toIndex) {
+            // ArrayList's own view writes to the backing array directly. This one goes through the methods above.
+            return new AbstractList<ECKey>() {
+                @Override
+                public ECKey get(int index) {
+                    return Keychain.this.get(index);
+                }
+
+                @Override
+                public int size() {
+                    return Keychain.this.size();
+                }
+
+                @Override
+                public ECKey set(int index, ECKey key) {
+                    return Keychain.this.set(index, key);
+                }
+
+                @Override
+                public void add(int index, ECKey key) {
+                    Keychain.this.add(index, key);
+                }
+
+                @Override
+                public ECKey remove(int index) {
+                    return Keychain.this.remove(index);
+                }
+            }.subList(fromIndex, toIndex);
+        }
+
+        private Object writeReplace() {
+            return new ArrayList<ECKey>(this);
+        }
+    }
+
     /**
      * Returns all non-dead, active transactions ordered by recency.
      */
@@ -1589,34 +2065,80 @@ public class Wallet implements Serializable, BlockChainListener {
      * Returns an list of N transactions, ordered by increasing age. Transactions on side chains are not included.
      * Dead transactions (overridden by double spends) are optionally included. <p>
      * <p/>
-     * Note: the current implementation is O(num transactions in wallet). Regardless of how many transactions are
-     * requested, the cost is always the same. In future, requesting smaller numbers of transactions may be faster
-     * depending on how the wallet is implemented (eg if backed by a database).
+     * The wallet keeps its transactions in order of update time, so this takes time proportional to the number of
+     * transactions requested rather than to the size of the wallet. The wallet re-files a transaction whenever it
+     * changes its update time or confidence. If the update time of a transaction in the wallet is changed with
+     * {@link Transaction#setUpdateTime(java.util.Date)} by anything else, the wallet only notices when the
+     * transaction's confidence next changes or it is among those listed, so it may be out of order until then.
      */
     public List<Transaction> getRecentTransactions(int numTransactions, boolean includeDead) {
         lock.lock();
         try {
             checkArgument(numTransactions >= 0);
-            // Firstly, put all transactions into an array.
             int size = getPoolSize(Pool.UNSPENT) +
                     getPoolSize(Pool.SPENT) +
                     getPoolSize(Pool.PENDING);
             if (numTransactions > size || numTransactions == 0) {
                 numTransactions = size;
             }
-            ArrayList<Transaction> all = new ArrayList<Transaction>(getTransactions(includeDead, false));
-            // Order by date.
-            Collections.sort(all, Collections.reverseOrder(new Comparator<Transaction>() {
-                public int compare(Transaction t1, Transaction t2) {
-                    return t1.getUpdateTime().compareTo(t2.getUpdateTime());
+            ArrayList<Transaction> recent = new ArrayList<Transaction>(numTransactions);
+            boolean moved = false;
+            for (Iterator<TimeIndexEntry> it = transactionsByTime.iterator(); it.hasNext(); ) {
+                if (recent.size() == numTransactions)
+                    break;
+                TimeIndexEntry entry = it.next();
+                Transaction tx = entry.tx;
+                Sha256Hash hash = tx.getHash();
+                if (getTransaction(hash) != tx) {
+                    // It left the wallet without going through trim() or clearTransactions(), eg in a re-org.
+                    it.remove();
+                    timeIndexEntries.remove(hash);
+                    continue;
+                }
+                if (entry.time != tx.getUpdateTime().getTime())
+                    moved = true;
+                if (unspent.get(hash) == tx || spent.get(hash) == tx || pending.get(hash) == tx ||
+                        (includeDead && dead.get(hash) == tx)) {
+                    recent.add(tx);
                 }
-            }));
-            if (numTransactions == all.size()) {
-                return all;
-            } else {
-                all.subList(numTransactions, all.size()).clear();
-                return all;
             }
+            if (moved) {
+                // Somebody changed the update time of a transaction behind our back. Put them all where they belong
+                // now and try again.
+                log.info("Transaction update times changed outside the wallet, re-indexing");
+                for (Transaction tx : getTransactions(true, true))
+                    indexUpdateTime(tx);
+                return getRecentTransactions(numTransactions, includeDead);
+            }
+            return recent;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the transactions in the wallet that pay to, or spend from, the given address. Side chain and dead
+     * transactions are included, like {@link #getTransactions(boolean, boolean)} with both flags set.
+     */
+    public Set<Transaction> getTransactionsByAddress(Address address) {
+        lock.lock();
+        try {
+            Set<Transaction> txns = transactionsByAddress.get(address);
+            if (txns == null)
+                return new HashSet<Transaction>();
+            Set<Transaction> result = new HashSet<Transaction>(txns.size());
+            for (Iterator<Transaction> it = txns.iterator(); it.hasNext(); ) {
+                Transaction tx = it.next();
+                if (getTransaction(tx.getHash()) == tx) {
+                    result.add(tx);
+                } else {
+                    // It has left the wallet since it was indexed.
+                    it.remove();
+                }
+            }
+            if (txns.isEmpty())
+                transactionsByAddress.remove(address);
+            return result;
         } finally {
             lock.unlock();
         }
@@ -1659,6 +2181,9 @@ public class Wallet implements Serializable, BlockChainListener {
                 pending.clear();
                 inactive.clear();
                 dead.clear();
+                archivedSummaries.clear();
+                archivedByTime.clear();
+                rebuildIndexes();
                 queueAutoSave();
             } else {
                 throw new UnsupportedOperationException();
@@ -2201,9 +2726,10 @@ public class Wallet implements Serializable, BlockChainListener {
         int added = 0;
         lock.lock();
         try {
-            // TODO: Consider making keys a sorted list or hashset so membership testing is faster.
+            updateKeyIndexes();
             for (final ECKey key : keys) {
-                if (keychain.contains(key)) continue;
+                // Keys are equal if their public keys are, so this finds duplicates without searching the keychain.
+                if (keysByPubKey.containsKey(ByteBuffer.wrap(key.getPubKey()))) continue;
 
                 // If the key has a keyCrypter that does not match the Wallet's then a KeyCrypterException is thrown.
                 // This is done because only one keyCrypter is persisted per Wallet and hence all the keys must be homogenous.
@@ -2212,7 +2738,7 @@ public class Wallet implements Serializable, BlockChainListener {
                         throw new KeyCrypterException("Cannot add key " + key.toString() + " because the keyCrypter does not match the wallets. Keys must be homogenous.");
                     }
                 }
-                keychain.add(key);
+                addToKeychain(key);
                 added++;
             }
             if (autosaveToFile != null) {
@@ -2231,6 +2757,71 @@ public class Wallet implements Serializable, BlockChainListener {
         return added;
     }
 
+    /**
+     * Sets the pool that {@link #freshKey()} and {@link #freshAddress()} take keys from, or null to generate keys as
+     * they are needed, and queues a refill of it. The pool is saved with the wallet. As pooled keys aren't encrypted,
+     * it isn't used while the wallet is encrypted, and encrypting the wallet empties it.
+     */
+    public void setKeyPool(KeyPool keyPool) {
+        lock.lock();
+        try {
+            this.keyPool = keyPool;
+            if (keyPool != null && getEncryptionType() == EncryptionType.UNENCRYPTED)
+                keyPool.refill();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the pool set with {@link #setKeyPool(KeyPool)}, or null if there is none. */
+    public KeyPool getKeyPool() {
+        lock.lock();
+        try {
+            return keyPool;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds a new key to the wallet and returns it, taking it from the {@link KeyPool} if there is one so that this is
+     * quick. Triggers an auto save and the onKeyAdded event like {@link #addKey(ECKey)}. Encrypted wallets must use
+     * {@link #addNewEncryptedKey(com.google.goldcoin.crypto.KeyCrypter, org.spongycastle.crypto.params.KeyParameter)}
+     * instead.
+     */
+    public ECKey freshKey() {
+        return addFreshKey().key;
+    }
+
+    /**
+     * Adds a new key to the wallet like {@link #freshKey()} and returns its address, which for pooled keys was worked
+     * out in the background already.
+     */
+    public Address freshAddress() {
+        return addFreshKey().address;
+    }
+
+    private KeyPool.PooledKey addFreshKey() {
+        KeyPool.PooledKey pooled;
+        lock.lock();
+        try {
+            checkState(getEncryptionType() == EncryptionType.UNENCRYPTED,
+                    "Wallet is encrypted, use addNewEncryptedKey() instead");
+            pooled = keyPool != null ? keyPool.take() : new KeyPool.PooledKey(params, new ECKey());
+            // The key was just generated from fresh randomness, so there's no need to look for it in the keychain.
+            addToKeychain(pooled.key);
+            if (autosaveToFile != null) {
+                autoSave();
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (WalletEventListener listener : eventListeners) {
+            listener.onKeyAdded(pooled.key);
+        }
+        return pooled;
+    }
+
     /**
      * Locates a keypair from the keychain given the hash of the public key. This is needed when finding out which
      * key we need to use to redeem a transaction output.
@@ -2240,22 +2831,21 @@ public class Wallet implements Serializable, BlockChainListener {
     public ECKey findKeyFromPubHash(byte[] pubkeyHash) {
         lock.lock();
         try {
-            for (ECKey key : keychain) {
-                if (Arrays.equals(key.getPubKeyHash(), pubkeyHash)) return key;
-            }
-            return null;
+            updateKeyIndexes();
+            return keysByPubKeyHash.get(ByteBuffer.wrap(pubkeyHash));
         } finally {
             lock.unlock();
         }
     }
 
     /**
-     * Returns true if the given key is in the wallet, false otherwise. Currently an O(N) operation.
+     * Returns true if the given key is in the wallet, false otherwise.
      */
     public boolean hasKey(ECKey key) {
         lock.lock();
         try {
-            return keychain.contains(key);
+            updateKeyIndexes();
+            return keysByPubKey.containsKey(ByteBuffer.wrap(key.getPubKey()));
         } finally {
             lock.unlock();
         }
@@ -2276,10 +2866,8 @@ public class Wallet implements Serializable, BlockChainListener {
     public ECKey findKeyFromPubKey(byte[] pubkey) {
         lock.lock();
         try {
-            for (ECKey key : keychain) {
-                if (Arrays.equals(key.getPubKey(), pubkey)) return key;
-            }
-            return null;
+            updateKeyIndexes();
+            return keysByPubKey.get(ByteBuffer.wrap(pubkey));
         } finally {
             lock.unlock();
         }
@@ -2461,11 +3049,16 @@ public class Wallet implements Serializable, BlockChainListener {
             //
             // The reorganize functionality of the wallet is tested in ChainSplitTests.
             //
-            // For each transaction we track which blocks they appeared in. Once a re-org takes place we have to find all
-            // transactions in the old branch, all transactions in the new branch and find the difference of those sets.
+            // For each transaction we track which blocks they appeared in, and index the transactions by block. Once a
+            // re-org takes place we look up the transactions in the old branch and in the new branch, and only those,
+            // their parents and the pending transactions are moved around. The rest of the wallet only has its depth
+            // and work done adjusted.
             //
             // receive() has been called on the block that is triggering the re-org before this is called.
 
+            // Archived transactions are left alone unless the re-org goes deep enough to undo them.
+            restoreArchivedTransactions(splitPoint.getHeight());
+
             List<Sha256Hash> oldBlockHashes = new ArrayList<Sha256Hash>(oldBlocks.size());
             List<Sha256Hash> newBlockHashes = new ArrayList<Sha256Hash>(newBlocks.size());
             log.info("Old part of chain (top to bottom):");
@@ -2480,53 +3073,12 @@ public class Wallet implements Serializable, BlockChainListener {
             }
 
             // Transactions that appear in the old chain segment.
-            Map<Sha256Hash, Transaction> oldChainTransactions = new HashMap<Sha256Hash, Transaction>();
-            // Transactions that appear in the old chain segment and NOT the new chain segment.
-            Map<Sha256Hash, Transaction> onlyOldChainTransactions = new HashMap<Sha256Hash, Transaction>();
+            Map<Sha256Hash, Transaction> oldChainTransactions = getTransactionsInBlocks(oldBlockHashes);
             // Transactions that appear in the new chain segment.
-            Map<Sha256Hash, Transaction> newChainTransactions = new HashMap<Sha256Hash, Transaction>();
-            // Transactions that don't appear in either the new or the old section, ie, the shared trunk.
-            Map<Sha256Hash, Transaction> commonChainTransactions = new HashMap<Sha256Hash, Transaction>();
-
-            Map<Sha256Hash, Transaction> all = new HashMap<Sha256Hash, Transaction>();
-            all.putAll(unspent);
-            all.putAll(spent);
-            all.putAll(inactive);
-
-            // Dead coinbase transactions are potentially resurrected so added to the list of tx to process.
-            for (Transaction tx : dead.values()) {
-                if (tx.isCoinBase()) {
-                    all.put(tx.getHash(), tx);
-                }
-            }
-
-            for (Transaction tx : all.values()) {
-                Collection<Sha256Hash> appearsIn = tx.getAppearsInHashes();
-                checkNotNull(appearsIn);
-                // If the set of blocks this transaction appears in is disjoint with one of the chain segments it means
-                // the transaction was never incorporated by a miner into that side of the chain.
-                boolean inOldSection = !Collections.disjoint(appearsIn, oldBlockHashes);
-                boolean inNewSection = !Collections.disjoint(appearsIn, newBlockHashes);
-                boolean inCommonSection = !inNewSection && !inOldSection;
-
-                if (inCommonSection) {
-                    boolean alreadyPresent = commonChainTransactions.put(tx.getHash(), tx) != null;
-                    checkState(!alreadyPresent, "Transaction appears twice in common chain segment");
-                } else {
-                    if (inOldSection) {
-                        boolean alreadyPresent = oldChainTransactions.put(tx.getHash(), tx) != null;
-                        checkState(!alreadyPresent, "Transaction appears twice in old chain segment");
-                        if (!inNewSection) {
-                            alreadyPresent = onlyOldChainTransactions.put(tx.getHash(), tx) != null;
-                            checkState(!alreadyPresent, "Transaction appears twice in only-old map");
-                        }
-                    }
-                    if (inNewSection) {
-                        boolean alreadyPresent = newChainTransactions.put(tx.getHash(), tx) != null;
-                        checkState(!alreadyPresent, "Transaction appears twice in new chain segment");
-                    }
-                }
-            }
+            Map<Sha256Hash, Transaction> newChainTransactions = getTransactionsInBlocks(newBlockHashes);
+            // Transactions that appear in the old chain segment and NOT the new chain segment.
+            Map<Sha256Hash, Transaction> onlyOldChainTransactions = new HashMap<Sha256Hash, Transaction>(oldChainTransactions);
+            onlyOldChainTransactions.keySet().removeAll(newChainTransactions.keySet());
 
             // If there is no difference it means we have nothing we need to do and the user does not care.
             boolean affectedUs = !oldChainTransactions.equals(newChainTransactions);
@@ -2537,45 +3089,31 @@ public class Wallet implements Serializable, BlockChainListener {
             // user from modifying wallet contents (eg, trying to spend) whilst we're in the middle of the process.
             onWalletChangedSuppressions++;
 
-            // For simplicity we will reprocess every transaction to ensure it's in the right bucket and has the right
-            // connections. Attempting to update each one with minimal work is possible but complex and was leading to
-            // edge cases that were hard to fix. As re-orgs are rare the amount of work this implies should be manageable
-            // unless the user has an enormous wallet. As an optimization fully spent transactions buried deeper than
-            // 1000 blocks could be put into yet another bucket which we never touch and assume re-orgs cannot affect.
-
             for (Transaction tx : onlyOldChainTransactions.values()) log.info("  Only Old: {}", tx.getHashAsString());
             for (Transaction tx : oldChainTransactions.values()) log.info("  Old: {}", tx.getHashAsString());
             for (Transaction tx : newChainTransactions.values()) log.info("  New: {}", tx.getHashAsString());
 
-            // Break all the existing connections.
-            for (Transaction tx : all.values())
-                tx.disconnectInputs();
+            // Break the connections of the transactions in either segment and of the pending transactions, which are
+            // the only ones that can spend outputs of transactions in either segment. Transactions in the common part
+            // of the chain stay connected to each other.
+            Map<Sha256Hash, Transaction> chainTransactions = new HashMap<Sha256Hash, Transaction>(oldChainTransactions);
+            chainTransactions.putAll(newChainTransactions);
+            Set<Transaction> disconnectedParents = new HashSet<Transaction>();
+            for (Transaction tx : chainTransactions.values())
+                disconnectInputs(tx, disconnectedParents);
             for (Transaction tx : pending.values())
-                tx.disconnectInputs();
-            // Reconnect the transactions in the common part of the chain.
-            for (Transaction tx : commonChainTransactions.values()) {
-                TransactionInput badInput = tx.connectForReorganize(all);
-                checkState(badInput == null, "Failed to connect %s, %s", tx.getHashAsString(),
-                        badInput == null ? "" : badInput.toString());
-            }
-            // Recalculate the unspent/spent buckets for the transactions the re-org did not affect.
-            log.info("Moving transactions");
-            unspent.clear();
-            spent.clear();
-            inactive.clear();
-            for (Transaction tx : commonChainTransactions.values()) {
-                int unspentOutputs = 0;
-                for (TransactionOutput output : tx.getOutputs()) {
-                    if (output.isAvailableForSpending() && output.isMine(this)) unspentOutputs++;
-                }
-                if (unspentOutputs > 0) {
-                    log.info("  TX {} ->unspent", tx.getHashAsString());
-                    unspent.put(tx.getHash(), tx);
-                } else {
-                    log.info("  TX {} ->spent", tx.getHashAsString());
-                    spent.put(tx.getHash(), tx);
-                }
+                disconnectInputs(tx, disconnectedParents);
+            // Take the transactions in either segment out of their pools, they are put back as the new blocks are
+            // replayed or the ones left over are reprocessed. Dead coinbases stay where they are.
+            for (Sha256Hash hash : chainTransactions.keySet()) {
+                unspent.remove(hash);
+                spent.remove(hash);
+                inactive.remove(hash);
             }
+            // Recalculate the unspent/spent buckets of the transactions whose outputs were spent by those.
+            log.info("Moving transactions");
+            for (Transaction tx : disconnectedParents)
+                maybeMovePool(tx, "reorg");
 
             // Inform all transactions that exist only in the old chain that they have moved, so they can update confidence
             // and timestamps. Transactions will be told they're on the new best chain when the blocks are replayed.
@@ -2586,14 +3124,8 @@ public class Wallet implements Serializable, BlockChainListener {
                 // These transactions are no longer valid.
                 if (tx.isCoinBase()) {
                     // Move the transaction to the dead pool.
-                    if (unspent.containsKey(tx.getHash())) {
-                        log.info("  coinbase tx {} unspent->dead", tx.getHashAsString());
-                        unspent.remove(tx.getHash());
-                    } else if (spent.containsKey(tx.getHash())) {
-                        log.info("  coinbase tx {} spent->dead", tx.getHashAsString());
-                        // TODO Remove any dependent child transactions of the just removed coinbase transaction.
-                        spent.remove(tx.getHash());
-                    }
+                    log.info("  coinbase tx {} ->dead", tx.getHashAsString());
+                    // TODO Remove any dependent child transactions of the just removed coinbase transaction.
                     dead.put(tx.getHash(), tx);
 
                     // Set transaction confidence to dead and notify listeners.
@@ -2601,57 +3133,64 @@ public class Wallet implements Serializable, BlockChainListener {
                 }
             }
 
+            // The old blocks have contributed to the depth and work done for all the transactions in the wallet that
+            // are in blocks up to and including the chain split block, and the new blocks will do instead. Rather than
+            // subtracting one and replaying the other block by block, the difference is applied in one go, so
+            // confidence listeners run once per transaction.
+            BigInteger oldWork = BigInteger.ZERO;
+            for (StoredBlock b : oldBlocks)
+                oldWork = oldWork.add(b.getHeader().getWork());
+            BigInteger newWork = BigInteger.ZERO;
+            for (StoredBlock b : newBlocks)
+                newWork = newWork.add(b.getHeader().getWork());
+            int depthChange = newBlocks.size() - oldBlocks.size();
+            BigInteger workChange = newWork.subtract(oldWork);
+            log.info("Depth changes by {}, work done by {}", depthChange, workChange);
+            // The transactions in either segment have left these pools, so this only touches the common part.
+            for (Transaction tx : spent.values())
+                tx.getConfidence().notifyReorganized(depthChange, workChange);
+            for (Transaction tx : unspent.values())
+                tx.getConfidence().notifyReorganized(depthChange, workChange);
+            for (Transaction tx : dead.values())
+                tx.getConfidence().notifyReorganized(depthChange, workChange);
+
             // Now replay the act of receiving the blocks that were previously in a side chain. This will:
             //   - Move any transactions that were pending and are now accepted into the right bucket.
             //   - Connect the newly active transactions.
 
             Collections.reverse(newBlocks);  // Need bottom-to-top but we get top-to-bottom.
-
-            // The old blocks have contributed to the depth and work done for all the transactions in the
-            // wallet that are in blocks up to and including the chain split block.
-            // The total depth and work done is calculated here and then subtracted from the appropriate transactions.
-            int depthToSubtract = oldBlocks.size();
-
-            BigInteger workDoneToSubtract = BigInteger.ZERO;
-            for (StoredBlock b : oldBlocks) {
-                workDoneToSubtract = workDoneToSubtract.add(b.getHeader().getWork());
-            }
-            log.info("DepthToSubtract = " + depthToSubtract + ", workDoneToSubtract = " + workDoneToSubtract);
-
-            // Remove depthToSubtract and workDoneToSubtract from all transactions in the wallet except for pending and inactive
-            // (i.e. the transactions in the two chains of blocks we are reorganising).
-            subtractDepthAndWorkDone(depthToSubtract, workDoneToSubtract, spent.values());
-            subtractDepthAndWorkDone(depthToSubtract, workDoneToSubtract, unspent.values());
-            subtractDepthAndWorkDone(depthToSubtract, workDoneToSubtract, dead.values());
-
-            // The effective last seen block is now the split point so set the lastSeenBlockHash.
-            setLastBlockSeenHash(splitPoint.getHeader().getHash());
-
+            List<Block> newHeaders = new ArrayList<Block>(newBlocks.size());
+            // The transactions received from each new block, by the index of the block in newHeaders.
+            Map<Transaction, Integer> replayed = new HashMap<Transaction, Integer>();
             for (StoredBlock b : newBlocks) {
                 log.info("Replaying block {}", b.getHeader().getHashAsString());
-                // Replay means: find the transactions that should be in that block, send them to the wallet, inform of
-                // new best block, repeat.
-                Set<Transaction> txns = new HashSet<Transaction>();
                 Sha256Hash blockHash = b.getHeader().getHash();
                 for (Transaction tx : newChainTransactions.values()) {
-                    if (tx.getAppearsInHashes().contains(blockHash)) {
-                        txns.add(tx);
-                        log.info("  containing tx {}", tx.getHashAsString());
-                    }
-                }
-
-                if (!txns.isEmpty()) {
-                    // Add the transactions to the new blocks.
-                    for (Transaction t : txns) {
-                        try {
-                            receive(t, b, BlockChain.NewBlockType.BEST_CHAIN, true);
-                        } catch (ScriptException e) {
-                            throw new RuntimeException(e);  // Cannot happen as these blocks were already verified.
-                        }
+                    if (!tx.getAppearsInHashes().contains(blockHash))
+                        continue;
+                    log.info("  containing tx {}", tx.getHashAsString());
+                    try {
+                        receive(tx, b, BlockChain.NewBlockType.BEST_CHAIN, true);
+                    } catch (ScriptException e) {
+                        throw new RuntimeException(e);  // Cannot happen as these blocks were already verified.
                     }
+                    replayed.put(tx, newHeaders.size());
                 }
-                notifyNewBestBlock(b);
+                newHeaders.add(b.getHeader());
+            }
+            // receive() set up each replayed transaction as if its block was the best one, so it still has to be told
+            // about the new blocks above it.
+            for (Map.Entry<Transaction, Integer> entry : replayed.entrySet()) {
+                Transaction tx = entry.getKey();
+                ignoreNextNewBlock.remove(tx.getHash());
+                tx.getConfidence().notifyWorkDone(newHeaders.subList(entry.getValue() + 1, newHeaders.size()));
             }
+            if (!newBlocks.isEmpty()) {
+                StoredBlock newTop = newBlocks.get(newBlocks.size() - 1);
+                setLastBlockSeenHash(newTop.getHeader().getHash());
+                setLastBlockSeenHeight(newTop.getHeight());
+            }
+            queueAutoSave();
 
             // Find the transactions that didn't make it into the new chain yet. For each input, try to connect it to the
             // transactions that are in {spent,unspent,pending}. Check the status of each input. For inactive
@@ -2659,13 +3198,13 @@ public class Wallet implements Serializable, BlockChainListener {
             // another re-org or re-inclusion into the main chain. For inactive transactions where we spent money we must
             // put them back into the pending pool if we can reconnect them, so we don't create a double spend whilst the
             // network heals itself.
-            Map<Sha256Hash, Transaction> pool = new HashMap<Sha256Hash, Transaction>();
-            pool.putAll(unspent);
-            pool.putAll(spent);
-            pool.putAll(pending);
+            List<Transaction> deadTransactions = new ArrayList<Transaction>(dead.values());
             Map<Sha256Hash, Transaction> toReprocess = new HashMap<Sha256Hash, Transaction>();
             toReprocess.putAll(onlyOldChainTransactions);
             toReprocess.putAll(pending);
+            Map<Sha256Hash, Transaction> pool = new HashMap<Sha256Hash, Transaction>();
+            addConnectableParents(deadTransactions, pool);
+            addConnectableParents(toReprocess.values(), pool);
             log.info("Reprocessing transactions not in new best chain:");
             // Note, we must reprocess dead transactions first. The reason is that if there is a double spend across
             // chains from our own coins we get a complicated situation:
@@ -2678,14 +3217,26 @@ public class Wallet implements Serializable, BlockChainListener {
             //    dead instead of pending.
             //
             // This only occurs when we are double spending our own coins.
-            for (Transaction tx : dead.values()) {
+            for (Transaction tx : deadTransactions) {
                 reprocessUnincludedTxAfterReorg(pool, tx);
             }
             for (Transaction tx : toReprocess.values()) {
                 reprocessUnincludedTxAfterReorg(pool, tx);
             }
 
-            log.info("post-reorg balance is {}", Utils.litecoinValueToFriendlyString(getBalance()));
+            if (archive != null) {
+                List<Transaction> reconnected = new ArrayList<Transaction>(chainTransactions.values());
+                reconnected.addAll(pending.values());
+                try {
+                    connectArchivedParents(reconnected);
+                } catch (IOException e) {
+                    log.error("Could not reconnect transactions spending archived ones after re-org", e);
+                }
+            }
+
+            // Working out the balance means going through every unspent output, so is only done if it gets logged.
+            if (log.isInfoEnabled())
+                log.info("post-reorg balance is {}", Utils.litecoinValueToFriendlyString(getBalance()));
             // Inform event listeners that a re-org took place. They should save the wallet at this point.
             invokeOnReorganize();
             onWalletChangedSuppressions--;
@@ -2696,15 +3247,49 @@ public class Wallet implements Serializable, BlockChainListener {
         }
     }
 
-    /**
-     * Subtract the supplied depth and work done from the given transactions.
-     */
-    private static void subtractDepthAndWorkDone(int depthToSubtract, BigInteger workDoneToSubtract,
-                                                 Collection<Transaction> transactions) {
-        for (Transaction tx : transactions) {
-            if (tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING) {
-                tx.getConfidence().setDepthInBlocks(tx.getConfidence().getDepthInBlocks() - depthToSubtract);
-                tx.getConfidence().setWorkDone(tx.getConfidence().getWorkDone().subtract(workDoneToSubtract));
+    // Returns the transactions that appeared in any of the given blocks and that a re-org may have to move: those in
+    // the unspent, spent and inactive pools, and dead coinbases, which it may bring back to life.
+    private Map<Sha256Hash, Transaction> getTransactionsInBlocks(List<Sha256Hash> blockHashes) {
+        Map<Sha256Hash, Transaction> result = new HashMap<Sha256Hash, Transaction>();
+        for (Sha256Hash blockHash : blockHashes) {
+            Set<Transaction> txns = transactionsByBlock.get(blockHash);
+            if (txns == null)
+                continue;
+            for (Iterator<Transaction> it = txns.iterator(); it.hasNext(); ) {
+                Transaction tx = it.next();
+                Sha256Hash hash = tx.getHash();
+                if (getTransaction(hash) != tx) {
+                    // It has left the wallet since it was indexed.
+                    it.remove();
+                } else if (unspent.get(hash) == tx || spent.get(hash) == tx || inactive.get(hash) == tx ||
+                        (tx.isCoinBase() && dead.get(hash) == tx)) {
+                    result.put(hash, tx);
+                }
+            }
+            if (txns.isEmpty())
+                transactionsByBlock.remove(blockHash);
+        }
+        return result;
+    }
+
+    // Disconnects the inputs of the transaction, adding the transactions they were connected to to the given set.
+    private static void disconnectInputs(Transaction tx, Set<Transaction> parents) {
+        for (TransactionInput input : tx.getInputs()) {
+            TransactionOutput connected = input.getConnectedOutput();
+            if (connected != null && input.disconnect())
+                parents.add(connected.parentTransaction);
+        }
+    }
+
+    // Adds the transactions in the unspent, spent and pending pools that the given ones spend to the given pool.
+    private void addConnectableParents(Collection<Transaction> txns, Map<Sha256Hash, Transaction> pool) {
+        for (Transaction tx : txns) {
+            for (TransactionInput input : tx.getInputs()) {
+                Sha256Hash hash = input.getOutpoint().getHash();
+                Transaction parent;
+                if ((parent = unspent.get(hash)) != null || (parent = spent.get(hash)) != null ||
+                        (parent = pending.get(hash)) != null)
+                    pool.put(hash, parent);
             }
         }
     }
@@ -2743,7 +3328,7 @@ public class Wallet implements Serializable, BlockChainListener {
                 TransactionOutput doubleSpent = input.getConnectedOutput(pool);
                 Transaction replacement = doubleSpent.getSpentBy().getParentTransaction();
                 dead.put(tx.getHash(), tx);
-                pending.remove(tx.getHash());
+                removeFromPending(tx.getHash());
                 // This updates the tx confidence type automatically.
                 tx.getConfidence().setOverridingTransaction(replacement);
                 break;
@@ -2759,7 +3344,7 @@ public class Wallet implements Serializable, BlockChainListener {
         } else if (success == numInputs - noSuchTx) {
             // All inputs are either valid for spending or don't come from us. Miners are trying to reinclude it.
             log.info("   ->pending", tx.getHashAsString() + ", confidence = " + tx.getConfidence().getConfidenceType().name());
-            pending.put(tx.getHash(), tx);
+            addToPending(tx);
             dead.remove(tx.getHash());
         }
 
@@ -2874,33 +3459,37 @@ public class Wallet implements Serializable, BlockChainListener {
      * @param aesKey     AES key to use (normally created using KeyCrypter#deriveKey and cached as it is time consuming to create from a password)
      * @throws KeyCrypterException Thrown if the wallet encryption fails. If so, the wallet state is unchanged.
      */
-    public void encrypt(KeyCrypter keyCrypter, KeyParameter aesKey) {
+    public void encrypt(final KeyCrypter keyCrypter, final KeyParameter aesKey) {
         lock.lock();
         try {
             checkNotNull(keyCrypter);
             checkState(getEncryptionType() == EncryptionType.UNENCRYPTED, "Wallet is already encrypted");
-            // Create a new arraylist that will contain the encrypted keys
-            ArrayList<ECKey> encryptedKeyChain = new ArrayList<ECKey>();
-            for (ECKey key : keychain) {
-                if (key.isEncrypted()) {
-                    // Key is already encrypted - add as is.
-                    encryptedKeyChain.add(key);
-                } else {
-                    // Encrypt the key.
-                    ECKey encryptedKey = key.encrypt(keyCrypter, aesKey);
-
-                    // Check that the encrypted key can be successfully decrypted.
-                    // This is done as it is a critical failure if the private key cannot be decrypted successfully
-                    // (all goldcoin controlled by that private key is lost forever).
-                    // For a correctly constructed keyCrypter the encryption should always be reversible so it is just being as cautious as possible.
-                    if (!ECKey.encryptionIsReversible(key, encryptedKey, keyCrypter, aesKey)) {
-                        // Abort encryption
-                        throw new KeyCrypterException("The key " + key.toString() + " cannot be successfully decrypted after encryption so aborting wallet encryption.");
+            // Create a new arraylist that will contain the encrypted keys. Each key is encrypted and checked
+            // independently of the others, so this is spread across all cores.
+            List<Callable<ECKey>> tasks = new ArrayList<Callable<ECKey>>(keychain.size());
+            for (final ECKey key : keychain) {
+                tasks.add(new Callable<ECKey>() {
+                    public ECKey call() {
+                        if (key.isEncrypted()) {
+                            // Key is already encrypted - add as is.
+                            return key;
+                        }
+                        // Encrypt the key.
+                        ECKey encryptedKey = key.encrypt(keyCrypter, aesKey);
+
+                        // Check that the encrypted key can be successfully decrypted.
+                        // This is done as it is a critical failure if the private key cannot be decrypted successfully
+                        // (all goldcoin controlled by that private key is lost forever).
+                        // For a correctly constructed keyCrypter the encryption should always be reversible so it is just being as cautious as possible.
+                        if (!ECKey.encryptionIsReversible(key, encryptedKey, keyCrypter, aesKey)) {
+                            // Abort encryption
+                            throw new KeyCrypterException("The key " + key.toString() + " cannot be successfully decrypted after encryption so aborting wallet encryption.");
+                        }
+                        return encryptedKey;
                     }
-
-                    encryptedKeyChain.add(encryptedKey);
-                }
+                });
             }
+            ArrayList<ECKey> encryptedKeyChain = new Keychain(ParallelTasks.runAll(tasks));
 
             // Now ready to use the encrypted keychain so go through the old keychain clearing all the unencrypted private keys.
             // (This is to avoid the possibility of key recovery from memory).
@@ -2916,6 +3505,12 @@ public class Wallet implements Serializable, BlockChainListener {
             // The wallet is now encrypted.
             this.keyCrypter = keyCrypter;
 
+            // The pooled keys can't be kept unencrypted, and new ones would have to be encrypted as they are handed
+            // out, which needs the AES key. So the pool is not used while the wallet is encrypted.
+            if (keyPool != null) {
+                keyPool.clear();
+            }
+
             if (autosaveToFile != null) {
                 autoSave();
             }
@@ -2930,7 +3525,7 @@ public class Wallet implements Serializable, BlockChainListener {
      * @param aesKey AES key to use (normally created using KeyCrypter#deriveKey and cached as it is time consuming to create from a password)
      * @throws KeyCrypterException Thrown if the wallet decryption fails. If so, the wallet state is unchanged.
      */
-    public void decrypt(KeyParameter aesKey) {
+    public void decrypt(final KeyParameter aesKey) {
         lock.lock();
         try {
             // Check the wallet is already encrypted - you cannot decrypt an unencrypted wallet.
@@ -2939,25 +3534,31 @@ public class Wallet implements Serializable, BlockChainListener {
             // This is set either at construction (if an encrypted wallet is created) or by wallet encryption.
             checkNotNull(keyCrypter);
 
-            // Create a new arraylist that will contain the decrypted keys
-            ArrayList<ECKey> decryptedKeyChain = new ArrayList<ECKey>();
-
-            for (ECKey key : keychain) {
-                // Decrypt the key.
-                if (!key.isEncrypted()) {
-                    // Not encrypted - add to chain as is.
-                    decryptedKeyChain.add(key);
-                } else {
-                    ECKey decryptedECKey = key.decrypt(keyCrypter, aesKey);
-                    decryptedKeyChain.add(decryptedECKey);
-                }
+            // Create a new arraylist that will contain the decrypted keys, decrypting them across all cores.
+            final KeyCrypter crypter = keyCrypter;
+            List<Callable<ECKey>> tasks = new ArrayList<Callable<ECKey>>(keychain.size());
+            for (final ECKey key : keychain) {
+                tasks.add(new Callable<ECKey>() {
+                    public ECKey call() {
+                        // Decrypt the key.
+                        if (!key.isEncrypted()) {
+                            // Not encrypted - add to chain as is.
+                            return key;
+                        }
+                        return key.decrypt(crypter, aesKey);
+                    }
+                });
             }
+            ArrayList<ECKey> decryptedKeyChain = new Keychain(ParallelTasks.runAll(tasks));
 
             // Replace the old keychain with the unencrypted one.
             keychain = decryptedKeyChain;
 
             // The wallet is now unencrypted.
             keyCrypter = null;
+            if (keyPool != null) {
+                keyPool.refill();
+            }
 
             if (autosaveToFile != null) {
                 autoSave();
@@ -3171,10 +3772,7 @@ public class Wallet implements Serializable, BlockChainListener {
         BloomFilter filter = new BloomFilter(size, falsePositiveRate, nTweak);
         lock.lock();
         try {
-            for (ECKey key : keychain) {
-                filter.insert(key.getPubKey());
-                filter.insert(key.getPubKeyHash());
-            }
+            filter.insertAll(getBloomFilterElements(keychain));
         } finally {
             lock.unlock();
         }
@@ -3194,6 +3792,20 @@ public class Wallet implements Serializable, BlockChainListener {
         return filter;
     }
 
+    /**
+     * Returns the elements that {@link Wallet#getBloomFilter(int, double, long)} inserts for the given keys: the public
+     * key and its hash for each of them. This lets a filter that was already built pick up newly added keys without
+     * being rebuilt from the whole wallet.
+     */
+    public static List<byte[]> getBloomFilterElements(Collection<ECKey> keys) {
+        List<byte[]> elements = new ArrayList<byte[]>(keys.size() * 2);
+        for (ECKey key : keys) {
+            elements.add(key.getPubKey());
+            elements.add(key.getPubKeyHash());
+        }
+        return elements;
+    }
+
     /**
      * Returns the {@link CoinSelector} object which controls which outputs can be spent by this wallet.
      */
@@ -3344,8 +3956,10 @@ public class Wallet implements Serializable, BlockChainListener {
             }
 
             // Evict transactions from spent pool. Keep pending and dead for now.
-            for (final Transaction tx : candidates)
+            for (final Transaction tx : candidates) {
                 spent.remove(tx.getHash());
+                unindexTransaction(tx);
+            }
 
             queueAutoSave();
 
@@ -3356,6 +3970,379 @@ public class Wallet implements Serializable, BlockChainListener {
             lock.unlock();
         }
     }
+
+    /**
+     * <p>Sets the archive that fully spent transactions buried at least {@link #DEFAULT_ARCHIVE_DEPTH} blocks deep are
+     * moved to, see {@link #setTransactionArchive(TransactionArchive, int)}.</p>
+     */
+    public void setTransactionArchive(TransactionArchive archive) throws IOException {
+        setTransactionArchive(archive, DEFAULT_ARCHIVE_DEPTH);
+    }
+
+    /**
+     * <p>Sets the archive that fully spent transactions buried at least the given number of blocks deep are moved to,
+     * or null to stop archiving. Once there is an archive, transactions are archived every {@link #ARCHIVE_INTERVAL}
+     * blocks, or when {@link #archiveTransactions()} is called. The wallet then keeps only a
+     * {@link TransactionSummary} of each archived transaction, which makes it quicker to load and lighter in memory.
+     * The full transaction can be read back with {@link #getArchivedTransaction(Sha256Hash)}, and is read back by the
+     * wallet itself if a re-org goes deep enough to undo it.</p>
+     *
+     * <p>The summaries are saved with the wallet but the archive isn't, so it has to be set again after loading the
+     * wallet, before the block chain is used. The transactions in memory that spend archived ones are connected to
+     * them by reading them back from the archive here. A transaction is only archived once it and the transactions
+     * spending its outputs are all buried that deep, so the balance only depends on the archive if a re-org goes
+     * deeper than that. Losing the archive loses the history though, and how much the transactions spending archived
+     * ones sent.</p>
+     */
+    public void setTransactionArchive(TransactionArchive archive, int archiveDepth) throws IOException {
+        checkArgument(archiveDepth > 0, "Archive depth must be positive");
+        lock.lock();
+        try {
+            this.archive = archive;
+            this.archiveDepth = archiveDepth;
+            if (archive != null) {
+                List<Transaction> txns = new ArrayList<Transaction>(unspent.values());
+                txns.addAll(spent.values());
+                txns.addAll(pending.values());
+                connectArchivedParents(txns);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the archive set with {@link #setTransactionArchive(TransactionArchive)}, or null if there is none. */
+    public TransactionArchive getTransactionArchive() {
+        lock.lock();
+        try {
+            return archive;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves the fully spent transactions buried deeply enough, and spent by transactions buried as deeply, from memory
+     * to the archive, leaving a summary of each in the wallet. A transaction is only archived together with the ones
+     * it spends that are in the wallet, so a chain of spends is archived from the oldest end. Triggers auto saving if
+     * anything was archived.
+     *
+     * @return how many transactions were archived.
+     */
+    public int archiveTransactions() throws IOException {
+        lock.lock();
+        try {
+            checkState(archive != null, "No transaction archive has been set");
+            TreeMap<Integer, List<Transaction>> candidates = new TreeMap<Integer, List<Transaction>>();
+            for (Transaction tx : spent.values()) {
+                TransactionConfidence confidence = tx.getConfidence();
+                // Only once the transactions spending it are buried as deep, otherwise killing one of them, or a re-org
+                // undoing one but not it, would make its outputs spendable again whilst it is out of the wallet.
+                if (!isBuriedForArchive(tx) || !isSpentByBuried(tx))
+                    continue;
+                List<Transaction> atHeight = candidates.get(confidence.getAppearedAtChainHeight());
+                if (atHeight == null) {
+                    atHeight = new ArrayList<Transaction>();
+                    candidates.put(confidence.getAppearedAtChainHeight(), atHeight);
+                }
+                atHeight.add(tx);
+            }
+            // No transaction left in memory may be spent by an archived one, as it would be saved pointing at a
+            // transaction that isn't in the wallet file. So candidates are taken oldest first, each once all the
+            // transactions it spends are archived or were never in the wallet. Spends within one block can be in any
+            // order, so those are gone over until no more can be taken.
+            Set<Sha256Hash> archivable = new HashSet<Sha256Hash>();
+            List<Transaction> toArchive = new ArrayList<Transaction>();
+            for (List<Transaction> atHeight : candidates.values()) {
+                boolean progress = true;
+                while (progress) {
+                    progress = false;
+                    for (Iterator<Transaction> it = atHeight.iterator(); it.hasNext(); ) {
+                        Transaction tx = it.next();
+                        if (spendsOnlyArchivable(tx, archivable)) {
+                            archivable.add(tx.getHash());
+                            toArchive.add(tx);
+                            it.remove();
+                            progress = true;
+                        }
+                    }
+                }
+            }
+            if (toArchive.isEmpty())
+                return 0;
+            List<TransactionSummary> summaries = new ArrayList<TransactionSummary>(toArchive.size());
+            for (Transaction tx : toArchive) {
+                try {
+                    summaries.add(TransactionSummary.of(tx, this));
+                } catch (ScriptException e) {
+                    throw new RuntimeException(e);  // Cannot happen, they are already in the wallet.
+                }
+            }
+            // Written out before they are let go of, so if we crash in between they are still in the wallet.
+            archive.put(toArchive);
+            for (int i = 0; i < toArchive.size(); i++) {
+                Transaction tx = toArchive.get(i);
+                spent.remove(tx.getHash());
+                unindexTransaction(tx);
+                addArchivedSummary(summaries.get(i));
+            }
+            log.info("Archived {} spent transactions, {} are archived in total", toArchive.size(),
+                    archivedSummaries.size());
+            queueAutoSave();
+            return toArchive.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isBuriedForArchive(Transaction tx) {
+        TransactionConfidence confidence = tx.getConfidence();
+        return confidence.getConfidenceType() == ConfidenceType.BUILDING &&
+                confidence.getDepthInBlocks() >= archiveDepth;
+    }
+
+    private boolean isSpentByBuried(Transaction tx) {
+        for (TransactionOutput output : tx.getOutputs()) {
+            if (!output.isMine(this))
+                continue;
+            TransactionInput spentBy = output.getSpentBy();
+            if (spentBy == null || spentBy.getParentTransaction() == null ||
+                    !isBuriedForArchive(spentBy.getParentTransaction()))
+                return false;
+        }
+        return true;
+    }
+
+    private boolean spendsOnlyArchivable(Transaction tx, Set<Sha256Hash> archivable) {
+        for (TransactionInput input : tx.getInputs()) {
+            if (input.isCoinBase())
+                continue;
+            Sha256Hash hash = input.getOutpoint().getHash();
+            if (!archivable.contains(hash) && getTransaction(hash) != null)
+                return false;
+        }
+        return true;
+    }
+
+    // Archives transactions if there is an archive and the given range of new best blocks passes a multiple of
+    // ARCHIVE_INTERVAL. Not in the middle of a re-org though, which rebuilds the pools as it goes.
+    private void maybeArchiveTransactions(int fromHeight, int toHeight) {
+        checkState(lock.isLocked());
+        if (archive == null || onWalletChangedSuppressions > 0 ||
+                toHeight / ARCHIVE_INTERVAL == (fromHeight - 1) / ARCHIVE_INTERVAL)
+            return;
+        try {
+            archiveTransactions();
+        } catch (IOException e) {
+            // They stay in memory and we try again next time.
+            log.error("Could not archive transactions", e);
+        }
+    }
+
+    // Connects the inputs of the given transactions that spend archived transactions, reading those back from the
+    // archive. Without that the wallet can't tell how much they spent. Archived transactions themselves don't spend
+    // any transaction still in memory, see archiveTransactions().
+    private void connectArchivedParents(Collection<Transaction> txns) throws IOException {
+        checkState(lock.isLocked());
+        Map<Sha256Hash, Transaction> parents = new HashMap<Sha256Hash, Transaction>();
+        for (Transaction tx : txns) {
+            for (TransactionInput input : tx.getInputs()) {
+                if (input.isCoinBase() || input.getConnectedOutput() != null)
+                    continue;
+                Sha256Hash hash = input.getOutpoint().getHash();
+                if (!archivedSummaries.containsKey(hash))
+                    continue;
+                Transaction parent = parents.get(hash);
+                if (parent == null) {
+                    parent = archive.get(hash);
+                    if (parent == null) {
+                        log.warn("Archived transaction {} is missing from the archive", hash);
+                        continue;
+                    }
+                    parents.put(hash, parent);
+                }
+                input.connect(parent, TransactionInput.ConnectMode.ABORT_ON_CONFLICT);
+            }
+        }
+        if (!parents.isEmpty())
+            log.info("Connected transactions to {} archived transactions they spend", parents.size());
+    }
+
+    // Moves archived transactions that appeared in blocks above the given height back into the spent pool, ahead of a
+    // re-org that goes that deep. Any archived transactions that spend them appeared at least as high, so come back too.
+    private void restoreArchivedTransactions(int height) {
+        checkState(lock.isLocked());
+        if (archivedSummaries.isEmpty())
+            return;
+        List<TransactionSummary> toRestore = new ArrayList<TransactionSummary>();
+        for (TransactionSummary summary : archivedByTime) {
+            if (summary.getHeight() > height)
+                toRestore.add(summary);
+        }
+        restoreArchived(toRestore);
+        // So do the archived ones below it that are spent by transactions the re-org may undo, as their outputs may be
+        // unspent again afterwards. Those transactions are in memory, or were just restored.
+        Set<TransactionSummary> parents = new LinkedHashSet<TransactionSummary>();
+        for (Transaction tx : Iterables.concat(unspent.values(), spent.values())) {
+            if (tx.getConfidence().getConfidenceType() != ConfidenceType.BUILDING ||
+                    tx.getConfidence().getAppearedAtChainHeight() <= height)
+                continue;
+            for (TransactionInput input : tx.getInputs()) {
+                if (input.isCoinBase())
+                    continue;
+                TransactionSummary summary = archivedSummaries.get(input.getOutpoint().getHash());
+                if (summary != null)
+                    parents.add(summary);
+            }
+        }
+        restoreArchived(parents);
+    }
+
+    private void restoreArchived(Collection<TransactionSummary> toRestore) {
+        if (toRestore.isEmpty())
+            return;
+        if (archive == null) {
+            log.error("Re-org goes below {} archived transactions but there is no archive to restore them from",
+                    toRestore.size());
+            return;
+        }
+        log.info("Re-org goes below archived transactions, restoring {} of them", toRestore.size());
+        try {
+            for (TransactionSummary summary : toRestore) {
+                Transaction tx = archive.get(summary.getHash());
+                if (tx == null) {
+                    log.error("Archived transaction {} is missing from the archive", summary.getHash());
+                    continue;
+                }
+                // Depth and work done stopped being updated when it was archived. The work done is only estimated,
+                // assuming the blocks since then took as much work as the ones before.
+                TransactionConfidence confidence = tx.getConfidence();
+                int depth = lastBlockSeenHeight - confidence.getAppearedAtChainHeight() + 1;
+                if (confidence.getWorkDone() != null && confidence.getDepthInBlocks() > 0) {
+                    confidence.setWorkDone(confidence.getWorkDone().multiply(BigInteger.valueOf(depth))
+                            .divide(BigInteger.valueOf(confidence.getDepthInBlocks())));
+                }
+                confidence.setDepthInBlocks(depth);
+                spent.put(tx.getHash(), tx);
+                indexTransaction(tx);
+                archivedSummaries.remove(summary.getHash());
+                archivedByTime.remove(summary);
+            }
+        } catch (IOException e) {
+            // Going ahead would leave the wallet not knowing which of its transactions the re-org undid.
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Returns the output of an archived transaction the given input is connected to, if it is connected to one.
+    TransactionOutput getArchivedConnectedOutput(TransactionInput input) {
+        TransactionOutput connected = input.getConnectedOutput();
+        if (connected == null || !archivedSummaries.containsKey(input.getOutpoint().getHash()))
+            return null;
+        return connected;
+    }
+
+    private void addArchivedSummary(TransactionSummary summary) {
+        relevanceIndex.addTransaction(summary.getHash());
+        TransactionSummary previous = archivedSummaries.put(summary.getHash(), summary);
+        if (previous != null)
+            archivedByTime.remove(previous);
+        archivedByTime.add(summary);
+    }
+
+    /**
+     * Adds summaries of archived transactions to the wallet, replacing any with the same hashes. This is used when
+     * the wallet is loaded, see {@link WalletProtobufSerializer}.
+     */
+    public void addArchivedSummaries(Collection<TransactionSummary> summaries) {
+        lock.lock();
+        try {
+            for (TransactionSummary summary : summaries)
+                addArchivedSummary(summary);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the summaries of all archived transactions, most recently updated first. */
+    public List<TransactionSummary> getArchivedSummaries() {
+        lock.lock();
+        try {
+            return new ArrayList<TransactionSummary>(archivedByTime);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many transactions have been moved to the archive. */
+    public int getArchivedTransactionCount() {
+        lock.lock();
+        try {
+            return archivedSummaries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads an archived transaction back from the archive, or returns null if the wallet hasn't archived a transaction
+     * with the given hash. The transaction is not put back into the wallet, and isn't connected to the transactions it
+     * spends or that spend it, so use its {@link TransactionSummary} for its value. Unlike
+     * {@link #getTransaction(Sha256Hash)} this reads from disk, but without holding the wallet lock meanwhile.
+     */
+    public Transaction getArchivedTransaction(Sha256Hash hash) throws IOException {
+        TransactionArchive archive;
+        lock.lock();
+        try {
+            if (!archivedSummaries.containsKey(hash))
+                return null;
+            archive = this.archive;
+            checkState(archive != null, "No transaction archive has been set");
+        } finally {
+            lock.unlock();
+        }
+        return archive.get(hash);
+    }
+
+    /**
+     * Returns a page of the wallet's transaction history, most recently updated first, made of summaries of both the
+     * transactions in memory and the archived ones. Like {@link #getTransactionsByTime()}, dead transactions and those
+     * only on side chains are left out. This takes time proportional to offset + count rather than to the size of the
+     * history, so a user interface can show a long history a page at a time.
+     */
+    public List<TransactionSummary> getHistory(int offset, int count) {
+        checkArgument(offset >= 0 && count >= 0);
+        lock.lock();
+        try {
+            List<TransactionSummary> history = new ArrayList<TransactionSummary>(count);
+            int wanted = offset + count;
+            if (wanted == 0)
+                return history;
+            Iterator<Transaction> recent = getRecentTransactions(wanted, false).iterator();
+            Iterator<TransactionSummary> archived = archivedByTime.iterator();
+            TransactionSummary nextRecent = recent.hasNext() ? TransactionSummary.of(recent.next(), this) : null;
+            TransactionSummary nextArchived = archived.hasNext() ? archived.next() : null;
+            for (int i = 0; i < wanted && (nextRecent != null || nextArchived != null); i++) {
+                TransactionSummary next;
+                if (nextArchived == null ||
+                        (nextRecent != null && SUMMARIES_MOST_RECENT_FIRST.compare(nextRecent, nextArchived) <= 0)) {
+                    next = nextRecent;
+                    nextRecent = recent.hasNext() ? TransactionSummary.of(recent.next(), this) : null;
+                } else {
+                    next = nextArchived;
+                    nextArchived = archived.hasNext() ? archived.next() : null;
+                }
+                if (i >= offset)
+                    history.add(next);
+            }
+            return history;
+        } catch (ScriptException e) {
+            throw new RuntimeException(e);  // Cannot happen, they are already in the wallet.
+        } finally {
+            lock.unlock();
+        }
+    }
+
     private class FeeCalculation {
         private CoinSelection bestCoinSelection;
         private TransactionOutput bestChangeOutput;
@@ -3381,11 +4368,16 @@ public class Wallet implements Serializable, BlockChainListener {
             int lastCalculatedSize = 0;
             BigInteger valueNeeded;
             BigInteger feesToAdd = BigInteger.ZERO;
+            // Selection and sizing are repeated each time around the loop, so do their expensive parts only once:
+            // sort the candidates up front, and work out sizes from the transaction as it is now rather than adding
+            // the selected inputs to it and serializing it again.
+            TransactionSizeEstimator sizeEstimator = new TransactionSizeEstimator(req.tx);
+            final CoinSelector selector = coinSelector;
+            List<TransactionOutput> sortedCandidates = null;
+            if (canSelectFromSorted(selector))
+                sortedCandidates = DefaultCoinSelector.sortOutputs(candidates);
 
             while (true) {
-
-                resetTxInputs(req, originalInputs);
-
                 BigInteger fees = /*req.fee == null ? */BigInteger.ZERO/* : req.fee*/;
                 if (lastCalculatedSize > 0) {
                     // If the size is exactly 1000 bytes then we'll over-pay, but this should be rare.
@@ -3402,7 +4394,11 @@ public class Wallet implements Serializable, BlockChainListener {
                 BigInteger additionalValueSelected = additionalValueForNextCategory;
 
                 // Of the coins we could spend, pick some that we actually will spend.
-                CoinSelection selection = coinSelector.select(valueNeeded, candidates);
+                CoinSelection selection;
+                if (sortedCandidates != null)
+                    selection = ((DefaultCoinSelector) selector).selectFromSorted(valueNeeded, sortedCandidates);
+                else
+                    selection = selector.select(valueNeeded, candidates);
                 // Can we afford this?
                 if (selection.valueGathered.compareTo(valueNeeded) < 0)
                     break;
@@ -3471,7 +4467,7 @@ public class Wallet implements Serializable, BlockChainListener {
                         additionalValueForNextCategory = Transaction.REFERENCE_DEFAULT_MIN_TX_FEE.add(
                                 Transaction.MIN_NONDUST_OUTPUT.add(BigInteger.ONE));
                     } else {
-                        size += changeOutput.litecoinSerialize().length + VarInt.sizeOf(req.tx.getOutputs().size()) - VarInt.sizeOf(req.tx.getOutputs().size() - 1);
+                        size += TransactionSizeEstimator.getOutputSize(changeOutput) + VarInt.sizeOf(req.tx.getOutputs().size()) - VarInt.sizeOf(req.tx.getOutputs().size() - 1);
                         // This solution is either category 1 or 2
                         if (!eitherCategory2Or3) // must be category 1
                             additionalValueForNextCategory = null;
@@ -3484,16 +4480,9 @@ public class Wallet implements Serializable, BlockChainListener {
                     }
                 }
 
-                // Now add unsigned inputs for the selected coins.
-                for (TransactionOutput output : selection.gathered) {
-                    TransactionInput input = req.tx.addInput(output);
-                    // If the scriptBytes don't default to none, our size calculations will be thrown off.
-                    checkState(input.getScriptBytes().length == 0);
-                }
-
-                // Estimate transaction size and loop again if we need more fee per kb. The serialized tx doesn't
-                // include things we haven't added yet like input signatures/scripts or the change output.
-                size += req.tx.litecoinSerialize().length;
+                // Estimate transaction size and loop again if we need more fee per kb. The size with unsigned inputs
+                // for the selected coins doesn't include their signatures/scripts or the change output.
+                size += sizeEstimator.getSizeWithUnsignedInputs(selection.gathered.size());
                 size += estimateBytesForSigning(selection);
                 if (size/1000 > lastCalculatedSize/1000 && req.feePerKb.compareTo(BigInteger.ZERO) > 0) {
                     lastCalculatedSize = size;
@@ -3528,8 +4517,6 @@ public class Wallet implements Serializable, BlockChainListener {
                 break;
             }
 
-            resetTxInputs(req, originalInputs);
-
             if (selection3 == null && selection2 == null && selection1 == null) {
                 log.warn("Insufficient value in wallet for send: needed {}", litecoinValueToFriendlyString(valueNeeded));
                 throw new InsufficientMoneyException();
@@ -3568,13 +4555,12 @@ public class Wallet implements Serializable, BlockChainListener {
             int size = 0;
             for (TransactionOutput output : selection.gathered) {
                 try {
-                    if (output.getScriptPubKey().isSentToAddress()) {
-                        // Send-to-address spends usually take maximum pubkey.length (as it may be compressed or not) + 75 bytes
-                        size += findKeyFromPubHash(output.getScriptPubKey().getPubKeyHash()).getPubKey().length + 75;
-                    } else if (output.getScriptPubKey().isSentToRawPubKey())
-                        size += 74; // Send-to-pubkey spends usually take maximum 74 bytes to spend
-                    else
-                        throw new RuntimeException("Unknown output type returned in coin selection");
+                    Script script = output.getScriptPubKey();
+                    // Send-to-address spends take at most the pubkey length (as it may be compressed or not) + 75 bytes.
+                    int pubKeyLength = 0;
+                    if (script.isSentToAddress())
+                        pubKeyLength = findKeyFromPubHash(script.getPubKeyHash()).getPubKey().length;
+                    size += TransactionSizeEstimator.scriptSigSize(script, pubKeyLength);
                 } catch (ScriptException e) {
                     // If this happens it means an output script in a wallet tx could not be understood. That should never
                     // happen, if it does it means the wallet has got into an inconsistent state.
@@ -3592,10 +4578,17 @@ public class Wallet implements Serializable, BlockChainListener {
 
         }
 
-        private void resetTxInputs(SendRequest req, List<TransactionInput> originalInputs) {
-            req.tx.clearInputs();
-            for (TransactionInput input : originalInputs)
-                req.tx.addInput(input);
+        // The selector can be given pre-sorted candidates if it's a DefaultCoinSelector whose select() hasn't been
+        // replaced, as then selectFromSorted() picks exactly what select() would.
+        private boolean canSelectFromSorted(CoinSelector selector) {
+            if (!(selector instanceof DefaultCoinSelector))
+                return false;
+            try {
+                return selector.getClass().getMethod("select", BigInteger.class, LinkedList.class)
+                        .getDeclaringClass() == DefaultCoinSelector.class;
+            } catch (NoSuchMethodException e) {
+                throw new RuntimeException(e);  // Cannot happen.
+            }
         }
     }
 }
@@ -21,6 +21,10 @@ import java.math.BigInteger;
 /**
  * <p>Implementors are called when the contents of the wallet changes, for instance due to receiving/sending money
  * or a block chain re-organize. It may be convenient to derive from {@link AbstractWalletEventListener} instead.</p>
+ *
+ * <p>The methods are called on the thread that changed the wallet, as described below, unless the listener was added
+ * with {@link Wallet#addEventListener(WalletEventListener, java.util.concurrent.Executor)}, in which case they are
+ * called by the given executor.</p>
  */
 public interface WalletEventListener {
     /**
@@ -0,0 +1,302 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.goldcoin.core;
+
+import com.google.goldcoin.utils.Locks;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Queues the events of a {@link Wallet} for a listener and delivers them with an {@link Executor}, so a slow
+ * listener, like one refreshing a user interface, doesn't hold up the thread that changed the wallet, which is usually
+ * busy processing blocks. Create one with {@link Wallet#addEventListener(WalletEventListener, Executor)}.</p>
+ *
+ * <p>Events are delivered one at a time and in the order they happened, whatever the executor. While earlier events
+ * are still waiting, an {@link WalletEventListener#onWalletChanged(Wallet)} is merged into the one already queued,
+ * and so is an {@link WalletEventListener#onTransactionConfidenceChanged(Wallet, Transaction)} for a transaction that
+ * already has one queued: the listener reads the wallet or confidence when the event is delivered, so it sees the
+ * later change anyway. A listener that keeps up gets every event, one that falls behind gets one wallet changed event
+ * per batch of blocks rather than one per block.</p>
+ *
+ * <p>How far behind the listener is can be read from {@link #getQueueDepth()} and the latency methods. This class is
+ * thread safe.</p>
+ */
+public class WalletEventQueue implements WalletEventListener {
+    private static final Logger log = LoggerFactory.getLogger(WalletEventQueue.class);
+
+    private final WalletEventListener listener;
+    private final Executor executor;
+
+    private final ReentrantLock lock = Locks.lock("walleteventqueue");
+    private final ArrayDeque<Event> events = new ArrayDeque<Event>();
+    // Set while a task draining the queue is submitted to the executor or running.
+    private boolean draining;
+    // Whether an onWalletChanged event is queued, and the transactions with a confidence event queued.
+    private boolean walletChangedQueued;
+    private final Set<Transaction> confidenceChangedQueued = new HashSet<Transaction>();
+
+    private int maxQueueDepth;
+    private long eventsDelivered, eventsMerged;
+    private long totalLatencyNanos, maxLatencyNanos;
+
+    private final Runnable drainTask = new Runnable() {
+        public void run() {
+            drain();
+        }
+    };
+
+    private abstract class Event {
+        final long queuedAt = System.nanoTime();
+
+        // Called with the lock held when the event is taken off the queue to be delivered.
+        void taken() {
+        }
+
+        abstract void deliver();
+    }
+
+    public WalletEventQueue(WalletEventListener listener, Executor executor) {
+        this.listener = checkNotNull(listener);
+        this.executor = checkNotNull(executor);
+    }
+
+    /** Returns the listener the events are delivered to. */
+    public WalletEventListener getListener() {
+        return listener;
+    }
+
+    public void onCoinsReceived(final Wallet wallet, final Transaction tx, final BigInteger prevBalance,
+                                final BigInteger newBalance) {
+        add(new Event() {
+            void deliver() {
+                listener.onCoinsReceived(wallet, tx, prevBalance, newBalance);
+            }
+        });
+    }
+
+    public void onCoinsSent(final Wallet wallet, final Transaction tx, final BigInteger prevBalance,
+                            final BigInteger newBalance) {
+        add(new Event() {
+            void deliver() {
+                listener.onCoinsSent(wallet, tx, prevBalance, newBalance);
+            }
+        });
+    }
+
+    public void onReorganize(final Wallet wallet) {
+        add(new Event() {
+            void deliver() {
+                listener.onReorganize(wallet);
+            }
+        });
+    }
+
+    public void onTransactionConfidenceChanged(final Wallet wallet, final Transaction tx) {
+        lock.lock();
+        try {
+            if (!confidenceChangedQueued.add(tx)) {
+                eventsMerged++;
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        add(new Event() {
+            void taken() {
+                confidenceChangedQueued.remove(tx);
+            }
+
+            void deliver() {
+                listener.onTransactionConfidenceChanged(wallet, tx);
+            }
+        });
+    }
+
+    public void onWalletChanged(final Wallet wallet) {
+        lock.lock();
+        try {
+            if (walletChangedQueued) {
+                eventsMerged++;
+                return;
+            }
+            walletChangedQueued = true;
+        } finally {
+            lock.unlock();
+        }
+        add(new Event() {
+            void taken() {
+                walletChangedQueued = false;
+            }
+
+            void deliver() {
+                listener.onWalletChanged(wallet);
+            }
+        });
+    }
+
+    public void onKeyAdded(final ECKey key) {
+        add(new Event() {
+            void deliver() {
+                listener.onKeyAdded(key);
+            }
+        });
+    }
+
+    private void add(Event event) {
+        lock.lock();
+        try {
+            events.add(event);
+            maxQueueDepth = Math.max(maxQueueDepth, events.size());
+            if (draining)
+                return;
+            draining = true;
+        } finally {
+            lock.unlock();
+        }
+        try {
+            executor.execute(drainTask);
+        } catch (RejectedExecutionException e) {
+            // The executor was shut down, so nothing will ever be delivered.
+            log.error("Executor rejected wallet events for {}, dropping them", listener);
+            lock.lock();
+            try {
+                events.clear();
+                walletChangedQueued = false;
+                confidenceChangedQueued.clear();
+                draining = false;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            Event event;
+            lock.lock();
+            try {
+                event = events.poll();
+                if (event == null) {
+                    draining = false;
+                    return;
+                }
+                event.taken();
+            } finally {
+                lock.unlock();
+            }
+            try {
+                event.deliver();
+            } catch (RuntimeException e) {
+                // Carry on with the next event, as the listener would have if it were run directly.
+                log.error("Wallet event listener threw", e);
+            }
+            long latency = System.nanoTime() - event.queuedAt;
+            lock.lock();
+            try {
+                eventsDelivered++;
+                totalLatencyNanos += latency;
+                maxLatencyNanos = Math.max(maxLatencyNanos, latency);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /** Returns how many events are waiting to be delivered. */
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return events.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the most events that were ever waiting to be delivered at once. */
+    public int getMaxQueueDepth() {
+        lock.lock();
+        try {
+            return maxQueueDepth;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many events were delivered to the listener. */
+    public long getEventsDelivered() {
+        lock.lock();
+        try {
+            return eventsDelivered;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many events were merged into ones already queued rather than queued themselves. */
+    public long getEventsMerged() {
+        lock.lock();
+        try {
+            return eventsMerged;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the average time from an event being queued to the listener having handled it, in milliseconds, or zero
+     * if none were delivered yet.
+     */
+    public double getAverageLatencyMillis() {
+        lock.lock();
+        try {
+            return eventsDelivered == 0 ? 0 : totalLatencyNanos / 1e6 / eventsDelivered;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the longest time from an event being queued to the listener having handled it, in milliseconds. */
+    public double getMaxLatencyMillis() {
+        lock.lock();
+        try {
+            return maxLatencyNanos / 1e6;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return String.format("Event queue for %s: %d queued, %d delivered, %d merged", listener, events.size(),
+                    eventsDelivered, eventsMerged);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
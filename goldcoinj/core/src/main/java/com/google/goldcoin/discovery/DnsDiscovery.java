@@ -27,6 +27,7 @@ import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.*;
 
@@ -78,50 +79,59 @@ public class DnsDiscovery implements PeerDiscovery {
     }
 
     public InetSocketAddress[] getPeers(long timeoutValue, TimeUnit timeoutUnit) throws PeerDiscoveryException {
-        final BlockingQueue<InetSocketAddress> queue = new LinkedBlockingQueue<InetSocketAddress>();
+        // Every lookup puts exactly one list of results in the queue, empty if it failed, so we can tell when they
+        // are all done rather than waiting out the timeout.
+        final BlockingQueue<List<InetSocketAddress>> queue = new LinkedBlockingQueue<List<InetSocketAddress>>();
 
         ArrayList<String> seeds = new ArrayList<String>(Arrays.asList(hostNames));
         // Java doesn't have an async DNS API so we have to do all lookups in a thread pool, as sometimes seeds go
         // hard down and it takes ages to give up and move on.
         ExecutorService pool = Executors.newFixedThreadPool(seeds.size());
-        for (final String seed : seeds) {
-            pool.submit(new Runnable() {
-                public void run() {
-                    try {
-                        InetAddress[] addrs = InetAddress.getAllByName(seed);
-                        for (InetAddress addr : addrs) queue.put(new InetSocketAddress(addr, netParams.port));
-                    } catch (UnknownHostException e) {
-                        log.warn("Unable to resolve {}", seed);
-                    } catch (InterruptedException e) {
-                        // Silently go away.
+        try {
+            for (final String seed : seeds) {
+                pool.submit(new Runnable() {
+                    public void run() {
+                        List<InetSocketAddress> result = new ArrayList<InetSocketAddress>();
+                        try {
+                            InetAddress[] addrs = InetAddress.getAllByName(seed);
+                            for (InetAddress addr : addrs) result.add(new InetSocketAddress(addr, netParams.port));
+                        } catch (UnknownHostException e) {
+                            log.warn("Unable to resolve {}", seed);
+                        } finally {
+                            queue.add(result);
+                        }
                     }
-                }
-            });
-        }
-        // The queue will fill up with resolutions. Let's wait until we got at least 30 or we run out of time.
-        final long timeout = timeoutUnit.toMillis(timeoutValue);
-        long start = System.currentTimeMillis();
-        Set<InetSocketAddress> addrs = Sets.newHashSet();
-        while (addrs.size() < 30) {
-            try {
-                long pollTime = timeout - (System.currentTimeMillis() - start);
-                if (pollTime < 0) break;
-                InetSocketAddress a = queue.poll(pollTime, TimeUnit.MILLISECONDS);
-                if (a == null) {
+                });
+            }
+            // The queue will fill up with resolutions. Let's wait until we got at least 30, all lookups finished or
+            // we run out of time.
+            final long timeout = timeoutUnit.toMillis(timeoutValue);
+            long start = System.currentTimeMillis();
+            Set<InetSocketAddress> addrs = Sets.newHashSet();
+            int lookupsDone = 0;
+            while (addrs.size() < 30 && lookupsDone < seeds.size()) {
+                try {
+                    long pollTime = timeout - (System.currentTimeMillis() - start);
+                    if (pollTime < 0) break;
+                    List<InetSocketAddress> result = queue.poll(pollTime, TimeUnit.MILLISECONDS);
+                    if (result == null) {
+                        break;
+                    }
+                    lookupsDone++;
+                    addrs.addAll(result);
+                } catch (InterruptedException e) {
                     break;
                 }
-                addrs.add(a);
-            } catch (InterruptedException e) {
-                break;
             }
+            if (addrs.size() == 0) {
+                throw new PeerDiscoveryException("Unable to find any peers via DNS");
+            }
+            ArrayList<InetSocketAddress> shuffledAddrs = new ArrayList<InetSocketAddress>(addrs);
+            Collections.shuffle(shuffledAddrs);
+            return shuffledAddrs.toArray(new InetSocketAddress[]{});
+        } finally {
+            pool.shutdown();
         }
-        if (addrs.size() == 0) {
-            throw new PeerDiscoveryException("Unable to find any peers via DNS");
-        }
-        ArrayList<InetSocketAddress> shuffledAddrs = new ArrayList<InetSocketAddress>(addrs);
-        Collections.shuffle(shuffledAddrs);
-        pool.shutdown();
-        return shuffledAddrs.toArray(new InetSocketAddress[]{});
     }
 
     /**
@@ -22,12 +22,15 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.sql.*;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 // Originally written for Apache Derby, but its DELETE (and general) performance was awful
 
@@ -38,6 +41,10 @@ import java.util.List;
  * you may see the database files grow quite large (around 1.5G).
  * H2 automatically frees some space at shutdown, so close()ing the database
  * decreases the space usage somewhat (to only around 1.3G).
+ * <p/>
+ * Undo data for blocks more than fullStoreDepth below the verified chain head is deleted on a background thread, a
+ * limited range of heights at a time, so that block connection never waits for it. How far behind that thread is can
+ * be seen with {@link H2FullPrunedBlockStore#getPruneLag()}.
  */
 public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     private static final Logger log = LoggerFactory.getLogger(H2FullPrunedBlockStore.class);
@@ -52,6 +59,19 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     private String connectionURL;
     private int fullStoreDepth;
 
+    // Undo data at or below pruneTargetHeight is no longer needed. The pruning thread has deleted it up to and
+    // including prunedHeight. Both are worked out again from the database when it is opened, so pruning picks up
+    // where it left off after a restart.
+    private volatile int pruneTargetHeight;
+    private volatile int prunedHeight;
+    private volatile long lastPruneDurationMsec;
+    // Held whilst deleting undo data, so that resetStore can't have the tables swapped out from under a delete.
+    private final Object pruneLock = new Object();
+    private final ScheduledExecutorService pruneExecutor;
+    // At most this many heights of undo data are deleted per statement, every PRUNE_INTERVAL_MSEC.
+    static final int PRUNE_BATCH_HEIGHTS = 100;
+    static final long PRUNE_INTERVAL_MSEC = 100;
+
     static final String driver = "org.h2.Driver";
     static final String CREATE_SETTINGS_TABLE = "CREATE TABLE settings ( "
             + "name VARCHAR(32) NOT NULL CONSTRAINT settings_pk PRIMARY KEY,"
@@ -65,15 +85,22 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             + "chainWork BLOB NOT NULL,"
             + "height INT NOT NULL,"
             + "header BLOB NOT NULL,"
-            + "wasUndoable BOOL NOT NULL"
+            + "wasUndoable BOOL NOT NULL,"
+            + "skipHash BINARY(32)"
             + ")";
+    // Databases created before skip pointers were stored lack the column, it is added when they are opened.
+    static final String ADD_HEADERS_SKIP_HASH_COLUMN = "ALTER TABLE headers ADD skipHash BINARY(32)";
 
     static final String CREATE_UNDOABLE_TABLE = "CREATE TABLE undoableBlocks ( "
             + "hash BINARY(28) NOT NULL CONSTRAINT undoableBlocks_pk PRIMARY KEY,"
             + "height INT NOT NULL,"
             + "txOutChanges BLOB,"
-            + "transactions BLOB"
+            + "transactions BLOB,"
+            + "undoData BLOB"
             + ")";
+    // Undo data is written to the undoData column in the compact form of StoredUndoableBlock. Rows from databases
+    // created before that have it in txOutChanges or transactions instead, the column is added when they are opened.
+    static final String ADD_UNDOABLE_UNDO_DATA_COLUMN = "ALTER TABLE undoableBlocks ADD undoData BLOB";
     static final String CREATE_UNDOABLE_TABLE_INDEX = "CREATE INDEX heightIndex ON undoableBlocks (height)";
 
     static final String CREATE_OPEN_OUTPUT_INDEX_TABLE = "CREATE TABLE openOutputsIndex ("
@@ -119,10 +146,26 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             // Create tables if needed
             if (!tableExists("settings"))
                 createTables();
+            else
+                addMissingColumns();
             initFromDatabase();
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
+
+        pruneExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "H2 undo data pruning thread");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        pruneExecutor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                pruneUndoableBlocks();
+            }
+        }, PRUNE_INTERVAL_MSEC, PRUNE_INTERVAL_MSEC, TimeUnit.MILLISECONDS);
     }
 
     /**
@@ -162,6 +205,8 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     }
 
     public synchronized void close() {
+        // A delete that is already running is left to finish, it is committed on its own.
+        pruneExecutor.shutdown();
         for (Connection conn : allConnections) {
             try {
                 conn.rollback();
@@ -174,18 +219,21 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
 
     public void resetStore() throws BlockStoreException {
         maybeConnect();
-        try {
-            Statement s = conn.get().createStatement();
-            s.executeUpdate("DROP TABLE settings");
-            s.executeUpdate("DROP TABLE headers");
-            s.executeUpdate("DROP TABLE undoableBlocks");
-            s.executeUpdate("DROP TABLE openOutputs");
-            s.executeUpdate("DROP TABLE openOutputsIndex");
-            s.close();
-            createTables();
-            initFromDatabase();
-        } catch (SQLException ex) {
-            throw new RuntimeException(ex);
+        synchronized (pruneLock) {
+            try {
+                Statement s = conn.get().createStatement();
+                s.executeUpdate("DROP TABLE settings");
+                s.executeUpdate("DROP TABLE headers");
+                s.executeUpdate("DROP TABLE undoableBlocks");
+                s.executeUpdate("DROP TABLE openOutputs");
+                s.executeUpdate("DROP TABLE openOutputsIndex");
+                s.close();
+                pruneTargetHeight = prunedHeight = -1;
+                createTables();
+                initFromDatabase();
+            } catch (SQLException ex) {
+                throw new RuntimeException(ex);
+            }
         }
     }
 
@@ -241,6 +289,16 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         if (this.verifiedChainHeadBlock == null) {
             throw new BlockStoreException("corrupt H2 block store - verified head block not found");
         }
+
+        pruneTargetHeight = verifiedChainHeadBlock.getHeight() - fullStoreDepth;
+        s = conn.get().createStatement();
+        rs = s.executeQuery("SELECT MIN(height) FROM undoableBlocks");
+        rs.next();
+        int lowestHeight = rs.getInt(1);
+        // Nothing left to prune if the table is empty.
+        prunedHeight = rs.wasNull() ? pruneTargetHeight : lowestHeight - 1;
+        rs.close();
+        s.close();
     }
 
     private void createNewStore(NetworkParameters params) throws BlockStoreException {
@@ -260,6 +318,32 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         }
     }
 
+    private void addMissingColumns() throws SQLException {
+        Statement s = conn.get().createStatement();
+        if (!columnExists("headers", "skipHash")) {
+            log.debug("H2FullPrunedBlockStore : ALTER headers table");
+            s.executeUpdate(ADD_HEADERS_SKIP_HASH_COLUMN);
+        }
+        if (!columnExists("undoableBlocks", "undoData")) {
+            log.debug("H2FullPrunedBlockStore : ALTER undoable block table");
+            s.executeUpdate(ADD_UNDOABLE_UNDO_DATA_COLUMN);
+        }
+        s.close();
+    }
+
+    private boolean columnExists(String table, String column) throws SQLException {
+        Statement s = conn.get().createStatement();
+        try {
+            ResultSet results = s.executeQuery("SELECT " + column + " FROM " + table + " WHERE 1 = 2");
+            results.close();
+            return true;
+        } catch (SQLException ex) {
+            return false;
+        } finally {
+            s.close();
+        }
+    }
+
     private boolean tableExists(String table) throws SQLException {
         Statement s = conn.get().createStatement();
         try {
@@ -310,13 +394,16 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         totalSize += size;
         size = 0;
         count = 0;
-        rs = s.executeQuery("SELECT txOutChanges, transactions FROM undoableBlocks");
+        rs = s.executeQuery("SELECT txOutChanges, transactions, undoData FROM undoableBlocks");
         while (rs.next()) {
             size += 28; // hash
             size += 4; // height
             byte[] txOutChanges = rs.getBytes(1);
             byte[] transactions = rs.getBytes(2);
-            if (txOutChanges == null)
+            byte[] undoData = rs.getBytes(3);
+            if (undoData != null)
+                size += undoData.length;
+            else if (txOutChanges == null)
                 size += transactions.length;
             else
                 size += txOutChanges.length;
@@ -366,8 +453,8 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     private void putUpdateStoredBlock(StoredBlock storedBlock, boolean wasUndoable) throws SQLException {
         try {
             PreparedStatement s =
-                    conn.get().prepareStatement("INSERT INTO headers(hash, chainWork, height, header, wasUndoable)"
-                            + " VALUES(?, ?, ?, ?, ?)");
+                    conn.get().prepareStatement("INSERT INTO headers(hash, chainWork, height, header, wasUndoable, skipHash)"
+                            + " VALUES(?, ?, ?, ?, ?, ?)");
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 3, hashBytes, 0, 28);
@@ -376,6 +463,8 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             s.setInt(3, storedBlock.getHeight());
             s.setBytes(4, storedBlock.getHeader().unsafeLitecoinSerialize());
             s.setBoolean(5, wasUndoable);
+            Sha256Hash skipHash = storedBlock.getSkipHash();
+            s.setBytes(6, skipHash != null ? skipHash.getBytes() : null);
             s.executeUpdate();
             s.close();
         } catch (SQLException e) {
@@ -410,42 +499,16 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         byte[] hashBytes = new byte[28];
         System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 3, hashBytes, 0, 28);
         int height = storedBlock.getHeight();
-        byte[] transactions = null;
-        byte[] txOutChanges = null;
-        try {
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            if (undoableBlock.getTxOutChanges() != null) {
-                undoableBlock.getTxOutChanges().serializeToStream(bos);
-                txOutChanges = bos.toByteArray();
-            } else {
-                int numTxn = undoableBlock.getTransactions().size();
-                bos.write((int) (0xFF & (numTxn >> 0)));
-                bos.write((int) (0xFF & (numTxn >> 8)));
-                bos.write((int) (0xFF & (numTxn >> 16)));
-                bos.write((int) (0xFF & (numTxn >> 24)));
-                for (Transaction tx : undoableBlock.getTransactions())
-                    tx.litecoinSerialize(bos);
-                transactions = bos.toByteArray();
-            }
-            bos.close();
-        } catch (IOException e) {
-            throw new BlockStoreException(e);
-        }
+        byte[] undoData = undoableBlock.serializeCompact();
 
         try {
             try {
                 PreparedStatement s =
-                        conn.get().prepareStatement("INSERT INTO undoableBlocks(hash, height, txOutChanges, transactions)"
-                                + " VALUES(?, ?, ?, ?)");
+                        conn.get().prepareStatement("INSERT INTO undoableBlocks(hash, height, undoData)"
+                                + " VALUES(?, ?, ?)");
                 s.setBytes(1, hashBytes);
                 s.setInt(2, height);
-                if (transactions == null) {
-                    s.setBytes(3, txOutChanges);
-                    s.setNull(4, Types.BLOB);
-                } else {
-                    s.setNull(3, Types.BLOB);
-                    s.setBytes(4, transactions);
-                }
+                s.setBytes(3, undoData);
                 s.executeUpdate();
                 s.close();
                 try {
@@ -459,16 +522,10 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
 
                 // There is probably an update-or-insert statement, but it wasn't obvious from the docs
                 PreparedStatement s =
-                        conn.get().prepareStatement("UPDATE undoableBlocks SET txOutChanges=?, transactions=?"
-                                + " WHERE hash = ?");
-                s.setBytes(3, hashBytes);
-                if (transactions == null) {
-                    s.setBytes(1, txOutChanges);
-                    s.setNull(2, Types.BLOB);
-                } else {
-                    s.setNull(1, Types.BLOB);
-                    s.setBytes(2, transactions);
-                }
+                        conn.get().prepareStatement("UPDATE undoableBlocks SET txOutChanges=NULL, transactions=NULL,"
+                                + " undoData=? WHERE hash = ?");
+                s.setBytes(1, undoData);
+                s.setBytes(2, hashBytes);
                 s.executeUpdate();
                 s.close();
             }
@@ -487,7 +544,7 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         PreparedStatement s = null;
         try {
             s = conn.get()
-                    .prepareStatement("SELECT chainWork, height, header, wasUndoable FROM headers WHERE hash = ?");
+                    .prepareStatement("SELECT chainWork, height, header, wasUndoable, skipHash FROM headers WHERE hash = ?");
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(hash.getBytes(), 3, hashBytes, 0, 28);
@@ -506,6 +563,9 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             Block b = new Block(params, results.getBytes(3));
             b.verifyHeader();
             StoredBlock stored = new StoredBlock(b, chainWork, height);
+            byte[] skipHash = results.getBytes(5);
+            if (skipHash != null)
+                stored.setSkipHash(new Sha256Hash(skipHash));
             return stored;
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
@@ -539,7 +599,7 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         PreparedStatement s = null;
         try {
             s = conn.get()
-                    .prepareStatement("SELECT txOutChanges, transactions FROM undoableBlocks WHERE hash = ?");
+                    .prepareStatement("SELECT txOutChanges, transactions, undoData FROM undoableBlocks WHERE hash = ?");
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(hash.getBytes(), 3, hashBytes, 0, 28);
@@ -551,8 +611,11 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             // Parse it.
             byte[] txOutChanges = results.getBytes(1);
             byte[] transactions = results.getBytes(2);
+            byte[] undoData = results.getBytes(3);
             StoredUndoableBlock block;
-            if (txOutChanges == null) {
+            if (undoData != null) {
+                block = StoredUndoableBlock.deserializeCompact(params, hash, undoData);
+            } else if (txOutChanges == null) {
                 int offset = 0;
                 int numTxn = ((transactions[offset++] & 0xFF) << 0) |
                         ((transactions[offset++] & 0xFF) << 8) |
@@ -637,21 +700,52 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         }
         if (this.chainHeadBlock.getHeight() < chainHead.getHeight())
             setChainHead(chainHead);
-        removeUndoableBlocksWhereHeightIsLessThan(chainHead.getHeight() - fullStoreDepth);
+        // The pruning thread deletes the undo data that is no longer needed. After a re-org to a shorter chain the
+        // target stays where it was, as undo data that was deleted already can't come back.
+        pruneTargetHeight = Math.max(pruneTargetHeight, chainHead.getHeight() - fullStoreDepth);
     }
 
-    private void removeUndoableBlocksWhereHeightIsLessThan(int height) throws BlockStoreException {
-        try {
-            PreparedStatement s = conn.get()
-                    .prepareStatement("DELETE FROM undoableBlocks WHERE height <= ?");
-            s.setInt(1, height);
-            s.executeUpdate();
-            s.close();
-        } catch (SQLException ex) {
-            throw new BlockStoreException(ex);
+    // Runs on the pruning thread. Deletes the undo data for the next PRUNE_BATCH_HEIGHTS heights that are no longer
+    // needed, in a transaction of its own on this thread's connection.
+    private void pruneUndoableBlocks() {
+        synchronized (pruneLock) {
+            int target = pruneTargetHeight;
+            if (prunedHeight >= target)
+                return;
+            int height = Math.min(target, prunedHeight + PRUNE_BATCH_HEIGHTS);
+            long start = System.currentTimeMillis();
+            try {
+                maybeConnect();
+                PreparedStatement s = conn.get()
+                        .prepareStatement("DELETE FROM undoableBlocks WHERE height <= ?");
+                s.setInt(1, height);
+                int deleted = s.executeUpdate();
+                s.close();
+                prunedHeight = height;
+                lastPruneDurationMsec = System.currentTimeMillis() - start;
+                log.debug("Pruned {} undoable blocks up to height {} in {} msec",
+                        new Object[]{deleted, height, lastPruneDurationMsec});
+            } catch (Exception e) {
+                // Most likely a lock timeout whilst the block chain was writing a batch. Try again next time.
+                log.warn("Failed to prune undoable blocks, will retry: {}", e.toString());
+            }
         }
     }
 
+    /**
+     * Returns how many heights of undo data are no longer needed but have not been deleted by the pruning thread yet.
+     */
+    public int getPruneLag() {
+        return Math.max(0, pruneTargetHeight - prunedHeight);
+    }
+
+    /**
+     * Returns how long, in milliseconds, the last batch of undo data took to delete.
+     */
+    public long getLastPruneDurationMsec() {
+        return lastPruneDurationMsec;
+    }
+
     public StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
         maybeConnect();
         PreparedStatement s = null;
@@ -0,0 +1,429 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.goldcoin.store;
+
+import com.google.common.collect.Lists;
+import com.google.goldcoin.core.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A {@link FullPrunedBlockStore} kept in a {@link LogStructuredKeyValueStore}. Every record is a single key, so
+ * looking up a block or an output is one hash lookup and at most one read from disk, and a batch of changes is one
+ * append to the log. This makes it a good deal faster than {@link H2FullPrunedBlockStore} when verifying lots of
+ * blocks, for instance during the initial download. The keys are:</p>
+ *
+ * <pre>
+ *   'H' hash           the {@link StoredBlock} in its compact form, whether it was undoable and its skip hash if set
+ *   'U' hash           the height and the {@link StoredUndoableBlock} in its compact form
+ *   'O' hash index     an unspent output in the compact form of {@link StoredTransactionOutput}
+ *   'S' name           the chain head and verified chain head hashes
+ * </pre>
+ *
+ * <p>Changes made between {@link LogStructuredFullPrunedBlockStore#beginDatabaseBatchWrite()} and
+ * {@link LogStructuredFullPrunedBlockStore#commitDatabaseBatchWrite()} are held in memory for the thread that made
+ * them and written as one batch on commit, so they either all reach the disk or none do. Undo data older than the
+ * full store depth below the verified chain head is deleted as the head moves on.</p>
+ */
+public class LogStructuredFullPrunedBlockStore implements FullPrunedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(LogStructuredFullPrunedBlockStore.class);
+
+    private static final byte HEADER_PREFIX = 'H';
+    private static final byte UNDO_PREFIX = 'U';
+    private static final byte OUTPUT_PREFIX = 'O';
+    private static final byte SETTING_PREFIX = 'S';
+    private static final String CHAIN_HEAD_SETTING = "chainhead";
+    private static final String VERIFIED_CHAIN_HEAD_SETTING = "verifiedchainhead";
+
+    private final NetworkParameters params;
+    private final int fullStoreDepth;
+    private LogStructuredKeyValueStore store;
+
+    // Changes made in a batch write, by key. A null value deletes the key.
+    private final ThreadLocal<Map<ByteBuffer, byte[]>> pending = new ThreadLocal<Map<ByteBuffer, byte[]>>();
+
+    // The heights of the blocks that have undo data, so it can be deleted once it is too far below the verified head.
+    private final Map<Sha256Hash, Integer> undoHeights = new HashMap<Sha256Hash, Integer>();
+    private final TreeMap<Integer, Set<Sha256Hash>> undoByHeight = new TreeMap<Integer, Set<Sha256Hash>>();
+
+    private StoredBlock chainHead, verifiedChainHead;
+
+    /**
+     * Opens the store in the given directory, creating it if need be.
+     *
+     * @param params         The network parameters of this block store - used to get genesis block
+     * @param directory      The directory the store keeps its files in
+     * @param fullStoreDepth The number of blocks of history stored in full (something like 1000 is pretty safe)
+     * @throws BlockStoreException if the store fails to open for any reason
+     */
+    public LogStructuredFullPrunedBlockStore(NetworkParameters params, File directory, int fullStoreDepth)
+            throws BlockStoreException {
+        this.params = checkNotNull(params);
+        this.fullStoreDepth = fullStoreDepth > 0 ? fullStoreDepth : 1;
+        store = new LogStructuredKeyValueStore(directory);
+        try {
+            byte[] chainHeadHash = store.get(settingKey(CHAIN_HEAD_SETTING));
+            if (chainHeadHash == null) {
+                createNewStore();
+            } else {
+                initFromStore(new Sha256Hash(chainHeadHash));
+            }
+        } catch (BlockStoreException e) {
+            store.close();
+            throw e;
+        }
+    }
+
+    private void createNewStore() throws BlockStoreException {
+        try {
+            // Insert the genesis block.
+            StoredBlock storedGenesisHeader =
+                    new StoredBlock(params.genesisBlock.cloneAsHeader(), params.genesisBlock.getWork(), 0);
+            // The coinbase in the genesis block is not spendable
+            List<Transaction> genesisTransactions = Lists.newLinkedList();
+            StoredUndoableBlock storedGenesis =
+                    new StoredUndoableBlock(params.genesisBlock.getHash(), genesisTransactions);
+            beginDatabaseBatchWrite();
+            put(storedGenesisHeader, storedGenesis);
+            setChainHead(storedGenesisHeader);
+            setVerifiedChainHead(storedGenesisHeader);
+            commitDatabaseBatchWrite();
+        } catch (VerificationException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    private void initFromStore(Sha256Hash chainHeadHash) throws BlockStoreException {
+        chainHead = get(chainHeadHash);
+        if (chainHead == null)
+            throw new BlockStoreException("corrupt store block: can't find chain head " + chainHeadHash);
+        byte[] verifiedChainHeadHash = store.get(settingKey(VERIFIED_CHAIN_HEAD_SETTING));
+        if (verifiedChainHeadHash != null)
+            verifiedChainHead = get(new Sha256Hash(verifiedChainHeadHash));
+        if (verifiedChainHead == null)
+            throw new BlockStoreException("corrupt store block: can't find verified chain head");
+        for (byte[] key : store.getKeys(new byte[]{UNDO_PREFIX})) {
+            byte[] value = store.get(key);
+            addUndoHeight(new Sha256Hash(Arrays.copyOfRange(key, 1, key.length)), ByteBuffer.wrap(value).getInt());
+        }
+        log.info("Opened store with chain head at height {} and {} blocks of undo data", chainHead.getHeight(),
+                undoHeights.size());
+    }
+
+    private static byte[] key(byte prefix, Sha256Hash hash) {
+        byte[] key = new byte[33];
+        key[0] = prefix;
+        System.arraycopy(hash.getBytes(), 0, key, 1, 32);
+        return key;
+    }
+
+    private static byte[] outputKey(Sha256Hash hash, long index) {
+        byte[] key = new byte[37];
+        key[0] = OUTPUT_PREFIX;
+        System.arraycopy(hash.getBytes(), 0, key, 1, 32);
+        ByteBuffer.wrap(key, 33, 4).putInt((int) index);
+        return key;
+    }
+
+    private static byte[] settingKey(String name) {
+        byte[] nameBytes;
+        try {
+            nameBytes = name.getBytes("US-ASCII");
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+        byte[] key = new byte[nameBytes.length + 1];
+        key[0] = SETTING_PREFIX;
+        System.arraycopy(nameBytes, 0, key, 1, nameBytes.length);
+        return key;
+    }
+
+    private void checkOpen() {
+        checkNotNull(store, "LogStructuredFullPrunedBlockStore is closed");
+    }
+
+    private byte[] read(byte[] key) throws BlockStoreException {
+        Map<ByteBuffer, byte[]> changes = pending.get();
+        if (changes != null) {
+            ByteBuffer wrapped = ByteBuffer.wrap(key);
+            if (changes.containsKey(wrapped))
+                return changes.get(wrapped);
+        }
+        return store.get(key);
+    }
+
+    private boolean contains(byte[] key) {
+        Map<ByteBuffer, byte[]> changes = pending.get();
+        if (changes != null) {
+            ByteBuffer wrapped = ByteBuffer.wrap(key);
+            if (changes.containsKey(wrapped))
+                return changes.get(wrapped) != null;
+        }
+        return store.contains(key);
+    }
+
+    // Writes the value, or deletes the key if it is null, in the current batch write if there is one.
+    private void write(byte[] key, byte[] value) throws BlockStoreException {
+        Map<ByteBuffer, byte[]> changes = pending.get();
+        if (changes != null) {
+            changes.put(ByteBuffer.wrap(key), value);
+            return;
+        }
+        LogStructuredKeyValueStore.Batch batch = new LogStructuredKeyValueStore.Batch();
+        if (value == null)
+            batch.delete(key);
+        else
+            batch.put(key, value);
+        store.write(batch);
+        applyUndoChange(key, value);
+    }
+
+    // Keeps the undo heights in step with undo data that was written or deleted.
+    private void applyUndoChange(byte[] key, byte[] value) {
+        if (key[0] != UNDO_PREFIX)
+            return;
+        Sha256Hash hash = new Sha256Hash(Arrays.copyOfRange(key, 1, key.length));
+        Integer height = undoHeights.remove(hash);
+        if (height != null) {
+            Set<Sha256Hash> hashes = undoByHeight.get(height);
+            hashes.remove(hash);
+            if (hashes.isEmpty())
+                undoByHeight.remove(height);
+        }
+        if (value != null)
+            addUndoHeight(hash, ByteBuffer.wrap(value).getInt());
+    }
+
+    private void addUndoHeight(Sha256Hash hash, int height) {
+        undoHeights.put(hash, height);
+        Set<Sha256Hash> hashes = undoByHeight.get(height);
+        if (hashes == null) {
+            hashes = new HashSet<Sha256Hash>();
+            undoByHeight.put(height, hashes);
+        }
+        hashes.add(hash);
+    }
+
+    private void putStoredBlock(StoredBlock storedBlock, boolean wasUndoable) throws BlockStoreException {
+        byte[] key = key(HEADER_PREFIX, storedBlock.getHeader().getHash());
+        if (!wasUndoable && contains(key)) {
+            // Don't forget that a block was undoable if its header is put again.
+            byte[] existing = read(key);
+            wasUndoable = existing[StoredBlock.COMPACT_SERIALIZED_SIZE] != 0;
+        }
+        Sha256Hash skipHash = storedBlock.getSkipHash();
+        ByteBuffer value = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE + 1 + (skipHash != null ? 32 : 0));
+        storedBlock.serializeCompact(value);
+        value.put((byte) (wasUndoable ? 1 : 0));
+        if (skipHash != null)
+            value.put(skipHash.getBytes());
+        write(key, value.array());
+    }
+
+    public synchronized void put(StoredBlock storedBlock) throws BlockStoreException {
+        checkOpen();
+        putStoredBlock(storedBlock, false);
+    }
+
+    public synchronized void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        checkOpen();
+        byte[] undoData = undoableBlock.serializeCompact();
+        ByteBuffer value = ByteBuffer.allocate(4 + undoData.length);
+        value.putInt(storedBlock.getHeight());
+        value.put(undoData);
+        boolean inBatch = pending.get() != null;
+        if (!inBatch)
+            beginDatabaseBatchWrite();
+        write(key(UNDO_PREFIX, storedBlock.getHeader().getHash()), value.array());
+        putStoredBlock(storedBlock, true);
+        if (!inBatch)
+            commitDatabaseBatchWrite();
+    }
+
+    private StoredBlock get(Sha256Hash hash, boolean wasUndoableOnly) throws BlockStoreException {
+        // Optimize for chain head
+        if (chainHead != null && chainHead.getHeader().getHash().equals(hash) && !wasUndoableOnly)
+            return chainHead;
+        byte[] value = read(key(HEADER_PREFIX, hash));
+        if (value == null)
+            return null;
+        if (wasUndoableOnly && value[StoredBlock.COMPACT_SERIALIZED_SIZE] == 0)
+            return null;
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(value);
+            StoredBlock stored = StoredBlock.deserializeCompact(params, buffer);
+            buffer.get();
+            if (buffer.hasRemaining()) {
+                byte[] skipHash = new byte[32];
+                buffer.get(skipHash);
+                stored.setSkipHash(new Sha256Hash(skipHash));
+            }
+            return stored;
+        } catch (ProtocolException e) {
+            // Corrupted store.
+            throw new BlockStoreException(e);
+        }
+    }
+
+    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        checkOpen();
+        return get(hash, false);
+    }
+
+    public synchronized StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        checkOpen();
+        return get(hash, true);
+    }
+
+    public synchronized StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        checkOpen();
+        byte[] value = read(key(UNDO_PREFIX, hash));
+        if (value == null)
+            return null;
+        try {
+            return StoredUndoableBlock.deserializeCompact(params, hash, Arrays.copyOfRange(value, 4, value.length));
+        } catch (ProtocolException e) {
+            // Corrupted store.
+            throw new BlockStoreException(e);
+        }
+    }
+
+    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        checkOpen();
+        return chainHead;
+    }
+
+    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        checkOpen();
+        this.chainHead = chainHead;
+        write(settingKey(CHAIN_HEAD_SETTING), chainHead.getHeader().getHash().getBytes());
+    }
+
+    public synchronized StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        checkOpen();
+        return verifiedChainHead;
+    }
+
+    public synchronized void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        checkOpen();
+        this.verifiedChainHead = chainHead;
+        write(settingKey(VERIFIED_CHAIN_HEAD_SETTING), chainHead.getHeader().getHash().getBytes());
+        if (this.chainHead.getHeight() < chainHead.getHeight())
+            setChainHead(chainHead);
+        // Undo data no longer needed is deleted along with the rest of the batch. After a re-org to a shorter chain
+        // nothing is deleted, as undo data that was deleted already can't come back.
+        List<Sha256Hash> toDelete = new ArrayList<Sha256Hash>();
+        for (Set<Sha256Hash> hashes : undoByHeight.headMap(chainHead.getHeight() - fullStoreDepth, true).values())
+            toDelete.addAll(hashes);
+        for (Sha256Hash hash : toDelete)
+            write(key(UNDO_PREFIX, hash), null);
+    }
+
+    public synchronized StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index)
+            throws BlockStoreException {
+        checkOpen();
+        byte[] value = read(outputKey(hash, index));
+        if (value == null)
+            return null;
+        try {
+            return StoredTransactionOutput.deserializeCompact(ByteBuffer.wrap(value), hash);
+        } catch (ProtocolException e) {
+            // Corrupted store.
+            throw new BlockStoreException(e);
+        }
+    }
+
+    public synchronized void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        checkOpen();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try {
+            // The hash is in the key, so it is left out of the value.
+            out.serializeCompact(bos, out.getHash());
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+        write(outputKey(out.getHash(), out.getIndex()), bos.toByteArray());
+    }
+
+    public synchronized void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        checkOpen();
+        byte[] key = outputKey(out.getHash(), out.getIndex());
+        if (!contains(key))
+            throw new BlockStoreException("Tried to remove a StoredTransactionOutput from LogStructuredFullPrunedBlockStore that it didn't have!");
+        write(key, null);
+    }
+
+    public synchronized boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        checkOpen();
+        for (int i = 0; i < numOutputs; i++)
+            if (contains(outputKey(hash, i)))
+                return true;
+        return false;
+    }
+
+    public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
+        checkOpen();
+        // Multiple calls are treated as one.
+        if (pending.get() == null)
+            pending.set(new HashMap<ByteBuffer, byte[]>());
+    }
+
+    public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+        checkOpen();
+        Map<ByteBuffer, byte[]> changes = pending.get();
+        if (changes == null)
+            return;
+        pending.remove();
+        LogStructuredKeyValueStore.Batch batch = new LogStructuredKeyValueStore.Batch();
+        for (Map.Entry<ByteBuffer, byte[]> change : changes.entrySet()) {
+            if (change.getValue() == null)
+                batch.delete(change.getKey().array());
+            else
+                batch.put(change.getKey().array(), change.getValue());
+        }
+        store.write(batch);
+        for (Map.Entry<ByteBuffer, byte[]> change : changes.entrySet())
+            applyUndoChange(change.getKey().array(), change.getValue());
+    }
+
+    public synchronized void abortDatabaseBatchWrite() throws BlockStoreException {
+        checkOpen();
+        pending.remove();
+    }
+
+    /**
+     * Returns the key-value store the blocks and outputs are kept in, for instance to compact it.
+     */
+    public LogStructuredKeyValueStore getKeyValueStore() {
+        return store;
+    }
+
+    public synchronized void close() throws BlockStoreException {
+        if (store == null)
+            return;
+        store.close();
+        store = null;
+    }
+}
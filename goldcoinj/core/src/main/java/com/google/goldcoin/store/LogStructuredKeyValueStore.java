@@ -0,0 +1,563 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.goldcoin.store;
+
+import com.google.goldcoin.core.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>A simple embedded key-value store. All changes are appended to a log file in batches, and an in-memory hash
+ * index maps every key to where its latest value is in the file, so a read is a single positional read. Keys must be
+ * small as they are all held in memory, values can be anything up to {@link LogStructuredKeyValueStore#MAX_VALUE_SIZE}
+ * bytes.</p>
+ *
+ * <p>The log is made of batches, each written by one call to {@link LogStructuredKeyValueStore#write(Batch)}:</p>
+ *
+ * <pre>
+ *   4 bytes   batch magic
+ *   4 bytes   number of records
+ *   4 bytes   length of the records
+ *   records   each a 2 byte key length, 4 byte value length (-1 for a deletion), the key and the value
+ *   4 bytes   CRC32 of the records
+ * </pre>
+ *
+ * <p>A batch is either applied in full or not at all: when the store is opened the log is replayed to rebuild the
+ * index, and anything after the last complete batch, as left by a crash part way through a write, is cut off.</p>
+ *
+ * <p>Overwritten and deleted values stay in the log until it is compacted. Once at least half the log is garbage a
+ * background thread copies the live values to a new log, which then replaces the old one. Writes carry on whilst it
+ * does so and are brought over at the end. This class is thread safe.</p>
+ */
+public class LogStructuredKeyValueStore {
+    private static final Logger log = LoggerFactory.getLogger(LogStructuredKeyValueStore.class);
+
+    private static final int FILE_MAGIC = 0x6b766c31;   // "kvl1"
+    private static final int BATCH_MAGIC = 0x62746368;  // "btch"
+    private static final int BATCH_HEADER_SIZE = 12;
+    private static final int RECORD_HEADER_SIZE = 6;
+
+    // A location is the offset of a value in the log and its length packed into a long.
+    private static final int VALUE_LENGTH_BITS = 24;
+    /** The largest key that can be stored. */
+    public static final int MAX_KEY_SIZE = 0xFFFF;
+    /** The largest value that can be stored. */
+    public static final int MAX_VALUE_SIZE = (1 << VALUE_LENGTH_BITS) - 1;
+
+    // The log isn't compacted before it is this big.
+    private static final long MIN_COMPACTION_SIZE = 16 * 1024 * 1024;
+    // Records per batch when copying live values to a new log.
+    private static final int COMPACTION_BATCH_RECORDS = 4096;
+
+    /**
+     * A set of changes that are written to the store together.
+     */
+    public static class Batch {
+        private final List<byte[]> keys = new ArrayList<byte[]>();
+        // A null value deletes the key.
+        private final List<byte[]> values = new ArrayList<byte[]>();
+
+        /** Sets the value of the given key. */
+        public Batch put(byte[] key, byte[] value) {
+            checkArgument(key.length <= MAX_KEY_SIZE, "Key too large");
+            checkArgument(value.length <= MAX_VALUE_SIZE, "Value too large");
+            keys.add(key);
+            values.add(value);
+            return this;
+        }
+
+        /** Removes the given key, if it is there. */
+        public Batch delete(byte[] key) {
+            checkArgument(key.length <= MAX_KEY_SIZE, "Key too large");
+            keys.add(key);
+            values.add(null);
+            return this;
+        }
+
+        public int size() {
+            return keys.size();
+        }
+
+        public boolean isEmpty() {
+            return keys.isEmpty();
+        }
+    }
+
+    // Keys in the index, compared by their contents.
+    private static class Key {
+        final byte[] bytes;
+        final int hash;
+
+        Key(byte[] bytes) {
+            this.bytes = bytes;
+            this.hash = Arrays.hashCode(bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && Arrays.equals(bytes, ((Key) o).bytes);
+        }
+    }
+
+    private final File logFile, compactionFile;
+    private final RandomAccessFile lockFile;
+    private final FileLock fileLock;
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private HashMap<Key, Long> index = new HashMap<Key, Long>();
+    // Bytes in the log taken up by values that were since overwritten or deleted, and by deletions.
+    private long garbageBytes;
+    private boolean compacting, closed;
+    private final ExecutorService compactionExecutor;
+
+    /**
+     * Opens the store in the given directory, creating it if need be.
+     */
+    public LogStructuredKeyValueStore(File directory) throws BlockStoreException {
+        checkNotNull(directory);
+        this.logFile = new File(directory, "log");
+        this.compactionFile = new File(directory, "log.compacting");
+        if (!directory.exists() && !directory.mkdirs())
+            throw new BlockStoreException("Could not create directory " + directory);
+        RandomAccessFile lockFile = null;
+        FileLock fileLock = null;
+        boolean opened = false;
+        try {
+            lockFile = new RandomAccessFile(new File(directory, "lock"), "rw");
+            try {
+                fileLock = lockFile.getChannel().tryLock();
+            } catch (OverlappingFileLockException e) {
+                // Another store in this process has it open, fileLock stays null.
+            }
+            if (fileLock == null)
+                throw new BlockStoreException("Store is already locked by another store or process");
+            // Left behind if we crashed whilst compacting, the log itself is still complete.
+            compactionFile.delete();
+            file = new RandomAccessFile(logFile, "rw");
+            channel = file.getChannel();
+            if (file.length() == 0) {
+                ByteBuffer magic = ByteBuffer.allocate(4);
+                magic.putInt(FILE_MAGIC).flip();
+                channel.write(magic, 0);
+            } else {
+                replay();
+            }
+            opened = true;
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            if (!opened) {
+                // Closing the lock file also releases the lock on it.
+                closeQuietly(file);
+                closeQuietly(lockFile);
+            }
+        }
+        this.lockFile = lockFile;
+        this.fileLock = fileLock;
+        compactionExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Key-value store compaction thread");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    private static void closeQuietly(RandomAccessFile f) {
+        if (f == null)
+            return;
+        try {
+            f.close();
+        } catch (IOException e) {
+            log.warn("Failed to close file", e);
+        }
+    }
+
+    // Rebuilds the index from the log, cutting off an incomplete batch at the end.
+    private void replay() throws IOException, BlockStoreException {
+        ByteBuffer magic = ByteBuffer.allocate(4);
+        channel.read(magic, 0);
+        if (magic.getInt(0) != FILE_MAGIC)
+            throw new BlockStoreException("Not a key-value store log: " + logFile);
+        long position = 4, length = channel.size();
+        int batches = 0;
+        while (position < length) {
+            long end = applyBatch(channel, position, length, index, 0);
+            if (end < 0) {
+                log.warn("Discarding {} bytes of incomplete data at the end of {}", length - position, logFile);
+                channel.truncate(position);
+                break;
+            }
+            position = end;
+            batches++;
+        }
+        log.info("Opened {} with {} keys from {} batches", new Object[]{logFile, index.size(), batches});
+    }
+
+    // Reads the batch at the given position and applies it to the index, with the value offsets moved by shift.
+    // Returns the position after the batch, or -1 if it is incomplete or corrupt. Adds what it overwrites or deletes
+    // to garbageBytes.
+    private long applyBatch(FileChannel source, long position, long length, Map<Key, Long> target, long shift)
+            throws IOException {
+        if (length - position < BATCH_HEADER_SIZE + 4)
+            return -1;
+        ByteBuffer header = ByteBuffer.allocate(BATCH_HEADER_SIZE);
+        readFully(source, header, position);
+        int magic = header.getInt(0), numRecords = header.getInt(4), recordsLength = header.getInt(8);
+        if (magic != BATCH_MAGIC || numRecords < 0 || recordsLength < 0 ||
+                length - position < BATCH_HEADER_SIZE + (long) recordsLength + 4)
+            return -1;
+        ByteBuffer records = ByteBuffer.allocate(recordsLength + 4);
+        readFully(source, records, position + BATCH_HEADER_SIZE);
+        CRC32 crc = new CRC32();
+        crc.update(records.array(), 0, recordsLength);
+        if ((int) crc.getValue() != records.getInt(recordsLength))
+            return -1;
+        long recordsStart = position + BATCH_HEADER_SIZE;
+        for (int i = 0; i < numRecords; i++) {
+            int keyLength = records.getShort() & 0xFFFF;
+            int valueLength = records.getInt();
+            byte[] key = new byte[keyLength];
+            records.get(key);
+            long valueOffset = recordsStart + records.position() + shift;
+            if (valueLength > 0)
+                records.position(records.position() + valueLength);
+            garbageBytes += applyRecord(target, key, valueOffset, valueLength);
+        }
+        return recordsStart + recordsLength + 4;
+    }
+
+    // Returns how many bytes of the log are garbage because of the record, a negative valueLength deleting the key.
+    private static long applyRecord(Map<Key, Long> target, byte[] key, long valueOffset, int valueLength) {
+        long garbage = 0;
+        Long old;
+        if (valueLength < 0) {
+            old = target.remove(new Key(key));
+            garbage += RECORD_HEADER_SIZE + key.length;
+        } else {
+            old = target.put(new Key(key), location(valueOffset, valueLength));
+        }
+        if (old != null)
+            garbage += RECORD_HEADER_SIZE + key.length + length(old);
+        return garbage;
+    }
+
+    private static long location(long offset, int length) {
+        return (offset << VALUE_LENGTH_BITS) | length;
+    }
+
+    private static long offset(long location) {
+        return location >>> VALUE_LENGTH_BITS;
+    }
+
+    private static int length(long location) {
+        return (int) (location & MAX_VALUE_SIZE);
+    }
+
+    private static void readFully(FileChannel source, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = source.read(buffer, position + buffer.position());
+            if (read < 0)
+                throw new IOException("Unexpected end of file");
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Returns the value of the given key, or null if it isn't in the store.
+     */
+    public synchronized byte[] get(byte[] key) throws BlockStoreException {
+        checkState(!closed, "Store is closed");
+        Long location = index.get(new Key(key));
+        if (location == null)
+            return null;
+        try {
+            ByteBuffer value = ByteBuffer.allocate(length(location));
+            readFully(channel, value, offset(location));
+            return value.array();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    /**
+     * Returns whether the given key is in the store. Unlike {@link LogStructuredKeyValueStore#get(byte[])} this
+     * doesn't touch the disk.
+     */
+    public synchronized boolean contains(byte[] key) {
+        checkState(!closed, "Store is closed");
+        return index.containsKey(new Key(key));
+    }
+
+    /**
+     * Returns all the keys in the store that start with the given prefix.
+     */
+    public synchronized List<byte[]> getKeys(byte[] prefix) {
+        checkState(!closed, "Store is closed");
+        List<byte[]> keys = new ArrayList<byte[]>();
+        for (Key key : index.keySet()) {
+            if (key.bytes.length >= prefix.length && Arrays.equals(prefix, Arrays.copyOf(key.bytes, prefix.length)))
+                keys.add(key.bytes);
+        }
+        return keys;
+    }
+
+    /**
+     * Returns how many keys are in the store.
+     */
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * Appends the changes in the batch to the log and applies them, all or nothing. May start a compaction in the
+     * background.
+     */
+    public synchronized void write(Batch batch) throws BlockStoreException {
+        checkState(!closed, "Store is closed");
+        if (batch.isEmpty())
+            return;
+        long end = -1;
+        try {
+            end = channel.size();
+            garbageBytes += appendBatch(channel, batch.keys, batch.values, index);
+        } catch (IOException e) {
+            // Don't leave part of a batch behind, later batches would be cut off with it when the log is replayed.
+            try {
+                if (end >= 0)
+                    channel.truncate(end);
+            } catch (IOException e2) {
+                log.error("Failed to remove incomplete batch from " + logFile, e2);
+            }
+            throw new BlockStoreException(e);
+        }
+        maybeStartCompaction();
+    }
+
+    // Writes a batch at the end of the target and applies it to the index, returning how many bytes of garbage it
+    // made.
+    private static long appendBatch(FileChannel target, List<byte[]> keys, List<byte[]> values,
+                                    Map<Key, Long> targetIndex) throws IOException {
+        long position = target.size();
+        int recordsLength = 0;
+        for (int i = 0; i < keys.size(); i++)
+            recordsLength += RECORD_HEADER_SIZE + keys.get(i).length + (values.get(i) == null ? 0 : values.get(i).length);
+        ByteBuffer buffer = ByteBuffer.allocate(BATCH_HEADER_SIZE + recordsLength + 4);
+        buffer.putInt(BATCH_MAGIC);
+        buffer.putInt(keys.size());
+        buffer.putInt(recordsLength);
+        for (int i = 0; i < keys.size(); i++) {
+            byte[] key = keys.get(i), value = values.get(i);
+            buffer.putShort((short) key.length);
+            buffer.putInt(value == null ? -1 : value.length);
+            buffer.put(key);
+            if (value != null)
+                buffer.put(value);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), BATCH_HEADER_SIZE, recordsLength);
+        buffer.putInt((int) crc.getValue());
+        buffer.flip();
+        for (long written = position; buffer.hasRemaining(); )
+            written += target.write(buffer, written);
+
+        long garbage = 0;
+        long valueOffset = position + BATCH_HEADER_SIZE;
+        for (int i = 0; i < keys.size(); i++) {
+            byte[] key = keys.get(i), value = values.get(i);
+            valueOffset += RECORD_HEADER_SIZE + key.length;
+            garbage += applyRecord(targetIndex, key, valueOffset, value == null ? -1 : value.length);
+            if (value != null)
+                valueOffset += value.length;
+        }
+        return garbage;
+    }
+
+    /**
+     * Returns how many bytes of the log are taken up by values that are no longer live.
+     */
+    public synchronized long getGarbageBytes() {
+        return garbageBytes;
+    }
+
+    /**
+     * Returns the size of the log in bytes.
+     */
+    public synchronized long getLogSize() throws BlockStoreException {
+        try {
+            return channel.size();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private void maybeStartCompaction() throws BlockStoreException {
+        if (compacting || garbageBytes * 2 < getLogSize() || getLogSize() < MIN_COMPACTION_SIZE)
+            return;
+        compacting = true;
+        compactionExecutor.execute(new Runnable() {
+            public void run() {
+                try {
+                    doCompaction();
+                } catch (Exception e) {
+                    log.error("Failed to compact " + logFile, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Copies the live values to a new log which then replaces the current one. Normally this is done in the
+     * background when needed, but it can be called directly. Writes are only held up whilst the new log catches up
+     * with batches written since the copy started. Does nothing if a compaction is already running.
+     */
+    public void compact() throws BlockStoreException {
+        synchronized (this) {
+            checkState(!closed, "Store is closed");
+            if (compacting)
+                return;
+            compacting = true;
+        }
+        doCompaction();
+    }
+
+    private void doCompaction() throws BlockStoreException {
+        Map<Key, Long> snapshot;
+        long snapshotEnd;
+        FileChannel source;
+        synchronized (this) {
+            snapshot = new HashMap<Key, Long>(index);
+            source = channel;
+            snapshotEnd = getLogSize();
+        }
+        long startTime = Utils.now().getTime();
+        RandomAccessFile newFile = null;
+        boolean done = false;
+        try {
+            newFile = new RandomAccessFile(compactionFile, "rw");
+            newFile.setLength(0);
+            FileChannel target = newFile.getChannel();
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            magic.putInt(FILE_MAGIC).flip();
+            target.write(magic, 0);
+            // Copy the live values as of the snapshot. The source log is only ever appended to so it can be read
+            // without holding the lock.
+            HashMap<Key, Long> newIndex = new HashMap<Key, Long>(snapshot.size() * 4 / 3 + 1);
+            List<byte[]> keys = new ArrayList<byte[]>(COMPACTION_BATCH_RECORDS);
+            List<byte[]> values = new ArrayList<byte[]>(COMPACTION_BATCH_RECORDS);
+            for (Map.Entry<Key, Long> entry : snapshot.entrySet()) {
+                ByteBuffer value = ByteBuffer.allocate(length(entry.getValue()));
+                readFully(source, value, offset(entry.getValue()));
+                keys.add(entry.getKey().bytes);
+                values.add(value.array());
+                if (keys.size() == COMPACTION_BATCH_RECORDS) {
+                    appendBatch(target, keys, values, newIndex);
+                    keys.clear();
+                    values.clear();
+                }
+            }
+            if (!keys.isEmpty())
+                appendBatch(target, keys, values, newIndex);
+
+            synchronized (this) {
+                if (closed)
+                    return;
+                // Bring over whatever was written since the snapshot, then switch to the new log.
+                long tail = channel.size() - snapshotEnd;
+                long shift = target.size() - snapshotEnd;
+                long copied = 0;
+                while (copied < tail)
+                    copied += target.transferFrom(channel.position(snapshotEnd + copied), target.size(), tail - copied);
+                garbageBytes = 0;
+                for (long position = snapshotEnd; position < snapshotEnd + tail; )
+                    position = applyBatch(channel, position, snapshotEnd + tail, newIndex, shift);
+                target.force(true);
+                newFile.close();
+                newFile = null;
+                file.close();
+                if (Utils.isWindows()) {
+                    // Work around an issue on Windows whereby you can't rename over existing files.
+                    logFile.delete();
+                }
+                if (!compactionFile.renameTo(logFile))
+                    throw new IOException("Failed to rename " + compactionFile + " to " + logFile);
+                file = new RandomAccessFile(logFile, "rw");
+                channel = file.getChannel();
+                index = newIndex;
+                done = true;
+                log.info("Compacted {} to {} bytes for {} keys in {} msec",
+                        new Object[]{logFile, channel.size(), index.size(), Utils.now().getTime() - startTime});
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            synchronized (this) {
+                compacting = false;
+            }
+            if (!done) {
+                try {
+                    if (newFile != null)
+                        newFile.close();
+                } catch (IOException e) {
+                    log.warn("Failed to close " + compactionFile, e);
+                }
+                compactionFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Flushes the log to disk and closes the store.
+     */
+    public synchronized void close() throws BlockStoreException {
+        if (closed)
+            return;
+        closed = true;
+        compactionExecutor.shutdown();
+        try {
+            channel.force(true);
+            file.close();
+            fileLock.release();
+            lockFile.close();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+}
@@ -310,7 +310,7 @@ class TransactionalMultiKeyHashMap<UniqueKeyType, MultiKeyType, ValueType> {
 
 /**
  * Keeps {@link StoredBlock}s, {@link StoredUndoableBlock}s and {@link StoredTransactionOutput}s in memory.
- * Used primarily for unit testing.
+ * Undoable blocks are kept in their compact serialized form. Used primarily for unit testing.
  */
 public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
     protected static class StoredBlockAndWasUndoableFlag {
@@ -324,12 +324,13 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
     }
 
     private TransactionalHashMap<Sha256Hash, StoredBlockAndWasUndoableFlag> blockMap;
-    private TransactionalMultiKeyHashMap<Sha256Hash, Integer, StoredUndoableBlock> fullBlockMap;
+    private TransactionalMultiKeyHashMap<Sha256Hash, Integer, byte[]> fullBlockMap;
     //TODO: Use something more suited to remove-heavy use?
     private TransactionalHashMap<StoredTransactionOutPoint, StoredTransactionOutput> transactionOutputMap;
     private StoredBlock chainHead;
     private StoredBlock verifiedChainHead;
     private int fullStoreDepth;
+    private NetworkParameters params;
 
     /**
      * Set up the MemoryFullPrunedBlockStore
@@ -339,7 +340,8 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
      */
     public MemoryFullPrunedBlockStore(NetworkParameters params, int fullStoreDepth) {
         blockMap = new TransactionalHashMap<Sha256Hash, StoredBlockAndWasUndoableFlag>();
-        fullBlockMap = new TransactionalMultiKeyHashMap<Sha256Hash, Integer, StoredUndoableBlock>();
+        this.params = params;
+        fullBlockMap = new TransactionalMultiKeyHashMap<Sha256Hash, Integer, byte[]>();
         transactionOutputMap = new TransactionalHashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
         this.fullStoreDepth = fullStoreDepth > 0 ? fullStoreDepth : 1;
         // Insert the genesis block.
@@ -367,7 +369,7 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
     public synchronized void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
         Preconditions.checkNotNull(blockMap, "MemoryFullPrunedBlockStore is closed");
         Sha256Hash hash = storedBlock.getHeader().getHash();
-        fullBlockMap.put(hash, storedBlock.getHeight(), undoableBlock);
+        fullBlockMap.put(hash, storedBlock.getHeight(), undoableBlock.serializeCompact());
         blockMap.put(hash, new StoredBlockAndWasUndoableFlag(storedBlock, true));
     }
 
@@ -385,7 +387,14 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
 
     public synchronized StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
         Preconditions.checkNotNull(fullBlockMap, "MemoryFullPrunedBlockStore is closed");
-        return fullBlockMap.get(hash);
+        byte[] undoData = fullBlockMap.get(hash);
+        if (undoData == null)
+            return null;
+        try {
+            return StoredUndoableBlock.deserializeCompact(params, hash, undoData);
+        } catch (ProtocolException e) {
+            throw new BlockStoreException(e);  // Cannot happen, we wrote it.
+        }
     }
 
     public synchronized StoredBlock getChainHead() throws BlockStoreException {
@@ -41,7 +41,11 @@ import static com.google.common.base.Preconditions.checkState;
 /**
  * An SPVBlockStore holds a limited number of block headers in a memory mapped ring buffer. With such a store, you
  * may not be able to process very deep re-orgs and could be disconnected from the chain (requiring a replay),
- * but as they are virtually unheard of this is not a significant risk.
+ * but as they are virtually unheard of this is not a significant risk.<p>
+ * <p/>
+ * The skip pointer of each header (see {@link StoredBlock#getAncestor(BlockStore, int)}) is kept in a second table
+ * after the ring buffer, so the headers themselves are laid out exactly as in files written before skip pointers
+ * existed. Such files are extended when opened and their headers simply have no skip pointers.
  */
 public class SPVBlockStore implements BlockStore {
     private static final Logger log = LoggerFactory.getLogger(SPVBlockStore.class);
@@ -104,6 +108,9 @@ public class SPVBlockStore implements BlockStore {
             if (!exists) {
                 log.info("Creating new SPV block chain file " + file);
                 randomAccessFile.setLength(fileSize);
+            } else if (randomAccessFile.length() == getRingEnd()) {
+                log.info("Adding skip pointers to SPV block chain file " + file);
+                randomAccessFile.setLength(fileSize);
             } else if (randomAccessFile.length() != fileSize) {
                 throw new BlockStoreException("File size on disk does not match expected size: " +
                         randomAccessFile.length() + " vs " + fileSize);
@@ -162,9 +169,19 @@ public class SPVBlockStore implements BlockStore {
      * Returns the size in bytes of the file that is used to store the chain with the current parameters.
      */
     public int getFileSize() {
+        return getRingEnd() + SKIP_RECORD_SIZE * numHeaders;
+    }
+
+    // Offset of the end of the ring buffer, which is where the skip pointer table starts.
+    private int getRingEnd() {
         return RECORD_SIZE * numHeaders + FILE_PROLOGUE_BYTES /* extra kilobyte for stuff */;
     }
 
+    // Offset of the skip pointer belonging to the header record at the given offset.
+    private int getSkipOffset(int recordOffset) {
+        return getRingEnd() + (recordOffset - FILE_PROLOGUE_BYTES) / RECORD_SIZE * SKIP_RECORD_SIZE;
+    }
+
     public void put(StoredBlock block) throws BlockStoreException {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
@@ -172,10 +189,15 @@ public class SPVBlockStore implements BlockStore {
         lock.lock();
         try {
             int cursor = getRingCursor(buffer);
-            if (cursor == getFileSize()) {
+            if (cursor == getRingEnd()) {
                 // Wrapped around.
                 cursor = FILE_PROLOGUE_BYTES;
             }
+            // The skip pointer goes first and the cursor last, so a crash part way only leaves the slot being reused
+            // with a skip pointer of the wrong height, which StoredBlock ignores.
+            Sha256Hash skipHash = block.getSkipHash();
+            buffer.position(getSkipOffset(cursor));
+            buffer.put(skipHash != null ? skipHash.getBytes() : Sha256Hash.ZERO_HASH.getBytes());
             buffer.position(cursor);
             Sha256Hash hash = block.getHeader().getHash();
             notFoundCache.remove(hash);
@@ -204,14 +226,14 @@ public class SPVBlockStore implements BlockStore {
             // wrapped around.
             int cursor = getRingCursor(buffer);
             final int startingPoint = cursor;
-            final int fileSize = getFileSize();
+            final int ringEnd = getRingEnd();
             final byte[] targetHashBytes = hash.getBytes();
             byte[] scratch = new byte[32];
             do {
                 cursor -= RECORD_SIZE;
                 if (cursor < FILE_PROLOGUE_BYTES) {
                     // We hit the start, so wrap around.
-                    cursor = fileSize - RECORD_SIZE;
+                    cursor = ringEnd - RECORD_SIZE;
                 }
                 // Cursor is now at the start of the next record to check, so read the hash and compare it.
                 buffer.position(cursor);
@@ -219,6 +241,10 @@ public class SPVBlockStore implements BlockStore {
                 if (Arrays.equals(scratch, targetHashBytes)) {
                     // Found the target.
                     StoredBlock storedBlock = StoredBlock.deserializeCompact(params, buffer);
+                    buffer.position(getSkipOffset(cursor));
+                    buffer.get(scratch);
+                    if (!Arrays.equals(scratch, Sha256Hash.ZERO_HASH.getBytes()))
+                        storedBlock.setSkipHash(new Sha256Hash(scratch));
                     blockCache.put(hash, storedBlock);
                     return storedBlock;
                 }
@@ -291,7 +317,10 @@ public class SPVBlockStore implements BlockStore {
     //   12 bytes of chain work
     //    4 bytes of height
     //   80 bytes of block header data
+    //
+    // Then for each header, in the same order, the 32 byte hash of its skip ancestor or zeros if it has none.
     protected static final int FILE_PROLOGUE_BYTES = 1024;
+    protected static final int SKIP_RECORD_SIZE = 32;
 
     /**
      * Returns the offset from the file start where the latest block should be written (end of prev block).
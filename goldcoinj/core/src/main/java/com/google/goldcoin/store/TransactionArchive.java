@@ -0,0 +1,126 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.goldcoin.store;
+
+import com.google.goldcoin.core.NetworkParameters;
+import com.google.goldcoin.core.Sha256Hash;
+import com.google.goldcoin.core.Transaction;
+import com.google.goldcoin.core.WalletTransaction;
+import org.goldcoinj.wallet.Protos;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Holds the full bodies of transactions a {@link com.google.goldcoin.core.Wallet} no longer keeps in memory, see
+ * {@link com.google.goldcoin.core.Wallet#setTransactionArchive(TransactionArchive)}. Each transaction is stored in the
+ * same form as in a wallet file, including the blocks it appeared in and its confidence, keyed by its hash in a
+ * {@link LogStructuredKeyValueStore}, so it can be read back with a single disk read.</p>
+ *
+ * <p>The archive is kept in a directory of its own next to the wallet file, and is only useful together with the
+ * wallet it was written by. This class is thread safe.</p>
+ */
+public class TransactionArchive {
+    private final NetworkParameters params;
+    private final LogStructuredKeyValueStore store;
+
+    /**
+     * Opens the archive in the given directory, creating it if need be.
+     */
+    public TransactionArchive(NetworkParameters params, File directory) throws IOException {
+        this.params = checkNotNull(params);
+        try {
+            store = new LogStructuredKeyValueStore(directory);
+        } catch (BlockStoreException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Writes the given transactions to the archive in one go, replacing any already there with the same hash.
+     */
+    public void put(Collection<Transaction> txns) throws IOException {
+        LogStructuredKeyValueStore.Batch batch = new LogStructuredKeyValueStore.Batch();
+        for (Transaction tx : txns) {
+            Protos.Transaction txProto =
+                    WalletProtobufSerializer.makeTxProto(new WalletTransaction(WalletTransaction.Pool.SPENT, tx));
+            batch.put(tx.getHash().getBytes(), txProto.toByteArray());
+        }
+        try {
+            store.write(batch);
+        } catch (BlockStoreException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Reads the transaction with the given hash back from the archive, or returns null if it isn't there. The
+     * transaction isn't connected to the ones it spends or that spend it.
+     */
+    public Transaction get(Sha256Hash hash) throws IOException {
+        byte[] bytes;
+        try {
+            bytes = store.get(hash.getBytes());
+        } catch (BlockStoreException e) {
+            throw new IOException(e);
+        }
+        if (bytes == null)
+            return null;
+        Protos.Transaction txProto = Protos.Transaction.parseFrom(bytes);
+        Transaction tx = WalletProtobufSerializer.makeTransaction(txProto, params);
+        if (txProto.hasConfidence())
+            new WalletProtobufSerializer().readConfidence(tx, txProto.getConfidence(), tx.getConfidence());
+        return tx;
+    }
+
+    /**
+     * Returns whether the transaction with the given hash is in the archive, without touching the disk.
+     */
+    public boolean contains(Sha256Hash hash) {
+        return store.contains(hash.getBytes());
+    }
+
+    /**
+     * Removes the transactions with the given hashes from the archive, in one go.
+     */
+    public void delete(Collection<Sha256Hash> hashes) throws IOException {
+        LogStructuredKeyValueStore.Batch batch = new LogStructuredKeyValueStore.Batch();
+        for (Sha256Hash hash : hashes)
+            batch.delete(hash.getBytes());
+        try {
+            store.write(batch);
+        } catch (BlockStoreException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /** Returns how many transactions are in the archive. */
+    public int size() {
+        return store.size();
+    }
+
+    public void close() throws IOException {
+        try {
+            store.close();
+        } catch (BlockStoreException e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -16,6 +16,9 @@
 
 package com.google.goldcoin.store;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -34,6 +37,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.goldcoin.core.ECKey;
+import com.google.goldcoin.core.KeyPool;
 import com.google.goldcoin.core.NetworkParameters;
 import com.google.goldcoin.core.PeerAddress;
 import com.google.goldcoin.core.Sha256Hash;
@@ -43,6 +47,7 @@ import com.google.goldcoin.core.TransactionConfidence.ConfidenceType;
 import com.google.goldcoin.core.TransactionInput;
 import com.google.goldcoin.core.TransactionOutPoint;
 import com.google.goldcoin.core.TransactionOutput;
+import com.google.goldcoin.core.TransactionSummary;
 import com.google.goldcoin.core.Wallet;
 import com.google.goldcoin.core.WalletTransaction;
 import com.google.common.base.Preconditions;
@@ -71,6 +76,10 @@ import com.google.protobuf.TextFormat;
 public class WalletProtobufSerializer {
     private static final Logger log = LoggerFactory.getLogger(WalletProtobufSerializer.class);
 
+    /** The id of the extension that the wallet's {@link KeyPool} is saved in. */
+    public static final String KEY_POOL_EXTENSION_ID = "com.google.goldcoin.core.KeyPool";
+    public static final String ARCHIVE_EXTENSION_ID = "com.google.goldcoin.core.TransactionArchive";
+
     // Used for de-serialization
     protected Map<ByteString, Transaction> txMap;
     protected WalletExtensionSerializer helper;
@@ -127,38 +136,7 @@ public class WalletProtobufSerializer {
         }
 
         for (ECKey key : wallet.getKeys()) {
-            Protos.Key.Builder keyBuilder = Protos.Key.newBuilder().setCreationTimestamp(key.getCreationTimeSeconds() * 1000)
-                    // .setLabel() TODO
-                    .setType(Protos.Key.Type.ORIGINAL);
-            if (key.getPrivKeyBytes() != null)
-                keyBuilder.setPrivateKey(ByteString.copyFrom(key.getPrivKeyBytes()));
-
-            EncryptedPrivateKey encryptedPrivateKey = key.getEncryptedPrivateKey();
-            if (encryptedPrivateKey != null) {
-                // Key is encrypted.
-                Protos.EncryptedPrivateKey.Builder encryptedKeyBuilder = Protos.EncryptedPrivateKey.newBuilder()
-                        .setEncryptedPrivateKey(ByteString.copyFrom(encryptedPrivateKey.getEncryptedBytes()))
-                        .setInitialisationVector(ByteString.copyFrom(encryptedPrivateKey.getInitialisationVector()));
-
-                if (key.getKeyCrypter() == null) {
-                    throw new IllegalStateException("The encrypted key " + key.toString() + " has no KeyCrypter.");
-                } else {
-                    // If it is a Scrypt + AES encrypted key, set the persisted key type.
-                    if (key.getKeyCrypter().getUnderstoodEncryptionType() == Protos.Wallet.EncryptionType.ENCRYPTED_SCRYPT_AES) {
-                        keyBuilder.setType(Protos.Key.Type.ENCRYPTED_SCRYPT_AES);
-                    } else {
-                        throw new IllegalArgumentException("The key " + key.toString() + " is encrypted with a KeyCrypter of type " + key.getKeyCrypter().getUnderstoodEncryptionType() +
-                                ". This WalletProtobufSerialiser does not understand that type of encryption.");
-                    }
-                }
-                keyBuilder.setEncryptedPrivateKey(encryptedKeyBuilder);
-            }
-
-            // We serialize the public key even if the private key is present for speed reasons: we don't want to do
-            // lots of slow EC math to load the wallet, we prefer to store the redundant data instead. It matters more
-            // on mobile platforms.
-            keyBuilder.setPublicKey(ByteString.copyFrom(key.getPubKey()));
-            walletBuilder.addKey(keyBuilder);
+            walletBuilder.addKey(makeKeyProto(key));
         }
 
         // Populate the lastSeenBlockHash field.
@@ -188,6 +166,17 @@ public class WalletProtobufSerializer {
         // Populate the wallet version.
         walletBuilder.setVersion(wallet.getVersion());
 
+        // The key pool holds unencrypted keys, so is not saved for encrypted wallets (which don't use it anyway).
+        KeyPool keyPool = wallet.getKeyPool();
+        if (keyPool != null && keyCrypter == null) {
+            walletBuilder.addExtension(makeKeyPoolExtension(keyPool));
+        }
+
+        List<TransactionSummary> archived = wallet.getArchivedSummaries();
+        if (!archived.isEmpty()) {
+            walletBuilder.addExtension(makeArchiveExtension(archived));
+        }
+
         Collection<Protos.Extension> extensions = helper.getExtensionsToWrite(wallet);
         for (Protos.Extension ext : extensions) {
             walletBuilder.addExtension(ext);
@@ -196,6 +185,90 @@ public class WalletProtobufSerializer {
         return walletBuilder.build();
     }
 
+    protected static Protos.Key makeKeyProto(ECKey key) {
+        Protos.Key.Builder keyBuilder = Protos.Key.newBuilder().setCreationTimestamp(key.getCreationTimeSeconds() * 1000)
+                // .setLabel() TODO
+                .setType(Protos.Key.Type.ORIGINAL);
+        if (key.getPrivKeyBytes() != null)
+            keyBuilder.setPrivateKey(ByteString.copyFrom(key.getPrivKeyBytes()));
+
+        EncryptedPrivateKey encryptedPrivateKey = key.getEncryptedPrivateKey();
+        if (encryptedPrivateKey != null) {
+            // Key is encrypted.
+            Protos.EncryptedPrivateKey.Builder encryptedKeyBuilder = Protos.EncryptedPrivateKey.newBuilder()
+                    .setEncryptedPrivateKey(ByteString.copyFrom(encryptedPrivateKey.getEncryptedBytes()))
+                    .setInitialisationVector(ByteString.copyFrom(encryptedPrivateKey.getInitialisationVector()));
+
+            if (key.getKeyCrypter() == null) {
+                throw new IllegalStateException("The encrypted key " + key.toString() + " has no KeyCrypter.");
+            } else {
+                // If it is a Scrypt + AES encrypted key, set the persisted key type.
+                if (key.getKeyCrypter().getUnderstoodEncryptionType() == Protos.Wallet.EncryptionType.ENCRYPTED_SCRYPT_AES) {
+                    keyBuilder.setType(Protos.Key.Type.ENCRYPTED_SCRYPT_AES);
+                } else {
+                    throw new IllegalArgumentException("The key " + key.toString() + " is encrypted with a KeyCrypter of type " + key.getKeyCrypter().getUnderstoodEncryptionType() +
+                            ". This WalletProtobufSerialiser does not understand that type of encryption.");
+                }
+            }
+            keyBuilder.setEncryptedPrivateKey(encryptedKeyBuilder);
+        }
+
+        // We serialize the public key even if the private key is present for speed reasons: we don't want to do
+        // lots of slow EC math to load the wallet, we prefer to store the redundant data instead. It matters more
+        // on mobile platforms.
+        keyBuilder.setPublicKey(ByteString.copyFrom(key.getPubKey()));
+        return keyBuilder.build();
+    }
+
+    /**
+     * Saves the pooled keys and the target size of the pool as an extension, which older versions will ignore. That's
+     * safe as nothing can have been paid to keys still in the pool.
+     */
+    protected static Protos.Extension makeKeyPoolExtension(KeyPool keyPool) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream output = new DataOutputStream(bytes);
+            output.writeInt(keyPool.getTargetSize());
+            for (ECKey key : keyPool.getKeys()) {
+                makeKeyProto(key).writeDelimitedTo(output);
+            }
+            output.flush();
+            return Protos.Extension.newBuilder()
+                    .setId(KEY_POOL_EXTENSION_ID)
+                    .setData(ByteString.copyFrom(bytes.toByteArray()))
+                    .setMandatory(false)
+                    .build();
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen when writing to memory.
+        }
+    }
+
+    /**
+     * Saves the summaries of the transactions the wallet has archived as an extension. Older versions ignore it and
+     * lose the history of those transactions, but not any money, as archived transactions are fully spent.
+     */
+    protected static Protos.Extension makeArchiveExtension(List<TransactionSummary> summaries) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(4 + summaries.size() * 52);
+            DataOutputStream output = new DataOutputStream(bytes);
+            output.writeInt(summaries.size());
+            for (TransactionSummary summary : summaries) {
+                output.write(summary.getHash().getBytes());
+                output.writeLong(summary.getUpdateTime().getTime());
+                output.writeLong(summary.getValue().longValue());
+                output.writeInt(summary.getHeight());
+            }
+            output.flush();
+            return Protos.Extension.newBuilder()
+                    .setId(ARCHIVE_EXTENSION_ID)
+                    .setData(ByteString.copyFrom(bytes.toByteArray()))
+                    .setMandatory(false)
+                    .build();
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen when writing to memory.
+        }
+    }
+
     protected static Protos.Transaction makeTxProto(WalletTransaction wtx) {
         Transaction tx = wtx.getTransaction();
         Protos.Transaction.Builder txBuilder = Protos.Transaction.newBuilder();
@@ -390,6 +463,14 @@ public class WalletProtobufSerializer {
         }
 
         for (Protos.Extension extProto : walletProto.getExtensionList()) {
+            if (extProto.getId().equals(KEY_POOL_EXTENSION_ID)) {
+                wallet.setKeyPool(readKeyPool(params, extProto));
+                continue;
+            }
+            if (extProto.getId().equals(ARCHIVE_EXTENSION_ID)) {
+                wallet.addArchivedSummaries(readArchivedSummaries(extProto));
+                continue;
+            }
             helper.readExtension(wallet, extProto);
         }
 
@@ -400,6 +481,35 @@ public class WalletProtobufSerializer {
         return wallet;
     }
 
+    private static KeyPool readKeyPool(NetworkParameters params, Protos.Extension extProto) throws IOException {
+        DataInputStream input = new DataInputStream(extProto.getData().newInput());
+        KeyPool keyPool = new KeyPool(params, input.readInt());
+        List<ECKey> keys = new ArrayList<ECKey>();
+        Protos.Key keyProto;
+        while ((keyProto = Protos.Key.parseDelimitedFrom(input)) != null) {
+            ECKey key = new ECKey(keyProto.getPrivateKey().toByteArray(), keyProto.getPublicKey().toByteArray());
+            key.setCreationTimeSeconds((keyProto.getCreationTimestamp() + 500) / 1000);
+            keys.add(key);
+        }
+        keyPool.addKeys(keys);
+        return keyPool;
+    }
+
+    private static List<TransactionSummary> readArchivedSummaries(Protos.Extension extProto) throws IOException {
+        DataInputStream input = new DataInputStream(extProto.getData().newInput());
+        int count = input.readInt();
+        List<TransactionSummary> summaries = new ArrayList<TransactionSummary>(count);
+        byte[] hash = new byte[32];
+        for (int i = 0; i < count; i++) {
+            input.readFully(hash);
+            long updateTime = input.readLong();
+            BigInteger value = BigInteger.valueOf(input.readLong());
+            int height = input.readInt();
+            summaries.add(new TransactionSummary(new Sha256Hash(hash.clone()), updateTime, value, height));
+        }
+        return summaries;
+    }
+
     /**
      * Returns the loaded protocol buffer from the given byte stream. You normally want
      * {@link Wallet#loadFromFile(java.io.File)} instead - this method is designed for low level work involving the
@@ -410,6 +520,17 @@ public class WalletProtobufSerializer {
     }
 
     protected void readTransaction(Protos.Transaction txProto, NetworkParameters params) {
+        Transaction tx = makeTransaction(txProto, params);
+        Preconditions.checkState(!txMap.containsKey(txProto.getHash()),
+                "Wallet contained duplicate transaction %s", byteStringToHash(txProto.getHash()));
+        txMap.put(txProto.getHash(), tx);
+    }
+
+    /**
+     * Builds a transaction from its protocol buffer, without connecting it to the transactions it spends or that spend
+     * it, and without its confidence.
+     */
+    protected static Transaction makeTransaction(Protos.Transaction txProto, NetworkParameters params) {
         Transaction tx = new Transaction(params);
         if (txProto.hasUpdatedAt()) {
             tx.setUpdateTime(new Date(txProto.getUpdatedAt()));
@@ -447,9 +568,7 @@ public class WalletProtobufSerializer {
         Sha256Hash protoHash = byteStringToHash(txProto.getHash());
         Preconditions.checkState(tx.getHash().equals(protoHash),
                 "Transaction did not deserialize completely: %s vs %s", tx.getHash(), protoHash);
-        Preconditions.checkState(!txMap.containsKey(txProto.getHash()),
-                "Wallet contained duplicate transaction %s", byteStringToHash(txProto.getHash()));
-        txMap.put(txProto.getHash(), tx);
+        return tx;
     }
 
     protected WalletTransaction connectTransactionOutputs(org.goldcoinj.wallet.Protos.Transaction txProto) {
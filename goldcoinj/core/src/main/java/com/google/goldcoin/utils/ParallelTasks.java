@@ -0,0 +1,91 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.goldcoin.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * <p>Runs batches of independent CPU bound tasks, like signing or encrypting with many keys, across all cores and
+ * collects their results in order. The threads are daemons shared by all callers, created when first needed.</p>
+ *
+ * <p>Batches with a single task, or on machines with a single core, run on the calling thread. Tasks must not submit
+ * batches of their own, as they could then end up waiting for threads that are all busy waiting themselves.</p>
+ */
+public class ParallelTasks {
+    private static final int NUM_THREADS = Runtime.getRuntime().availableProcessors();
+
+    private static ExecutorService executor;
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(NUM_THREADS, new ThreadFactory() {
+                private int count;
+
+                public synchronized Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Parallel tasks " + ++count);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Runs the tasks and returns their results in the same order. If any task throws, the exception of the first one
+     * to do so in list order is rethrown once all have finished: runtime exceptions and errors as they are, checked
+     * exceptions wrapped in a RuntimeException.
+     */
+    public static <T> List<T> runAll(List<? extends Callable<T>> tasks) {
+        List<T> results = new ArrayList<T>(tasks.size());
+        if (tasks.size() < 2 || NUM_THREADS < 2) {
+            for (Callable<T> task : tasks) {
+                try {
+                    results.add(task.call());
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return results;
+        }
+        List<Future<T>> futures;
+        try {
+            futures = getExecutor().invokeAll(tasks);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        for (Future<T> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);  // Cannot happen, invokeAll waited for them all.
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException) cause;
+                if (cause instanceof Error)
+                    throw (Error) cause;
+                throw new RuntimeException(cause);
+            }
+        }
+        return results;
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.goldcoin.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AddressManagerTest {
+    private static final List<InetSocketAddress> NONE = Collections.emptyList();
+
+    private InetSocketAddress a, b, c;
+
+    @Before
+    public void setUp() throws Exception {
+        Utils.rollMockClock(0);  // Fix the mock clock.
+        a = new InetSocketAddress(InetAddress.getByAddress(new byte[]{10, 0, 0, 1}), 8121);
+        b = new InetSocketAddress(InetAddress.getByAddress(new byte[]{10, 0, 0, 2}), 8121);
+        c = new InetSocketAddress(InetAddress.getByAddress(new byte[]{10, 0, 0, 3}), 8121);
+    }
+
+    @After
+    public void tearDown() {
+        Utils.mockTime = null;
+    }
+
+    @Test
+    public void ordering() throws Exception {
+        AddressManager manager = new AddressManager();
+        long now = Utils.now().getTime() / 1000;
+        manager.addSeen(a, now - 3600);
+        manager.addSeen(b, now - 60);
+        manager.addSeen(c, now - 7200);
+        // Recently heard of first.
+        assertEquals(a, manager.getCandidates(3, NONE).get(1));
+        assertEquals(b, manager.getCandidates(3, NONE).get(0));
+        // Peers we connected to before go first.
+        manager.markAttempt(c);
+        manager.markSuccess(c);
+        List<InetSocketAddress> candidates = manager.getCandidates(2, NONE);
+        assertEquals(2, candidates.size());
+        assertEquals(c, candidates.get(0));
+        assertEquals(b, candidates.get(1));
+        assertFalse(manager.getCandidates(3, Collections.singleton(c)).contains(c));
+    }
+
+    @Test
+    public void backoff() throws Exception {
+        AddressManager manager = new AddressManager();
+        manager.addSeen(a, Utils.now().getTime() / 1000);
+        manager.markAttempt(a);
+        manager.markFailure(a);
+        assertTrue(manager.getCandidates(1, NONE).isEmpty());
+        Utils.rollMockClock(61);
+        assertEquals(a, manager.getCandidates(1, NONE).get(0));
+        // The second failure doubles the delay.
+        manager.markAttempt(a);
+        manager.markFailure(a);
+        Utils.rollMockClock(61);
+        assertTrue(manager.getCandidates(1, NONE).isEmpty());
+        Utils.rollMockClock(60);
+        assertEquals(a, manager.getCandidates(1, NONE).get(0));
+    }
+
+    @Test
+    public void addressMessage() throws Exception {
+        AddressManager manager = new AddressManager();
+        AddressMessage message = new AddressMessage(NetworkParameters.unitTests(), new byte[]{0});
+        PeerAddress address = new PeerAddress(a.getAddress(), a.getPort());
+        address.setTime(Utils.now().getTime() / 1000);
+        message.addAddress(address);
+        manager.addSeen(message);
+        assertEquals(1, manager.size());
+        assertEquals(a, manager.getCandidates(1, NONE).get(0));
+    }
+
+    @Test
+    public void saveAndLoad() throws Exception {
+        File f = File.createTempFile("goldcoinj-unit-test", null);
+        f.deleteOnExit();
+        AddressManager manager = new AddressManager(f);
+        long now = Utils.now().getTime() / 1000;
+        manager.addSeen(a, now - 60);
+        manager.addSeen(b, now);
+        manager.markAttempt(a);
+        manager.markSuccess(a);
+        manager.markAttempt(c);
+        manager.markFailure(c);
+        manager.save();
+
+        AddressManager loaded = new AddressManager(f);
+        assertEquals(3, loaded.size());
+        assertEquals(manager.getCandidates(3, NONE), loaded.getCandidates(3, NONE));
+        assertEquals(2, loaded.getCandidates(3, NONE).size());  // c is still backing off.
+        // A file in the wrong format is ignored.
+        FileOutputStream stream = new FileOutputStream(f);
+        stream.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+        stream.close();
+        assertEquals(0, new AddressManager(f).size());
+    }
+}
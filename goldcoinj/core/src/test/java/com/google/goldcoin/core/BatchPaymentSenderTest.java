@@ -0,0 +1,119 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.goldcoin.core;
+
+import com.google.goldcoin.store.BlockStore;
+import com.google.goldcoin.store.MemoryBlockStore;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import static com.google.goldcoin.core.TestUtils.createFakeBlock;
+import static com.google.goldcoin.core.TestUtils.createFakeTx;
+import static org.junit.Assert.*;
+
+public class BatchPaymentSenderTest {
+    private final NetworkParameters params = NetworkParameters.unitTests();
+    private Wallet wallet;
+    private BlockStore blockStore;
+    private final List<Transaction> broadcasts = new ArrayList<Transaction>();
+    private final List<SettableFuture<Transaction>> broadcastFutures = new ArrayList<SettableFuture<Transaction>>();
+    private PeerGroup peerGroup;
+
+    @Before
+    public void setUp() throws Exception {
+        wallet = new Wallet(params);
+        ECKey key = new ECKey();
+        wallet.addKey(key);
+        blockStore = new MemoryBlockStore(params);
+        for (int i = 0; i < 3; i++) {
+            Transaction tx = createFakeTx(params, Utils.toNanoCoins(1, 0), key.toAddress(params));
+            TestUtils.BlockPair bp = createFakeBlock(blockStore, tx);
+            wallet.receiveFromBlock(tx, bp.storedBlock, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+            wallet.notifyNewBestBlock(bp.storedBlock);
+        }
+        peerGroup = new PeerGroup(params) {
+            @Override
+            public ListenableFuture<Transaction> broadcastTransaction(Transaction tx) {
+                SettableFuture<Transaction> future = SettableFuture.create();
+                broadcasts.add(tx);
+                broadcastFutures.add(future);
+                return future;
+            }
+        };
+    }
+
+    @Test
+    public void batches() throws Exception {
+        BatchPaymentSender sender = new BatchPaymentSender(wallet, peerGroup, 1000000);
+        List<ListenableFuture<Transaction>> futures = new ArrayList<ListenableFuture<Transaction>>();
+        List<Address> addresses = new ArrayList<Address>();
+        for (int i = 0; i < 20; i++) {
+            Address address = new ECKey().toAddress(params);
+            addresses.add(address);
+            futures.add(sender.pay(address, Utils.toNanoCoins(0, 10)));
+        }
+        assertEquals(20, sender.getQueuedPaymentCount());
+        sender.flush();
+        assertEquals(0, sender.getQueuedPaymentCount());
+        // All in one transaction, with change.
+        assertEquals(1, broadcasts.size());
+        Transaction tx = broadcasts.get(0);
+        assertEquals(21, tx.getOutputs().size());
+        for (int i = 0; i < 20; i++)
+            assertEquals(addresses.get(i), tx.getOutput(i).getScriptPubKey().getToAddress());
+        assertEquals(1, wallet.getPoolSize(WalletTransaction.Pool.PENDING));
+        // The futures complete on broadcast.
+        assertFalse(futures.get(0).isDone());
+        broadcastFutures.get(0).set(tx);
+        for (ListenableFuture<Transaction> future : futures)
+            assertEquals(tx, future.get());
+        sender.stop();
+    }
+
+    @Test
+    public void unaffordablePaymentFailsAlone() throws Exception {
+        BatchPaymentSender sender = new BatchPaymentSender(wallet, peerGroup, 1000000);
+        ListenableFuture<Transaction> first = sender.pay(new ECKey().toAddress(params), Utils.toNanoCoins(0, 50));
+        ListenableFuture<Transaction> tooBig = sender.pay(new ECKey().toAddress(params), Utils.toNanoCoins(5, 0));
+        ListenableFuture<Transaction> last = sender.pay(new ECKey().toAddress(params), Utils.toNanoCoins(0, 50));
+        sender.stop();
+        try {
+            tooBig.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof InsufficientMoneyException);
+        }
+        // The batch was split and the payments either side of the one that couldn't be made went ahead.
+        assertEquals(2, broadcasts.size());
+        for (SettableFuture<Transaction> future : broadcastFutures)
+            future.set(null);
+        assertTrue(first.isDone());
+        assertTrue(last.isDone());
+        try {
+            sender.pay(new ECKey().toAddress(params), Utils.toNanoCoins(1, 0));
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+    }
+}
@@ -25,7 +25,10 @@ import org.junit.Test;
 
 import java.math.BigInteger;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 
 import static com.google.goldcoin.core.TestUtils.createFakeBlock;
 import static com.google.goldcoin.core.TestUtils.createFakeTx;
@@ -259,6 +262,83 @@ public class BlockChainTest {
         assertEquals(BigInteger.ZERO, wallet.getBalance());
     }
 
+    @Test
+    public void relevantTransactionsOfLargeBlock() throws Exception {
+        // A block with many transactions, of which only a few concern either of two wallets, is scanned against
+        // snapshots of the wallets. A transaction spending one received from the same block must still be found.
+        Wallet wallet2 = new Wallet(unitTestParams);
+        ECKey key2 = new ECKey();
+        wallet2.addKey(key2);
+        chain.addWallet(wallet2);
+        Address somebodyElse = new ECKey().toAddress(unitTestParams);
+        Block b1 = unitTestParams.genesisBlock.createNextBlock(somebodyElse);
+        Transaction toWallet = createFakeTx(unitTestParams, Utils.toNanoCoins(1, 0), coinbaseTo);
+        Transaction toWallet2 = createFakeTx(unitTestParams, Utils.toNanoCoins(1, 0), key2.toAddress(unitTestParams));
+        Transaction walletToWallet2 = new Transaction(unitTestParams);
+        walletToWallet2.addInput(toWallet.getOutputs().get(0));
+        walletToWallet2.addOutput(Utils.toNanoCoins(1, 0), key2.toAddress(unitTestParams));
+        for (int i = 0; i < 600; i++) {
+            if (i == 100)
+                b1.addTransaction(toWallet);
+            else if (i == 300)
+                b1.addTransaction(toWallet2);
+            else if (i == 500)
+                b1.addTransaction(walletToWallet2);
+            else
+                b1.addTransaction(createFakeTx(unitTestParams, Utils.toNanoCoins(1, 0), somebodyElse));
+        }
+        b1.solve();
+        assertTrue(chain.add(b1));
+        assertEquals(2, wallet.getTransactions(true, true).size());
+        assertEquals(BigInteger.ZERO, wallet.getBalance());
+        assertEquals(2, wallet2.getTransactions(true, true).size());
+        assertEquals(Utils.toNanoCoins(2, 0), wallet2.getBalance());
+    }
+
+    @Test
+    public void relevanceSnapshots() throws Exception {
+        RelevanceSnapshot snapshot = wallet.getRelevanceSnapshot();
+        assertSame(snapshot, wallet.getRelevanceSnapshot());
+        Address somebodyElse = new ECKey().toAddress(unitTestParams);
+        assertFalse(snapshot.mightBeRelevant(createFakeTx(unitTestParams, Utils.toNanoCoins(1, 0), somebodyElse)));
+        assertTrue(snapshot.mightBeRelevant(createFakeTx(unitTestParams, Utils.toNanoCoins(1, 0), coinbaseTo)));
+        // A new key means a new snapshot, also if it was added to the keychain directly.
+        ECKey key = new ECKey();
+        wallet.addKey(key);
+        Transaction toKey = createFakeTx(unitTestParams, Utils.toNanoCoins(1, 0), key.toAddress(unitTestParams));
+        assertFalse(snapshot.mightBeRelevant(toKey));
+        assertTrue(wallet.getRelevanceSnapshot().mightBeRelevant(toKey));
+        ECKey direct = new ECKey();
+        wallet.keychain.add(direct);
+        assertTrue(wallet.getRelevanceSnapshot().mightBeRelevant(
+                createFakeTx(unitTestParams, Utils.toNanoCoins(1, 0), direct.toAddress(unitTestParams))));
+        // So does a new transaction, which may then be spent from.
+        Transaction received = createFakeTx(unitTestParams, Utils.toNanoCoins(1, 0), coinbaseTo);
+        wallet.receivePending(received, null);
+        Transaction spend = new Transaction(unitTestParams);
+        spend.addInput(received.getOutput(0));
+        spend.addOutput(Utils.toNanoCoins(1, 0), somebodyElse);
+        assertTrue(wallet.getRelevanceSnapshot().mightBeRelevant(spend));
+
+        // Snapshots share most of what they hold, but each one only has what was added before it was taken.
+        RelevanceSnapshot.Index index = new RelevanceSnapshot.Index();
+        List<Transaction> spends = new ArrayList<Transaction>();
+        List<RelevanceSnapshot> snapshots = new ArrayList<RelevanceSnapshot>();
+        for (int i = 0; i < 300; i++) {
+            Transaction tx = createFakeTx(unitTestParams, Utils.toNanoCoins(1, 0), somebodyElse);
+            index.addTransaction(tx.getHash());
+            Transaction spendOfTx = new Transaction(unitTestParams);
+            spendOfTx.addInput(tx.getOutput(0));
+            spendOfTx.addOutput(Utils.toNanoCoins(1, 0), somebodyElse);
+            spends.add(spendOfTx);
+            snapshots.add(index.snapshot());
+        }
+        for (int i = 0; i < snapshots.size(); i++) {
+            for (int j = 0; j < spends.size(); j++)
+                assertEquals(j <= i, snapshots.get(i).mightBeRelevant(spends.get(j)));
+        }
+    }
+
     @Test
     public void coinbaseTransactionAvailability() throws Exception {
         // Check that a coinbase transaction is only available to spend after NetworkParameters.getSpendableCoinbaseDepth() blocks.
@@ -364,6 +444,79 @@ public class BlockChainTest {
         return b1;
     }
 
+    @Test
+    public void addHeaders() throws Exception {
+        // A run of headers is connected in one go and listeners hear about it once.
+        Transaction tx1 = createFakeTx(unitTestParams, Utils.toNanoCoins(1, 0), coinbaseTo);
+        Block b1 = createFakeBlock(blockStore, tx1).block;
+        chain.add(b1);
+        List<Block> headers = new ArrayList<Block>();
+        Block prev = b1;
+        for (int i = 0; i < 10; i++) {
+            prev = prev.createNextBlock(new ECKey().toAddress(unitTestParams));
+            headers.add(prev.cloneAsHeader());
+        }
+        final List<Integer> batchSizes = new ArrayList<Integer>();
+        final int[] singleBlocks = new int[1];
+        chain.addListener(new AbstractBlockChainListener() {
+            @Override
+            public void notifyNewBestBlock(StoredBlock block) {
+                singleBlocks[0]++;
+            }
+
+            @Override
+            public void notifyNewBestBlocks(List<StoredBlock> blocks) {
+                batchSizes.add(blocks.size());
+            }
+        });
+        // Listeners that can't take several blocks at once still hear about each of them.
+        final int[] plainBlocks = new int[1];
+        chain.addListener(new BlockChainListener() {
+            public void notifyNewBestBlock(StoredBlock block) {
+                plainBlocks[0]++;
+            }
+
+            public void reorganize(StoredBlock splitPoint, List<StoredBlock> oldBlocks, List<StoredBlock> newBlocks) {
+            }
+
+            public boolean isTransactionRelevant(Transaction tx) {
+                return false;
+            }
+
+            public void receiveFromBlock(Transaction tx, StoredBlock block, BlockChain.NewBlockType blockType) {
+            }
+
+            public void notifyTransactionIsInBlock(Sha256Hash txHash, StoredBlock block,
+                                                   BlockChain.NewBlockType blockType) {
+            }
+        });
+        assertEquals(5, chain.addHeaders(headers.subList(0, 5)));
+        assertEquals(6, chain.getBestChainHeight());
+        assertEquals(headers.get(4).getHash(), chain.getChainHead().getHeader().getHash());
+        assertEquals(Arrays.asList(5), batchSizes);
+        assertEquals(0, singleBlocks[0]);
+        assertEquals(5, plainBlocks[0]);
+        // The wallet saw the whole run too.
+        assertEquals(6, wallet.getTransaction(tx1.getHash()).getConfidence().getDepthInBlocks());
+        assertEquals(headers.get(4).getHash(), wallet.getLastBlockSeenHash());
+
+        // Per block notifications on request.
+        assertEquals(5, chain.addHeaders(headers.subList(5, 10), true));
+        assertEquals(11, chain.getBestChainHeight());
+        assertEquals(1, batchSizes.size());
+        assertEquals(5, singleBlocks[0]);
+        assertEquals(10, plainBlocks[0]);
+        assertEquals(11, wallet.getTransaction(tx1.getHash()).getConfidence().getDepthInBlocks());
+
+        // Headers that don't connect are dropped and not counted.
+        Block next = prev.createNextBlock(coinbaseTo);
+        Block afterNext = next.createNextBlock(coinbaseTo);
+        assertEquals(0, chain.addHeaders(Arrays.asList(afterNext.cloneAsHeader())));
+        assertEquals(11, chain.getBestChainHeight());
+        assertEquals(2, chain.addHeaders(Arrays.asList(next.cloneAsHeader(), afterNext.cloneAsHeader())));
+        assertEquals(13, chain.getBestChainHeight());
+    }
+
     @Test
     public void estimatedBlockTime() throws Exception {
         NetworkParameters params = NetworkParameters.prodNet();
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.goldcoin.core;
+
+import com.google.goldcoin.store.MemoryBlockStore;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class BlockFileImporterTest {
+    private NetworkParameters params;
+    private BlockChain chain;
+    private List<Block> blocks;
+
+    @Before
+    public void setUp() throws Exception {
+        params = NetworkParameters.unitTests();
+        chain = new BlockChain(params, new MemoryBlockStore(params));
+        Address to = new ECKey().toAddress(params);
+        blocks = new ArrayList<Block>();
+        Block prev = params.genesisBlock;
+        for (int i = 0; i < 10; i++) {
+            prev = prev.createNextBlock(to);
+            blocks.add(prev);
+        }
+    }
+
+    // Writes the blocks in the reference client's format, with some junk in between like a real file can have.
+    private File write(List<Block> blocks) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        long magic = params.packetMagic;
+        for (Block block : blocks) {
+            bytes.write(new byte[]{0, 0, 0});
+            bytes.write(new byte[]{(byte) (magic >>> 24), (byte) (magic >>> 16), (byte) (magic >>> 8), (byte) magic});
+            byte[] size = new byte[4];
+            byte[] data = block.litecoinSerialize();
+            Utils.uint32ToByteArrayLE(data.length, size, 0);
+            bytes.write(size);
+            bytes.write(data);
+        }
+        bytes.write(new byte[100]);  // Preallocated space at the end of the file.
+        File f = File.createTempFile("blk", ".dat");
+        f.deleteOnExit();
+        FileOutputStream stream = new FileOutputStream(f);
+        stream.write(bytes.toByteArray());
+        stream.close();
+        return f;
+    }
+
+    @Test
+    public void importsInChainOrderAcrossFiles() throws Exception {
+        // Blocks out of order and split over two files, as the reference client can write them.
+        File first = write(Arrays.asList(blocks.get(0), blocks.get(2), blocks.get(1), blocks.get(5)));
+        File second = write(Arrays.asList(blocks.get(4), blocks.get(3), blocks.get(6), blocks.get(7), blocks.get(8),
+                blocks.get(9)));
+        BlockFileImporter importer = new BlockFileImporter(params, chain, Arrays.asList(first, second), 2);
+        assertEquals(10, importer.importBlocks());
+        assertEquals(blocks.get(9).getHash(), chain.getChainHead().getHeader().getHash());
+    }
+
+    @Test
+    public void resumes() throws Exception {
+        File f = write(blocks);
+        chain.add(blocks.get(0));
+        chain.add(blocks.get(1));
+        chain.add(blocks.get(2));
+        BlockFileImporter importer = new BlockFileImporter(params, chain, Arrays.asList(f), 2);
+        assertEquals(7, importer.importBlocks());
+        assertEquals(10, chain.getBestChainHeight());
+        // Nothing left to do the second time around.
+        assertEquals(0, new BlockFileImporter(params, chain, Arrays.asList(f)).importBlocks());
+    }
+}
@@ -23,6 +23,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
 import java.math.BigInteger;
 import java.util.Arrays;
 
@@ -150,6 +151,26 @@ public class BlockTest {
         assertEquals(tx, tx2);
     }
 
+    @Test
+    public void storedBlockJavaSerialization() throws Exception {
+        NetworkParameters params = NetworkParameters.unitTests();
+        Block genesis = params.genesisBlock.cloneAsHeader();
+        StoredBlock block = new StoredBlock(genesis, genesis.getWork(), 0)
+                .build(genesis.createNextBlock(new ECKey().toAddress(params)).cloneAsHeader());
+        // The chain work keeps the serialized form it had as a BigInteger field, so older streams still read.
+        assertEquals(BigInteger.class, ObjectStreamClass.lookup(StoredBlock.class).getField("chainWork").getType());
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeObject(block);
+        oos.close();
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()));
+        StoredBlock block2 = (StoredBlock) ois.readObject();
+        ois.close();
+        assertEquals(block, block2);
+        assertEquals(block.getChainWork(), block2.getChainWork());
+    }
+
     @Test
     public void testUpdateLength() {
         NetworkParameters params = NetworkParameters.unitTests();
@@ -3,7 +3,9 @@ package com.google.goldcoin.core;
 import org.junit.Test;
 import org.spongycastle.util.encoders.Hex;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import static org.junit.Assert.*;
 
@@ -46,6 +48,47 @@ public class BloomFilterTest {
         assertTrue(Arrays.equals(Hex.decode("03ce4299050000000100008002"), filter.litecoinSerialize()));
     }
 
+    @Test
+    public void batchInsertAndContains() {
+        List<byte[]> objects = new ArrayList<byte[]>();
+        // Cover every tail length of the hash.
+        objects.add(Hex.decode("99108ad8ed9bb6274d3980bab5a85c048f0950c8"));
+        objects.add(Hex.decode("b5a2c786d9ef4658287ced5914b37a1b4aa32eee01"));
+        objects.add(Hex.decode("b9300670b4c5366e95b2699e8b18bc75e5f729c50203"));
+        objects.add(Hex.decode("0a"));
+        BloomFilter batched = new BloomFilter(4, 0.01, 2147483649L);
+        batched.insertAll(objects);
+        BloomFilter single = new BloomFilter(4, 0.01, 2147483649L);
+        for (byte[] object : objects)
+            single.insert(object);
+        assertEquals(single, batched);
+
+        List<byte[]> queries = new ArrayList<byte[]>(objects);
+        // One bit different in first byte
+        queries.add(Hex.decode("19108ad8ed9bb6274d3980bab5a85c048f0950c8"));
+        boolean[] results = batched.contains(queries);
+        for (int i = 0; i < queries.size(); i++)
+            assertEquals(batched.contains(queries.get(i)), results[i]);
+        for (int i = 0; i < objects.size(); i++)
+            assertTrue(results[i]);
+        assertFalse(results[objects.size()]);
+    }
+
+    @Test
+    public void emptyFilterMatchesNothing() throws Exception {
+        NetworkParameters params = NetworkParameters.unitTests();
+        // A filterload with no data, eleven hash functions and UPDATE_ALL, as a remote peer may send it.
+        BloomFilter filter = new BloomFilter(params, Hex.decode("000b0000000000000001"));
+        assertFalse(filter.contains(Hex.decode("99108ad8ed9bb6274d3980bab5a85c048f0950c8")));
+        filter.insert(Hex.decode("99108ad8ed9bb6274d3980bab5a85c048f0950c8"));
+        assertFalse(filter.contains(Hex.decode("99108ad8ed9bb6274d3980bab5a85c048f0950c8")));
+
+        Block block = params.genesisBlock.createNextBlock(new ECKey().toAddress(params));
+        FilteredBlock filteredBlock = filter.applyAndUpdate(block);
+        assertTrue(filteredBlock.getAssociatedTransactions().isEmpty());
+        assertEquals(block.getHash(), filteredBlock.getHash());
+    }
+
     @Test
     public void walletTest() throws Exception {
         NetworkParameters params = NetworkParameters.prodNet();
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.goldcoin.core;
+
+import com.google.goldcoin.core.TransactionConfidence.ConfidenceType;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.LinkedList;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BranchAndBoundCoinSelectorTest {
+    private final NetworkParameters params = NetworkParameters.unitTests();
+    private final Address address = new ECKey().toAddress(params);
+
+    private TransactionOutput output(long value, ConfidenceType type) {
+        Transaction tx = new Transaction(params);
+        tx.addOutput(new TransactionOutput(params, tx, BigInteger.valueOf(value), address));
+        tx.getConfidence().setConfidenceType(type);
+        return tx.getOutput(0);
+    }
+
+    private LinkedList<TransactionOutput> outputs(long... values) {
+        LinkedList<TransactionOutput> outputs = new LinkedList<TransactionOutput>();
+        for (long value : values)
+            outputs.add(output(value, ConfidenceType.BUILDING));
+        return outputs;
+    }
+
+    private static long sum(Wallet.CoinSelection selection) {
+        long total = 0;
+        for (TransactionOutput output : selection.gathered)
+            total += output.getValue().longValue();
+        assertEquals(total, selection.valueGathered.longValue());
+        return total;
+    }
+
+    @Test
+    public void exactMatch() {
+        BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector(BigInteger.ZERO, 100000, 1000);
+        LinkedList<TransactionOutput> candidates = outputs(100000, 70000, 50000, 30000, 20000, 7000, 3000);
+        // Oldest first would take 100000 + 70000, but 50000 + 20000 + 3000 is exact.
+        Wallet.CoinSelection selection = selector.select(BigInteger.valueOf(73000), candidates);
+        assertEquals(73000, sum(selection));
+        assertEquals(1, selector.getExactMatchCount());
+        assertEquals(0, selector.getFallbackCount());
+    }
+
+    @Test
+    public void withinTolerance() {
+        BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector(BigInteger.valueOf(500), 100000, 1000);
+        Wallet.CoinSelection selection = selector.select(BigInteger.valueOf(59800), outputs(100000, 40000, 20000, 9000));
+        assertEquals(60000, sum(selection));
+        assertEquals(1, selector.getExactMatchCount());
+    }
+
+    @Test
+    public void fallback() {
+        BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector(BigInteger.ZERO, 100000, 1000);
+        LinkedList<TransactionOutput> candidates = outputs(100000, 70000, 50000, 30000);
+        // No exact match, so the smallest output covering the target.
+        assertEquals(70000, sum(selector.select(BigInteger.valueOf(60000), candidates)));
+        // Nothing covers it alone, so the largest outputs until one covers the rest.
+        Wallet.CoinSelection selection = selector.select(BigInteger.valueOf(215000), candidates);
+        assertEquals(3, selection.gathered.size());
+        assertEquals(220000, sum(selection));
+        assertEquals(2, selector.getFallbackCount());
+        // Not enough money: everything is returned.
+        assertEquals(250000, sum(selector.select(BigInteger.valueOf(300000), candidates)));
+    }
+
+    @Test
+    public void unselectableAndRemovedOutputs() {
+        BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector();
+        LinkedList<TransactionOutput> candidates = outputs(50000, 20000);
+        TransactionOutput pending = output(30000, ConfidenceType.NOT_SEEN_IN_CHAIN);
+        candidates.add(pending);
+        // The pending output isn't ours and broadcast, so it can't be used for an exact match.
+        assertEquals(50000, sum(selector.select(BigInteger.valueOf(30000), candidates)));
+        // Once it confirms it can be.
+        pending.parentTransaction.getConfidence().setConfidenceType(ConfidenceType.BUILDING);
+        Wallet.CoinSelection selection = selector.select(BigInteger.valueOf(30000), candidates);
+        assertEquals(1, selection.gathered.size());
+        assertSame(pending, selection.gathered.get(0));
+        // Outputs that are no longer candidates (because they were spent) are dropped from the index.
+        candidates.remove(pending);
+        assertEquals(50000, sum(selector.select(BigInteger.valueOf(30000), candidates)));
+        assertEquals(70000, sum(selector.select(BigInteger.valueOf(1000000), candidates)));
+    }
+
+    @Test
+    public void largeSetWithinBudget() {
+        Random random = new Random(1);
+        long[] values = new long[20000];
+        for (int i = 0; i < values.length; i++)
+            values[i] = 100000 + random.nextInt(5000000);
+        LinkedList<TransactionOutput> candidates = outputs(values);
+        BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector();
+        for (int i = 0; i < 20; i++) {
+            long target = 1000000 + random.nextInt(300000000);
+            long total = sum(selector.select(BigInteger.valueOf(target), candidates));
+            assertTrue(total >= target);
+        }
+        assertEquals(20, selector.getSelectionCount());
+        assertEquals(20, selector.getExactMatchCount() + selector.getFallbackCount());
+        assertTrue(selector.getTotalSearchTries() > 0);
+    }
+}
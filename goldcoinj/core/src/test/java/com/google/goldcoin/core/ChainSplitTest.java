@@ -26,6 +26,7 @@ import org.slf4j.LoggerFactory;
 
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.List;
 
 import static org.junit.Assert.*;
 
@@ -118,6 +119,40 @@ public class ChainSplitTest {
         assertEquals("200.00", Utils.litecoinValueToFriendlyString(wallet.getBalance()));
     }
 
+    @Test
+    public void testForkingAdjustsDepthOnce() throws Exception {
+        // Check that transactions below the fork are told about the re-org once, and that those in the new chain end
+        // up with the depth and work done of the blocks above them.
+        Block b1 = unitTestParams.genesisBlock.createNextBlock(coinsTo);
+        Block b2 = b1.createNextBlock(coinsTo);
+        assertTrue(chain.add(b1));
+        assertTrue(chain.add(b2));
+        Transaction t1 = wallet.getTransaction(b1.getTransactions().get(1).getHash());
+        Transaction t2 = wallet.getTransaction(b2.getTransactions().get(1).getHash());
+        final int[] t1Changed = new int[1];
+        t1.getConfidence().addEventListener(new TransactionConfidence.Listener() {
+            public void onConfidenceChanged(Transaction tx) {
+                t1Changed[0]++;
+            }
+        });
+        //     genesis -> b1 -> b2
+        //                  \-> b3 -> b4
+        Block b3 = b1.createNextBlock(coinsTo2);
+        Block b4 = b3.createNextBlock(someOtherGuy);
+        assertTrue(chain.add(b3));
+        assertEquals(0, t1Changed[0]);
+        assertTrue(chain.add(b4));
+        assertEquals(1, t1Changed[0]);
+        assertEquals(3, t1.getConfidence().getDepthInBlocks());
+        assertEquals(b1.getWork().add(b3.getWork()).add(b4.getWork()), t1.getConfidence().getWorkDone());
+        assertEquals(ConfidenceType.NOT_IN_BEST_CHAIN, t2.getConfidence().getConfidenceType());
+        Transaction t3 = wallet.getTransaction(b3.getTransactions().get(1).getHash());
+        assertEquals(2, t3.getConfidence().getDepthInBlocks());
+        assertEquals(b3.getWork().add(b4.getWork()), t3.getConfidence().getWorkDone());
+        assertEquals(b4.getHash(), wallet.getLastBlockSeenHash());
+        assertEquals(3, wallet.getLastBlockSeenHeight());
+    }
+
     @Test
     public void testForking2() throws Exception {
         // Check that if the chain forks and new coins are received in the alternate chain our balance goes up
@@ -592,4 +627,39 @@ public class ChainSplitTest {
         assertTrue(!wallet.inactive.containsKey(txns.get(1).getHash()));
         assertTrue(wallet.dead.containsKey(txns.get(1).getHash()));
     }
+
+    @Test
+    public void staleSkipPointerIgnoredInReorg() throws Exception {
+        // A block store that crashed whilst writing a block may pair it with the skip pointer of an older one. Finding
+        // the split point must not follow it to a block of the wrong height.
+        //
+        //     genesis -> b1 -> ... -> b10 -> b11 -> ... -> b20
+        //                               \-> f11 -> ... -> f21
+        final StoredBlock[] splitPoint = new StoredBlock[1];
+        chain.addListener(new AbstractBlockChainListener() {
+            @Override
+            public void reorganize(StoredBlock split, List<StoredBlock> oldBlocks, List<StoredBlock> newBlocks) {
+                splitPoint[0] = split;
+            }
+        });
+        List<Block> main = new ArrayList<Block>();
+        Block prev = unitTestParams.genesisBlock;
+        for (int i = 1; i <= 20; i++) {
+            prev = prev.createNextBlock(someOtherGuy);
+            assertTrue(chain.add(prev));
+            main.add(prev);
+        }
+        // Block 20 skips back to block 16, point it at block 3 instead.
+        assertEquals(16, StoredBlock.getSkipHeight(20));
+        StoredBlock b20 = chain.getBlockStore().get(main.get(19).getHash());
+        b20.setSkipHash(main.get(2).getHash());
+
+        prev = main.get(9);
+        for (int i = 11; i <= 21; i++) {
+            prev = prev.createNextBlock(someOtherGuy);
+            chain.add(prev);
+        }
+        assertEquals(prev.getHash(), chain.getChainHead().getHeader().getHash());
+        assertEquals(main.get(9).getHash(), splitPoint[0].getHeader().getHash());
+    }
 }
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.goldcoin.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class CheckpointManagerTest {
+    private NetworkParameters params;
+    private List<StoredBlock> blocks;
+    private byte[] data;
+
+    @Before
+    public void setUp() throws Exception {
+        params = NetworkParameters.unitTests();
+        // Move the clock forward so the blocks below aren't too far in the future.
+        Block.fakeClock = System.currentTimeMillis() / 1000 + 200 * 3600;
+        // Every tenth block of a chain with blocks an hour apart.
+        Address to = new ECKey().toAddress(params);
+        Block genesis = params.genesisBlock.cloneAsHeader();
+        StoredBlock cursor = new StoredBlock(genesis, genesis.getWork(), 0);
+        blocks = new ArrayList<StoredBlock>();
+        for (int i = 1; i <= 100; i++) {
+            Block next = cursor.getHeader().createNextBlock(to, cursor.getHeader().getTimeSeconds() + 3600);
+            cursor = cursor.build(next.cloneAsHeader());
+            if (i % 10 == 0)
+                blocks.add(cursor);
+        }
+        data = write(blocks);
+    }
+
+    @After
+    public void tearDown() {
+        Block.fakeClock = 0;
+    }
+
+    private static byte[] write(List<StoredBlock> checkpoints) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.write("CHECKPOINTS 1".getBytes("US-ASCII"));
+        out.writeInt(0);  // Number of signatures.
+        out.writeInt(checkpoints.size());
+        ByteBuffer buffer = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
+        for (StoredBlock block : checkpoints) {
+            block.serializeCompact(buffer);
+            out.write(buffer.array());
+            buffer.position(0);
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private void checkLookups(CheckpointManager manager) {
+        assertEquals(10, manager.numCheckpoints());
+        long start = blocks.get(0).getHeader().getTimeSeconds();
+        assertEquals(0, manager.getCheckpointBefore(start - 1).getHeight());
+        assertEquals(blocks.get(0), manager.getCheckpointBefore(start));
+        assertEquals(blocks.get(4), manager.getCheckpointBefore(start + 45 * 3600));
+        assertEquals(blocks.get(9), manager.getCheckpointBefore(start + 1000 * 3600));
+    }
+
+    @Test
+    public void stream() throws Exception {
+        CheckpointManager manager = new CheckpointManager(params, new ByteArrayInputStream(data));
+        checkLookups(manager);
+        // The hash covers everything after the signatures.
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(data, 17, data.length - 17);
+        assertEquals(new Sha256Hash(digest.digest()), manager.getDataHash());
+    }
+
+    @Test
+    public void mappedFile() throws Exception {
+        File f = File.createTempFile("checkpoints", null);
+        f.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(data);
+        out.close();
+        CheckpointManager manager = new CheckpointManager(params, f);
+        checkLookups(manager);
+        assertEquals(new CheckpointManager(params, new ByteArrayInputStream(data)).getDataHash(),
+                manager.getDataHash());
+    }
+
+    @Test
+    public void unsorted() throws Exception {
+        List<StoredBlock> shuffled = new ArrayList<StoredBlock>(blocks);
+        shuffled.add(shuffled.remove(3));
+        shuffled.add(0, shuffled.remove(7));
+        CheckpointManager manager = new CheckpointManager(params, new ByteArrayInputStream(write(shuffled)));
+        checkLookups(manager);
+    }
+
+    @Test(expected = IOException.class)
+    public void truncated() throws Exception {
+        byte[] truncated = new byte[data.length - 10];
+        System.arraycopy(data, 0, truncated, 0, truncated.length);
+        new CheckpointManager(params, new ByteArrayInputStream(truncated));
+    }
+}
@@ -19,6 +19,7 @@ package com.google.goldcoin.core;
 
 import com.google.goldcoin.core.Transaction.SigHash;
 import com.google.goldcoin.store.FullPrunedBlockStore;
+import com.google.goldcoin.store.LogStructuredFullPrunedBlockStore;
 import com.google.goldcoin.store.MemoryFullPrunedBlockStore;
 import com.google.goldcoin.utils.BriefLogFormatter;
 import org.junit.After;
@@ -28,10 +29,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.List;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -101,6 +104,46 @@ public class FullPrunedBlockChainTest {
         }
     }
 
+    // Returns "connects", "orphan" or "throws", for comparing how chains with different stores handle a block.
+    private static String addBlock(FullPrunedBlockChain chain, Block block) throws Exception {
+        try {
+            return chain.add(block) ? "connects" : "orphan";
+        } catch (VerificationException e) {
+            return "throws";
+        }
+    }
+
+    @Test
+    public void testGeneratedChainLogStructuredStore() throws Exception {
+        // The log-structured store must handle the test cases from FullBlockTestGenerator exactly like the memory
+        // store, and still have the same chain head once reopened.
+        File dir = File.createTempFile("goldcoinj-unit-test", null);
+        dir.delete();
+        LogStructuredFullPrunedBlockStore logStore =
+                new LogStructuredFullPrunedBlockStore(unitTestParams, dir, UNDOABLE_BLOCKS_STORED);
+        try {
+            FullPrunedBlockChain logChain = new FullPrunedBlockChain(unitTestParams, logStore);
+            FullBlockTestGenerator generator = new FullBlockTestGenerator(unitTestParams);
+            List<BlockAndValidity> blockList = generator.getBlocksToTest(false);
+            for (BlockAndValidity block : blockList) {
+                assertEquals(block.blockName, addBlock(chain, block.block), addBlock(logChain, block.block));
+                assertEquals(block.blockName, chain.getChainHead().getHeader().getHash(),
+                        logChain.getChainHead().getHeader().getHash());
+            }
+            Sha256Hash head = logStore.getChainHead().getHeader().getHash();
+            logStore.close();
+            logStore = new LogStructuredFullPrunedBlockStore(unitTestParams, dir, UNDOABLE_BLOCKS_STORED);
+            assertEquals(head, logStore.getChainHead().getHeader().getHash());
+            assertEquals(store.getVerifiedChainHead().getHeader().getHash(),
+                    logStore.getVerifiedChainHead().getHeader().getHash());
+        } finally {
+            logStore.close();
+            for (File file : dir.listFiles())
+                file.delete();
+            dir.delete();
+        }
+    }
+
     @Test
     public void testFinalizedBlocks() throws Exception {
         // Check that we aren't accidentally leaving any references
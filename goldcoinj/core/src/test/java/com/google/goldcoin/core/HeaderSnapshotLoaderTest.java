@@ -0,0 +1,125 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.goldcoin.core;
+
+import com.google.goldcoin.store.MemoryBlockStore;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class HeaderSnapshotLoaderTest {
+    private NetworkParameters params;
+    private BlockChain chain;
+    private List<StoredBlock> blocks;
+
+    @Before
+    public void setUp() throws Exception {
+        params = NetworkParameters.unitTests();
+        chain = new BlockChain(params, new MemoryBlockStore(params));
+        Address to = new ECKey().toAddress(params);
+        blocks = new ArrayList<StoredBlock>();
+        Block genesis = params.genesisBlock.cloneAsHeader();
+        blocks.add(new StoredBlock(genesis, genesis.getWork(), 0));
+        for (int i = 1; i <= 20; i++) {
+            StoredBlock prev = blocks.get(i - 1);
+            blocks.add(prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader()));
+        }
+    }
+
+    private byte[] snapshot(int startHeight) throws Exception {
+        List<Block> headers = new ArrayList<Block>();
+        for (StoredBlock block : blocks.subList(startHeight + 1, blocks.size()))
+            headers.add(block.getHeader());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        HeaderSnapshotLoader.write(bytes, blocks.get(startHeight), headers);
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void freshChainStartsFromSnapshot() throws Exception {
+        HeaderSnapshotLoader loader = new HeaderSnapshotLoader(params, chain, 2);
+        assertEquals(15, loader.load(new ByteArrayInputStream(snapshot(5))));
+        assertEquals(blocks.get(20), chain.getChainHead());
+    }
+
+    @Test
+    public void onlyAddsHeadersThatConnect() throws Exception {
+        for (int i = 1; i <= 3; i++)
+            chain.add(blocks.get(i).getHeader());
+        // The chain isn't moved to the snapshot's start block, it is extended from where it connects.
+        HeaderSnapshotLoader loader = new HeaderSnapshotLoader(params, chain, 2);
+        assertEquals(17, loader.load(new ByteArrayInputStream(snapshot(0))));
+        assertEquals(20, chain.getBestChainHeight());
+        // A snapshot that starts above the chain head doesn't connect at all.
+        chain = new BlockChain(params, new MemoryBlockStore(params));
+        chain.add(blocks.get(1).getHeader());
+        assertEquals(0, new HeaderSnapshotLoader(params, chain).load(new ByteArrayInputStream(snapshot(5))));
+        assertEquals(1, chain.getBestChainHeight());
+    }
+
+    @Test
+    public void stopsAtWalletBirthday() throws Exception {
+        // A wallet restored with a key created at the time of block 12, whose chain was started again from a
+        // checkpoint before that, as the wallet app does.
+        Wallet wallet = new Wallet(params);
+        ECKey key = new ECKey();
+        key.setCreationTimeSeconds(blocks.get(12).getHeader().getTimeSeconds());
+        wallet.addKey(key);
+        MemoryBlockStore store = new MemoryBlockStore(params);
+        store.put(blocks.get(3));
+        store.setChainHead(blocks.get(3));
+        chain = new BlockChain(params, wallet, store);
+        // The wallet has to see the full blocks from 12 on, so they are left to the network.
+        HeaderSnapshotLoader loader = new HeaderSnapshotLoader(params, chain, 2);
+        assertEquals(8, loader.load(new ByteArrayInputStream(snapshot(3))));
+        assertEquals(blocks.get(11), chain.getChainHead());
+
+        // The time can be given explicitly too.
+        chain = new BlockChain(params, new MemoryBlockStore(params));
+        loader = new HeaderSnapshotLoader(params, chain, 2);
+        loader.setFastCatchupTimeSecs(blocks.get(7).getHeader().getTimeSeconds());
+        assertEquals(6, loader.load(new ByteArrayInputStream(snapshot(0))));
+        assertEquals(6, chain.getBestChainHeight());
+        // A snapshot that starts after it isn't used at all.
+        chain = new BlockChain(params, new MemoryBlockStore(params));
+        loader = new HeaderSnapshotLoader(params, chain, 2);
+        loader.setFastCatchupTimeSecs(blocks.get(7).getHeader().getTimeSeconds());
+        assertEquals(0, loader.load(new ByteArrayInputStream(snapshot(10))));
+        assertEquals(0, chain.getBestChainHeight());
+    }
+
+    @Test
+    public void brokenSnapshot() throws Exception {
+        byte[] data = snapshot(0);
+        // Corrupt the previous block hash of the tenth header.
+        data[9 + StoredBlock.COMPACT_SERIALIZED_SIZE + 4 + 9 * Block.HEADER_SIZE + 4] ^= 1;
+        try {
+            new HeaderSnapshotLoader(params, chain, 2).load(new ByteArrayInputStream(data));
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        assertEquals(9, chain.getBestChainHeight());
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.goldcoin.core;
+
+import com.google.goldcoin.store.WalletProtobufSerializer;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class KeyPoolTest {
+    private final NetworkParameters params = NetworkParameters.unitTests();
+
+    private static Wallet roundTrip(Wallet wallet) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new WalletProtobufSerializer().writeWallet(wallet, output);
+        return new WalletProtobufSerializer().readWallet(new ByteArrayInputStream(output.toByteArray()));
+    }
+
+    @Test
+    public void freshKeysComeFromThePool() throws Exception {
+        Wallet wallet = new Wallet(params);
+        KeyPool pool = new KeyPool(params, 5);
+        assertEquals(0, pool.size());
+        assertEquals(5, (int) pool.refill().get());
+        List<ECKey> pooled = pool.getKeys();
+        wallet.setKeyPool(pool);
+
+        ECKey key = wallet.freshKey();
+        assertSame(pooled.get(0), key);
+        assertTrue(wallet.hasKey(key));
+        Address address = wallet.freshAddress();
+        assertEquals(pooled.get(1).toAddress(params), address);
+        assertTrue(wallet.isPubKeyHashMine(address.getHash160()));
+        assertEquals(2, wallet.getKeychainSize());
+        // Taking keys queued a refill.
+        assertEquals(5, (int) pool.refill().get());
+        assertFalse(pool.getKeys().contains(key));
+    }
+
+    @Test
+    public void emptyOrNoPool() throws Exception {
+        Wallet wallet = new Wallet(params);
+        ECKey key = wallet.freshKey();
+        assertTrue(wallet.hasKey(key));
+        // A pool that hasn't been filled yet still hands out keys.
+        KeyPool pool = new KeyPool(params, 0);
+        wallet.setKeyPool(pool);
+        assertTrue(wallet.isPubKeyHashMine(wallet.freshAddress().getHash160()));
+        assertEquals(2, wallet.getKeychainSize());
+        assertEquals(0, pool.size());
+    }
+
+    @Test
+    public void savedWithWallet() throws Exception {
+        Wallet wallet = new Wallet(params);
+        KeyPool pool = new KeyPool(params, 3);
+        pool.refill().get();
+        wallet.setKeyPool(pool);
+        ECKey key = wallet.freshKey();
+        pool.refill().get();
+
+        Wallet restored = roundTrip(wallet);
+        assertEquals(1, restored.getKeychainSize());
+        assertTrue(restored.hasKey(key));
+        KeyPool restoredPool = restored.getKeyPool();
+        assertEquals(3, restoredPool.getTargetSize());
+        assertEquals(pool.getKeys(), restoredPool.getKeys());
+        assertEquals(pool.getKeys().get(0), restored.freshKey());
+
+        // Wallets without a pool load without one.
+        assertNull(roundTrip(new Wallet(params)).getKeyPool());
+    }
+
+    @Test
+    public void encryptedWalletsDropThePool() throws Exception {
+        Wallet wallet = new Wallet(params);
+        wallet.addKey(new ECKey());
+        KeyPool pool = new KeyPool(params, 3);
+        pool.refill().get();
+        wallet.setKeyPool(pool);
+        wallet.encrypt("password");
+        assertEquals(0, pool.size());
+        try {
+            wallet.freshKey();
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+        assertNull(roundTrip(wallet).getKeyPool());
+    }
+
+    @Test
+    public void encryptingStopsARunningRefill() throws Exception {
+        Wallet wallet = new Wallet(params);
+        wallet.addKey(new ECKey());
+        // Far more keys than get generated before the wallet is encrypted.
+        KeyPool pool = new KeyPool(params, 100000);
+        wallet.setKeyPool(pool);
+        ListenableFuture<Integer> refill = pool.refill();
+        while (pool.size() == 0)
+            Thread.sleep(1);
+        wallet.encrypt("password");
+        // The refill gives up rather than going on to fill the pool with unencrypted keys.
+        assertEquals(0, (int) refill.get());
+        assertEquals(0, pool.size());
+    }
+}
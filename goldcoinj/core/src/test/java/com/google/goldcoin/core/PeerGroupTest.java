@@ -398,4 +398,103 @@ public class PeerGroupTest extends TestWithPeerGroup {
         Peer d = PeerGroup.peerFromChannel(connectPeer(5, versionMessage4));
         assertEquals(d, peerGroup.getDownloadPeer());
     }
+
+    @Test
+    public void stalledDownloadPeerIsReplaced() throws Exception {
+        peerGroup.startAndWait();
+        peerGroup.setPingIntervalMsec(0);
+        peerGroup.setMinDownloadBytesPerSecond(0);  // Our fake blocks are tiny.
+        Utils.rollMockClock(0);  // Fix the mock clock.
+        VersionMessage versionMessage = new VersionMessage(params, 3);
+        versionMessage.clientVersion = FilteredBlock.MIN_PROTOCOL_VERSION;
+        FakeChannel p1 = connectPeer(1, versionMessage);
+        FakeChannel p2 = connectPeer(2, versionMessage);
+        peerGroup.startBlockChainDownload(new AbstractPeerEventListener() {
+        });
+        assertEquals(peerOf(p1), peerGroup.getDownloadPeer());
+        assertTrue(outbound(p1) instanceof GetBlocksMessage);
+        // The download peer keeps sending blocks, so it is kept.
+        Block b1 = TestUtils.createFakeBlock(blockStore).block;
+        Utils.rollMockClock(20);
+        inbound(p1, b1);
+        Utils.rollMockClock(20);
+        peerGroup.maybeSwitchDownloadPeer();
+        assertEquals(peerOf(p1), peerGroup.getDownloadPeer());
+        // Then it goes quiet. The download continues from the other peer, starting at our chain head.
+        while (outbound(p1) != null) ;
+        Utils.rollMockClock(60);
+        peerGroup.maybeSwitchDownloadPeer();
+        assertEquals(peerOf(p2), peerGroup.getDownloadPeer());
+        GetBlocksMessage getblocks = (GetBlocksMessage) outbound(p2);
+        assertEquals(b1.getHash(), getblocks.getLocator().get(0));
+        Utils.mockTime = null;
+    }
+
+    @Test
+    public void steadyDownloadPeerOfSmallBlocksIsKept() throws Exception {
+        peerGroup.startAndWait();
+        peerGroup.setPingIntervalMsec(0);
+        Utils.rollMockClock(0);  // Fix the mock clock.
+        VersionMessage versionMessage = new VersionMessage(params, 1000);
+        versionMessage.clientVersion = FilteredBlock.MIN_PROTOCOL_VERSION;
+        FakeChannel p1 = connectPeer(1, versionMessage);
+        connectPeer(2, versionMessage);
+        peerGroup.startBlockChainDownload(new AbstractPeerEventListener() {
+        });
+        assertEquals(peerOf(p1), peerGroup.getDownloadPeer());
+        // Our fake blocks count as empty, so far below the default bytes per second, like small filtered blocks. But
+        // the peer keeps sending two a second, so it is kept well past the stall timeout.
+        for (int i = 0; i < 60; i++) {
+            inbound(p1, TestUtils.createFakeBlock(blockStore).block);
+            inbound(p1, TestUtils.createFakeBlock(blockStore).block);
+            Utils.rollMockClock(1);
+            peerGroup.maybeSwitchDownloadPeer();
+            assertEquals(peerOf(p1), peerGroup.getDownloadPeer());
+        }
+        assertTrue(peerOf(p1).getBytesPerSecond() < PeerGroup.DEFAULT_MIN_DOWNLOAD_BYTES_PER_SEC);
+        // When it slows down to a block every few seconds, it is replaced.
+        for (int i = 0; i < 60 && peerGroup.getDownloadPeer() == peerOf(p1); i++) {
+            if (i % 5 == 0)
+                inbound(p1, TestUtils.createFakeBlock(blockStore).block);
+            Utils.rollMockClock(1);
+            peerGroup.maybeSwitchDownloadPeer();
+        }
+        assertNotSame(peerOf(p1), peerGroup.getDownloadPeer());
+        Utils.mockTime = null;
+    }
+
+    @Test
+    public void incrementalBloomFilterUpdates() throws Exception {
+        peerGroup.startAndWait();
+        peerGroup.setPingIntervalMsec(0);
+        Utils.rollMockClock(0);  // Fix the mock clock.
+        VersionMessage versionMessage = new VersionMessage(params, 2);
+        versionMessage.clientVersion = FilteredBlock.MIN_PROTOCOL_VERSION;
+        FakeChannel p1 = connectPeer(1, versionMessage);
+        while (outbound(p1) != null) ;
+        int rebuilds = peerGroup.getBloomFilterRebuildCount();
+        // A new key goes into the existing filter and is sent as filteradd messages.
+        ECKey key2 = new ECKey();
+        wallet.addKey(key2);
+        FilterAddMessage add = (FilterAddMessage) outbound(p1);
+        assertArrayEquals(key2.getPubKey(), add.getData());
+        add = (FilterAddMessage) outbound(p1);
+        assertArrayEquals(key2.getPubKeyHash(), add.getData());
+        assertNull(outbound(p1));
+        assertEquals(1, peerGroup.getBloomFilterIncrementalUpdateCount());
+        assertEquals(rebuilds, peerGroup.getBloomFilterRebuildCount());
+        // Fill the filter past its false positive rate. The filter was just built, so the rebuild is deferred.
+        while (peerGroup.getBloomFilterFalsePositiveRateEstimate() <=
+                PeerGroup.DEFAULT_BLOOM_FILTER_FP_RATE * PeerGroup.BLOOM_FILTER_REBUILD_FP_FACTOR)
+            wallet.addKey(new ECKey());
+        assertEquals(rebuilds, peerGroup.getBloomFilterRebuildCount());
+        while (outbound(p1) != null) ;
+        // Later on, the next key triggers a rebuild which is sent as a whole new filter.
+        Utils.rollMockClock(60);
+        wallet.addKey(new ECKey());
+        assertEquals(rebuilds + 1, peerGroup.getBloomFilterRebuildCount());
+        assertTrue(outbound(p1) instanceof BloomFilter);
+        assertTrue(peerGroup.getBloomFilterFalsePositiveRateEstimate() <= PeerGroup.DEFAULT_BLOOM_FILTER_FP_RATE);
+        Utils.mockTime = null;
+    }
 }
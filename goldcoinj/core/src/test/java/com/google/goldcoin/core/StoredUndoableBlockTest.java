@@ -0,0 +1,144 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.goldcoin.core;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.google.goldcoin.core.TestUtils.createFakeTx;
+import static org.junit.Assert.*;
+
+public class StoredUndoableBlockTest {
+    private NetworkParameters params;
+    private Sha256Hash blockHash;
+
+    @Before
+    public void setUp() throws Exception {
+        params = NetworkParameters.unitTests();
+        blockHash = params.genesisBlock.getHash();
+    }
+
+    private static Sha256Hash txHash(int i) {
+        return Sha256Hash.create(new byte[]{(byte) (i >> 8), (byte) i});
+    }
+
+    private static void assertSameOutputs(List<StoredTransactionOutput> expected, List<StoredTransactionOutput> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            StoredTransactionOutput a = expected.get(i), b = actual.get(i);
+            assertEquals(a.getHash(), b.getHash());
+            assertEquals(a.getIndex(), b.getIndex());
+            assertEquals(a.getValue(), b.getValue());
+            assertEquals(a.getHeight(), b.getHeight());
+            assertArrayEquals(a.getScriptBytes(), b.getScriptBytes());
+        }
+    }
+
+    @Test
+    public void outputChangesRoundTrip() throws Exception {
+        ECKey key = new ECKey();
+        byte[] uncompressedKey = ECKey.decompressPublicKey(key.getPubKey());
+        byte[] p2sh = new byte[23];
+        p2sh[0] = (byte) Script.OP_HASH160;
+        p2sh[1] = 20;
+        p2sh[22] = (byte) Script.OP_EQUAL;
+        // An uncompressed key that isn't on the curve can't be stored compressed.
+        byte[] badKey = uncompressedKey.clone();
+        badKey[64] ^= 1;
+
+        List<StoredTransactionOutput> created = new ArrayList<StoredTransactionOutput>();
+        created.add(new StoredTransactionOutput(txHash(1), 0, Utils.toNanoCoins(50, 0), 1000, true,
+                Script.createOutputScript(uncompressedKey)));
+        created.add(new StoredTransactionOutput(txHash(2), 0, Utils.toNanoCoins("1.23456789"), 1000, false,
+                Script.createOutputScript(key.toAddress(params))));
+        created.add(new StoredTransactionOutput(txHash(2), 1, BigInteger.ZERO, 1000, false, p2sh));
+        created.add(new StoredTransactionOutput(txHash(2), 7, BigInteger.ONE, 1000, false,
+                Script.createOutputScript(key.getPubKey())));
+        created.add(new StoredTransactionOutput(txHash(3), 300, NetworkParameters.MAX_MONEY, 1000, false,
+                Script.createOutputScript(badKey)));
+        created.add(new StoredTransactionOutput(txHash(3), 301, Utils.CENT, 1000, false, new byte[]{1, 2, 3}));
+        List<StoredTransactionOutput> spent = new ArrayList<StoredTransactionOutput>();
+        spent.add(new StoredTransactionOutput(txHash(4), 1, Utils.COIN, 5, true, new byte[0]));
+
+        StoredUndoableBlock block = new StoredUndoableBlock(blockHash, new TransactionOutputChanges(created, spent));
+        byte[] bytes = block.serializeCompact();
+        StoredUndoableBlock decoded = StoredUndoableBlock.deserializeCompact(params, blockHash, bytes);
+        assertEquals(blockHash, decoded.getHash());
+        assertNull(decoded.getTransactions());
+        assertSameOutputs(created, decoded.getTxOutChanges().txOutsCreated);
+        assertSameOutputs(spent, decoded.getTxOutChanges().txOutsSpent);
+        // Encoding again gives the same bytes without decoding anything.
+        assertArrayEquals(bytes, StoredUndoableBlock.deserializeCompact(params, blockHash, bytes).serializeCompact());
+    }
+
+    @Test
+    public void transactionsRoundTrip() throws Exception {
+        List<Transaction> transactions = new ArrayList<Transaction>();
+        transactions.add(createFakeTx(params, Utils.COIN, new ECKey().toAddress(params)));
+        transactions.add(createFakeTx(params, Utils.CENT, new ECKey().toAddress(params)));
+        byte[] bytes = new StoredUndoableBlock(blockHash, transactions).serializeCompact();
+        StoredUndoableBlock decoded = StoredUndoableBlock.deserializeCompact(params, blockHash, bytes);
+        assertNull(decoded.getTxOutChanges());
+        assertEquals(transactions, decoded.getTransactions());
+    }
+
+    private byte[] addressScript(int i) {
+        return Script.createOutputScript(new Address(params, Arrays.copyOf(txHash(i).getBytes(), 20)));
+    }
+
+    @Test
+    public void smallerThanOldFormat() throws Exception {
+        // A typical block: a coinbase and transactions paying to an address with change.
+        List<StoredTransactionOutput> created = new ArrayList<StoredTransactionOutput>();
+        List<StoredTransactionOutput> spent = new ArrayList<StoredTransactionOutput>();
+        created.add(new StoredTransactionOutput(txHash(0), 0, Utils.toNanoCoins(50, 0), 100, true, addressScript(0)));
+        for (int i = 1; i < 50; i++) {
+            created.add(new StoredTransactionOutput(txHash(i), 0, Utils.toNanoCoins(i, 0), 100, false,
+                    addressScript(i)));
+            created.add(new StoredTransactionOutput(txHash(i), 1, Utils.toNanoCoins("0.01234567"), 100, false,
+                    addressScript(100 + i)));
+            spent.add(new StoredTransactionOutput(txHash(1000 + i), 0, Utils.toNanoCoins(i + 1, 0), 100, false,
+                    addressScript(1000 + i)));
+        }
+        TransactionOutputChanges changes = new TransactionOutputChanges(created, spent);
+        ByteArrayOutputStream old = new ByteArrayOutputStream();
+        changes.serializeToStream(old);
+        int compact = new StoredUndoableBlock(blockHash, changes).serializeCompact().length;
+        // Most of what is left is transaction hashes and address hashes, which don't compress.
+        assertTrue(compact + " vs " + old.size(), compact * 3 < old.size() * 2);
+    }
+
+    @Test
+    public void amountCompression() throws Exception {
+        for (long value : Arrays.asList(0L, 1L, 9L, 10L, 100000000L, 123456789L, 5000000000L, 2100000000000000L,
+                Long.MAX_VALUE / 10)) {
+            assertEquals(value, StoredTransactionOutput.decompressAmount(StoredTransactionOutput.compressAmount(value)));
+        }
+        assertEquals(50, StoredTransactionOutput.compressAmount(5000000000L));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void unknownVersion() throws Exception {
+        StoredUndoableBlock.deserializeCompact(params, blockHash, new byte[]{2, 0, 0, 0});
+    }
+}
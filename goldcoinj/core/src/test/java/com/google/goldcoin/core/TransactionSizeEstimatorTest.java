@@ -0,0 +1,71 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.goldcoin.core;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TransactionSizeEstimatorTest {
+    private final NetworkParameters params = NetworkParameters.unitTests();
+
+    @Test
+    public void matchesSerializedSize() throws Exception {
+        ECKey key = new ECKey();
+        Transaction tx = new Transaction(params);
+        tx.addOutput(new TransactionOutput(params, tx, Utils.toNanoCoins(1, 0), new ECKey().toAddress(params)));
+        Transaction prevTx = new Transaction(params);
+        prevTx.addOutput(new TransactionOutput(params, prevTx, Utils.toNanoCoins(1, 0), key.toAddress(params)));
+        tx.addInput(prevTx.getOutput(0));
+        TransactionSizeEstimator estimator = new TransactionSizeEstimator(tx);
+        // Go past 252 inputs, where the input count takes more than one byte.
+        for (int i = 1; i <= 300; i++) {
+            Transaction other = new Transaction(params);
+            other.addOutput(new TransactionOutput(params, other, BigInteger.valueOf(i), key.toAddress(params)));
+            tx.addInput(other.getOutput(0));
+            assertEquals(tx.litecoinSerialize().length, estimator.getSizeWithUnsignedInputs(i));
+        }
+        for (TransactionOutput output : tx.getOutputs())
+            assertEquals(output.litecoinSerialize().length, TransactionSizeEstimator.getOutputSize(output));
+    }
+
+    @Test
+    public void signaturesWithinEstimate() throws Exception {
+        Wallet wallet = new Wallet(params);
+        ECKey key = new ECKey();
+        wallet.addKey(key);
+        Transaction prevTx = new Transaction(params);
+        prevTx.addOutput(new TransactionOutput(params, prevTx, Utils.toNanoCoins(1, 0), key.toAddress(params)));
+        prevTx.addOutput(new TransactionOutput(params, prevTx, Utils.toNanoCoins(1, 0), key));
+        Transaction tx = new Transaction(params);
+        tx.addOutput(new TransactionOutput(params, tx, Utils.toNanoCoins(2, 0), new ECKey().toAddress(params)));
+        for (TransactionOutput output : prevTx.getOutputs())
+            tx.addInput(output);
+        TransactionSizeEstimator estimator = new TransactionSizeEstimator(tx);
+        int estimate = estimator.getSizeWithUnsignedInputs(0);
+        for (TransactionOutput output : prevTx.getOutputs())
+            estimate += TransactionSizeEstimator.scriptSigSize(output.getScriptPubKey(), key.getPubKey().length);
+        tx.signInputs(Transaction.SigHash.ALL, wallet);
+        int size = tx.litecoinSerialize().length;
+        assertTrue(size <= estimate);
+        // Signatures vary in length by a few bytes, but the estimate shouldn't be far off.
+        assertTrue(estimate - size < 10);
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.goldcoin.core;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class UInt256Test {
+    private static final BigInteger TWO_TO_256 = BigInteger.ONE.shiftLeft(256);
+
+    private final Random random = new Random(42);
+
+    // Random values of all sizes, so carries and borrows between the words get exercised.
+    private BigInteger randomValue() {
+        return new BigInteger(1 + random.nextInt(256), random);
+    }
+
+    private static UInt256 u(BigInteger value) {
+        return UInt256.fromBigInteger(value);
+    }
+
+    @Test
+    public void matchesBigInteger() {
+        for (int i = 0; i < 2000; i++) {
+            BigInteger a = randomValue(), b = randomValue();
+            assertEquals(a, u(a).toBigInteger());
+            assertEquals(a.toString(16), u(a).toString());
+            assertEquals(a.bitLength(), u(a).bitLength());
+            assertEquals(Integer.signum(a.compareTo(b)), Integer.signum(u(a).compareTo(u(b))));
+            assertEquals(a.and(b), u(a).and(u(b)).toBigInteger());
+            BigInteger sum = a.add(b);
+            if (sum.compareTo(TWO_TO_256) < 0)
+                assertEquals(sum, u(a).add(u(b)).toBigInteger());
+            BigInteger larger = a.max(b), smaller = a.min(b);
+            assertEquals(larger.subtract(smaller), u(larger).subtract(u(smaller)).toBigInteger());
+            if (!b.equals(BigInteger.ZERO))
+                assertEquals(a.divide(b), u(a).divide(u(b)).toBigInteger());
+            // Divisors close in size to the dividend, like a target dividing the largest hash.
+            BigInteger close = a.shiftRight(random.nextInt(70)).add(BigInteger.ONE);
+            assertEquals(a.divide(close), u(a).divide(u(close)).toBigInteger());
+            long small = 1 + random.nextInt(Integer.MAX_VALUE);
+            assertEquals(a.divide(BigInteger.valueOf(small)), u(a).divide(small).toBigInteger());
+            BigInteger product = a.multiply(BigInteger.valueOf(small));
+            if (product.compareTo(TWO_TO_256) < 0)
+                assertEquals(product, u(a).multiply(small).toBigInteger());
+            int shift = random.nextInt(260);
+            assertEquals(a.shiftRight(shift), u(a).shiftRight(shift).toBigInteger());
+            assertEquals(a.shiftLeft(shift).mod(TWO_TO_256), u(a).shiftLeft(shift).toBigInteger());
+            assertEquals(TWO_TO_256.subtract(BigInteger.ONE).subtract(a), u(a).not().toBigInteger());
+        }
+    }
+
+    @Test
+    public void overflow() {
+        try {
+            UInt256.MAX_VALUE.add(UInt256.ONE);
+            fail();
+        } catch (ArithmeticException e) {
+            // Expected.
+        }
+        try {
+            UInt256.MAX_VALUE.multiply(2);
+            fail();
+        } catch (ArithmeticException e) {
+            // Expected.
+        }
+        try {
+            UInt256.ZERO.subtract(UInt256.ONE);
+            fail();
+        } catch (ArithmeticException e) {
+            // Expected.
+        }
+        try {
+            UInt256.fromBigInteger(TWO_TO_256);
+            fail();
+        } catch (ArithmeticException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void compactBits() {
+        long[] vectors = {0x1e0fffffL, 0x1d00ffffL, 0x1d0fffffL, 0x207fffffL, 0x1b0404cbL, 0x1c05a3f4L, 0x01003456L,
+                0x02008000L, 0x05009234L, 0x04123456L, 0x01123456L, 0x02123456L, 0x03123456L, 0x00123456L, 0x20123456L};
+        for (long bits : vectors) {
+            BigInteger expected = Utils.decodeCompactBits(bits);
+            UInt256 value = UInt256.decodeCompactBits(bits);
+            assertEquals(Long.toHexString(bits), expected, value.toBigInteger());
+            // Re-encoding and decoding again gives the same value.
+            assertEquals(value, UInt256.decodeCompactBits(value.encodeCompactBits()));
+        }
+        assertEquals(0x1d00ffffL, UInt256.decodeCompactBits(0x1d00ffffL).encodeCompactBits());
+        assertEquals(0x1e0fffffL, UInt256.decodeCompactBits(0x1e0fffffL).encodeCompactBits());
+        // A set mantissa top bit makes the value negative, which it can't be.
+        try {
+            UInt256.decodeCompactBits(0x04923456L);
+            fail();
+        } catch (ArithmeticException e) {
+            // Expected.
+        }
+        try {
+            UInt256.decodeCompactBits(0xff123456L);
+            fail();
+        } catch (ArithmeticException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void bytes() {
+        BigInteger a = randomValue();
+        byte[] bytes = Utils.bigIntegerToBytes(a, 32);
+        assertEquals(u(a), UInt256.fromBytes(bytes, 0));
+        assertArrayEquals(bytes, u(a).toBytes());
+        ByteBuffer buffer = ByteBuffer.allocate(12);
+        UInt256.valueOf(0x0102030405060708L).putBytes(buffer, 12);
+        assertArrayEquals(new byte[]{0, 0, 0, 0, 1, 2, 3, 4, 5, 6, 7, 8}, buffer.array());
+        assertEquals(UInt256.valueOf(0x0102030405060708L), UInt256.fromBytes(buffer.array(), 0, 12));
+    }
+
+    @Test
+    public void work() throws Exception {
+        // Block work must come out exactly as 2^256 / (target + 1) did with BigInteger.
+        NetworkParameters params = NetworkParameters.unitTests();
+        Block block = params.genesisBlock.cloneAsHeader();
+        for (long bits : new long[]{0x207fffffL, 0x1e0fffffL, 0x1d00ffffL, 0x1b0404cbL, 0x1a05db8bL, 0x03123456L}) {
+            block.setDifficultyTarget(bits);
+            BigInteger target = Utils.decodeCompactBits(bits);
+            assertEquals(TWO_TO_256.divide(target.add(BigInteger.ONE)), block.getWork());
+            assertEquals(target, block.getDifficultyTargetAsInteger());
+        }
+        block.setDifficultyTarget(0x04923456L);
+        try {
+            block.getDifficultyTargetAsUInt256();
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.goldcoin.core;
+
+import com.google.goldcoin.store.MemoryBlockStore;
+import com.google.goldcoin.store.TransactionArchive;
+import com.google.goldcoin.store.WalletProtobufSerializer;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.util.List;
+
+import static com.google.goldcoin.core.TestUtils.createFakeTx;
+import static org.junit.Assert.*;
+
+public class WalletArchiveTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final NetworkParameters params = NetworkParameters.unitTests();
+    private Wallet wallet;
+    private BlockChain chain;
+    private Address myAddress;
+    private Address someOtherGuy;
+    private Block tip, firstSpendBlock;
+    private Transaction received, firstSpend, secondSpend;
+
+    @Before
+    public void setUp() throws Exception {
+        wallet = new Wallet(params);
+        ECKey key = new ECKey();
+        wallet.addKey(key);
+        myAddress = key.toAddress(params);
+        someOtherGuy = new ECKey().toAddress(params);
+        chain = new BlockChain(params, wallet, new MemoryBlockStore(params));
+        tip = params.genesisBlock;
+
+        // Coins are received, then spent twice, the second time from the change of the first.
+        received = createFakeTx(params, Utils.toNanoCoins(1, 0), myAddress);
+        addBlock(received);
+        firstSpend = wallet.createSend(someOtherGuy, Utils.toNanoCoins(0, 10));
+        wallet.commitTx(firstSpend);
+        addBlock(firstSpend);
+        firstSpendBlock = tip;
+        secondSpend = wallet.createSend(someOtherGuy, Utils.toNanoCoins(0, 10));
+        wallet.commitTx(secondSpend);
+        addBlock(secondSpend);
+        for (int i = 0; i < 3; i++)
+            addBlock();
+        assertTrue(wallet.isConsistent());
+    }
+
+    private void addBlock(Transaction... txns) throws Exception {
+        Block block = tip.createNextBlock(someOtherGuy);
+        for (Transaction tx : txns)
+            block.addTransaction(tx);
+        block.solve();
+        assertTrue(chain.add(block));
+        tip = block;
+    }
+
+    private static Wallet roundTrip(Wallet wallet) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new WalletProtobufSerializer().writeWallet(wallet, output);
+        return new WalletProtobufSerializer().readWallet(new ByteArrayInputStream(output.toByteArray()));
+    }
+
+    @Test
+    public void archivesBuriedSpentTransactions() throws Exception {
+        BigInteger balance = wallet.getBalance();
+        BigInteger firstSpendValue = firstSpend.getValue(wallet);
+        BigInteger secondSpendSent = secondSpend.getValueSentFromMe(wallet);
+        List<TransactionSummary> history = wallet.getHistory(0, 10);
+        assertEquals(3, history.size());
+
+        TransactionArchive archive = new TransactionArchive(params, folder.newFolder("archive"));
+        wallet.setTransactionArchive(archive, 2);
+        // The second spend still has unspent change, so only the transactions before it go.
+        assertEquals(2, wallet.archiveTransactions());
+        assertEquals(0, wallet.archiveTransactions());
+        assertEquals(2, wallet.getArchivedTransactionCount());
+        assertEquals(2, archive.size());
+        assertNull(wallet.getTransaction(received.getHash()));
+        assertNull(wallet.getTransaction(firstSpend.getHash()));
+        assertEquals(firstSpend.getHash(), wallet.getArchivedTransaction(firstSpend.getHash()).getHash());
+        assertNull(wallet.getArchivedTransaction(secondSpend.getHash()));
+        assertEquals(balance, wallet.getBalance());
+        assertEquals(secondSpendSent, secondSpend.getValueSentFromMe(wallet));
+        assertTrue(wallet.isConsistent());
+
+        // The history looks the same, and can be paged through.
+        assertEquals(history, wallet.getHistory(0, 10));
+        assertEquals(history.subList(1, 3), wallet.getHistory(1, 5));
+        assertEquals(history.subList(0, 1), wallet.getHistory(0, 1));
+        for (TransactionSummary summary : history) {
+            if (summary.getHash().equals(firstSpend.getHash()))
+                assertEquals(firstSpendValue, summary.getValue());
+        }
+
+        // The summaries are saved with the wallet, and the transactions left in memory are connected to the archived
+        // ones they spend once the archive is set.
+        Wallet restored = roundTrip(wallet);
+        assertEquals(2, restored.getArchivedTransactionCount());
+        assertEquals(1, restored.getTransactions(true, true).size());
+        restored.setTransactionArchive(archive, 2);
+        assertEquals(history, restored.getHistory(0, 10));
+        Transaction restoredSpend = restored.getTransaction(secondSpend.getHash());
+        assertEquals(secondSpendSent, restoredSpend.getValueSentFromMe(restored));
+        assertEquals(balance, restored.getBalance());
+        archive.close();
+    }
+
+    @Test
+    public void archivesEveryInterval() throws Exception {
+        wallet.setTransactionArchive(new TransactionArchive(params, folder.newFolder("archive")), 2);
+        while (chain.getBestChainHeight() % Wallet.ARCHIVE_INTERVAL != 0)
+            addBlock();
+        assertEquals(2, wallet.getArchivedTransactionCount());
+    }
+
+    @Test
+    public void deepReorgRestoresArchivedTransactions() throws Exception {
+        TransactionArchive archive = new TransactionArchive(params, folder.newFolder("archive"));
+        wallet.setTransactionArchive(archive, 2);
+        assertEquals(2, wallet.archiveTransactions());
+
+        // A longer chain without any of our transactions overtakes the one they are in.
+        int height = chain.getBestChainHeight();
+        tip = params.genesisBlock;
+        someOtherGuy = new ECKey().toAddress(params);
+        for (int i = 0; i <= height; i++)
+            addBlock();
+
+        assertEquals(0, wallet.getArchivedTransactionCount());
+        assertNotNull(wallet.getTransaction(received.getHash()));
+        assertNotNull(wallet.getTransaction(firstSpend.getHash()));
+        assertEquals(BigInteger.ZERO, wallet.getBalance());
+        assertTrue(wallet.isConsistent());
+        archive.close();
+    }
+
+    @Test
+    public void keepsTransactionsSpentByPendingOnes() throws Exception {
+        // The change of the second spend is spent by a transaction that isn't in a block yet.
+        TransactionOutput change = null;
+        for (TransactionOutput output : secondSpend.getOutputs()) {
+            if (output.isMine(wallet))
+                change = output;
+        }
+        Transaction pendingSpend = wallet.createSend(someOtherGuy, Utils.toNanoCoins(0, 10));
+        wallet.commitTx(pendingSpend);
+
+        TransactionArchive archive = new TransactionArchive(params, folder.newFolder("archive"));
+        wallet.setTransactionArchive(archive, 2);
+        assertEquals(2, wallet.archiveTransactions());
+        assertNotNull(wallet.getTransaction(secondSpend.getHash()));
+
+        // A double spend of the change kills the pending spend, which leaves the change unspent again.
+        Transaction doubleSpend = new Transaction(params);
+        doubleSpend.addInput(change);
+        doubleSpend.addOutput(Utils.toNanoCoins(0, 1), myAddress);
+        doubleSpend.addOutput(change.getValue().subtract(Utils.toNanoCoins(0, 1)), someOtherGuy);
+        addBlock(doubleSpend);
+        assertEquals(TransactionConfidence.ConfidenceType.DEAD, pendingSpend.getConfidence().getConfidenceType());
+        assertEquals(Utils.toNanoCoins(0, 1), wallet.getBalance());
+        assertTrue(wallet.isConsistent());
+
+        // Once its spender is buried too, the second spend is archived.
+        addBlock();
+        addBlock();
+        assertEquals(1, wallet.archiveTransactions());
+        assertNull(wallet.getTransaction(secondSpend.getHash()));
+        assertEquals(Utils.toNanoCoins(0, 1), wallet.getBalance());
+        assertTrue(wallet.isConsistent());
+        archive.close();
+    }
+
+    @Test
+    public void reorgRestoresArchivedTransactionsItMayUnspend() throws Exception {
+        TransactionArchive archive = new TransactionArchive(params, folder.newFolder("archive"));
+        wallet.setTransactionArchive(archive, 2);
+        assertEquals(2, wallet.archiveTransactions());
+        BigInteger secondSpendSent = secondSpend.getValueSentFromMe(wallet);
+
+        // A longer chain from the block of the first spend overtakes the one the second spend is in. The first spend
+        // stays in the chain, but its change may be unspent again, so it comes back from the archive.
+        int height = chain.getBestChainHeight();
+        tip = firstSpendBlock;
+        someOtherGuy = new ECKey().toAddress(params);
+        while (chain.getBestChainHeight() <= height)
+            addBlock();
+
+        assertEquals(1, wallet.getArchivedTransactionCount());
+        assertNotNull(wallet.getTransaction(firstSpend.getHash()));
+        assertNull(wallet.getTransaction(received.getHash()));
+        assertTrue(wallet.pending.containsKey(secondSpend.getHash()));
+        assertEquals(secondSpendSent, secondSpend.getValueSentFromMe(wallet));
+        assertTrue(wallet.isConsistent());
+        archive.close();
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.goldcoin.core;
+
+import com.google.goldcoin.store.MemoryBlockStore;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class WalletEventQueueTest {
+    private final NetworkParameters params = NetworkParameters.unitTests();
+    private Wallet wallet;
+    private BlockChain chain;
+    private Address myAddress;
+    // Tasks handed to the executor, run when the test says so.
+    private final List<Runnable> tasks = new ArrayList<Runnable>();
+    private final Executor executor = new Executor() {
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+    };
+    private final List<String> events = new ArrayList<String>();
+    private final WalletEventListener recorder = new AbstractWalletEventListener() {
+        @Override
+        public void onCoinsReceived(Wallet wallet, Transaction tx, BigInteger prevBalance, BigInteger newBalance) {
+            events.add("received " + tx.getHashAsString());
+        }
+
+        @Override
+        public void onWalletChanged(Wallet wallet) {
+            events.add("changed");
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        wallet = new Wallet(params);
+        ECKey key = new ECKey();
+        wallet.addKey(key);
+        myAddress = key.toAddress(params);
+        chain = new BlockChain(params, wallet, new MemoryBlockStore(params));
+    }
+
+    private void runTasks() {
+        while (!tasks.isEmpty())
+            tasks.remove(0).run();
+    }
+
+    @Test
+    public void deliveredInOrderByTheExecutor() throws Exception {
+        WalletEventQueue queue = wallet.addEventListener(recorder, executor);
+        Block b1 = params.genesisBlock.createNextBlock(myAddress);
+        Block b2 = b1.createNextBlock(myAddress);
+        Block b3 = b2.createNextBlock(myAddress);
+        assertTrue(chain.add(b1));
+        assertTrue(chain.add(b2));
+        assertTrue(chain.add(b3));
+        // Nothing was delivered on this thread, and the queue only needed draining once.
+        assertTrue(events.isEmpty());
+        assertEquals(1, tasks.size());
+        assertTrue(queue.getQueueDepth() > 0);
+        runTasks();
+        // The wallet changed after each block, but the listener is told once as it was behind.
+        List<String> expected = new ArrayList<String>();
+        expected.add("received " + b1.getTransactions().get(1).getHashAsString());
+        expected.add("changed");
+        expected.add("received " + b2.getTransactions().get(1).getHashAsString());
+        expected.add("received " + b3.getTransactions().get(1).getHashAsString());
+        assertEquals(expected, events);
+        assertEquals(0, queue.getQueueDepth());
+        assertTrue(queue.getEventsMerged() >= 2);
+        // They were all queued before any was delivered.
+        assertEquals(queue.getMaxQueueDepth(), queue.getEventsDelivered());
+
+        // Once it has caught up it gets the next change again.
+        events.clear();
+        assertTrue(chain.add(b3.createNextBlock(new ECKey().toAddress(params))));
+        assertEquals(1, tasks.size());
+        runTasks();
+        assertEquals(1, events.size());
+        assertEquals("changed", events.get(0));
+    }
+
+    @Test
+    public void removeQueuedListener() throws Exception {
+        wallet.addEventListener(recorder, executor);
+        assertTrue(wallet.removeEventListener(recorder));
+        assertFalse(wallet.removeEventListener(recorder));
+        assertTrue(chain.add(params.genesisBlock.createNextBlock(myAddress)));
+        assertTrue(tasks.isEmpty());
+        assertTrue(events.isEmpty());
+    }
+
+    @Test
+    public void listenerExceptionsDontStopDelivery() throws Exception {
+        final List<ECKey> added = new ArrayList<ECKey>();
+        WalletEventQueue queue = new WalletEventQueue(new AbstractWalletEventListener() {
+            @Override
+            public void onKeyAdded(ECKey key) {
+                added.add(key);
+                if (added.size() == 1)
+                    throw new RuntimeException("Listener failure");
+            }
+        }, executor);
+        queue.onKeyAdded(new ECKey());
+        queue.onKeyAdded(new ECKey());
+        runTasks();
+        assertEquals(2, added.size());
+        assertEquals(2, queue.getEventsDelivered());
+    }
+}
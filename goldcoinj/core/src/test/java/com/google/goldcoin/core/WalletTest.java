@@ -25,6 +25,7 @@ import com.google.goldcoin.store.BlockStore;
 import com.google.goldcoin.store.MemoryBlockStore;
 import com.google.goldcoin.utils.BriefLogFormatter;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import com.google.protobuf.ByteString;
 
 import org.goldcoinj.wallet.Protos;
@@ -42,6 +43,7 @@ import java.math.BigInteger;
 import java.security.SecureRandom;
 import java.net.InetAddress;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -824,6 +826,10 @@ public class WalletTest {
         transactions = wallet.getTransactionsByTime();
         assertEquals(3, transactions.size());
         assertEquals(tx3, transactions.get(0));
+        // A transaction whose update time is changed whilst it isn't listed is moved when its confidence changes.
+        tx1.setUpdateTime(new Date(tx3.getUpdateTime().getTime() + 1000));
+        tx1.getConfidence().markBroadcastBy(new PeerAddress(InetAddress.getLocalHost()));
+        assertEquals(tx1, wallet.getRecentTransactions(1, false).get(0));
 
         // Verify we can handle the case of older wallets in which the timestamp is null (guessed from the
         // block appearances list).
@@ -835,6 +841,41 @@ public class WalletTest {
         assertEquals(3, transactions.size());
     }
 
+    @Test
+    public void secondaryIndexes() throws Exception {
+        Transaction tx1 = sendMoneyToWallet(Utils.toNanoCoins(1, 0), AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(Sets.newHashSet(tx1), wallet.getTransactionsByAddress(myAddress));
+        // A spend shows up under our address, which it spends from and gets change to, and the one it pays.
+        Address other = new ECKey().toAddress(params);
+        Transaction tx2 = wallet.createSend(other, Utils.toNanoCoins(0, 5));
+        wallet.commitTx(tx2);
+        assertEquals(Sets.newHashSet(tx1, tx2), wallet.getTransactionsByAddress(myAddress));
+        assertEquals(Sets.newHashSet(tx2), wallet.getTransactionsByAddress(other));
+        assertTrue(wallet.getTransactionsByAddress(new ECKey().toAddress(params)).isEmpty());
+        // A double spend of the pending spend is found through the index of pending inputs.
+        Transaction doubleSpend = new Transaction(params);
+        doubleSpend.addInput(tx2.getInput(0).getOutpoint().getConnectedOutput());
+        doubleSpend.addOutput(new TransactionOutput(params, doubleSpend, Utils.toNanoCoins(0, 90), other));
+        assertTrue(wallet.isTransactionRelevant(doubleSpend));
+        assertTrue(wallet.isConsistent());
+        // Keys added to the keychain directly are still found.
+        ECKey key = new ECKey();
+        wallet.keychain.add(key);
+        assertTrue(wallet.isPubKeyHashMine(key.getPubKeyHash()));
+        assertTrue(wallet.hasKey(key));
+        // As are keys put in place of others, and the ones they replaced aren't.
+        ECKey replacement = new ECKey();
+        wallet.keychain.set(wallet.keychain.indexOf(key), replacement);
+        assertTrue(wallet.isPubKeyHashMine(replacement.getPubKeyHash()));
+        assertFalse(wallet.isPubKeyHashMine(key.getPubKeyHash()));
+        wallet.keychain.subList(0, wallet.keychain.size()).set(0, key);
+        assertTrue(wallet.hasKey(key));
+        // Cleared transactions leave the indexes.
+        wallet.clearTransactions(0);
+        assertTrue(wallet.getTransactionsByAddress(myAddress).isEmpty());
+        assertTrue(wallet.getRecentTransactions(10, true).isEmpty());
+    }
+
     @Test
     public void keyCreationTime() throws Exception {
         wallet = new Wallet(params);
@@ -1197,6 +1238,45 @@ public class WalletTest {
         assertTrue("Wrong number of keys in wallet after key addition", oneKey && !iterator.hasNext());
     }
 
+    @Test
+    public void encryptionDecryptionAndSigningWithManyKeys() throws Exception {
+        // Keys are encrypted, decrypted and used for signing in parallel, check they all stay in order.
+        List<byte[]> privateKeys = new ArrayList<byte[]>();
+        for (int i = 0; i < 15; i++)
+            wallet.addKey(new ECKey());
+        for (ECKey key : wallet.getKeys())
+            privateKeys.add(key.getPrivKeyBytes());
+        wallet.encrypt(keyCrypter, aesKey);
+        for (ECKey key : wallet.getKeys())
+            assertTrue(key.isEncrypted());
+
+        // Sign a transaction spending several outputs to each key.
+        Transaction prevTx = new Transaction(params);
+        for (int i = 0; i < 3; i++)
+            for (ECKey key : wallet.getKeys())
+                prevTx.addOutput(new TransactionOutput(params, prevTx, Utils.CENT, key.toAddress(params)));
+        Transaction tx = new Transaction(params);
+        tx.addOutput(new TransactionOutput(params, tx, Utils.COIN, new ECKey().toAddress(params)));
+        for (TransactionOutput output : prevTx.getOutputs())
+            tx.addInput(output);
+        try {
+            tx.signInputs(Transaction.SigHash.ALL, wallet, wrongAesKey);
+            fail();
+        } catch (KeyCrypterException e) {
+            // Expected.
+        }
+        tx.signInputs(Transaction.SigHash.ALL, wallet, aesKey);
+        for (TransactionInput input : tx.getInputs())
+            input.verify();
+
+        wallet.decrypt(aesKey);
+        int i = 0;
+        for (ECKey key : wallet.getKeys()) {
+            assertFalse(key.isEncrypted());
+            assertArrayEquals(privateKeys.get(i++), key.getPrivKeyBytes());
+        }
+    }
+
     @Test
     public void ageMattersDuringSelection() throws Exception {
         // Test that we prefer older coins to newer coins when building spends. This reduces required fees and improves
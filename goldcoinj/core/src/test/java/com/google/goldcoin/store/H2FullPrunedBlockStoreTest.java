@@ -0,0 +1,125 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.goldcoin.store;
+
+import com.google.goldcoin.core.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class H2FullPrunedBlockStoreTest {
+    private static final int DEPTH = 10;
+
+    private NetworkParameters params;
+    private File dir;
+    private String dbName;
+    private List<StoredBlock> blocks;
+
+    @Before
+    public void setUp() throws Exception {
+        params = NetworkParameters.unitTests();
+        dir = File.createTempFile("goldcoinj-unit-test", null);
+        dir.delete();
+        dir.mkdir();
+        dbName = new File(dir, "store").getAbsolutePath();
+        blocks = new ArrayList<StoredBlock>();
+        Block genesis = params.genesisBlock.cloneAsHeader();
+        blocks.add(new StoredBlock(genesis, genesis.getWork(), 0));
+        Address to = new ECKey().toAddress(params);
+        for (int i = 1; i <= 250; i++) {
+            StoredBlock prev = blocks.get(i - 1);
+            blocks.add(prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader()));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : dir.listFiles())
+            file.delete();
+        dir.delete();
+    }
+
+    private void putBlocks(H2FullPrunedBlockStore store, int from, int to) throws Exception {
+        for (StoredBlock block : blocks.subList(from, to + 1)) {
+            Sha256Hash hash = block.getHeader().getHash();
+            store.put(block, new StoredUndoableBlock(hash, new ArrayList<Transaction>()));
+            store.setVerifiedChainHead(block);
+        }
+    }
+
+    private void waitForPruning(H2FullPrunedBlockStore store) throws Exception {
+        for (int i = 0; i < 500 && store.getPruneLag() > 0; i++)
+            Thread.sleep(10);
+        assertEquals(0, store.getPruneLag());
+    }
+
+    @Test
+    public void prunesInBackground() throws Exception {
+        H2FullPrunedBlockStore store = new H2FullPrunedBlockStore(params, dbName, DEPTH);
+        putBlocks(store, 1, 250);
+        waitForPruning(store);
+        assertNull(store.getUndoBlock(blocks.get(1).getHeader().getHash()));
+        assertNull(store.getUndoBlock(blocks.get(250 - DEPTH).getHeader().getHash()));
+        assertNotNull(store.getUndoBlock(blocks.get(251 - DEPTH).getHeader().getHash()));
+        assertNotNull(store.getUndoBlock(blocks.get(250).getHeader().getHash()));
+        // Headers are kept.
+        assertEquals(blocks.get(1), store.get(blocks.get(1).getHeader().getHash()));
+        store.close();
+    }
+
+    @Test
+    public void resumesAfterRestart() throws Exception {
+        H2FullPrunedBlockStore store = new H2FullPrunedBlockStore(params, dbName, 1000);
+        putBlocks(store, 1, 250);
+        assertNotNull(store.getUndoBlock(blocks.get(1).getHeader().getHash()));
+        store.close();
+        // Opened again with a smaller depth, the old undo data is due for pruning.
+        store = new H2FullPrunedBlockStore(params, dbName, DEPTH);
+        assertTrue(store.getPruneLag() > 0);
+        waitForPruning(store);
+        assertNull(store.getUndoBlock(blocks.get(250 - DEPTH).getHeader().getHash()));
+        assertNotNull(store.getUndoBlock(blocks.get(251 - DEPTH).getHeader().getHash()));
+        store.close();
+    }
+
+    @Test
+    public void undoDataRoundTrip() throws Exception {
+        H2FullPrunedBlockStore store = new H2FullPrunedBlockStore(params, dbName, DEPTH);
+        StoredBlock block = blocks.get(1);
+        Sha256Hash hash = block.getHeader().getHash();
+        StoredTransactionOutput output = new StoredTransactionOutput(hash, 3, Utils.COIN, 1, true,
+                Script.createOutputScript(new ECKey().toAddress(params)));
+        List<StoredTransactionOutput> none = Collections.emptyList();
+        store.put(block, new StoredUndoableBlock(hash,
+                new TransactionOutputChanges(Collections.singletonList(output), none)));
+        TransactionOutputChanges changes = store.getUndoBlock(hash).getTxOutChanges();
+        assertEquals(0, changes.txOutsSpent.size());
+        StoredTransactionOutput read = changes.txOutsCreated.get(0);
+        assertEquals(output, read);
+        assertEquals(Utils.COIN, read.getValue());
+        assertEquals(1, read.getHeight());
+        assertArrayEquals(output.getScriptBytes(), read.getScriptBytes());
+        store.close();
+    }
+}
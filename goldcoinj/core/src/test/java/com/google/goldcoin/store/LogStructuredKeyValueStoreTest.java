@@ -0,0 +1,210 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.goldcoin.store;
+
+import com.google.goldcoin.core.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+public class LogStructuredKeyValueStoreTest {
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("goldcoinj-unit-test", null);
+        dir.delete();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : dir.listFiles())
+            file.delete();
+        dir.delete();
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes();
+    }
+
+    @Test
+    public void basics() throws Exception {
+        LogStructuredKeyValueStore store = new LogStructuredKeyValueStore(dir);
+        assertNull(store.get(bytes("a")));
+        store.write(new LogStructuredKeyValueStore.Batch().put(bytes("a"), bytes("1")).put(bytes("b"), bytes("2")));
+        store.write(new LogStructuredKeyValueStore.Batch().put(bytes("a"), bytes("3")).delete(bytes("b")));
+        store.write(new LogStructuredKeyValueStore.Batch().put(bytes("c"), new byte[0]));
+        assertArrayEquals(bytes("3"), store.get(bytes("a")));
+        assertNull(store.get(bytes("b")));
+        assertFalse(store.contains(bytes("b")));
+        assertArrayEquals(new byte[0], store.get(bytes("c")));
+        assertEquals(2, store.size());
+        assertTrue(store.getGarbageBytes() > 0);
+        store.close();
+
+        // The index is rebuilt from the log.
+        store = new LogStructuredKeyValueStore(dir);
+        assertArrayEquals(bytes("3"), store.get(bytes("a")));
+        assertNull(store.get(bytes("b")));
+        assertEquals(2, store.size());
+        store.close();
+    }
+
+    @Test
+    public void lockedByOtherStore() throws Exception {
+        LogStructuredKeyValueStore store = new LogStructuredKeyValueStore(dir);
+        try {
+            new LogStructuredKeyValueStore(dir);
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+        store.close();
+        // The failed open didn't leave anything behind holding the lock.
+        new LogStructuredKeyValueStore(dir).close();
+    }
+
+    @Test
+    public void failedOpenReleasesLock() throws Exception {
+        dir.mkdirs();
+        RandomAccessFile raf = new RandomAccessFile(new File(dir, "log"), "rw");
+        raf.writeInt(0x12345678);
+        raf.close();
+        try {
+            new LogStructuredKeyValueStore(dir);
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected, the log has the wrong magic.
+        }
+        new File(dir, "log").delete();
+        new LogStructuredKeyValueStore(dir).close();
+    }
+
+    @Test
+    public void incompleteBatchDiscarded() throws Exception {
+        LogStructuredKeyValueStore store = new LogStructuredKeyValueStore(dir);
+        store.write(new LogStructuredKeyValueStore.Batch().put(bytes("a"), bytes("1")));
+        long size = store.getLogSize();
+        store.write(new LogStructuredKeyValueStore.Batch().put(bytes("a"), bytes("2")).put(bytes("b"), bytes("3")));
+        store.close();
+
+        // Cut the second batch short, as if we crashed whilst writing it.
+        RandomAccessFile file = new RandomAccessFile(new File(dir, "log"), "rw");
+        file.setLength(file.length() - 3);
+        file.close();
+
+        store = new LogStructuredKeyValueStore(dir);
+        assertArrayEquals(bytes("1"), store.get(bytes("a")));
+        assertNull(store.get(bytes("b")));
+        assertEquals(size, store.getLogSize());
+        // New batches go where the incomplete one was.
+        store.write(new LogStructuredKeyValueStore.Batch().put(bytes("b"), bytes("4")));
+        store.close();
+        store = new LogStructuredKeyValueStore(dir);
+        assertArrayEquals(bytes("4"), store.get(bytes("b")));
+        store.close();
+    }
+
+    @Test
+    public void compaction() throws Exception {
+        LogStructuredKeyValueStore store = new LogStructuredKeyValueStore(dir);
+        for (int i = 0; i < 100; i++) {
+            LogStructuredKeyValueStore.Batch batch = new LogStructuredKeyValueStore.Batch();
+            for (int j = 0; j < 50; j++)
+                batch.put(bytes("key" + j), bytes("value" + i));
+            batch.delete(bytes("key" + (i % 50)));
+            store.write(batch);
+        }
+        long size = store.getLogSize();
+        store.compact();
+        assertEquals(0, store.getGarbageBytes());
+        assertTrue(store.getLogSize() < size / 50);
+        assertEquals(49, store.size());
+        assertNull(store.get(bytes("key49")));
+        assertArrayEquals(bytes("value99"), store.get(bytes("key0")));
+        assertEquals(49, store.getKeys(bytes("key")).size());
+        store.write(new LogStructuredKeyValueStore.Batch().put(bytes("key49"), bytes("new")));
+        store.close();
+
+        store = new LogStructuredKeyValueStore(dir);
+        assertEquals(50, store.size());
+        assertArrayEquals(bytes("value99"), store.get(bytes("key0")));
+        assertArrayEquals(bytes("new"), store.get(bytes("key49")));
+        store.close();
+    }
+
+    @Test
+    public void blockStoreReopens() throws Exception {
+        NetworkParameters params = NetworkParameters.unitTests();
+        LogStructuredFullPrunedBlockStore store = new LogStructuredFullPrunedBlockStore(params, dir, 2);
+        StoredBlock genesis = store.getChainHead();
+        assertEquals(params.genesisBlock.getHash(), genesis.getHeader().getHash());
+
+        Address to = new ECKey().toAddress(params);
+        StoredBlock prev = genesis;
+        for (int i = 1; i <= 5; i++) {
+            StoredBlock block = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            store.beginDatabaseBatchWrite();
+            store.put(block, new StoredUndoableBlock(block.getHeader().getHash(), new ArrayList<Transaction>()));
+            store.setVerifiedChainHead(block);
+            store.commitDatabaseBatchWrite();
+            prev = block;
+        }
+        Sha256Hash txHash = Sha256Hash.create(bytes("tx"));
+        StoredTransactionOutput out =
+                new StoredTransactionOutput(txHash, 1, BigInteger.TEN, 3, true, new byte[]{1, 2, 3});
+        store.addUnspentTransactionOutput(out);
+
+        // Changes in an aborted batch are discarded.
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(out);
+        assertNull(store.getTransactionOutput(txHash, 1));
+        store.abortDatabaseBatchWrite();
+        assertEquals(out, store.getTransactionOutput(txHash, 1));
+        store.close();
+
+        store = new LogStructuredFullPrunedBlockStore(params, dir, 2);
+        assertEquals(prev, store.getChainHead());
+        assertEquals(prev, store.getVerifiedChainHead());
+        assertEquals(genesis, store.get(genesis.getHeader().getHash()));
+        // Only the most recent undo data is kept, but the blocks remember they were undoable.
+        assertNull(store.getUndoBlock(genesis.getHeader().getHash()));
+        assertNotNull(store.getOnceUndoableStoredBlock(genesis.getHeader().getHash()));
+        assertNotNull(store.getUndoBlock(prev.getHeader().getHash()));
+        StoredTransactionOutput read = store.getTransactionOutput(txHash, 1);
+        assertEquals(BigInteger.TEN, read.getValue());
+        assertEquals(3, read.getHeight());
+        assertArrayEquals(new byte[]{1, 2, 3}, read.getScriptBytes());
+        assertTrue(store.hasUnspentOutputs(txHash, 2));
+        assertFalse(store.hasUnspentOutputs(txHash, 1));
+        store.removeUnspentTransactionOutput(out);
+        try {
+            store.removeUnspentTransactionOutput(out);
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+        store.close();
+    }
+}
@@ -23,8 +23,13 @@ import com.google.goldcoin.core.StoredBlock;
 import org.junit.Test;
 
 import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 
 public class SPVBlockStoreTest {
 
@@ -52,9 +57,62 @@ public class SPVBlockStoreTest {
         // Check we can get it back out again if we rebuild the store object.
         store = new SPVBlockStore(params, f);
         StoredBlock b2 = store.get(b1.getHeader().getHash());
+        // The header fields can be read without building the header.
+        assertEquals(b1.getHeader().getTimeSeconds(), b2.getTimeSeconds());
+        assertEquals(b1.getHeader().getDifficultyTarget(), b2.getDifficultyTarget());
+        assertEquals(genesis.getHeader().getHash(), b2.getPrevBlockHash());
+        assertEquals(b1.getChainWork(), b2.getChainWork());
+        assertEquals(1, b2.getHeight());
         assertEquals(b1, b2);
         // Check the chain head was stored correctly also.
         StoredBlock chainHead = store.getChainHead();
         assertEquals(b1, chainHead);
     }
+
+    @Test
+    public void skipPointers() throws Exception {
+        NetworkParameters params = NetworkParameters.unitTests();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        SPVBlockStore store = new SPVBlockStore(params, f);
+
+        Address to = new ECKey().toAddress(params);
+        List<StoredBlock> chain = new ArrayList<StoredBlock>();
+        chain.add(store.getChainHead());
+        for (int i = 1; i <= 100; i++) {
+            StoredBlock prev = chain.get(i - 1);
+            StoredBlock block = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader(), store);
+            assertEquals(chain.get(StoredBlock.getSkipHeight(i)).getHeader().getHash(), block.getSkipHash());
+            store.put(block);
+            chain.add(block);
+        }
+        store.setChainHead(chain.get(100));
+        store.close();
+
+        // The skip pointers survive reopening the store.
+        store = new SPVBlockStore(params, f);
+        StoredBlock tip = store.getChainHead();
+        assertEquals(chain.get(100).getSkipHash(), tip.getSkipHash());
+        for (int height = 0; height <= 100; height += 7)
+            assertEquals(chain.get(height), tip.getAncestor(store, height));
+
+        // A skip pointer left behind by the previous occupant of a slot, to a block of the wrong height, is ignored.
+        StoredBlock stale = store.get(chain.get(100).getHeader().getHash());
+        stale.setSkipHash(chain.get(10).getHeader().getHash());
+        assertEquals(chain.get(96), stale.getAncestor(store, 96));
+        store.close();
+
+        // A file from before skip pointers were stored is extended, and ancestors are found by walking back.
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        raf.setLength(raf.length() - SPVBlockStore.SKIP_RECORD_SIZE * SPVBlockStore.DEFAULT_NUM_HEADERS);
+        raf.close();
+        store = new SPVBlockStore(params, f);
+        assertEquals(store.getFileSize(), f.length());
+        tip = store.get(chain.get(100).getHeader().getHash());
+        assertNotNull(tip);
+        assertNull(tip.getSkipHash());
+        assertEquals(chain.get(42), tip.getAncestor(store, 42));
+        store.close();
+    }
 }
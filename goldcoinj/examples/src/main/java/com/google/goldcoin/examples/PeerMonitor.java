@@ -161,6 +161,8 @@ public class PeerMonitor {
         public static final int CHAIN_HEIGHT = 3;
         public static final int PING_TIME = 4;
         public static final int LAST_PING_TIME = 5;
+        public static final int BYTES_PER_SEC = 6;
+        public static final int DOWNLOAD_SCORE = 7;
 
         public List<Peer> connectedPeers = Lists.newArrayList();
         public List<Peer> pendingPeers = Lists.newArrayList();
@@ -190,13 +192,17 @@ public class PeerMonitor {
                     return "Average ping";
                 case LAST_PING_TIME:
                     return "Last ping";
+                case BYTES_PER_SEC:
+                    return "Bytes/sec";
+                case DOWNLOAD_SCORE:
+                    return "Download score";
                 default:
                     throw new RuntimeException();
             }
         }
 
         public int getColumnCount() {
-            return 6;
+            return 8;
         }
 
         public Class<?> getColumnClass(int column) {
@@ -206,6 +212,7 @@ public class PeerMonitor {
                 case CHAIN_HEIGHT:
                 case PING_TIME:
                 case LAST_PING_TIME:
+                case BYTES_PER_SEC:
                     return Long.class;
                 default:
                     return String.class;
@@ -224,6 +231,7 @@ public class PeerMonitor {
                     case CHAIN_HEIGHT:
                     case PING_TIME:
                     case LAST_PING_TIME:
+                    case BYTES_PER_SEC:
                         return 0L;
                     default:
                         return "(pending)";
@@ -242,6 +250,10 @@ public class PeerMonitor {
                 case PING_TIME:
                 case LAST_PING_TIME:
                     return col == PING_TIME ? peer.getPingTime() : peer.getLastPingTime();
+                case BYTES_PER_SEC:
+                    return (long) peer.getBytesPerSecond();
+                case DOWNLOAD_SCORE:
+                    return String.format("%.3f", peer.getDownloadScore());
 
                 default:
                     throw new RuntimeException();
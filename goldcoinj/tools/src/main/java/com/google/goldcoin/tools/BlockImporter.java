@@ -16,21 +16,19 @@
 
 package com.google.goldcoin.tools;
 
-import com.google.goldcoin.core.Block;
+import com.google.goldcoin.core.BlockFileImporter;
 import com.google.goldcoin.core.FullPrunedBlockChain;
 import com.google.goldcoin.core.NetworkParameters;
-import com.google.goldcoin.core.Utils;
 import com.google.goldcoin.store.FullPrunedBlockStore;
 import com.google.goldcoin.store.H2FullPrunedBlockStore;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
+import java.util.List;
 
 /**
  * This class reads block files stored in the reference/Satoshi clients format. This is simply a way to concatenate
  * blocks together. Importing block data with this tool can be a lot faster than syncing over the network, if you
- * have the files available.
+ * have the files available. Running it again resumes from where the last run got to.
  */
 public class BlockImporter {
     public static void main(String[] args) throws Exception {
@@ -45,33 +43,19 @@ public class BlockImporter {
             defaultDataDir = System.getProperty("user.home") + "/.gldcoin/";
         }
 
-        // TODO: Move this to a library function
-        FileInputStream stream = new FileInputStream(new File(defaultDataDir + "blk0001.dat"));
-        int i = 0;
-        while (stream.available() > 0) {
-            try {
-                while (stream.read() != ((params.packetMagic >>> 24) & 0xff) || stream.read() != ((params.packetMagic >>> 16) & 0xff) ||
-                        stream.read() != ((params.packetMagic >>> 8) & 0xff) || stream.read() != (params.packetMagic & 0xff))
-                    ;
-            } catch (IOException e) {
-                break;
-            }
-            byte[] bytes = new byte[4];
-            stream.read(bytes, 0, 4);
-            long size = Utils.readUint32BE(Utils.reverseBytes(bytes), 0);
-            if (size > Block.MAX_BLOCK_SIZE || size <= 0)
-                continue;
-            bytes = new byte[(int) size];
-            stream.read(bytes, 0, (int) size);
-            Block block = new Block(params, bytes);
-            if (store.get(block.getHash()) == null)
-                chain.add(block);
-
-            if (i % 10000 == 0)
-                System.out.println(i);
-            i++;
+        List<File> files = BlockFileImporter.getReferenceClientBlockFiles(new File(defaultDataDir));
+        if (files.isEmpty()) {
+            System.err.println("No block files found in " + defaultDataDir);
+            return;
         }
-        stream.close();
+        BlockFileImporter importer = new BlockFileImporter(params, chain, files) {
+            @Override
+            protected void progress(double pct, int blocksImported, double blocksPerSecond) {
+                System.out.println(String.format("%d%% done, %d blocks imported, %.1f blocks/sec", (int) pct,
+                        blocksImported, blocksPerSecond));
+            }
+        };
+        importer.importBlocks();
         System.out.println("Imported " + chain.getChainHead().getHeight() + " blocks.");
     }
 }
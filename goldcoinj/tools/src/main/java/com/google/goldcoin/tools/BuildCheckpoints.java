@@ -81,7 +81,7 @@ public class BuildCheckpoints {
         store.close();
 
         // Sanity check the created file.
-        CheckpointManager manager = new CheckpointManager(params, new FileInputStream("checkpoints"));
+        CheckpointManager manager = new CheckpointManager(params, new File("checkpoints"));
         checkState(manager.numCheckpoints() == checkpoints.size());
         //StoredBlock test = manager.getCheckpointBefore(1348310800);  // Just after block 200,000
         //checkState(test.getHeight() == 199584);